@@ -0,0 +1,109 @@
+package benchmark.beast;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Synthetic trees and alignments of configurable size for the benchmarks.
+ * Everything is generated from a fixed seed, so that runs are comparable
+ * between JVMs, flags and versions.
+ */
+public class BenchmarkData {
+
+	public static final long SEED = 127;
+
+	private static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+
+	/**
+	 * random coalescent-like tree with taxa t0, t1, ... all sampled at time zero
+	 */
+	public static Tree randomTree(int taxonCount, long seed) {
+		Random random = new Random(seed);
+		List<String> newicks = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			newicks.add("t" + i);
+			heights.add(0.0);
+		}
+		double time = 0;
+		while (newicks.size() > 1) {
+			int k = newicks.size();
+			time += -Math.log(random.nextDouble()) * 2.0 / (k * (k - 1.0));
+			int i = random.nextInt(k);
+			String a = newicks.remove(i);
+			double ha = heights.remove(i);
+			int j = random.nextInt(k - 1);
+			String b = newicks.remove(j);
+			double hb = heights.remove(j);
+			newicks.add("(" + a + ":" + (time - ha) + "," + b + ":" + (time - hb) + ")");
+			heights.add(time);
+		}
+		return new Tree(newicks.get(0) + ";");
+	}
+
+	/**
+	 * nucleotide alignment simulated down the tree under Jukes Cantor, so that
+	 * the number of unique site patterns is realistic for the tree height
+	 * @param rate substitution rate per unit of time on the tree
+	 */
+	public static Alignment simulateAlignment(Tree tree, int siteCount, double rate, long seed) {
+		Random random = new Random(seed);
+		char[][] sequences = new char[tree.getNodeCount()][siteCount];
+		Node root = tree.getRoot();
+		for (int k = 0; k < siteCount; k++) {
+			sequences[root.getNr()][k] = NUCLEOTIDES[random.nextInt(4)];
+		}
+		simulate(root, sequences, rate, random);
+
+		List<Sequence> list = new ArrayList<>();
+		for (Node leaf : tree.getExternalNodes()) {
+			list.add(new Sequence(leaf.getID(), new String(sequences[leaf.getNr()])));
+		}
+		return new Alignment(list, "nucleotide");
+	}
+
+	private static void simulate(Node node, char[][] sequences, double rate, Random random) {
+		for (Node child : node.getChildren()) {
+			double distance = node.getHeight() - child.getHeight();
+			double change = 1.0 - Math.exp(-4.0 / 3.0 * distance * rate);
+			char[] parent = sequences[node.getNr()];
+			char[] sequence = sequences[child.getNr()];
+			for (int k = 0; k < parent.length; k++) {
+				sequence[k] = random.nextDouble() < change ? NUCLEOTIDES[random.nextInt(4)] : parent[k];
+			}
+			simulate(child, sequences, rate, random);
+		}
+	}
+
+	public static HKY hky(Alignment data) {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", new RealParameter("2.0"), "frequencies", frequencies);
+		return hky;
+	}
+
+	/** HKY+G4 site model **/
+	public static SiteModel siteModel(Alignment data) {
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", new RealParameter("0.5"), "substModel", hky(data));
+		return siteModel;
+	}
+
+	public static TreeLikelihood treeLikelihood(Tree tree, Alignment data) {
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel(data));
+		return likelihood;
+	}
+}
@@ -0,0 +1,70 @@
+package benchmark.beast.evolution.alignment;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmark.beast.BenchmarkData;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Site pattern compression of a simulated nucleotide alignment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlignmentBenchmark {
+
+	@Param({"64"})
+	public int taxa;
+
+	@Param({"10000", "100000"})
+	public int sites;
+
+	/** substitution rate, which determines how many of the sites are unique patterns **/
+	@Param({"0.1", "1.0"})
+	public double rate;
+
+	/** gives access to calcPatterns() **/
+	static class PatternAlignment extends Alignment {
+		PatternAlignment(List<Sequence> sequences) {
+			super(sequences, "nucleotide");
+		}
+
+		void patterns() {
+			calcPatterns(false);
+		}
+	}
+
+	private PatternAlignment alignment;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Tree tree = BenchmarkData.randomTree(taxa, BenchmarkData.SEED);
+		Alignment data = BenchmarkData.simulateAlignment(tree, sites, rate, BenchmarkData.SEED);
+		alignment = new PatternAlignment(data.sequenceInput.get());
+	}
+
+	@Benchmark
+	public int calcPatterns() {
+		alignment.patterns();
+		return alignment.getPatternCount();
+	}
+}
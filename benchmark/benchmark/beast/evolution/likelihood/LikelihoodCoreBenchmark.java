@@ -0,0 +1,233 @@
+package benchmark.beast.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beagle.Beagle;
+import benchmark.beast.BenchmarkData;
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.BeerLikelihoodCore4;
+import beast.base.evolution.likelihood.JavaBeagleImpl;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.likelihood.ThreadedBeerLikelihoodCore;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.util.ForkJoinScheduler;
+
+/**
+ * Partials for all internal nodes of a tree, as calculated in a full traversal of
+ * the tree likelihood, for each of the nucleotide likelihood cores. The threaded core
+ * splits the patterns into one slice per thread, which run on the shared fork/join pool.
+ * JavaBeagleImpl runs the traversal as one BEAGLE operation list, split into pattern
+ * slices the same way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LikelihoodCoreBenchmark {
+
+	@Param({"BeerLikelihoodCore", "BeerLikelihoodCore4", "ThreadedBeerLikelihoodCore", "JavaBeagleImpl"})
+	public String core;
+
+	@Param({"64"})
+	public int taxa;
+
+	@Param({"1000", "10000"})
+	public int patterns;
+
+	@Param({"4"})
+	public int categories;
+
+	/** number of pattern slices for the threaded core and JavaBeagleImpl, ignored by the other cores; compare with -p threads=1,2,4 **/
+	@Param({"1"})
+	public int threads;
+
+	private LikelihoodCore likelihoodCore;
+	private ThreadedBeerLikelihoodCore threadedCore;
+	private List<SliceTask> tasks;
+	private JavaBeagleImpl beagle;
+	private int[] operations;
+
+	// post-order traversal of internal nodes as (child1, child2, parent) triples
+	private int[] child1, child2, parent;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Tree tree = BenchmarkData.randomTree(taxa, BenchmarkData.SEED);
+		Random random = new Random(BenchmarkData.SEED);
+		int nodeCount = tree.getNodeCount();
+		int leafCount = tree.getLeafNodeCount();
+
+		switch (core) {
+		case "BeerLikelihoodCore":
+			likelihoodCore = new BeerLikelihoodCore(4);
+			break;
+		case "BeerLikelihoodCore4":
+			likelihoodCore = new BeerLikelihoodCore4();
+			break;
+		case "ThreadedBeerLikelihoodCore":
+			threadedCore = new ThreadedBeerLikelihoodCore(4);
+			break;
+		case "JavaBeagleImpl":
+			beagle = new JavaBeagleImpl(leafCount, nodeCount, leafCount, 4, patterns, 1, nodeCount, categories, 0);
+			beagle.setCPUThreadCount(threads);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown likelihood core " + core);
+		}
+
+		if (likelihoodCore != null) {
+			likelihoodCore.initialize(nodeCount, patterns, categories, true, false);
+		} else if (threadedCore != null) {
+			int[] weights = new int[patterns];
+			Arrays.fill(weights, 1);
+			threadedCore.initialize(nodeCount, patterns, categories, weights, new ArrayList<>(), threads, true);
+		}
+
+		for (int i = 0; i < leafCount; i++) {
+			int[] states = new int[patterns];
+			for (int k = 0; k < patterns; k++) {
+				states[k] = random.nextInt(4);
+			}
+			if (likelihoodCore != null) {
+				likelihoodCore.setNodeStates(i, states);
+			} else if (threadedCore != null) {
+				threadedCore.setNodeStates(i, states);
+			} else {
+				beagle.setTipStates(i, states);
+			}
+		}
+		for (int i = leafCount; i < nodeCount; i++) {
+			if (likelihoodCore != null) {
+				likelihoodCore.createNodePartials(i);
+			} else if (threadedCore != null) {
+				threadedCore.createNodePartials(i);
+			}
+		}
+
+		HKY hky = BenchmarkData.hky(BenchmarkData.simulateAlignment(tree, 100, 1.0, BenchmarkData.SEED));
+		double[] matrix = new double[16];
+		double[] matrices = new double[16 * categories];
+		for (Node node : tree.getNodesAsArray()) {
+			if (node.isRoot()) {
+				continue;
+			}
+			for (int i = 0; i < categories; i++) {
+				double rate = (i + 0.5) * 2.0 / categories;
+				hky.getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(), rate, matrix);
+				if (likelihoodCore != null) {
+					likelihoodCore.setNodeMatrix(node.getNr(), i, matrix);
+				} else if (threadedCore != null) {
+					threadedCore.setNodeMatrix(node.getNr(), i, matrix);
+				} else {
+					System.arraycopy(matrix, 0, matrices, 16 * i, 16);
+				}
+			}
+			if (beagle != null) {
+				beagle.setTransitionMatrix(node.getNr(), matrices, 1.0);
+			}
+		}
+
+		int internalNodeCount = nodeCount - leafCount;
+		child1 = new int[internalNodeCount];
+		child2 = new int[internalNodeCount];
+		parent = new int[internalNodeCount];
+		int k = 0;
+		for (Node node : tree.listNodesPostOrder(null, null)) {
+			if (!node.isLeaf()) {
+				child1[k] = node.getLeft().getNr();
+				child2[k] = node.getRight().getNr();
+				parent[k] = node.getNr();
+				k++;
+			}
+		}
+
+		if (beagle != null) {
+			operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+			for (int i = 0; i < internalNodeCount; i++) {
+				int x = i * Beagle.OPERATION_TUPLE_SIZE;
+				operations[x] = parent[i];
+				operations[x + 1] = Beagle.NONE;
+				operations[x + 2] = Beagle.NONE;
+				operations[x + 3] = child1[i];
+				operations[x + 4] = child1[i];
+				operations[x + 5] = child2[i];
+				operations[x + 6] = child2[i];
+			}
+		}
+
+		if (threadedCore != null) {
+			tasks = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				tasks.add(new SliceTask(i * patterns / threads, (i + 1) * patterns / threads));
+			}
+		}
+	}
+
+	@Benchmark
+	public void calculatePartials(Blackhole blackhole) {
+		if (likelihoodCore != null) {
+			for (int i = 0; i < parent.length; i++) {
+				likelihoodCore.setNodePartialsForUpdate(parent[i]);
+				likelihoodCore.calculatePartials(child1[i], child2[i], parent[i]);
+			}
+			blackhole.consume(likelihoodCore);
+		} else if (beagle != null) {
+			beagle.updatePartials(operations, parent.length, Beagle.NONE);
+			blackhole.consume(beagle);
+		} else if (tasks.size() == 1) {
+			tasks.get(0).calculate();
+			blackhole.consume(threadedCore);
+		} else {
+			for (SliceTask task : tasks) {
+				task.reinitialize();
+			}
+			ForkJoinScheduler.invokeAll(tasks);
+			blackhole.consume(threadedCore);
+		}
+	}
+
+	/** all partials for one slice of the patterns **/
+	class SliceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		SliceTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		void calculate() {
+			for (int i = 0; i < parent.length; i++) {
+				threadedCore.calculatePartials(child1[i], child2[i], parent[i], from, to);
+			}
+		}
+
+		@Override
+		protected void compute() {
+			calculate();
+		}
+	}
+}
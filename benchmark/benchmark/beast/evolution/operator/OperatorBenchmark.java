@@ -0,0 +1,108 @@
+package benchmark.beast.evolution.operator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmark.beast.BenchmarkData;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.operator.SubtreeSlide;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.operator.WilsonBalding;
+import beast.base.evolution.operator.kernel.BactrianNodeOperator;
+import beast.base.evolution.operator.kernel.BactrianScaleOperator;
+import beast.base.evolution.operator.kernel.BactrianSubtreeSlide;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+
+/**
+ * Proposals of the common tree operators, each followed by a restore of the tree
+ * as if the proposal was rejected, so the tree stays the same between invocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperatorBenchmark {
+
+	@Param({"ScaleOperator", "BactrianScaleOperator", "Uniform", "BactrianNodeOperator",
+		"Exchange", "WideExchange", "SubtreeSlide", "BactrianSubtreeSlide", "WilsonBalding"})
+	public String operator;
+
+	@Param({"100", "1000"})
+	public int taxa;
+
+	private Tree tree;
+	private Operator treeOperator;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Randomizer.setSeed(BenchmarkData.SEED);
+		tree = BenchmarkData.randomTree(taxa, BenchmarkData.SEED);
+		switch (operator) {
+		case "ScaleOperator":
+			treeOperator = new ScaleOperator();
+			treeOperator.initByName("tree", tree, "scaleFactor", 0.9, "weight", 1.0);
+			break;
+		case "BactrianScaleOperator":
+			treeOperator = new BactrianScaleOperator();
+			treeOperator.initByName("tree", tree, "scaleFactor", 0.1, "weight", 1.0);
+			break;
+		case "Uniform":
+			treeOperator = new Uniform();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		case "BactrianNodeOperator":
+			treeOperator = new BactrianNodeOperator();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		case "Exchange":
+			treeOperator = new Exchange();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		case "WideExchange":
+			treeOperator = new Exchange();
+			treeOperator.initByName("tree", tree, "isNarrow", false, "weight", 1.0);
+			break;
+		case "SubtreeSlide":
+			treeOperator = new SubtreeSlide();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		case "BactrianSubtreeSlide":
+			treeOperator = new BactrianSubtreeSlide();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		case "WilsonBalding":
+			treeOperator = new WilsonBalding();
+			treeOperator.initByName("tree", tree, "weight", 1.0);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operator " + operator);
+		}
+	}
+
+	@Benchmark
+	public double proposal() {
+		double logHR = treeOperator.proposal();
+		// operators may give up before they change the tree
+		if (tree.somethingIsDirty()) {
+			tree.restore();
+		}
+		return logHR;
+	}
+}
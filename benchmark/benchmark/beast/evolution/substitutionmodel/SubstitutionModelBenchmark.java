@@ -0,0 +1,82 @@
+package benchmark.beast.evolution.substitutionmodel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.substitutionmodel.WAG;
+
+/**
+ * Transition probability matrices for a range of branch lengths, with the eigen
+ * decomposition of the rate matrix already in place, as in a tree likelihood
+ * after a tree operator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubstitutionModelBenchmark {
+
+	@Param({"HKY", "GTR", "WAG"})
+	public String model;
+
+	private SubstitutionModel substitutionModel;
+	private double[] matrix;
+	private double[] branchLengths;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.3 0.2 0.2 0.3", "estimate", false);
+		switch (model) {
+		case "HKY":
+			HKY hky = new HKY();
+			hky.initByName("kappa", "2.0", "frequencies", frequencies);
+			substitutionModel = hky;
+			break;
+		case "GTR":
+			GTR gtr = new GTR();
+			gtr.initByName("rateAC", "1.2", "rateAG", "3.0", "rateAT", "0.8", "rateCG", "1.1", "rateGT", "0.9", "frequencies", frequencies);
+			substitutionModel = gtr;
+			break;
+		case "WAG":
+			WAG wag = new WAG();
+			wag.initAndValidate();
+			substitutionModel = wag;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown substitution model " + model);
+		}
+		int stateCount = substitutionModel.getStateCount();
+		matrix = new double[stateCount * stateCount];
+		branchLengths = new double[1024];
+		for (int i = 0; i < branchLengths.length; i++) {
+			branchLengths[i] = 0.001 + 0.5 * i / branchLengths.length;
+		}
+	}
+
+	@Benchmark
+	public double[] getTransitionProbabilities() {
+		double branchLength = branchLengths[next++ & (branchLengths.length - 1)];
+		substitutionModel.getTransitionProbabilities(null, branchLength, 0.0, 1.0, matrix);
+		return matrix;
+	}
+}
@@ -0,0 +1,122 @@
+package benchmark.beast.evolution.substitutionmodel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+
+/**
+ * Transition probability matrices calculated by threads sharing a substitution
+ * model, as tree likelihoods do with ThreadedTreeLikelihood or a threaded
+ * CompoundDistribution. The lock-free models are compared with versions that
+ * take the model lock on every call, as the models used to do.
+ * The number of threads can be changed with the JMH option -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SubstitutionModelContentionBenchmark {
+
+	/** HKY taking the model lock on every call **/
+	static class LockingHKY extends HKY {
+		@Override
+		public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+			synchronized (this) {
+				if (updateMatrix) {
+					setupMatrix();
+				}
+			}
+			super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+		}
+	}
+
+	/** GTR taking the model lock and allocating scratch space on every call **/
+	static class LockingGTR extends GTR {
+		double[] iexp;
+
+		@Override
+		public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix, boolean normalized) {
+			synchronized (this) {
+				if (updateMatrix) {
+					getEigenDecomposition(node);
+				}
+			}
+			iexp = new double[nrOfStates * nrOfStates];
+			super.getTransitionProbabilities(node, startTime, endTime, rate, matrix, normalized);
+		}
+	}
+
+	/** matrix and branch length position of a single thread **/
+	@State(Scope.Thread)
+	public static class ThreadState {
+		double[] matrix;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup(SubstitutionModelContentionBenchmark benchmark) {
+			int stateCount = benchmark.substitutionModel.getStateCount();
+			matrix = new double[stateCount * stateCount];
+		}
+	}
+
+	@Param({"HKY", "GTR"})
+	public String model;
+
+	@Param({"false", "true"})
+	public boolean locking;
+
+	private SubstitutionModel substitutionModel;
+	private double[] branchLengths;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", "0.2 0.3 0.25 0.25", "estimate", false);
+		switch (model) {
+		case "HKY":
+			HKY hky = locking ? new LockingHKY() : new HKY();
+			hky.initByName("kappa", "5.0", "frequencies", frequencies);
+			substitutionModel = hky;
+			break;
+		case "GTR":
+			GTR gtr = locking ? new LockingGTR() : new GTR();
+			gtr.initByName("rateAC", "1.2", "rateAG", "3.0", "rateAT", "0.8", "rateCG", "1.1", "rateGT", "0.9", "frequencies", frequencies);
+			substitutionModel = gtr;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown substitution model " + model);
+		}
+		branchLengths = new double[1024];
+		for (int i = 0; i < branchLengths.length; i++) {
+			branchLengths[i] = 0.001 * (i + 1);
+		}
+	}
+
+	@Benchmark
+	public double[] getTransitionProbabilities(ThreadState state) {
+		double branchLength = branchLengths[state.next++ & (branchLengths.length - 1)];
+		substitutionModel.getTransitionProbabilities(null, branchLength, 0.0, 1.0, state.matrix);
+		return state.matrix;
+	}
+}
@@ -0,0 +1,57 @@
+package benchmark.beast.evolution.tree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmark.beast.BenchmarkData;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/**
+ * Store and restore of a tree, as happens for every rejected proposal of a tree operator
+ * that changes the height of a single node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int taxa;
+
+	private Tree tree;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		tree = BenchmarkData.randomTree(taxa, BenchmarkData.SEED);
+	}
+
+	@Benchmark
+	public Tree storeRestore() {
+		// as an operator would through its tree input
+		tree.startEditing(null);
+		// restore() may swap the node arrays, so nodes are looked up by number every time
+		int nr = tree.getLeafNodeCount() + next;
+		next = (next + 1) % tree.getInternalNodeCount();
+		Node node = tree.getNode(nr);
+		node.setHeight(node.getHeight());
+		tree.restore();
+		return tree;
+	}
+}
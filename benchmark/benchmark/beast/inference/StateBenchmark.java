@@ -0,0 +1,98 @@
+package benchmark.beast.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmark.beast.BenchmarkData;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.StateNode;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.parameter.RealParameter;
+
+/**
+ * Lookup of the calculation nodes affected by a proposal, for a model with a tree
+ * likelihood and a configurable number of parameters that each have a prior.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int parameters;
+
+	/** number of parameters changed by a proposal **/
+	@Param({"1", "2"})
+	public int changed;
+
+	private beast.base.inference.State state;
+	private List<RealParameter> stateNodes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Tree tree = BenchmarkData.randomTree(32, BenchmarkData.SEED);
+		Alignment data = BenchmarkData.simulateAlignment(tree, 100, 1.0, BenchmarkData.SEED);
+		TreeLikelihood likelihood = BenchmarkData.treeLikelihood(tree, data);
+
+		stateNodes = new ArrayList<>();
+		List<Distribution> priors = new ArrayList<>();
+		for (int i = 0; i < parameters; i++) {
+			RealParameter parameter = new RealParameter();
+			parameter.initByName("value", "1.0");
+			parameter.setID("p" + i);
+			Normal normal = new Normal();
+			normal.initByName("mean", "0.0", "sigma", "1.0");
+			Prior prior = new Prior();
+			prior.initByName("x", parameter, "distr", normal);
+			stateNodes.add(parameter);
+			priors.add(prior);
+		}
+		CompoundDistribution prior = new CompoundDistribution();
+		prior.initByName("distribution", priors);
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", prior, "distribution", likelihood);
+
+		List<StateNode> all = new ArrayList<>(stateNodes);
+		all.add(tree);
+		state = new beast.base.inference.State();
+		state.initByName("stateNode", all);
+		state.initialise();
+		state.setPosterior(posterior);
+	}
+
+	@Benchmark
+	public List<CalculationNode> getCurrentCalculationNodes() {
+		state.store(next);
+		for (int i = 0; i < changed; i++) {
+			stateNodes.get(Math.floorMod(next * 7919 + i * 104729, parameters)).startEditing(null);
+		}
+		next++;
+		List<CalculationNode> nodes = state.getCurrentCalculationNodes();
+		state.restore();
+		return nodes;
+	}
+}
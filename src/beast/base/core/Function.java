@@ -34,12 +34,22 @@ public interface Function {
      */
     default double[] getDoubleValues() {
         double[] values = new double[getDimension()];
-        for (int i = 0; i < values.length; i++) {
-            values[i] = getArrayValue(i);
-        }
+        getArrayValues(values);
         return values;
     }
 
+    /**
+     * Copy all values into target without allocating, so that likelihoods and priors
+     * can reuse a buffer. Functions backed by a double[] override this with a bulk copy.
+     *
+     * @param target array of at least getDimension() length
+     */
+    default void getArrayValues(double[] target) {
+        for (int i = 0; i < getDimension(); i++) {
+            target[i] = getArrayValue(i);
+        }
+    }
+
     @Description("Function that does not change over time")
 	public class Constant extends BEASTObject implements Function {
     	private double [] values;
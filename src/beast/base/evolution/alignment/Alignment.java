@@ -316,7 +316,7 @@ public class Alignment extends TreeTipData {
         try {
             for (Sequence seq : sequences) {
 
-                counts.add(seq.getSequence(m_dataType));
+                counts.add(EncodedSequence.of(seq.getSequence(m_dataType)));
                 if (taxaNames.contains(seq.getTaxon())) {
                     throw new RuntimeException("Duplicate taxon found in alignment: " + seq.getTaxon());
                 }
@@ -605,50 +605,78 @@ public class Alignment extends TreeTipData {
         int taxonCount = counts.size();
         int siteCount = counts.get(0).size();
 
-        // convert data to transposed int array
-        int[][] data = new int[siteCount][taxonCount];
+        EncodedSequence[] sequences = new EncodedSequence[taxonCount];
         for (int i = 0; i < taxonCount; i++) {
-            List<Integer> sites = counts.get(i);
-            for (int j = 0; j < siteCount; j++) {
-                data[j][i] = sites.get(j);
-            }
+            sequences[i] = EncodedSequence.of(counts.get(i));
         }
 
-        // sort data
-        SiteComparator comparator = new SiteComparator();
-        Arrays.sort(data, comparator);
-
-        // count patterns in sorted data
-        // if (siteWeights != null) the weights are recalculated below
-        int patterns = 1;
-        int[] weights = new int[siteCount];
-        weights[0] = 1;
-        for (int i = 1; i < siteCount; i++) {
-            if (usingTipLikelihoods || comparator.compare(data[i - 1], data[i]) != 0) {
-            	// In the case where we're using tip probabilities, we need to treat each 
-            	// site as a unique pattern, because it could have a unique probability vector.
-                patterns++;
-                data[patterns - 1] = data[i];
+        // find unique patterns in a single pass over the sites, using a hash
+        // table of pattern numbers, so memory is proportional to the number of patterns
+        List<int[]> patterns = new ArrayList<>();
+        int[] hashes = new int[16];
+        int[] weights = new int[16];
+        int[] table = new int[32]; // pattern number + 1, 0 if empty
+        patternIndex = new int[siteCount];
+        int[] site = new int[taxonCount];
+        for (int i = 0; i < siteCount; i++) {
+            int hash = 0;
+            for (int j = 0; j < taxonCount; j++) {
+                site[j] = sequences[j].getCode(i);
+                hash = 31 * hash + site[j];
+            }
+            hash ^= hash >>> 16;
+
+            int slot = hash & (table.length - 1);
+            int pattern = -1;
+            // In the case where we're using tip probabilities, we need to treat each
+            // site as a unique pattern, because it could have a unique probability vector.
+            if (!usingTipLikelihoods) {
+                while (table[slot] != 0) {
+                    int candidate = table[slot] - 1;
+                    if (hashes[candidate] == hash && Arrays.equals(patterns.get(candidate), site)) {
+                        pattern = candidate;
+                        break;
+                    }
+                    slot = (slot + 1) & (table.length - 1);
+                }
+            }
+            if (pattern < 0) {
+                pattern = patterns.size();
+                patterns.add(site.clone());
+                if (pattern == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, 2 * pattern);
+                    weights = Arrays.copyOf(weights, 2 * pattern);
+                }
+                hashes[pattern] = hash;
+                if (!usingTipLikelihoods) {
+                    table[slot] = pattern + 1;
+                    if (2 * patterns.size() > table.length) {
+                        table = rehash(hashes, patterns.size(), 2 * table.length);
+                    }
+                }
             }
-            weights[patterns - 1]++;
+            weights[pattern]++;
+            patternIndex[i] = pattern;
         }
 
-        // reserve memory for patterns
-        patternWeight = new int[patterns];
-        sitePatterns = new int[patterns][taxonCount];
-        for (int i = 0; i < patterns; i++) {
-            patternWeight[i] = weights[i];
-            sitePatterns[i] = data[i];
+        // order patterns as before, i.e. sorted by state codes
+        int patternCount = patterns.size();
+        Integer[] order = new Integer[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            order[i] = i;
+        }
+        SiteComparator comparator = new SiteComparator();
+        Arrays.sort(order, (o1, o2) -> comparator.compare(patterns.get(o1), patterns.get(o2)));
+        int[] rank = new int[patternCount];
+        patternWeight = new int[patternCount];
+        sitePatterns = new int[patternCount][];
+        for (int i = 0; i < patternCount; i++) {
+            rank[order[i]] = i;
+            patternWeight[i] = weights[order[i]];
+            sitePatterns[i] = patterns.get(order[i]);
         }
-
-        // find patterns for the sites
-        patternIndex = new int[siteCount];
         for (int i = 0; i < siteCount; i++) {
-            int[] sites = new int[taxonCount];
-            for (int j = 0; j < taxonCount; j++) {
-                sites[j] = counts.get(j).get(i);
-            }
-            patternIndex[i] = Arrays.binarySearch(sitePatterns, sites, comparator);
+            patternIndex[i] = rank[patternIndex[i]];
         }
 
         if (siteWeights != null) {
@@ -677,7 +705,7 @@ public class Alignment extends TreeTipData {
             if (log) Log.info.println("Stripping invariant sites");
 
             int removedSites = 0;
-            for (int i = 0; i < patterns; i++) {
+            for (int i = 0; i < patternCount; i++) {
                 int[] pattern = sitePatterns[i];
                 int value = pattern[0];
                 boolean isInvariant = true;
@@ -698,6 +726,21 @@ public class Alignment extends TreeTipData {
         }
     } // calcPatterns
 
+    /**
+     * @return hash table of given size containing pattern numbers + 1 for the first patternCount patterns
+     */
+    private static int[] rehash(int[] hashes, int patternCount, int size) {
+        int[] table = new int[size];
+        for (int i = 0; i < patternCount; i++) {
+            int slot = hashes[i] & (size - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (size - 1);
+            }
+            table[slot] = i + 1;
+        }
+        return table;
+    }
+
     /**
      * @return the total weight of all the patterns (this is the effective number of sites)
      */
@@ -0,0 +1,88 @@
+package beast.base.evolution.alignment;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of state codes of a sequence, stored in a byte, short or int
+ * array depending on the range of the codes. For nucleotide and amino acid data
+ * this takes one byte per site instead of a reference to a boxed Integer.
+ */
+final class EncodedSequence extends AbstractList<Integer> implements RandomAccess {
+
+    private final byte[] bytes;
+    private final short[] shorts;
+    private final int[] ints;
+    private final int size;
+
+    private EncodedSequence(byte[] bytes, short[] shorts, int[] ints, int size) {
+        this.bytes = bytes;
+        this.shorts = shorts;
+        this.ints = ints;
+        this.size = size;
+    }
+
+    /**
+     * @return encoded copy of codes, or codes itself if it is already encoded
+     */
+    static EncodedSequence of(final List<Integer> codes) {
+        if (codes instanceof EncodedSequence) {
+            return (EncodedSequence) codes;
+        }
+        final int size = codes.size();
+        int min = 0, max = 0;
+        for (final int code : codes) {
+            min = Math.min(min, code);
+            max = Math.max(max, code);
+        }
+        if (min >= 0 && max <= 0xff) {
+            final byte[] bytes = new byte[size];
+            int i = 0;
+            for (final int code : codes) {
+                bytes[i++] = (byte) code;
+            }
+            return new EncodedSequence(bytes, null, null, size);
+        }
+        if (min >= 0 && max <= 0xffff) {
+            final short[] shorts = new short[size];
+            int i = 0;
+            for (final int code : codes) {
+                shorts[i++] = (short) code;
+            }
+            return new EncodedSequence(null, shorts, null, size);
+        }
+        final int[] ints = new int[size];
+        int i = 0;
+        for (final int code : codes) {
+            ints[i++] = code;
+        }
+        return new EncodedSequence(null, null, ints, size);
+    }
+
+    /**
+     * @return state code at site, without boxing
+     */
+    int getCode(final int site) {
+        if (bytes != null) {
+            return bytes[site] & 0xff;
+        }
+        if (shorts != null) {
+            return shorts[site] & 0xffff;
+        }
+        return ints[site];
+    }
+
+    @Override
+    public Integer get(final int site) {
+        if (site < 0 || site >= size) {
+            throw new IndexOutOfBoundsException("Index: " + site + ", Size: " + size);
+        }
+        return getCode(site);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -101,11 +101,11 @@ public class RandomLocalClockModel extends BranchRateModel.Base {
         int nodeNumber = getNr(node);
 
         if (!node.isRoot()) {
-            if (indicators.getValue(nodeNumber)) {
+            if (indicators.getNativeValue(nodeNumber)) {
                 if (ratesAreMultipliers) {
-                    rate *= rates.getValue(nodeNumber);
+                    rate *= rates.getArrayValue(nodeNumber);
                 } else {
-                    rate = rates.getValue(nodeNumber);
+                    rate = rates.getArrayValue(nodeNumber);
                 }
             }
         }
@@ -122,7 +122,7 @@ public class RandomLocalClockModel extends BranchRateModel.Base {
         RealParameter rates = rateParamInput.get();
 
         double rootRate = 1.0;
-        if (includeRootInput.get()) rootRate = rates.getValue(tree.getRoot().getNr());
+        if (includeRootInput.get()) rootRate = rates.getArrayValue(tree.getRoot().getNr());
 
         calculateUnscaledBranchRates(tree.getRoot(), rootRate, indicators, rates);
 
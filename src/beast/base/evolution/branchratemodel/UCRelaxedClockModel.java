@@ -72,6 +72,24 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
     private double scaleFactor = 1.0; //initial
     private double storedScaleFactor = 1.0; //initial
     int LATTICE_SIZE_FOR_DISCRETIZED_RATES = 100;//
+    private double[] latticeProbabilities; // probabilities at which rates are calculated, when rates != null
+
+    // when mode=quantiles without discretisation: raw rates per branch,
+    // and the quantiles they were calculated for
+    private double[] quantileRates;
+    private double[] rateQuantiles;
+    private double[] storedQuantileRates;
+    private double[] storedRateQuantiles;
+    private boolean quantileRatesSwapped = false; // whether prepare() swapped in new arrays since store()
+    private boolean updateQuantiles = true;//
+    // indices of quantiles marked dirty since their rates were last updated, -1 if unknown
+    private int[] pendingQuantiles;
+    private int pendingQuantileCount = -1;
+    // undo log of rates updated since store() in arrays that restore() does not swap out, -1 if overflowed
+    private int[] changedQuantiles;
+    private double[] changedQuantileRates;
+    private double[] changedRateQuantiles;
+    private int changedQuantileCount = 0;
 
     @Override
     public void initAndValidate() {
@@ -137,6 +155,25 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
                 if (numberOfDiscreteRates.get() > 1) {
                     rates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
                     storedRates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
+                    // same probabilities as used in getRawRateForQuantile
+                    latticeProbabilities = new double[rates.length];
+                    for (int i = 0; i < rates.length; i++) {
+                        latticeProbabilities[i] = ((double) i) / (rates.length - 1);
+                    }
+                    latticeProbabilities[0] = 0.1 / (rates.length - 1);
+                    latticeProbabilities[rates.length - 1] = (rates.length - 1 - 0.1) / (rates.length - 1);
+                } else {
+                    quantileRates = new double[branchCount];
+                    rateQuantiles = new double[branchCount];
+                    storedQuantileRates = new double[branchCount];
+                    storedRateQuantiles = new double[branchCount];
+                    pendingQuantiles = new int[branchCount];
+                    changedQuantiles = new int[branchCount];
+                    changedQuantileRates = new double[branchCount];
+                    changedRateQuantiles = new double[branchCount];
+                    // no quantile matches NaN, so all rates are calculated when first needed
+                    Arrays.fill(rateQuantiles, Double.NaN);
+                    Arrays.fill(storedRateQuantiles, Double.NaN);
                 }
             }
             break;
@@ -179,6 +216,11 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             rates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
             storedRates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
             //System.arraycopy(rates, 0, storedRates, 0, rates.length);
+            // same probabilities as used in getRawRateForCategory
+            latticeProbabilities = new double[rates.length];
+            for (int i = 0; i < rates.length; i++) {
+                latticeProbabilities[i] = (i + 0.5) / rates.length;
+            }
         }
         normalize = normalizeInput.get();
         meanRate = meanRateInput.get();
@@ -209,6 +251,12 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             synchronized (this) {
                 prepare();
                 recompute = false;
+                updateQuantiles = false;
+            }
+        } else if (updateQuantiles) {
+            synchronized (this) {
+                updateQuantileRates();
+                updateQuantiles = false;
             }
         }
         if (renormalize) {
@@ -257,7 +305,7 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             // root node has nr less than #categories, so use that nr
             nodeNumber = node.getTree().getRoot().getNr();
         }
-        return rateParameter.getValue(nodeNumber);
+        return rateParameter.getArrayValue(nodeNumber);
     }
     
     // when mode=categories
@@ -267,7 +315,7 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             // root node has nr less than #categories, so use that nr
             nodeNumber = node.getTree().getRoot().getNr();
         }
-        int category = categories.getValue(nodeNumber);
+        int category = categories.getNativeValue(nodeNumber);
         if (rates[category] == 0.0) {
             try {
                 rates[category] = distribution.inverseCumulativeProbability((category + 0.5) / rates.length);
@@ -287,15 +335,12 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             nodeNumber = node.getTree().getRoot().getNr();
         }
         if (rates == null) {
-	        try {
-	        	return distribution.inverseCumulativeProbability(quantiles.getValue(nodeNumber));
-	        } catch (MathException e) {
-	            throw new RuntimeException("Failed to compute inverse cumulative probability!");
-	        }
+            // per branch rates are kept up to date by prepare() and updateQuantileRates()
+            return quantileRates[nodeNumber];
         }
 
         // use cached rates
-        double q = quantiles.getValue(nodeNumber);
+        double q = quantiles.getArrayValue(nodeNumber);
         double v = q * (rates.length - 1);
         int i = (int) v;
         
@@ -338,10 +383,93 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
    
     
     private void prepare() {
-      if (rates != null) {
-            // rates array initialized to correct length in initAndValidate
-            // here we just reset rates to zero and they are computed by getRawRate(int i) as needed
-           Arrays.fill(rates, 0.0);
+        try {
+            if (rates != null) {
+                // rates array initialized to correct length in initAndValidate
+                // here we calculate the rates for all categories or lattice points in one pass
+                distribution.inverseCumulativeProbabilities(latticeProbabilities, rates, rates.length);
+            } else if (quantileRates != null) {
+                if (!quantileRatesSwapped) {
+                    // keep the current rates for restore()
+                    double[] tmp = quantileRates;
+                    quantileRates = storedQuantileRates;
+                    storedQuantileRates = tmp;
+                    tmp = rateQuantiles;
+                    rateQuantiles = storedRateQuantiles;
+                    storedRateQuantiles = tmp;
+                    quantileRatesSwapped = true;
+                }
+                for (int i = 0; i < branchCount; i++) {
+                    rateQuantiles[i] = quantiles.getArrayValue(i);
+                }
+                distribution.inverseCumulativeProbabilities(rateQuantiles, quantileRates, branchCount);
+                pendingQuantileCount = 0;
+            }
+        } catch (MathException e) {
+            throw new RuntimeException("Failed to compute inverse cumulative probability!");
+        }
+    }
+
+    /**
+     * Recalculates the rates of branches whose quantile changed since their rate was
+     * calculated, when the rate distribution itself did not change.
+     * Only quantiles recorded by addPendingQuantiles() are visited, unless it is not
+     * known which quantiles changed.
+     */
+    private void updateQuantileRates() {
+        if (quantileRates == null) {
+            return;
+        }
+        try {
+            if (pendingQuantileCount < 0) {
+                for (int i = 0; i < branchCount; i++) {
+                    updateQuantileRate(i);
+                }
+            } else {
+                for (int k = 0; k < pendingQuantileCount; k++) {
+                    updateQuantileRate(pendingQuantiles[k]);
+                }
+            }
+            pendingQuantileCount = 0;
+        } catch (MathException e) {
+            throw new RuntimeException("Failed to compute inverse cumulative probability!");
+        }
+    }
+
+    private void updateQuantileRate(final int i) throws MathException {
+        final double q = quantiles.getArrayValue(i);
+        if (q != rateQuantiles[i]) {
+            if (!quantileRatesSwapped && changedQuantileCount >= 0) {
+                // remember the current rate for restore()
+                if (changedQuantileCount == branchCount) {
+                    changedQuantileCount = -1;
+                } else {
+                    changedQuantiles[changedQuantileCount] = i;
+                    changedQuantileRates[changedQuantileCount] = quantileRates[i];
+                    changedRateQuantiles[changedQuantileCount] = rateQuantiles[i];
+                    changedQuantileCount++;
+                }
+            }
+            quantileRates[i] = distribution.inverseCumulativeProbability(q);
+            rateQuantiles[i] = q;
+        }
+    }
+
+    /**
+     * Records which quantiles are dirty, while the parameter still knows. Rates are
+     * calculated lazily, possibly after the parameter has been marked clean.
+     */
+    private void addPendingQuantiles() {
+        if (quantileRates == null || pendingQuantileCount < 0) {
+            return;
+        }
+        final int dirtyCount = quantiles.getDirtyElementCount();
+        if (dirtyCount < 0 || pendingQuantileCount + dirtyCount > branchCount) {
+            pendingQuantileCount = -1;
+            return;
+        }
+        for (int k = 0; k < dirtyCount; k++) {
+            pendingQuantiles[pendingQuantileCount++] = quantiles.getDirtyElement(k);
         }
     }
 
@@ -367,6 +495,8 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
         }
 
         if (quantileInput.get() != null && quantileInput.get().somethingIsDirty()) {
+            updateQuantiles = true;
+            addPendingQuantiles();
             return true;
         }
 
@@ -391,6 +521,8 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             //storedRates = tmp1;
         }
         storedScaleFactor = scaleFactor;
+        quantileRatesSwapped = false;
+        changedQuantileCount = 0;
         super.store();
     }
 
@@ -401,9 +533,33 @@ public class UCRelaxedClockModel extends BranchRateModel.Base {
             rates = storedRates;
             storedRates = tmp;
         }
+        if (quantileRatesSwapped) {
+            double[] tmp = quantileRates;
+            quantileRates = storedQuantileRates;
+            storedQuantileRates = tmp;
+            tmp = rateQuantiles;
+            rateQuantiles = storedRateQuantiles;
+            storedRateQuantiles = tmp;
+            quantileRatesSwapped = false;
+        }
+        if (quantileRates != null) {
+            // undo updates in reverse order, so the rate from before store() is restored last
+            for (int k = changedQuantileCount - 1; k >= 0; k--) {
+                final int i = changedQuantiles[k];
+                quantileRates[i] = changedQuantileRates[k];
+                rateQuantiles[i] = changedRateQuantiles[k];
+            }
+            if (changedQuantileCount < 0 || (branchCount > 0 && Double.isNaN(rateQuantiles[0]))) {
+                // undo log overflowed, or rates were not calculated before store()
+                pendingQuantileCount = -1;
+                updateQuantiles = true;
+            }
+            // pending quantiles are kept: revisiting one that was restored is cheap
+            changedQuantileCount = 0;
+        }
         scaleFactor = storedScaleFactor;
         super.restore();
     }
 
 
-}
\ No newline at end of file
+}
\ No newline at end of file
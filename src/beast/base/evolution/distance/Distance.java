@@ -9,8 +9,22 @@ import beast.base.evolution.datatype.DataType;
 @Description("Provides distance between taxa")
 public interface Distance {
 	
-	/** return distance of two taxa, identified by their indices **/
+	/**
+	 * return distance of two taxa, identified by their indices.
+	 * Only called from multiple threads at the same time if isThreadSafe() returns true.
+	 **/
 	double pairwiseDistance(int taxon1, int taxon2);
+
+	/**
+	 * @return true if pairwiseDistance is safe to call from multiple threads at the same time,
+	 * so that ClusterTree can calculate distances in parallel. Implementations should return
+	 * true only when getClass() is the class they were written for, since a derived class may
+	 * keep state in pairwiseDistance, and derived classes that do not opt in by overriding
+	 * this method in turn.
+	 */
+	default boolean isThreadSafe() {
+		return false;
+	}
 	
 	
 	@Description("Provides distance between two sequences in an alignment")
@@ -74,6 +88,11 @@ public interface Distance {
 	
 	        return distance;
 	    }
+
+	    @Override
+	    public boolean isThreadSafe() {
+	        return getClass() == Distance.Base.class;
+	    }
 	
 	
 	    //
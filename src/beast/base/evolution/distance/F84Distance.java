@@ -117,6 +117,11 @@ public class F84Distance extends Distance.Base {
         }
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return getClass() == F84Distance.class;
+    }
+
     //
     // Private stuff
     //
@@ -18,4 +18,9 @@ public class HammingDistance extends Distance.Base {
         return dist / patterns.getSiteCount();
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return getClass() == HammingDistance.class;
+    }
+
 }
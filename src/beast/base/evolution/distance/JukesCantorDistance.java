@@ -72,6 +72,11 @@ public class JukesCantorDistance extends Distance.Base {
         }
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return getClass() == JukesCantorDistance.class;
+    }
+
     //
     // Private stuff
     //
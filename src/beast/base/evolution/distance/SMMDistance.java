@@ -28,4 +28,9 @@ public class SMMDistance extends Distance.Base {
 
         return distance;
     }
+
+    @Override
+    public boolean isThreadSafe() {
+        return getClass() == SMMDistance.class;
+    }
 }
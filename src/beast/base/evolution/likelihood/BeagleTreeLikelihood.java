@@ -72,6 +72,10 @@ public class BeagleTreeLikelihood extends TreeLikelihood {
     private static final String REQUIRED_FLAGS_PROPERTY = "beagle.required.flags";
     private static final String SCALING_PROPERTY = "beagle.scaling";
     private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
+    // use the pure Java implementation of BEAGLE instead of the native library, e.g.
+    // java -Dbeagle.java=true beast.app.BeastMCMC
+    // If unset, the Java likelihood cores of TreeLikelihood are used when the native library cannot be loaded
+    private static final String JAVA_PROPERTY = "beagle.java";
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
 
@@ -278,9 +282,17 @@ public class BeagleTreeLikelihood extends TreeLikelihood {
             requirementFlags |= BeagleFlag.EIGEN_COMPLEX.getMask();
         }
 
+        // transition matrices of models with complex diagonalisations are set directly, without eigen decompositions
+        final boolean javaSupported = (requirementFlags & ~(JavaBeagleImpl.FLAGS | BeagleFlag.EIGEN_COMPLEX.getMask())) == 0;
+        boolean useJava = Boolean.parseBoolean(System.getProperty(JAVA_PROPERTY));
+        if (useJava && !javaSupported) {
+            Log.warning.println("  Java implementation of BEAGLE does not support required flags " + requirementFlags + ", trying the native library");
+            useJava = false;
+        }
+
         // start auto resource selection
         String resourceAuto = System.getProperty(RESOURCE_AUTO_PROPERTY);
-        if (resourceAuto != null && Boolean.parseBoolean(resourceAuto)) {
+        if (resourceAuto != null && Boolean.parseBoolean(resourceAuto) && !useJava) {
 
             long benchmarkFlags = 0;
 
@@ -327,32 +339,60 @@ public class BeagleTreeLikelihood extends TreeLikelihood {
 
         instanceCount++;
 
-        try {
-	        beagle = BeagleFactory.loadBeagleInstance(
+        if (!useJava) {
+	        try {
+		        beagle = BeagleFactory.loadBeagleInstance(
+		                tipCount,
+		                partialBufferHelper.getBufferCount(),
+		                compactPartialsCount,
+		                m_nStateCount,
+		                patternCount,
+		                eigenBufferHelper.getBufferCount(),            // eigenBufferCount
+		                matrixBufferHelper.getBufferCount(),
+		                categoryCount,
+		                scaleBufferHelper.getBufferCount(), // Always allocate; they may become necessary
+		                resourceList,
+		                preferenceFlags,
+		                requirementFlags
+		        );
+	        } catch (Throwable e) {
+	        	beagle = null;
+	        }
+	        if (beagle != null && beagle.getDetails() == null) {
+	        	beagle = null;
+	        }
+	        if (beagle == null) {
+	        	// TreeLikelihood falls back to its own likelihood cores
+	        	return false;
+	        }
+        }
+
+        if (useJava) {
+            if (this.rescalingScheme == PartialsRescalingScheme.AUTO) {
+                // JavaBeagleImpl has no automatic scaling, so do it here
+                this.rescalingScheme = PartialsRescalingScheme.DYNAMIC;
+                useAutoScaling = false;
+                Log.warning.println("  Auto rescaling not supported by the Java implementation of BEAGLE, using : " + this.rescalingScheme.getText());
+            }
+        	beagle = new JavaBeagleImpl(
 	                tipCount,
 	                partialBufferHelper.getBufferCount(),
 	                compactPartialsCount,
 	                m_nStateCount,
 	                patternCount,
-	                eigenBufferHelper.getBufferCount(),            // eigenBufferCount
+	                eigenBufferHelper.getBufferCount(),
 	                matrixBufferHelper.getBufferCount(),
 	                categoryCount,
-	                scaleBufferHelper.getBufferCount(), // Always allocate; they may become necessary
-	                resourceList,
-	                preferenceFlags,
-	                requirementFlags
+	                scaleBufferHelper.getBufferCount()
 	        );
-        } catch (Exception e) {
-        	beagle = null;
-        }
-        if (beagle == null) {
-            return false;
         }
 
         InstanceDetails instanceDetails = beagle.getDetails();
         ResourceDetails resourceDetails = null;
 
-        if (instanceDetails != null) {
+        if (beagle instanceof JavaBeagleImpl) {
+        	Log.info.println("  Using Java implementation of BEAGLE with instance flags: " + instanceDetails.toString());
+        } else {
             resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
             if (resourceDetails != null) {
                 StringBuilder sb = new StringBuilder("  Using BEAGLE version: " + BeagleInfo.getVersion()
@@ -374,10 +414,6 @@ public class BeagleTreeLikelihood extends TreeLikelihood {
                 beagle = null;
                 return false;
             }
-        } else {
-        	Log.warning.println("  No external BEAGLE resources available, or resource list/requirements not met, using Java implementation");
-            beagle = null;
-            return false;
         }
         Log.warning.println("  " + (m_bUseAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
         Log.warning.println("  " + (m_bUseTipLikelihoods ? "Using" : "Ignoring") + " character uncertainty in tree likelihood.");
@@ -29,7 +29,7 @@ public class BeerLikelihoodCore extends LikelihoodCore {
 
     protected double[][][] scalingFactors;
 
-    private double scalingThreshold = 1.0E-100;
+    protected double scalingThreshold = 1.0E-100;
     double SCALE = 2;
 
     public BeerLikelihoodCore(int nrOfStates) {
@@ -0,0 +1,457 @@
+package beast.base.evolution.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * Likelihood core that stores partials in a pattern-blocked layout.
+ * <p/>
+ * Patterns are grouped in blocks of BLOCK_SIZE patterns, and within a block
+ * partials are stored state-major, so the partial for category l, pattern k
+ * and state i is found at
+ * <pre>
+ * ((l * blockCount + k / BLOCK_SIZE) * nrOfStates + i) * BLOCK_SIZE + k % BLOCK_SIZE
+ * </pre>
+ * The inner loops of the peeling algorithm then run over the patterns of a block,
+ * which are independent of each other and contiguous in memory, so the JIT can
+ * map them onto SIMD instructions. BeerLikelihoodCore instead runs the inner loop
+ * over the states of a single pattern, which is a reduction that does not vectorise.
+ * <p/>
+ * For each pattern, sums are accumulated in the same order as in BeerLikelihoodCore,
+ * so pattern log likelihoods are identical to those of BeerLikelihoodCore.
+ * Partials passed in and out through setNodePartials, getNodePartials and
+ * integratePartials use the standard (category, pattern, state) layout.
+ * <p/>
+ * With a matrix map, as in calculatePartials(int, int, int, int[]), patterns in a block
+ * may use different matrices, so these are calculated pattern by pattern.
+ */
+public class BlockedLikelihoodCore extends BeerLikelihoodCore {
+    /**
+     * number of patterns in a block. This is a multiple of 8, so every row of a
+     * block spans whole 64 byte cache lines.
+     */
+    public final static int BLOCK_SIZE = 16;
+
+    protected int blockCount;
+    protected int paddedPatternCount;
+
+    /** scratch arrays holding one row of a block **/
+    private final double[] sum1 = new double[BLOCK_SIZE];
+    private final double[] sum2 = new double[BLOCK_SIZE];
+    private final double[] tmp = new double[BLOCK_SIZE];
+
+    public BlockedLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have states.
+     */
+    @Override
+    protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+                                                int[] stateIndex2, double[] matrices2,
+                                                double[] partials3) {
+        int u = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int b = 0; b < blockCount; b++) {
+                int k0 = b * BLOCK_SIZE;
+                int w = l * matrixSize;
+
+                for (int i = 0; i < nrOfStates; i++) {
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        int state1 = stateIndex1[k0 + lane];
+                        int state2 = stateIndex2[k0 + lane];
+                        // a gap or unknown state contributes 1
+                        double p1 = state1 < nrOfStates ? matrices1[w + state1] : 1.0;
+                        double p2 = state2 < nrOfStates ? matrices2[w + state2] : 1.0;
+                        partials3[u + lane] = p1 * p2;
+                    }
+                    u += BLOCK_SIZE;
+                    w += nrOfStates;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has partials.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        final double[] sum = sum2;
+        int u = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int b = 0; b < blockCount; b++) {
+                int k0 = b * BLOCK_SIZE;
+                int w = l * matrixSize;
+
+                for (int i = 0; i < nrOfStates; i++) {
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        int state1 = stateIndex1[k0 + lane];
+                        // child 1 has a gap or unknown state so don't use it
+                        tmp[lane] = state1 < nrOfStates ? matrices1[w + state1] : 1.0;
+                    }
+
+                    double m = matrices2[w];
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        sum[lane] = m * partials2[u + lane];
+                    }
+                    for (int j = 1; j < nrOfStates; j++) {
+                        m = matrices2[w + j];
+                        int v = u + j * BLOCK_SIZE;
+                        for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                            sum[lane] += m * partials2[v + lane];
+                        }
+                    }
+
+                    int v = u + i * BLOCK_SIZE;
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        partials3[v + lane] = tmp[lane] * sum[lane];
+                    }
+                    w += nrOfStates;
+                }
+                u += nrOfStates * BLOCK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        final double[] s1 = sum1;
+        final double[] s2 = sum2;
+        int u = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int b = 0; b < blockCount; b++) {
+                int w = l * matrixSize;
+
+                for (int i = 0; i < nrOfStates; i++) {
+                    double m1 = matrices1[w];
+                    double m2 = matrices2[w];
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        s1[lane] = m1 * partials1[u + lane];
+                        s2[lane] = m2 * partials2[u + lane];
+                    }
+                    for (int j = 1; j < nrOfStates; j++) {
+                        m1 = matrices1[w + j];
+                        m2 = matrices2[w + j];
+                        int v = u + j * BLOCK_SIZE;
+                        for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                            s1[lane] += m1 * partials1[v + lane];
+                            s2[lane] += m2 * partials2[v + lane];
+                        }
+                    }
+
+                    int v = u + i * BLOCK_SIZE;
+                    for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                        partials3[v + lane] = s1[lane] * s2[lane];
+                    }
+                    w += nrOfStates;
+                }
+                u += nrOfStates * BLOCK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Integrates partials across categories.
+     *
+     * @param inPartials  the array of partials to be integrated, in blocked layout
+     * @param proportions the proportions of sites in each category
+     * @param outPartials an array into which the partials will go, in standard layout
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            double proportion = proportions[l];
+            for (int b = 0; b < blockCount; b++) {
+                int laneCount = Math.min(BLOCK_SIZE, nrOfPatterns - b * BLOCK_SIZE);
+                for (int i = 0; i < nrOfStates; i++) {
+                    int u = b * BLOCK_SIZE * nrOfStates + i;
+                    if (l == 0) {
+                        for (int lane = 0; lane < laneCount; lane++) {
+                            outPartials[u] = inPartials[v + lane] * proportion;
+                            u += nrOfStates;
+                        }
+                    } else {
+                        for (int lane = 0; lane < laneCount; lane++) {
+                            outPartials[u] += inPartials[v + lane] * proportion;
+                            u += nrOfStates;
+                        }
+                    }
+                    v += BLOCK_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     * initializes partial likelihood arrays.
+     *
+     * @param nodeCount           the number of nodes in the tree
+     * @param patternCount        the number of patterns
+     * @param matrixCount         the number of matrices (i.e., number of categories)
+     * @param integrateCategories whether sites are being integrated over all matrices
+     */
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+
+        blockCount = (patternCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        paddedPatternCount = blockCount * BLOCK_SIZE;
+
+        if (integrateCategories) {
+            partialsSize = paddedPatternCount * nrOfStates * matrixCount;
+        } else {
+            partialsSize = paddedPatternCount * nrOfStates;
+        }
+    }
+
+    /**
+     * Allocates partials for a node. Padding patterns in the last block are
+     * set to 1, so they never produce denormals or NaNs.
+     */
+    @Override
+    public void createNodePartials(int nodeIndex) {
+        super.createNodePartials(nodeIndex);
+        Arrays.fill(partials[0][nodeIndex], 1.0);
+        Arrays.fill(partials[1][nodeIndex], 1.0);
+    }
+
+    /**
+     * Sets partials for a node
+     */
+    @Override
+    public void setNodePartials(int nodeIndex, double[] partials) {
+        if (this.partials[0][nodeIndex] == null) {
+            createNodePartials(nodeIndex);
+        }
+        toBlockedLayout(partials, this.partials[0][nodeIndex]);
+    }
+
+    @Override
+    public void setCurrentNodePartials(int nodeIndex, double[] partials) {
+        toBlockedLayout(partials, this.partials[currentPartialsIndex[nodeIndex]][nodeIndex]);
+    }
+
+    @Override
+    public void getNodePartials(int nodeIndex, double[] partialsOut) {
+        fromBlockedLayout(partials[currentPartialsIndex[nodeIndex]][nodeIndex], partialsOut, partialsOut.length);
+    }
+
+    /**
+     * Gets the partials for a particular node in standard layout.
+     *
+     * @param nodeIndex   the node
+     * @param outPartials an array into which the partials will go
+     */
+    @Override
+    public void getPartials(int nodeIndex, double[] outPartials) {
+        fromBlockedLayout(partials[currentPartialsIndex[nodeIndex]][nodeIndex], outPartials, nrOfMatrices * nrOfPatterns * nrOfStates);
+    }
+
+    /**
+     * Allocates states for a node. Padding patterns are marked as unknown.
+     */
+    @Override
+    public void createNodeStates(int nodeIndex) {
+        this.states[nodeIndex] = new int[paddedPatternCount];
+        Arrays.fill(this.states[nodeIndex], nrOfStates);
+    }
+
+    /**
+     * @return index of the partial for state 0 of pattern k in the first category
+     */
+    private int blockOffset(int k) {
+        return (k / BLOCK_SIZE) * nrOfStates * BLOCK_SIZE + k % BLOCK_SIZE;
+    }
+
+    /**
+     * @return number of categories held by partials in blocked layout, which is 1 when
+     * categories are not integrated, as with matrix maps
+     */
+    private int categoryCount(double[] blockedPartials) {
+        return Math.min(nrOfMatrices, blockedPartials.length / (blockCount * nrOfStates * BLOCK_SIZE));
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have states, using
+     * matrix matrixMap[k] for pattern k. Since patterns in a block may use different
+     * matrices, this runs pattern by pattern, as BeerLikelihoodCore does.
+     */
+    @Override
+    protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+                                                int[] stateIndex2, double[] matrices2,
+                                                double[] partials3, int[] matrixMap) {
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int state1 = stateIndex1[k];
+            int state2 = stateIndex2[k];
+            int w = matrixMap[k] * matrixSize;
+            int u = blockOffset(k);
+
+            for (int i = 0; i < nrOfStates; i++) {
+                // a gap or unknown state contributes 1
+                double p1 = state1 < nrOfStates ? matrices1[w + state1] : 1.0;
+                double p2 = state2 < nrOfStates ? matrices2[w + state2] : 1.0;
+                partials3[u] = p1 * p2;
+                u += BLOCK_SIZE;
+                w += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has
+     * partials, using matrix matrixMap[k] for pattern k.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3, int[] matrixMap) {
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int state1 = stateIndex1[k];
+            int w = matrixMap[k] * matrixSize;
+            int u = blockOffset(k);
+
+            for (int i = 0; i < nrOfStates; i++) {
+                // child 1 has a gap or unknown state so don't use it
+                double tmp = state1 < nrOfStates ? matrices1[w + state1] : 1.0;
+                double sum = 0.0;
+                int v = blockOffset(k);
+                for (int j = 0; j < nrOfStates; j++) {
+                    sum += matrices2[w + j] * partials2[v];
+                    v += BLOCK_SIZE;
+                }
+                partials3[u] = tmp * sum;
+                u += BLOCK_SIZE;
+                w += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials,
+     * using matrix matrixMap[k] for pattern k.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3, int[] matrixMap) {
+        for (int k = 0; k < nrOfPatterns; k++) {
+            int w = matrixMap[k] * matrixSize;
+            int u = blockOffset(k);
+
+            for (int i = 0; i < nrOfStates; i++) {
+                double s1 = 0.0, s2 = 0.0;
+                int v = blockOffset(k);
+                for (int j = 0; j < nrOfStates; j++) {
+                    s1 += matrices1[w + j] * partials1[v];
+                    s2 += matrices2[w + j] * partials2[v];
+                    v += BLOCK_SIZE;
+                }
+                partials3[u] = s1 * s2;
+                u += BLOCK_SIZE;
+                w += nrOfStates;
+            }
+        }
+    }
+
+    /**
+     * Scale the partials at a given node, as in BeerLikelihoodCore.scalePartials,
+     * taking the maximum over all states and categories of a pattern.
+     */
+    @Override
+    protected void scalePartials(int nodeIndex) {
+        final double[] nodePartials = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+        final double[] scalingFactors1 = scalingFactors[currentPartialsIndex[nodeIndex]][nodeIndex];
+        final double[] scaleFactor = tmp;
+        final int categoryStride = blockCount * nrOfStates * BLOCK_SIZE;
+        final int categoryCount = categoryCount(nodePartials);
+
+        for (int b = 0; b < blockCount; b++) {
+            int laneCount = Math.min(BLOCK_SIZE, nrOfPatterns - b * BLOCK_SIZE);
+            int u = b * nrOfStates * BLOCK_SIZE;
+
+            Arrays.fill(scaleFactor, 0.0);
+            for (int l = 0; l < categoryCount; l++) {
+                int v = u + l * categoryStride;
+                for (int i = 0; i < nrOfStates; i++) {
+                    for (int lane = 0; lane < laneCount; lane++) {
+                        if (nodePartials[v + lane] > scaleFactor[lane]) {
+                            scaleFactor[lane] = nodePartials[v + lane];
+                        }
+                    }
+                    v += BLOCK_SIZE;
+                }
+            }
+
+            for (int lane = 0; lane < laneCount; lane++) {
+                int k = b * BLOCK_SIZE + lane;
+                if (scaleFactor[lane] < scalingThreshold) {
+                    for (int l = 0; l < categoryCount; l++) {
+                        int v = u + l * categoryStride + lane;
+                        for (int i = 0; i < nrOfStates; i++) {
+                            nodePartials[v] /= scaleFactor[lane];
+                            v += BLOCK_SIZE;
+                        }
+                    }
+                    scalingFactors1[k] = Math.log(scaleFactor[lane]);
+                } else {
+                    scalingFactors1[k] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies partials in (category, pattern, state) layout into blocked layout.
+     * If in only contains partials for a single category, these are copied into all categories.
+     */
+    protected void toBlockedLayout(double[] in, double[] out) {
+        final int categorySize = nrOfPatterns * nrOfStates;
+        final int categoryCount = categoryCount(out);
+        for (int l = 0; l < categoryCount; l++) {
+            int v = in.length < categorySize * categoryCount ? 0 : l * categorySize;
+            int u = l * blockCount * nrOfStates * BLOCK_SIZE;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int w = u + (k / BLOCK_SIZE) * nrOfStates * BLOCK_SIZE + k % BLOCK_SIZE;
+                for (int i = 0; i < nrOfStates; i++) {
+                    out[w] = in[v++];
+                    w += BLOCK_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the first length entries of partials in (category, pattern, state) layout from
+     * partials in blocked layout.
+     */
+    protected void fromBlockedLayout(double[] in, double[] out, int length) {
+        int v = 0;
+        final int categoryCount = categoryCount(in);
+        for (int l = 0; l < categoryCount; l++) {
+            int u = l * blockCount * nrOfStates * BLOCK_SIZE;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                int w = u + (k / BLOCK_SIZE) * nrOfStates * BLOCK_SIZE + k % BLOCK_SIZE;
+                for (int i = 0; i < nrOfStates; i++) {
+                    if (v == length) {
+                        return;
+                    }
+                    out[v++] = in[w];
+                    w += BLOCK_SIZE;
+                }
+            }
+        }
+    }
+
+} // class BlockedLikelihoodCore
@@ -0,0 +1,116 @@
+package beast.base.evolution.likelihood;
+
+/**
+ * nucleotide implementation of the pattern-blocked likelihood core *
+ */
+public class BlockedLikelihoodCore4 extends BlockedLikelihoodCore {
+
+    public BlockedLikelihoodCore4() {
+        super(4);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has partials.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        int u = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l * matrixSize;
+
+            final double m00 = matrices2[w], m01 = matrices2[w + 1], m02 = matrices2[w + 2], m03 = matrices2[w + 3];
+            final double m10 = matrices2[w + 4], m11 = matrices2[w + 5], m12 = matrices2[w + 6], m13 = matrices2[w + 7];
+            final double m20 = matrices2[w + 8], m21 = matrices2[w + 9], m22 = matrices2[w + 10], m23 = matrices2[w + 11];
+            final double m30 = matrices2[w + 12], m31 = matrices2[w + 13], m32 = matrices2[w + 14], m33 = matrices2[w + 15];
+
+            for (int b = 0; b < blockCount; b++) {
+                int k0 = b * BLOCK_SIZE;
+                int u1 = u + BLOCK_SIZE;
+                int u2 = u + 2 * BLOCK_SIZE;
+                int u3 = u + 3 * BLOCK_SIZE;
+
+                for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                    int state1 = stateIndex1[k0 + lane];
+                    double p0 = partials2[u + lane];
+                    double p1 = partials2[u1 + lane];
+                    double p2 = partials2[u2 + lane];
+                    double p3 = partials2[u3 + lane];
+
+                    double sum0 = m00 * p0 + m01 * p1 + m02 * p2 + m03 * p3;
+                    double sum1 = m10 * p0 + m11 * p1 + m12 * p2 + m13 * p3;
+                    double sum2 = m20 * p0 + m21 * p1 + m22 * p2 + m23 * p3;
+                    double sum3 = m30 * p0 + m31 * p1 + m32 * p2 + m33 * p3;
+
+                    if (state1 < 4) {
+                        partials3[u + lane] = matrices1[w + state1] * sum0;
+                        partials3[u1 + lane] = matrices1[w + 4 + state1] * sum1;
+                        partials3[u2 + lane] = matrices1[w + 8 + state1] * sum2;
+                        partials3[u3 + lane] = matrices1[w + 12 + state1] * sum3;
+                    } else {
+                        // Child 1 has a gap or unknown state so don't use it
+                        partials3[u + lane] = sum0;
+                        partials3[u1 + lane] = sum1;
+                        partials3[u2 + lane] = sum2;
+                        partials3[u3 + lane] = sum3;
+                    }
+                }
+                u += 4 * BLOCK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        int u = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int w = l * matrixSize;
+
+            final double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2], a03 = matrices1[w + 3];
+            final double a10 = matrices1[w + 4], a11 = matrices1[w + 5], a12 = matrices1[w + 6], a13 = matrices1[w + 7];
+            final double a20 = matrices1[w + 8], a21 = matrices1[w + 9], a22 = matrices1[w + 10], a23 = matrices1[w + 11];
+            final double a30 = matrices1[w + 12], a31 = matrices1[w + 13], a32 = matrices1[w + 14], a33 = matrices1[w + 15];
+
+            final double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2], b03 = matrices2[w + 3];
+            final double b10 = matrices2[w + 4], b11 = matrices2[w + 5], b12 = matrices2[w + 6], b13 = matrices2[w + 7];
+            final double b20 = matrices2[w + 8], b21 = matrices2[w + 9], b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+            final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+            for (int b = 0; b < blockCount; b++) {
+                int u1 = u + BLOCK_SIZE;
+                int u2 = u + 2 * BLOCK_SIZE;
+                int u3 = u + 3 * BLOCK_SIZE;
+
+                for (int lane = 0; lane < BLOCK_SIZE; lane++) {
+                    double p10 = partials1[u + lane];
+                    double p11 = partials1[u1 + lane];
+                    double p12 = partials1[u2 + lane];
+                    double p13 = partials1[u3 + lane];
+                    double p20 = partials2[u + lane];
+                    double p21 = partials2[u1 + lane];
+                    double p22 = partials2[u2 + lane];
+                    double p23 = partials2[u3 + lane];
+
+                    partials3[u + lane] = (a00 * p10 + a01 * p11 + a02 * p12 + a03 * p13)
+                                        * (b00 * p20 + b01 * p21 + b02 * p22 + b03 * p23);
+                    partials3[u1 + lane] = (a10 * p10 + a11 * p11 + a12 * p12 + a13 * p13)
+                                         * (b10 * p20 + b11 * p21 + b12 * p22 + b13 * p23);
+                    partials3[u2 + lane] = (a20 * p10 + a21 * p11 + a22 * p12 + a23 * p13)
+                                         * (b20 * p20 + b21 * p21 + b22 * p22 + b23 * p23);
+                    partials3[u3 + lane] = (a30 * p10 + a31 * p11 + a32 * p12 + a33 * p13)
+                                         * (b30 * p20 + b31 * p21 + b32 * p22 + b33 * p23);
+                }
+                u += 4 * BLOCK_SIZE;
+            }
+        }
+    }
+
+} // class BlockedLikelihoodCore4
@@ -0,0 +1,860 @@
+package beast.base.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import beagle.Beagle;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+import beast.base.core.ProgramStatus;
+import beast.base.inference.util.ForkJoinScheduler;
+
+/**
+ * Pure Java implementation of the BEAGLE API, so that BeagleTreeLikelihood can
+ * batch its partials updates into operation lists, and rescale partials the way
+ * it does with the native library, on machines where BEAGLE is not installed.
+ * BeagleTreeLikelihood uses it when started with -Dbeagle.java=true.
+ * <p/>
+ * Partials buffers use the BEAGLE (category, pattern, state) layout, and transition
+ * matrices are stored per category as stateCount x stateCount matrices with the
+ * parent state as row. An operation list passed to updatePartials is executed by
+ * splitting the patterns into slices, each of which runs the complete list in order
+ * on the shared ForkJoinScheduler pool. Patterns are independent, so slices need no
+ * synchronisation, and site log likelihoods are summed in pattern order, so results
+ * do not depend on the number of threads.
+ * <p/>
+ * Scale buffers written by updatePartials hold raw scale factors, while buffers
+ * reset by resetScaleFactors and filled by accumulateScaleFactors hold log scale
+ * factors, as with the SCALERS_RAW flag of the native library.
+ * <p/>
+ * Not supported are automatic scaling, pattern partitions (the ...ByPartition methods),
+ * derivatives of transition matrices, root likelihoods of more than one root, single
+ * precision and complex eigen decompositions. Methods for these throw an
+ * UnsupportedOperationException. BeagleTreeLikelihood, the only user of beagle.Beagle in
+ * beast.base, cannot reach any of these: it never calls the ...ByPartition methods or
+ * setPatternPartitions, passes null derivative indices to updateTransitionMatrices,
+ * calculates root likelihoods for a single root, sets transition matrices directly for
+ * complex models, checks its other required flags against FLAGS and switches from automatic
+ * to dynamic scaling before choosing this implementation. Code calling
+ * BeagleTreeLikelihood.getBeagle() directly has no such guarantees.
+ * <p/>
+ * updateTransitionMatrices skips matrices that are already up to date for the same
+ * eigen decomposition, category rates and edge length, which happens when buffers
+ * flipped by BeagleTreeLikelihood get used again after a restore, and copies rather
+ * than recalculates matrices for edge lengths that occur more than once in a call,
+ * like those of the two tips of a cherry in an ultrametric tree.
+ */
+public class JavaBeagleImpl implements Beagle {
+	private static final long serialVersionUID = 1L;
+
+	/** BeagleFlag masks of the features this implementation provides **/
+	public final static long FLAGS = BeagleFlag.PRECISION_DOUBLE.getMask() | BeagleFlag.COMPUTATION_SYNCH.getMask()
+			| BeagleFlag.EIGEN_REAL.getMask() | BeagleFlag.SCALING_MANUAL.getMask()
+			| BeagleFlag.SCALERS_RAW.getMask() | BeagleFlag.VECTOR_NONE.getMask()
+			| BeagleFlag.PROCESSOR_CPU.getMask() | BeagleFlag.FRAMEWORK_CPU.getMask();
+
+	/** minimum number of patterns worth giving a thread of its own **/
+	final static int MIN_PATTERNS_PER_SLICE = 256;
+
+	/** minimum number of multiplications for calculating transition matrices in parallel **/
+	final static int MIN_MATRIX_WORK_PER_SLICE = 1 << 16;
+
+	protected final int tipCount;
+	protected final int stateCount;
+	protected final int patternCount;
+	protected final int categoryCount;
+	protected final int matrixSize;
+	protected final int partialsSize;
+
+	protected final double[][] partials;
+	protected final int[][] tipStates;
+	protected final double[][] matrices;
+	protected final double[][] scaleFactors;
+	/** whether a scale buffer holds log scale factors, as opposed to raw scale factors **/
+	protected final boolean[] logScaleFactors;
+
+	/** eigen decompositions as C[(i * stateCount + j) * stateCount + k] = E[i][k] * E^-1[k][j] **/
+	protected final double[][] cMatrices;
+	protected final double[][] eigenValues;
+	protected final double[][] categoryRates;
+	protected final double[][] categoryWeights;
+	protected final double[][] stateFrequencies;
+	protected double[] patternWeights;
+
+	/** for every matrix buffer, what the matrices were last calculated from **/
+	private final int[] matrixEigenIndex;
+	private final long[] matrixVersion;
+	private final double[] matrixEdgeLength;
+	/** incremented whenever eigen decompositions or category rates change **/
+	private long version = 0;
+
+	protected final double[] siteLogLikelihoods;
+
+	private int threadCount;
+
+	/** hash table from edge length to matrix buffer, for spotting repeated edge lengths **/
+	private int[] edgeLengthTable = new int[0];
+
+	public JavaBeagleImpl(int tipCount, int partialsBufferCount, int compactBufferCount, int stateCount,
+			int patternCount, int eigenBufferCount, int matrixBufferCount, int categoryCount,
+			int scaleBufferCount) {
+		this.tipCount = tipCount;
+		this.stateCount = stateCount;
+		this.patternCount = patternCount;
+		this.categoryCount = categoryCount;
+		matrixSize = stateCount * stateCount;
+		partialsSize = patternCount * stateCount * categoryCount;
+
+		partials = new double[partialsBufferCount][];
+		tipStates = new int[Math.max(compactBufferCount, tipCount)][];
+		matrices = new double[matrixBufferCount][matrixSize * categoryCount];
+		scaleFactors = new double[scaleBufferCount][patternCount];
+		logScaleFactors = new boolean[scaleBufferCount];
+
+		cMatrices = new double[eigenBufferCount][];
+		eigenValues = new double[eigenBufferCount][];
+		categoryRates = new double[eigenBufferCount][];
+		categoryWeights = new double[eigenBufferCount][];
+		stateFrequencies = new double[eigenBufferCount][];
+		categoryRates[0] = new double[categoryCount];
+		Arrays.fill(categoryRates[0], 1.0);
+		categoryWeights[0] = new double[categoryCount];
+		Arrays.fill(categoryWeights[0], 1.0 / categoryCount);
+		patternWeights = new double[patternCount];
+		Arrays.fill(patternWeights, 1.0);
+
+		matrixEigenIndex = new int[matrixBufferCount];
+		matrixVersion = new long[matrixBufferCount];
+		matrixEdgeLength = new double[matrixBufferCount];
+		Arrays.fill(matrixVersion, -1);
+
+		siteLogLikelihoods = new double[patternCount];
+		threadCount = ProgramStatus.m_nThreads;
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void finalize() throws Throwable {
+	}
+
+	@Override
+	public void setCPUThreadCount(int threadCount) {
+		this.threadCount = threadCount;
+	}
+
+	/** number of slices the patterns are split into **/
+	int getSliceCount() {
+		return Math.max(1, Math.min(threadCount, patternCount / MIN_PATTERNS_PER_SLICE));
+	}
+
+	@Override
+	public void setPatternWeights(double[] patternWeights) {
+		this.patternWeights = patternWeights.clone();
+	}
+
+	@Override
+	public void setPatternPartitions(int partitionCount, int[] patternPartitions) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void setTipStates(int tipIndex, int[] states) {
+		int[] tip = new int[patternCount];
+		for (int k = 0; k < patternCount; k++) {
+			// anything that is not a state is treated as unknown
+			tip[k] = states[k] >= 0 && states[k] < stateCount ? states[k] : stateCount;
+		}
+		tipStates[tipIndex] = tip;
+		partials[tipIndex] = null;
+	}
+
+	@Override
+	public void getTipStates(int tipIndex, int[] outStates) {
+		System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+	}
+
+	@Override
+	public void setTipPartials(int tipIndex, double[] inPartials) {
+		// partials for a single category, copied to every category
+		int n = patternCount * stateCount;
+		double[] p = new double[partialsSize];
+		for (int l = 0; l < categoryCount; l++) {
+			System.arraycopy(inPartials, 0, p, l * n, n);
+		}
+		partials[tipIndex] = p;
+		if (tipIndex < tipStates.length) {
+			tipStates[tipIndex] = null;
+		}
+	}
+
+	@Override
+	public void setPartials(int bufferIndex, double[] inPartials) {
+		if (partials[bufferIndex] == null) {
+			partials[bufferIndex] = new double[partialsSize];
+		}
+		System.arraycopy(inPartials, 0, partials[bufferIndex], 0, partialsSize);
+		if (bufferIndex < tipStates.length) {
+			tipStates[bufferIndex] = null;
+		}
+	}
+
+	@Override
+	public void getPartials(int bufferIndex, int scaleIndex, double[] outPartials) {
+		System.arraycopy(partials[bufferIndex], 0, outPartials, 0, partialsSize);
+		if (scaleIndex != NONE) {
+			// undo the scaling
+			double[] logScale = new double[patternCount];
+			getLogScaleFactors(scaleIndex, logScale);
+			int v = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				for (int k = 0; k < patternCount; k++) {
+					double scale = Math.exp(logScale[k]);
+					for (int i = 0; i < stateCount; i++) {
+						outPartials[v++] *= scale;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+		double[] scale = scaleFactors[scaleIndex];
+		for (int k = 0; k < patternCount; k++) {
+			outFactors[k] = logScaleFactors[scaleIndex] ? scale[k] : Math.log(scale[k]);
+		}
+	}
+
+	@Override
+	public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors, double[] inInverseEigenVectors,
+			double[] inEigenValues) {
+		double[] c = new double[matrixSize * stateCount];
+		int u = 0;
+		for (int i = 0; i < stateCount; i++) {
+			for (int j = 0; j < stateCount; j++) {
+				for (int k = 0; k < stateCount; k++) {
+					c[u++] = inEigenVectors[i * stateCount + k] * inInverseEigenVectors[k * stateCount + j];
+				}
+			}
+		}
+		cMatrices[eigenIndex] = c;
+		eigenValues[eigenIndex] = Arrays.copyOf(inEigenValues, stateCount);
+		version++;
+	}
+
+	@Override
+	public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+		stateFrequencies[stateFrequenciesIndex] = Arrays.copyOf(inStateFrequencies, stateCount);
+	}
+
+	@Override
+	public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+		categoryWeights[categoryWeightsIndex] = Arrays.copyOf(inCategoryWeights, categoryCount);
+	}
+
+	@Override
+	public void setCategoryRates(double[] inCategoryRates) {
+		setCategoryRatesWithIndex(0, inCategoryRates);
+	}
+
+	@Override
+	public void setCategoryRatesWithIndex(int categoryRatesIndex, double[] inCategoryRates) {
+		categoryRates[categoryRatesIndex] = Arrays.copyOf(inCategoryRates, categoryCount);
+		version++;
+	}
+
+	@Override
+	public void convolveTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+		for (int u = 0; u < matrixCount; u++) {
+			double[] m1 = matrices[firstIndices[u]];
+			double[] m2 = matrices[secondIndices[u]];
+			double[] m3 = new double[matrixSize * categoryCount];
+			for (int l = 0; l < categoryCount; l++) {
+				int w = l * matrixSize;
+				for (int i = 0; i < stateCount; i++) {
+					for (int j = 0; j < stateCount; j++) {
+						double sum = 0;
+						for (int k = 0; k < stateCount; k++) {
+							sum += m1[w + i * stateCount + k] * m2[w + k * stateCount + j];
+						}
+						m3[w + i * stateCount + j] = sum;
+					}
+				}
+			}
+			System.arraycopy(m3, 0, matrices[resultIndices[u]], 0, m3.length);
+			matrixVersion[resultIndices[u]] = -1;
+		}
+	}
+
+	@Override
+	public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices, int[] firstDerivativeIndices,
+			int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+		int[] eigenIndices = new int[count];
+		Arrays.fill(eigenIndices, eigenIndex);
+		updateTransitionMatricesWithMultipleModels(eigenIndices, new int[count], probabilityIndices,
+				firstDerivativeIndices, secondDerivativeIndices, edgeLengths, count);
+	}
+
+	@Override
+	public void updateTransitionMatricesWithMultipleModels(int[] eigenIndices, int[] categoryRateIndices,
+			int[] probabilityIndices, int[] firstDerivativeIndices, int[] secondDerivativeIndices,
+			double[] edgeLengths, int count) {
+		if (firstDerivativeIndices != null || secondDerivativeIndices != null) {
+			throw new UnsupportedOperationException("derivatives are not supported by " + getClass().getSimpleName());
+		}
+
+		// collect the matrices that need calculating, and those that are copies of these
+		int[] todo = new int[count];
+		int[] copies = new int[2 * count];
+		int todoCount = 0, copyCount = 0;
+		if (edgeLengthTable.length < 2 * count) {
+			edgeLengthTable = new int[Integer.highestOneBit(2 * count) << 1];
+		}
+		Arrays.fill(edgeLengthTable, -1);
+		int mask = edgeLengthTable.length - 1;
+		for (int u = 0; u < count; u++) {
+			int m = probabilityIndices[u];
+			int rateIndex = categoryRateIndices[u] < categoryRates.length && categoryRates[categoryRateIndices[u]] != null ? categoryRateIndices[u] : 0;
+			int eigenIndex = eigenIndices[u];
+			// encode both eigen decomposition and category rates in one index
+			int index = eigenIndex * categoryRates.length + rateIndex;
+			if (matrixVersion[m] == version && matrixEigenIndex[m] == index && matrixEdgeLength[m] == edgeLengths[u]) {
+				continue;
+			}
+			matrixVersion[m] = version;
+			matrixEigenIndex[m] = index;
+			matrixEdgeLength[m] = edgeLengths[u];
+
+			long bits = Double.doubleToLongBits(edgeLengths[u]) * 31 + index;
+			int h = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9 & mask;
+			while (edgeLengthTable[h] >= 0) {
+				int other = edgeLengthTable[h];
+				if (matrixEdgeLength[other] == edgeLengths[u] && matrixEigenIndex[other] == index) {
+					break;
+				}
+				h = (h + 1) & mask;
+			}
+			if (edgeLengthTable[h] >= 0) {
+				copies[copyCount++] = edgeLengthTable[h];
+				copies[copyCount++] = m;
+			} else {
+				edgeLengthTable[h] = m;
+				todo[todoCount++] = m;
+			}
+		}
+
+		int work = todoCount * categoryCount * matrixSize * stateCount;
+		int sliceCount = Math.max(1, Math.min(threadCount, work / MIN_MATRIX_WORK_PER_SLICE));
+		if (sliceCount == 1) {
+			calcTransitionMatrices(todo, 0, todoCount);
+		} else {
+			List<RecursiveAction> tasks = new ArrayList<>(sliceCount);
+			for (int i = 0; i < sliceCount; i++) {
+				final int from = todoCount * i / sliceCount;
+				final int to = todoCount * (i + 1) / sliceCount;
+				final int[] todo_ = todo;
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						calcTransitionMatrices(todo_, from, to);
+					}
+				});
+			}
+			ForkJoinScheduler.invokeAll(tasks);
+		}
+
+		for (int u = 0; u < copyCount; u += 2) {
+			System.arraycopy(matrices[copies[u]], 0, matrices[copies[u + 1]], 0, matrixSize * categoryCount);
+		}
+	}
+
+	/**
+	 * calculate the transition matrices of buffers todo[from]...todo[to-1] from the
+	 * eigen decomposition, category rates and edge length recorded for them
+	 */
+	private void calcTransitionMatrices(int[] todo, int from, int to) {
+		double[] expLambda = new double[stateCount];
+		for (int u = from; u < to; u++) {
+			int m = todo[u];
+			int eigenIndex = matrixEigenIndex[m] / categoryRates.length;
+			double[] rates = categoryRates[matrixEigenIndex[m] % categoryRates.length];
+			double[] c = cMatrices[eigenIndex];
+			double[] lambda = eigenValues[eigenIndex];
+			double[] matrix = matrices[m];
+			int v = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				double t = matrixEdgeLength[m] * rates[l];
+				for (int k = 0; k < stateCount; k++) {
+					expLambda[k] = Math.exp(lambda[k] * t);
+				}
+				int w = 0;
+				for (int ij = 0; ij < matrixSize; ij++) {
+					double sum = 0;
+					for (int k = 0; k < stateCount; k++) {
+						sum += c[w++] * expLambda[k];
+					}
+					// rounding errors can make small probabilities negative
+					matrix[v++] = Math.max(0.0, sum);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+		System.arraycopy(inMatrix, 0, matrices[matrixIndex], 0, matrixSize * categoryCount);
+		matrixVersion[matrixIndex] = -1;
+	}
+
+	@Override
+	public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+		System.arraycopy(matrices[matrixIndex], 0, outMatrix, 0, matrixSize * categoryCount);
+	}
+
+	@Override
+	public void updatePartials(final int[] operations, final int operationCount, final int cumulativeScaleIndex) {
+		for (int op = 0; op < operationCount; op++) {
+			int x = op * OPERATION_TUPLE_SIZE;
+			int dest = operations[x];
+			if (partials[dest] == null) {
+				partials[dest] = new double[partialsSize];
+			}
+			if (dest < tipStates.length) {
+				tipStates[dest] = null;
+			}
+			checkSource(operations[x + 3]);
+			checkSource(operations[x + 5]);
+			if (operations[x + 1] != NONE) {
+				logScaleFactors[operations[x + 1]] = false;
+			}
+		}
+		if (cumulativeScaleIndex != NONE && !logScaleFactors[cumulativeScaleIndex]) {
+			toLogScaleFactors(cumulativeScaleIndex);
+		}
+
+		int sliceCount = getSliceCount();
+		if (sliceCount == 1) {
+			updatePartials(operations, operationCount, cumulativeScaleIndex, 0, patternCount);
+		} else {
+			List<RecursiveAction> tasks = new ArrayList<>(sliceCount);
+			for (int i = 0; i < sliceCount; i++) {
+				final int from = patternCount * i / sliceCount;
+				final int to = patternCount * (i + 1) / sliceCount;
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						updatePartials(operations, operationCount, cumulativeScaleIndex, from, to);
+					}
+				});
+			}
+			ForkJoinScheduler.invokeAll(tasks);
+		}
+	}
+
+	private void checkSource(int bufferIndex) {
+		if (partials[bufferIndex] == null && (bufferIndex >= tipStates.length || tipStates[bufferIndex] == null)) {
+			throw new IllegalArgumentException("Partials buffer " + bufferIndex + " is used before it is set");
+		}
+	}
+
+	/** run the operation list for patterns from...to-1 **/
+	private void updatePartials(int[] operations, int operationCount, int cumulativeScaleIndex, int from, int to) {
+		for (int op = 0; op < operationCount; op++) {
+			int x = op * OPERATION_TUPLE_SIZE;
+			double[] partials3 = partials[operations[x]];
+			int writeScaleIndex = operations[x + 1];
+			int readScaleIndex = operations[x + 2];
+			int child1 = operations[x + 3];
+			double[] matrices1 = matrices[operations[x + 4]];
+			int child2 = operations[x + 5];
+			double[] matrices2 = matrices[operations[x + 6]];
+
+			int[] states1 = child1 < tipStates.length ? tipStates[child1] : null;
+			int[] states2 = child2 < tipStates.length ? tipStates[child2] : null;
+			if (states1 != null && states2 != null) {
+				calculateStatesStatesPruning(states1, matrices1, states2, matrices2, partials3, from, to);
+			} else if (states1 != null && stateCount == 4) {
+				calculateStatesPartialsPruning4(states1, matrices1, partials[child2], matrices2, partials3, from, to);
+			} else if (states2 != null && stateCount == 4) {
+				calculateStatesPartialsPruning4(states2, matrices2, partials[child1], matrices1, partials3, from, to);
+			} else if (states1 != null) {
+				calculateStatesPartialsPruning(states1, matrices1, partials[child2], matrices2, partials3, from, to);
+			} else if (states2 != null) {
+				calculateStatesPartialsPruning(states2, matrices2, partials[child1], matrices1, partials3, from, to);
+			} else if (stateCount == 4) {
+				calculatePartialsPartialsPruning4(partials[child1], matrices1, partials[child2], matrices2, partials3, from, to);
+			} else {
+				calculatePartialsPartialsPruning(partials[child1], matrices1, partials[child2], matrices2, partials3, from, to);
+			}
+
+			if (writeScaleIndex != NONE) {
+				scalePartials(partials3, scaleFactors[writeScaleIndex], from, to);
+				if (cumulativeScaleIndex != NONE) {
+					double[] cumulative = scaleFactors[cumulativeScaleIndex];
+					double[] scale = scaleFactors[writeScaleIndex];
+					for (int k = from; k < to; k++) {
+						cumulative[k] += Math.log(scale[k]);
+					}
+				}
+			} else if (readScaleIndex != NONE) {
+				unscalePartials(partials3, scaleFactors[readScaleIndex], from, to);
+			}
+		}
+	}
+
+	/**
+	 * Fill columns with the transposed matrix of category l, padded with ones for
+	 * unknown states, so that columns[j * stateCount + i] is the probability of going
+	 * from parent state i to child state j, and no branch is needed for unknown states.
+	 */
+	private void fillColumns(double[] matrices, int l, double[] columns) {
+		int w = l * matrixSize;
+		for (int i = 0; i < stateCount; i++) {
+			for (int j = 0; j < stateCount; j++) {
+				columns[j * stateCount + i] = matrices[w + i * stateCount + j];
+			}
+		}
+		Arrays.fill(columns, matrixSize, matrixSize + stateCount, 1.0);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states.
+	 */
+	protected void calculateStatesStatesPruning(int[] states1, double[] matrices1,
+			int[] states2, double[] matrices2, double[] partials3, int from, int to) {
+		double[] columns1 = new double[matrixSize + stateCount];
+		double[] columns2 = new double[matrixSize + stateCount];
+		for (int l = 0; l < categoryCount; l++) {
+			fillColumns(matrices1, l, columns1);
+			fillColumns(matrices2, l, columns2);
+			int v = (l * patternCount + from) * stateCount;
+			for (int k = from; k < to; k++) {
+				int u1 = states1[k] * stateCount;
+				int u2 = states2[k] * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					partials3[v++] = columns1[u1 + i] * columns2[u2 + i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	protected void calculateStatesPartialsPruning(int[] states1, double[] matrices1,
+			double[] partials2, double[] matrices2, double[] partials3, int from, int to) {
+		double[] columns1 = new double[matrixSize + stateCount];
+		for (int l = 0; l < categoryCount; l++) {
+			fillColumns(matrices1, l, columns1);
+			int v = (l * patternCount + from) * stateCount;
+			int w0 = l * matrixSize;
+			for (int k = from; k < to; k++) {
+				int u1 = states1[k] * stateCount;
+				int w = w0;
+				for (int i = 0; i < stateCount; i++) {
+					double sum = 0.0;
+					for (int j = 0; j < stateCount; j++) {
+						sum += matrices2[w + j] * partials2[v - i + j];
+					}
+					partials3[v++] = columns1[u1 + i] * sum;
+					w += stateCount;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has
+	 * partials, for four states.
+	 */
+	protected void calculateStatesPartialsPruning4(int[] states1, double[] matrices1,
+			double[] partials2, double[] matrices2, double[] partials3, int from, int to) {
+		double[] columns1 = new double[20];
+		for (int l = 0; l < categoryCount; l++) {
+			fillColumns(matrices1, l, columns1);
+			int w = l * 16;
+			double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2], b03 = matrices2[w + 3];
+			double b10 = matrices2[w + 4], b11 = matrices2[w + 5], b12 = matrices2[w + 6], b13 = matrices2[w + 7];
+			double b20 = matrices2[w + 8], b21 = matrices2[w + 9], b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			int v = (l * patternCount + from) * 4;
+			for (int k = from; k < to; k++) {
+				int u = states1[k] * 4;
+				double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+				partials3[v]     = columns1[u]     * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3);
+				partials3[v + 1] = columns1[u + 1] * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3);
+				partials3[v + 2] = columns1[u + 2] * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3);
+				partials3[v + 3] = columns1[u + 3] * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2, double[] partials3, int from, int to) {
+		for (int l = 0; l < categoryCount; l++) {
+			int v0 = (l * patternCount + from) * stateCount;
+			int w0 = l * matrixSize;
+			for (int k = from; k < to; k++) {
+				int w = w0;
+				for (int i = 0; i < stateCount; i++) {
+					double sum1 = 0.0, sum2 = 0.0;
+					for (int j = 0; j < stateCount; j++) {
+						sum1 += matrices1[w + j] * partials1[v0 + j];
+						sum2 += matrices2[w + j] * partials2[v0 + j];
+					}
+					partials3[v0 + i] = sum1 * sum2;
+					w += stateCount;
+				}
+				v0 += stateCount;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials,
+	 * for four states. The matrices of a category are held in local variables, so the
+	 * inner loop only loads partials.
+	 */
+	protected void calculatePartialsPartialsPruning4(double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2, double[] partials3, int from, int to) {
+		for (int l = 0; l < categoryCount; l++) {
+			int w = l * 16;
+			double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2], a03 = matrices1[w + 3];
+			double a10 = matrices1[w + 4], a11 = matrices1[w + 5], a12 = matrices1[w + 6], a13 = matrices1[w + 7];
+			double a20 = matrices1[w + 8], a21 = matrices1[w + 9], a22 = matrices1[w + 10], a23 = matrices1[w + 11];
+			double a30 = matrices1[w + 12], a31 = matrices1[w + 13], a32 = matrices1[w + 14], a33 = matrices1[w + 15];
+			double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2], b03 = matrices2[w + 3];
+			double b10 = matrices2[w + 4], b11 = matrices2[w + 5], b12 = matrices2[w + 6], b13 = matrices2[w + 7];
+			double b20 = matrices2[w + 8], b21 = matrices2[w + 9], b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			int end = (l * patternCount + to) * 4;
+			for (int v = (l * patternCount + from) * 4; v < end; v += 4) {
+				double p0 = partials1[v], p1 = partials1[v + 1], p2 = partials1[v + 2], p3 = partials1[v + 3];
+				double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+				partials3[v]     = (a00 * p0 + a01 * p1 + a02 * p2 + a03 * p3) * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3);
+				partials3[v + 1] = (a10 * p0 + a11 * p1 + a12 * p2 + a13 * p3) * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3);
+				partials3[v + 2] = (a20 * p0 + a21 * p1 + a22 * p2 + a23 * p3) * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3);
+				partials3[v + 3] = (a30 * p0 + a31 * p1 + a32 * p2 + a33 * p3) * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3);
+			}
+		}
+	}
+
+	/**
+	 * Scale the partials of patterns from...to-1 by their largest value over all
+	 * categories and states, and record the scale factors.
+	 */
+	protected void scalePartials(double[] partials3, double[] scale, int from, int to) {
+		int n = patternCount * stateCount;
+		for (int k = from; k < to; k++) {
+			double max = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					max = Math.max(max, partials3[v + i]);
+				}
+			}
+			if (max == 0) {
+				max = 1.0;
+			}
+			scale[k] = max;
+			double oneOverMax = 1.0 / max;
+			for (int l = 0; l < categoryCount; l++) {
+				int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					partials3[v + i] *= oneOverMax;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scale the partials of patterns from...to-1 by existing scale factors.
+	 */
+	protected void unscalePartials(double[] partials3, double[] scale, int from, int to) {
+		int n = patternCount * stateCount;
+		for (int k = from; k < to; k++) {
+			double oneOverScale = 1.0 / scale[k];
+			for (int l = 0; l < categoryCount; l++) {
+				int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					partials3[v + i] *= oneOverScale;
+				}
+			}
+		}
+	}
+
+	private void toLogScaleFactors(int scaleIndex) {
+		double[] scale = scaleFactors[scaleIndex];
+		for (int k = 0; k < patternCount; k++) {
+			scale[k] = Math.log(scale[k]);
+		}
+		logScaleFactors[scaleIndex] = true;
+	}
+
+	@Override
+	public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+		if (cumulativeScaleIndex == NONE) {
+			throw new UnsupportedOperationException("automatic scaling is not supported by " + getClass().getSimpleName());
+		}
+		if (!logScaleFactors[cumulativeScaleIndex]) {
+			toLogScaleFactors(cumulativeScaleIndex);
+		}
+		double[] cumulative = scaleFactors[cumulativeScaleIndex];
+		for (int u = 0; u < count; u++) {
+			double[] scale = scaleFactors[scaleIndices[u]];
+			if (logScaleFactors[scaleIndices[u]]) {
+				for (int k = 0; k < patternCount; k++) {
+					cumulative[k] += scale[k];
+				}
+			} else {
+				for (int k = 0; k < patternCount; k++) {
+					cumulative[k] += Math.log(scale[k]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+		if (!logScaleFactors[cumulativeScaleIndex]) {
+			toLogScaleFactors(cumulativeScaleIndex);
+		}
+		double[] cumulative = scaleFactors[cumulativeScaleIndex];
+		for (int u = 0; u < count; u++) {
+			double[] scale = scaleFactors[scaleIndices[u]];
+			for (int k = 0; k < patternCount; k++) {
+				cumulative[k] -= logScaleFactors[scaleIndices[u]] ? scale[k] : Math.log(scale[k]);
+			}
+		}
+	}
+
+	@Override
+	public void copyScaleFactors(int destScaleIndex, int srcScaleIndex) {
+		System.arraycopy(scaleFactors[srcScaleIndex], 0, scaleFactors[destScaleIndex], 0, patternCount);
+		logScaleFactors[destScaleIndex] = logScaleFactors[srcScaleIndex];
+	}
+
+	@Override
+	public void resetScaleFactors(int cumulativeScaleIndex) {
+		Arrays.fill(scaleFactors[cumulativeScaleIndex], 0.0);
+		logScaleFactors[cumulativeScaleIndex] = true;
+	}
+
+	@Override
+	public void updatePartialsByPartition(int[] operations, int operationCount) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void accumulateScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void removeScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices,
+			int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int count, double[] outSumLogLikelihood) {
+		if (count != 1) {
+			throw new UnsupportedOperationException("multiple roots are not supported by " + getClass().getSimpleName());
+		}
+		final double[] rootPartials = partials[bufferIndices[0]];
+		final double[] weights = categoryWeights[categoryWeightsIndices[0]];
+		final double[] frequencies = stateFrequencies[stateFrequenciesIndices[0]];
+		final int scaleIndex = cumulativeScaleIndices[0];
+		if (scaleIndex != NONE && !logScaleFactors[scaleIndex]) {
+			toLogScaleFactors(scaleIndex);
+		}
+
+		int sliceCount = getSliceCount();
+		if (sliceCount == 1) {
+			calcSiteLogLikelihoods(rootPartials, weights, frequencies, scaleIndex, 0, patternCount);
+		} else {
+			List<RecursiveAction> tasks = new ArrayList<>(sliceCount);
+			for (int i = 0; i < sliceCount; i++) {
+				final int from = patternCount * i / sliceCount;
+				final int to = patternCount * (i + 1) / sliceCount;
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						calcSiteLogLikelihoods(rootPartials, weights, frequencies, scaleIndex, from, to);
+					}
+				});
+			}
+			ForkJoinScheduler.invokeAll(tasks);
+		}
+
+		double logL = 0;
+		for (int k = 0; k < patternCount; k++) {
+			logL += siteLogLikelihoods[k] * patternWeights[k];
+		}
+		outSumLogLikelihood[0] = logL;
+	}
+
+	private void calcSiteLogLikelihoods(double[] rootPartials, double[] weights, double[] frequencies,
+			int scaleIndex, int from, int to) {
+		int n = patternCount * stateCount;
+		for (int k = from; k < to; k++) {
+			double sum = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				int v = l * n + k * stateCount;
+				double sumOverStates = 0;
+				for (int i = 0; i < stateCount; i++) {
+					sumOverStates += frequencies[i] * rootPartials[v + i];
+				}
+				sum += weights[l] * sumOverStates;
+			}
+			siteLogLikelihoods[k] = Math.log(sum);
+		}
+		if (scaleIndex != NONE) {
+			double[] scale = scaleFactors[scaleIndex];
+			for (int k = from; k < to; k++) {
+				siteLogLikelihoods[k] += scale[k];
+			}
+		}
+	}
+
+	@Override
+	public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+			int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int[] partitionIndices, int partitionCount,
+			int count, double[] outSumLogLikelihoodByPartition, double[] outSumLogLikelihood) {
+		throw new UnsupportedOperationException("pattern partitions are not supported by " + getClass().getSimpleName());
+	}
+
+	@Override
+	public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+		System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+	}
+
+	@Override
+	public InstanceDetails getDetails() {
+		InstanceDetails details = new InstanceDetails();
+		details.setResourceNumber(0);
+		details.setResourceName("CPU (Java)");
+		details.setImplementationName(getClass().getSimpleName());
+		details.setFlags(FLAGS);
+		return details;
+	}
+}
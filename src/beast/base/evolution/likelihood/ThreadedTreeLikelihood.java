@@ -36,9 +36,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
 
 import beast.base.core.BEASTInterface;
@@ -52,6 +50,7 @@ import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.inference.State;
+import beast.base.inference.util.ForkJoinScheduler;
 
 
 @Description("Calculates the likelihood of sequence data on a beast.tree given a site and substitution model using " +
@@ -89,20 +88,29 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
     	return list;
     }
     
+    /**
+     * minimum number of patterns in a slice: smaller slices cost more in
+     * transition probability calculations than they gain from threading
+     */
+    final static int MIN_PATTERNS_PER_SLICE = 250;
+    /**
+     * number of slices per thread when no proportions are specified, so that
+     * idle threads can steal slices from threads that are slowed down
+     */
+    final static int SLICES_PER_THREAD = 2;
+
     /** calculation engine **/
     private TreeLikelihood [] treelikelihood;
 
-    private ExecutorService pool = null;
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
-
-    
     /** number of threads to use, changes when threading causes problems **/
     private int threadCount;
-    private double [] logPByThread;
+    /** number of slices of the alignment, each calculated by its own TreeLikelihood **/
+    private int sliceCount;
+    private double [] logPBySlice;
 	
 	
-	// specified a set ranges of patterns assigned to each thread
-	// first patternPoints contains 0, then one point for each thread
+	// specified a set ranges of sites assigned to each slice
+	// first patternPoints contains 0, then one point for each slice
     private int [] patternPoints;
     
     private Alignment alignment;
@@ -115,26 +123,26 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
 		if (maxNrOfThreadsInput.get() > 0) {
 			threadCount = Math.min(maxNrOfThreadsInput.get(), ProgramStatus.m_nThreads);
 		}
+        sliceCount = calcSliceCount(alignment.getPatternCount());
         String instanceCount = System.getProperty("beast.instance.count");
         if (instanceCount != null && instanceCount.length() > 0) {
-        	threadCount = Integer.parseInt(instanceCount);
+        	sliceCount = Integer.parseInt(instanceCount);
         }
-        
-        logPByThread = new double[threadCount];
 
     	// sanity check: alignment should have same #taxa as tree
     	if (alignment.getTaxonCount() != treeInput.get().getLeafNodeCount()) {
     		throw new IllegalArgumentException("The number of nodes in the tree does not match the number of sequences");
     	}
     	
-    	treelikelihood = new TreeLikelihood[threadCount];
-    	
     	if (alignment.isAscertained) {
     		Log.warning.println("Note, can only use single thread per alignment because the alignment is ascertained");
-    		threadCount = 1;
+    		sliceCount = 1;
     	}
     	
-    	if (threadCount <= 1) {    		
+        logPBySlice = new double[sliceCount];
+    	treelikelihood = new TreeLikelihood[sliceCount];
+    	
+    	if (sliceCount <= 1) {    		
     		treelikelihood[0] = new TreeLikelihood();
     		treelikelihood[0].setID(getID() + "0");
     		treelikelihood[0].initByName("data", dataInput.get(), 
@@ -148,10 +156,8 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
     		treelikelihood[0].getOutputs().add(this);
     		likelihoodsInput.get().add(treelikelihood[0]);
     	} else {
-        	pool = Executors.newFixedThreadPool(threadCount);
-    		
-        	calcPatternPoints(alignment.getSiteCount());
-        	for (int i = 0; i < threadCount; i++) {
+        	calcPatternPoints();
+        	for (int i = 0; i < sliceCount; i++) {
         		String filterSpec = (patternPoints[i] +1) + "-" + (patternPoints[i + 1]);
         		if (alignment.isAscertained) {
         			filterSpec += alignment.excludefromInput.get() + "-" + alignment.excludetoInput.get() + "," + filterSpec;
@@ -180,8 +186,6 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
         				"useAmbiguities", useAmbiguitiesInput.get(),
                         "scaling", scalingInput.get() + ""
         				);
-        		
-        		likelihoodCallers.add(new TreeLikelihoodCaller(treelikelihood[i], i));
         	}
     	}
     }
@@ -230,37 +234,70 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
 		return copy;
 	}
 
-	private void calcPatternPoints(int nPatterns) {
-		patternPoints = new int[threadCount + 1];
+    /**
+     * Determine the number of slices the alignment is split in. If proportions are
+     * specified, there is one slice per thread. Otherwise, there are SLICES_PER_THREAD
+     * slices per thread, as long as slices have at least MIN_PATTERNS_PER_SLICE patterns,
+     * so that alignments with few patterns do not pay for threading they cannot benefit from.
+     */
+	private int calcSliceCount(int patternCount) {
+		if (threadCount <= 1) {
+			return 1;
+		}
+		if (proportionsInput.get() != null) {
+			return threadCount;
+		}
+		int count = Math.min(threadCount * SLICES_PER_THREAD, patternCount / MIN_PATTERNS_PER_SLICE);
+		return Math.max(count, 1);
+	}
+
+	/**
+	 * Determine the site ranges of the slices. Slices are filtered from the alignment by
+	 * site, but their cost depends on the number of patterns, so ranges are chosen such
+	 * that every slice gets its proportion of the patterns of the alignment, counting
+	 * each pattern at the first site it occurs.
+	 */
+	private void calcPatternPoints() {
+		double [] proportions = new double[sliceCount];
 		if (proportionsInput.get() == null) {
-			int range = nPatterns / threadCount;
-			for (int i = 0; i < threadCount - 1; i++) {
-				patternPoints[i+1] = range * (i+1);
-			}
-			patternPoints[threadCount] = nPatterns;
+			Arrays.fill(proportions, 1.0);
 		} else {
 			String [] strs = proportionsInput.get().split("\\s+");
-			double [] proportions = new double[threadCount];
-			for (int i = 0; i < threadCount; i++) {
+			for (int i = 0; i < sliceCount; i++) {
 				proportions[i] = Double.parseDouble(strs[i % strs.length]);
 			}
-			// normalise
-			double sum = 0;
-			for (double d : proportions) {
-				sum += d;
-			}
-			for (int i = 0; i < threadCount; i++) {
-				proportions[i] /= sum;
-			}
-			// cummulative 
-			for (int i = 1; i < threadCount; i++) {
-				proportions[i] += proportions[i- 1];
+		}
+		// normalise
+		double sum = 0;
+		for (double d : proportions) {
+			sum += d;
+		}
+		for (int i = 0; i < sliceCount; i++) {
+			proportions[i] /= sum;
+		}
+		// cummulative 
+		for (int i = 1; i < sliceCount; i++) {
+			proportions[i] += proportions[i- 1];
+		}
+
+		// calc ranges
+		int siteCount = alignment.getSiteCount();
+		int patternCount = alignment.getPatternCount();
+		boolean [] seen = new boolean[patternCount];
+		patternPoints = new int[sliceCount + 1];
+		int slice = 0;
+		int newPatterns = 0;
+		for (int site = 0; site < siteCount && slice < sliceCount - 1; site++) {
+			int pattern = alignment.getPatternIndex(site);
+			if (!seen[pattern]) {
+				seen[pattern] = true;
+				newPatterns++;
 			}
-			// calc ranges
-			for (int i = 0; i < threadCount; i++) {
-				patternPoints[i+1] = (int) (proportions[i] * nPatterns + 0.5);
+			while (slice < sliceCount - 1 && newPatterns >= (int) (proportions[slice] * patternCount + 0.5)) {
+				patternPoints[++slice] = site + 1;
 			}
 		}
+		patternPoints[sliceCount] = siteCount;
     }
         
     /**
@@ -278,24 +315,24 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
 		return logP;
     }
 
-    class TreeLikelihoodCaller implements Callable<Double> {
-        private final TreeLikelihood likelihood;
-        private final int threadNr;
+    class TreeLikelihoodTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final TreeLikelihood likelihood;
+        private final int sliceNr;
 
-        public TreeLikelihoodCaller(TreeLikelihood likelihood, int threadNr) {
+        public TreeLikelihoodTask(TreeLikelihood likelihood, int sliceNr) {
             this.likelihood = likelihood;
-            this.threadNr = threadNr;
+            this.sliceNr = sliceNr;
         }
 
-        public Double call() throws Exception {
+        @Override
+        protected void compute() {
   		  	try {
-	            logPByThread[threadNr] = likelihood.calculateLogP();
-  		  	} catch (Exception e) {
-  		  		System.err.println("Something went wrong in thread " + threadNr);
-				e.printStackTrace();
-				System.exit(0);
+	            logPBySlice[sliceNr] = likelihood.calculateLogP();
+  		  	} catch (RuntimeException e) {
+  		  		Log.err.println("Something went wrong in slice " + sliceNr + " of " + getID());
+  		  		throw e;
 			}
-            return logPByThread[threadNr];
         }
 
     }
@@ -304,17 +341,25 @@ public class ThreadedTreeLikelihood extends GenericTreeLikelihood {
 	
     private double calculateLogPByBeagle() {
 		try {
-			if (threadCount > 1) {
-                pool.invokeAll(likelihoodCallers);
+			if (sliceCount > 1) {
+				// largest slices first, so the smaller ones fill up idle threads at the end
+				List<TreeLikelihoodTask> tasks = new ArrayList<>(sliceCount);
+				for (int i = 0; i < sliceCount; i++) {
+					tasks.add(new TreeLikelihoodTask(treelikelihood[i], i));
+				}
+				tasks.sort((t1, t2) -> Integer.compare(
+						treelikelihood[t2.sliceNr].alignment.getPatternCount(),
+						treelikelihood[t1.sliceNr].alignment.getPatternCount()));
+				ForkJoinScheduler.invokeAll(tasks, threadCount);
 
 		    	logP = 0;
-		    	for (double f : logPByThread) {
+		    	for (double f : logPBySlice) {
 		    		logP += f;
 		    	}
 			} else {
 				logP = treelikelihood[0].calculateLogP();
 			}
-		} catch (RejectedExecutionException | InterruptedException e) {
+		} catch (RejectedExecutionException e) {
 			e.printStackTrace();
 			System.exit(0);
 		}
@@ -38,6 +38,7 @@ import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.substitutionmodel.TransitionMatrixCache;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
@@ -61,6 +62,13 @@ public class TreeLikelihood extends GenericTreeLikelihood {
     final public Input<Frequencies> rootFrequenciesInput =
             new Input<>("rootFrequencies", "prior state frequencies at root, optional", Input.Validate.OPTIONAL);
 
+    /**
+     * system property to select the pattern-blocked likelihood core instead of the BeerLikelihoodCore *
+     */
+    public static final String BLOCKED_CORE_PROPERTY = "beast.blocked.core";
+    /** system property, set to false to disable sharing of transition probability matrices through a TransitionMatrixCache **/
+    public static final String MATRIX_CACHE_PROPERTY = "beast.matrix.cache";
+
     /**
      * calculation engine *
      */
@@ -73,6 +81,12 @@ public class TreeLikelihood extends GenericTreeLikelihood {
      * is safe to link to them only once, during initAndValidate.
      */
     protected SubstitutionModel substitutionModel;
+
+    /**
+     * cache of transition probability matrices shared with other tree likelihoods
+     * using the same substitution model, null if the substitution model does not support it
+     */
+    protected TransitionMatrixCache transitionMatrixCache;
     protected SiteModel.Base m_siteModel;
     protected BranchRateModel.Base branchRateModel;
 
@@ -194,6 +208,10 @@ public class TreeLikelihood extends GenericTreeLikelihood {
         m_siteModel = (SiteModel.Base) siteModelInput.get();
         m_siteModel.setDataType(alignment.getDataType());
         substitutionModel = m_siteModel.substModelInput.get();
+        transitionMatrixCache = null;
+        if (substitutionModel instanceof SubstitutionModel.Base && !"false".equals(System.getProperty(MATRIX_CACHE_PROPERTY))) {
+            transitionMatrixCache = ((SubstitutionModel.Base) substitutionModel).getTransitionMatrixCache();
+        }
 
         if (branchRateModelInput.get() != null) {
             branchRateModel = branchRateModelInput.get();
@@ -240,6 +258,12 @@ public class TreeLikelihood extends GenericTreeLikelihood {
 	}
     
 	protected LikelihoodCore createLikelihoodCore(int stateCount) {
+		if (Boolean.valueOf(System.getProperty(BLOCKED_CORE_PROPERTY))) {
+			if (stateCount == 4) {
+				return new BlockedLikelihoodCore4();
+			}
+			return new BlockedLikelihoodCore(stateCount);
+		}
 		if (stateCount == 4) {
 			return new BeerLikelihoodCore4();
 		} else {
@@ -474,7 +498,11 @@ public class TreeLikelihood extends GenericTreeLikelihood {
             likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
             for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
                 final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-                substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                if (transitionMatrixCache != null) {
+                    transitionMatrixCache.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                } else {
+                    substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                }
                 //System.out.println(node.getNr() + " " + Arrays.toString(m_fProbabilities));
                 likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
             }
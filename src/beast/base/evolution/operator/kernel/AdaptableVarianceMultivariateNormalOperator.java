@@ -37,6 +37,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
@@ -76,6 +80,10 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
     final public Input<Boolean> storeInput = new Input<>("store", "flag to indicate if covariance and mean should be stored to the state file (default true)", true);
 
     final public Input<Boolean> allowNonsenseInput = new Input<>("allowNonsense", "flag to indicate if transforms may accept nonsensical inputs eg. 0 parameters (default false)", false);
+    final public Input<Boolean> rankOneUpdateInput = new Input<>("rankOneUpdate", "flag to indicate the Cholesky factor of the covariance matrix is kept up to date by rank-one updates "
+    		+ "instead of being recomputed, which is much faster for high dimensional parameters (default false)", false);
+    final public Input<Integer> rankInput = new Input<>("rank", "if positive, the covariance matrix is approximated by this many principal components plus a diagonal, "
+    		+ "so that proposals take time linear in the dimension (default 0, that is, use the full covariance matrix)", 0);
 
 
     public static final boolean DEBUG = false;
@@ -100,6 +108,19 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
     // temporary storage, allocated once.
     private double[] epsilon;
     private double[][] proposal;
+    private double[] x, transformedX, delta;
+
+    // Cholesky factor of the empirical covariance matrix, kept up to date by rank-one updates
+    private boolean rankOneUpdate;
+    private double[][] empiricalCholesky;
+    private boolean empiricalCholeskyValid;
+    private double[] diagonalEpsilon;
+
+    // low rank plus diagonal approximation of the empirical covariance matrix
+    private int rank;
+    private double[][] basis, basisWork;
+    private double[] basisVariance, residualVariance, componentEpsilon;
+    private int lastRefresh;
 
     
     
@@ -186,6 +207,27 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
 
         this.epsilon = new double[dim];
         this.proposal = new double[dim][dim];
+        this.x = new double[dim];
+        this.transformedX = new double[dim];
+        this.delta = new double[dim];
+
+        this.rankOneUpdate = rankOneUpdateInput.get();
+        if (rankOneUpdate) {
+        	this.empiricalCholesky = new double[dim][dim];
+        	this.diagonalEpsilon = new double[dim];
+        }
+        this.rank = Math.min(rankInput.get(), dim);
+        if (rank < 0) {
+            throw new IllegalArgumentException("Rank must not be negative.");
+        }
+        if (rank > 0) {
+        	this.basis = new double[rank][dim];
+        	this.basisWork = new double[rank][dim];
+        	this.basisVariance = new double[rank];
+        	this.residualVariance = new double[dim];
+        	this.componentEpsilon = new double[rank];
+        }
+        covarianceChanged();
 
     	
     	
@@ -280,28 +322,6 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
 		return nodes;
 	}
 
-    //act as if population mean is known
-    private double calculateCovariance(int number, double currentMatrixEntry, double[] values, int firstIndex, int secondIndex) {
-        // number will always be > 1 here
-        /*double result = currentMatrixEntry * (number - 1);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double) number);*/
-
-    	// Welford-style update
-    	// https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Welford's_online_algorithm
-        double result = currentMatrixEntry * (number - 2);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double)(number - 1));
-        
-//      result += (values[firstIndex] - newMeans[firstIndex]) * (values[secondIndex]- newMeans[secondIndex]);
-//      result /= ((double)(number - 1));
-
-        return result;
-
-    }
-
 	@Override
 	public double proposal() {
 		return doOperation();
@@ -326,13 +346,11 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
         }
 
         // double[] x = parameter.getDoubleValues();
-        double[] x = new double[dim];
         for (int i = 0; i < dim; i++) {
         	x[i] = parameter.getValue(i);
         }
 
         //transform to the appropriate scale
-        double[] transformedX = new double[dim];
         /*for (int i = 0; i < dim; i++) {
             transformedX[i] = transformations[i].transform(x[i]);
         }*/
@@ -395,13 +413,23 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
                     }
 
                     if (updates > 1) {
-                        //here we can simply use the double[][] matrix
+                        // Welford-style update, since newMeans is the running mean that includes transformedX
+                        // https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Welford's_online_algorithm
+                        final double shrink = (updates - 2.0) / (updates - 1.0);
                         for (int i = 0; i < dim; i++) {
+                            delta[i] = transformedX[i] - oldMeans[i];
+                        }
+                        for (int i = 0; i < dim; i++) {
+                            final double[] row = empirical[i];
+                            final double d = delta[i] / updates;
                             for (int j = i; j < dim; j++) {
-                                empirical[i][j] = calculateCovariance(updates, empirical[i][j], transformedX, i, j);
-                                empirical[j][i] = empirical[i][j];
+                                row[j] = shrink * row[j] + d * delta[j];
+                                empirical[j][i] = row[j];
                             }
                         }
+                        if (empiricalCholeskyValid) {
+                            updateEmpiricalCholesky(shrink, updates);
+                        }
                     }
 
 
@@ -447,6 +475,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
                         empirical[i][j] = 0.0;
                     }
                 }
+                covarianceChanged();
 
             }
 
@@ -472,50 +501,19 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
                     proposal[i][j] = matrix[i][j];
                 }
             }
+            covarianceChanged();
 
         }
 
-        for (int i = 0; i < dim; i++) {
-            //epsilon[i] = scaleFactor * Randomizer.nextGaussian();
-            epsilon[i] = kernelDistribution.getRandomDelta(i, epsilon[i], scaleFactor);
-        }
-
-        if (iterations > initial) {
-
-            if (DEBUG) {
-                System.err.println("  iterations > initial");
-            }
-
-            if (iterations % every == 0) {
-                // TODO: For speed, it may not be necessary to update decomposition each and every iteration
-
-                for (int i = 0; i < dim; i++) {
-                    for (int j = i; j < dim; j++) { // symmetric matrix
-                        proposal[j][i] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
-                                empirical[j][i] + beta * matrix[j][i];
-                        proposal[i][j] = proposal[j][i] ;
-                    }
-                }
-
-                // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
-                try {
-                    cholesky = (new CholeskyDecomposition(proposal)).getL();
-                } catch (IllegalDimension illegalDimension) {
-                    throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
-                }
-            }
-
-        }
-
-        if (DEBUG) {
-            System.err.println("  Drawing new values");
-        }
-
-        for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
+        if (iterations > initial && rank > 0) {
+            if (lastRefresh < 0 || iterations - lastRefresh >= dim) {
+                refreshLowRank(iterations);
             }
+            drawLowRank();
+        } else if (iterations > initial && rankOneUpdate && prepareEmpiricalCholesky()) {
+            drawRankOne();
+        } else {
+            drawFull(iterations);
         }
 
         if (DEBUG) {
@@ -603,6 +601,272 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
 
     }
 
+    /** draw from the full proposal covariance matrix, recomputing its Cholesky factor every 'every' iterations **/
+    private void drawFull(int iterations) {
+        for (int i = 0; i < dim; i++) {
+            //epsilon[i] = scaleFactor * Randomizer.nextGaussian();
+            epsilon[i] = kernelDistribution.getRandomDelta(i, epsilon[i], scaleFactor);
+        }
+
+        if (iterations > initial) {
+
+            if (DEBUG) {
+                System.err.println("  iterations > initial");
+            }
+
+            if (iterations % every == 0) {
+                // TODO: For speed, it may not be necessary to update decomposition each and every iteration
+
+                for (int i = 0; i < dim; i++) {
+                    for (int j = i; j < dim; j++) { // symmetric matrix
+                        proposal[j][i] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
+                                empirical[j][i] + beta * matrix[j][i];
+                        proposal[i][j] = proposal[j][i] ;
+                    }
+                }
+
+                // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
+                try {
+                    cholesky = (new CholeskyDecomposition(proposal)).getL();
+                } catch (IllegalDimension illegalDimension) {
+                    throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+                }
+            }
+
+        }
+
+        if (DEBUG) {
+            System.err.println("  Drawing new values");
+        }
+
+        for (int i = 0; i < dim; i++) {
+            for (int j = i; j < dim; j++) {
+                transformedX[i] += cholesky[j][i] * epsilon[j];
+                // caution: decomposition returns lower triangular
+            }
+        }
+    }
+
+    /**
+     * draw from (1-beta) * empirical + beta * matrix, using the Cholesky factor of the
+     * empirical covariance matrix for the first part; matrix is diagonal, so the second
+     * part is drawn independently for every dimension.
+     */
+    private void drawRankOne() {
+        final double empiricalScale = Math.sqrt(1.0 - beta);
+        for (int i = 0; i < dim; i++) {
+            epsilon[i] = kernelDistribution.getRandomDelta(i, epsilon[i], scaleFactor);
+            diagonalEpsilon[i] = kernelDistribution.getRandomDelta(dim + i, diagonalEpsilon[i], scaleFactor);
+        }
+        for (int i = 0; i < dim; i++) {
+            final double[] row = empiricalCholesky[i];
+            double sum = 0.0;
+            for (int j = 0; j <= i; j++) {
+                sum += row[j] * epsilon[j];
+            }
+            transformedX[i] += empiricalScale * sum + Math.sqrt(beta * matrix[i][i]) * diagonalEpsilon[i];
+        }
+    }
+
+    /**
+     * make sure the Cholesky factor of the empirical covariance matrix is available,
+     * which requires a full decomposition the first time, and after the covariance matrix
+     * was replaced.
+     * @return false if the empirical covariance matrix is not positive definite (yet)
+     */
+    private boolean prepareEmpiricalCholesky() {
+        if (!empiricalCholeskyValid) {
+            try {
+                CholeskyDecomposition decomposition = new CholeskyDecomposition(empirical);
+                if (decomposition.isSPD()) {
+                    double[][] L = decomposition.getL();
+                    for (int i = 0; i < dim; i++) {
+                        System.arraycopy(L[i], 0, empiricalCholesky[i], 0, dim);
+                    }
+                    empiricalCholeskyValid = true;
+                }
+            } catch (IllegalDimension illegalDimension) {
+                throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+            }
+        }
+        return empiricalCholeskyValid;
+    }
+
+    /**
+     * follow the Welford update empirical = shrink * empirical + delta delta^T / updates
+     * by scaling the Cholesky factor and a rank-one update, which takes O(dim^2) instead of O(dim^3)
+     */
+    private void updateEmpiricalCholesky(double shrink, int updates) {
+        if (shrink <= 0.0) {
+            empiricalCholeskyValid = false;
+            return;
+        }
+        final double f = Math.sqrt(shrink);
+        for (int i = 0; i < dim; i++) {
+            final double[] row = empiricalCholesky[i];
+            for (int j = 0; j <= i; j++) {
+                row[j] *= f;
+            }
+        }
+        final double g = 1.0 / Math.sqrt(updates);
+        for (int i = 0; i < dim; i++) {
+            delta[i] *= g;
+        }
+        empiricalCholeskyValid = CholeskyDecomposition.update(empiricalCholesky, delta);
+    }
+
+    /**
+     * draw from (1-beta) * (basis^T diag(basisVariance) basis + diag(residualVariance)) + beta * matrix
+     * in O(dim * rank) time
+     */
+    private void drawLowRank() {
+        final double empiricalScale = Math.sqrt(1.0 - beta);
+        for (int j = 0; j < rank; j++) {
+            componentEpsilon[j] = kernelDistribution.getRandomDelta(dim + j, componentEpsilon[j], scaleFactor);
+            final double z = empiricalScale * Math.sqrt(basisVariance[j]) * componentEpsilon[j];
+            final double[] v = basis[j];
+            for (int i = 0; i < dim; i++) {
+                transformedX[i] += z * v[i];
+            }
+        }
+        for (int i = 0; i < dim; i++) {
+            epsilon[i] = kernelDistribution.getRandomDelta(i, epsilon[i], scaleFactor);
+            transformedX[i] += Math.sqrt((1.0 - beta) * residualVariance[i] + beta * matrix[i][i]) * epsilon[i];
+        }
+    }
+
+    /**
+     * update the principal components of the empirical covariance matrix by subspace iteration,
+     * starting from the previous components, followed by a Rayleigh-Ritz step. The variance
+     * not explained by the components is kept on the diagonal.
+     */
+    private void refreshLowRank(int iterations) {
+        int sweeps = 1;
+        if (lastRefresh < 0) {
+            // start with the coordinates that have the largest variance
+            boolean[] used = new boolean[dim];
+            for (int j = 0; j < rank; j++) {
+                int best = -1;
+                for (int i = 0; i < dim; i++) {
+                    if (!used[i] && (best < 0 || empirical[i][i] > empirical[best][best])) {
+                        best = i;
+                    }
+                }
+                used[best] = true;
+                Arrays.fill(basis[j], 0.0);
+                basis[j][best] = 1.0;
+            }
+            sweeps = 5;
+        }
+        for (int sweep = 0; sweep < sweeps; sweep++) {
+            multiplyEmpirical(basis, basisWork);
+            double[][] tmp = basis;
+            basis = basisWork;
+            basisWork = tmp;
+            orthonormalise(basis);
+        }
+
+        // Rayleigh-Ritz: rotate the basis to the eigenvectors of the projected covariance matrix
+        multiplyEmpirical(basis, basisWork);
+        double[][] projected = new double[rank][rank];
+        for (int j = 0; j < rank; j++) {
+            for (int k = j; k < rank; k++) {
+                double sum = 0.0;
+                for (int i = 0; i < dim; i++) {
+                    sum += basis[j][i] * basisWork[k][i];
+                }
+                projected[j][k] = sum;
+                projected[k][j] = sum;
+            }
+        }
+        RobustEigenDecomposition eigen = new RobustEigenDecomposition(new DenseDoubleMatrix2D(projected));
+        DoubleMatrix2D V = eigen.getV();
+        DoubleMatrix1D eigenValues = eigen.getRealEigenvalues();
+        for (int j = 0; j < rank; j++) {
+            final double[] v = basisWork[j];
+            Arrays.fill(v, 0.0);
+            for (int k = 0; k < rank; k++) {
+                final double f = V.getQuick(k, j);
+                final double[] b = basis[k];
+                for (int i = 0; i < dim; i++) {
+                    v[i] += f * b[i];
+                }
+            }
+            basisVariance[j] = Math.max(eigenValues.getQuick(j), 0.0);
+        }
+        double[][] tmp = basis;
+        basis = basisWork;
+        basisWork = tmp;
+
+        for (int i = 0; i < dim; i++) {
+            double explained = 0.0;
+            for (int j = 0; j < rank; j++) {
+                explained += basisVariance[j] * basis[j][i] * basis[j][i];
+            }
+            residualVariance[i] = Math.max(empirical[i][i] - explained, 0.0);
+        }
+        lastRefresh = iterations;
+    }
+
+    /** target[j] = empirical * source[j] **/
+    private void multiplyEmpirical(double[][] source, double[][] target) {
+        for (int j = 0; j < source.length; j++) {
+            final double[] v = source[j];
+            final double[] w = target[j];
+            for (int i = 0; i < dim; i++) {
+                final double[] row = empirical[i];
+                double sum = 0.0;
+                for (int k = 0; k < dim; k++) {
+                    sum += row[k] * v[k];
+                }
+                w[i] = sum;
+            }
+        }
+    }
+
+    /** modified Gram-Schmidt, replacing vectors that vanish by coordinate axes **/
+    private void orthonormalise(double[][] vectors) {
+        int axis = 0;
+        for (int j = 0; j < vectors.length; j++) {
+            final double[] v = vectors[j];
+            for (int attempt = 0; attempt <= dim; attempt++) {
+                double before = norm(v);
+                for (int k = 0; k < j; k++) {
+                    double dot = 0.0;
+                    for (int i = 0; i < dim; i++) {
+                        dot += vectors[k][i] * v[i];
+                    }
+                    for (int i = 0; i < dim; i++) {
+                        v[i] -= dot * vectors[k][i];
+                    }
+                }
+                double after = norm(v);
+                if (after > 1e-10 * before) {
+                    for (int i = 0; i < dim; i++) {
+                        v[i] /= after;
+                    }
+                    break;
+                }
+                Arrays.fill(v, 0.0);
+                v[axis++ % dim] = 1.0;
+            }
+        }
+    }
+
+    private double norm(double[] v) {
+        double sum = 0.0;
+        for (double d : v) {
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /** the empirical covariance matrix was replaced, so derived decompositions need to be recalculated **/
+    private void covarianceChanged() {
+        empiricalCholeskyValid = false;
+        lastRefresh = -1;
+    }
+
     public String toString() {
         return this.getClass().getSimpleName() + "(" + "parameter.getID()" + ")";
     }
@@ -655,6 +919,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
                     empirical[j][i] = empirical[i][j];
                 }
             }
+            covarianceChanged();
             if (DEBUG) {
                 System.err.println();
                 for (int i = 0; i < dim; i++) {
@@ -837,6 +1102,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
     public final void setCovariance(double[][] covariance) {
     	for (int i = 0; i < covariance.length;i++)
     		System.arraycopy(covariance[i], 0, empirical[i], 0, covariance[i].length);
+    	covarianceChanged();
     }
     
     @Override
@@ -969,6 +1235,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends KernelOperator
                     }
                 }
     		}
+    		covarianceChanged();
 	        super.restoreFromFile(o);  	
     	} catch (JSONException e) {
     		// failed to restore from state file
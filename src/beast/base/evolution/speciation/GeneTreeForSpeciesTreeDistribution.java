@@ -4,7 +4,6 @@ package beast.base.evolution.speciation;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Random;
 
 import beast.base.core.Description;
@@ -22,6 +21,15 @@ import beast.base.inference.parameter.RealParameter;
 
 
 
+/**
+ * Coalescence times are collected per species tree branch in primitive arrays that are
+ * allocated once. The contribution of each species tree branch is cached together with
+ * the coalescence times, lineage count and population sizes it was calculated from, so
+ * only branches whose inputs changed are recalculated. When only population sizes
+ * changed, the gene tree is not traversed at all.
+ * Gene trees are independent given the species tree, so a CompoundDistribution with
+ * useThreads='true' evaluates them in parallel on the shared ForkJoinScheduler pool.
+ */
 @Description("Calculates probability of gene tree conditioned on a species tree (multi-species coalescent)")
 public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
     final public Input<TreeInterface> speciesTreeInput =
@@ -41,10 +49,33 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
     final public Input<TreeTopFinder> treeTopFinderInput =
             new Input<>("treetop", "calculates height of species tree, required only for linear *beast analysis");
 
-    // intervals for each of the species tree branches
-    private PriorityQueue<Double>[] intervalsInput;
+    // species tree branch and height of each coalescence in the gene tree, in traversal order
+    private int[] coalescenceSpecies;
+    private double[] coalescenceHeights;
+    private int coalescenceCount;
+    // for each species tree branch, times[offset] is the height of the bottom of the branch,
+    // followed by k coalescence times in increasing order, and the height of the top of the branch
+    private double[] times;
+    private int[] timesOffset;
+    private int[] intervalCount;
     // count nr of lineages at the bottom of species tree branches
     private int[] nrOfLineages;
+
+    // times, offsets, interval and lineage counts the branch contributions were last calculated for
+    private double[] cachedTimes;
+    private int[] cachedTimesOffset;
+    private int[] cachedIntervalCount;
+    private int[] cachedNrOfLineages;
+    // population sizes (before ploidy) the branch contributions were last calculated for
+    private double[] cachedPopSizeBottom;
+    private double[] cachedPopSizeTop;
+    // contribution of each species tree branch to logP
+    private double[] branchLogP;
+    private boolean[] isBranchCached;
+    // whether times and lineage counts are up to date with the gene and species trees
+    private boolean intervalsValid = false;
+    // whether times and lineage counts were collected since the last store
+    private boolean intervalsCollected = false;
     // maps gene tree leaf nodes to species tree leaf nodes. Indexed by node number.
     protected int[] nrOfLineageToSpeciesMap;
 
@@ -60,8 +91,7 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
         treeInput.setRule(Validate.REQUIRED);
     }
 
-    @SuppressWarnings("unchecked")
-	@Override
+    @Override
     public void initAndValidate() {
     	ploidy = ploidyInput.get();
 //    	switch (m_ploidy.get()) {
@@ -83,11 +113,22 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
         }
 
 
-        // reserve memory for priority queues
-        intervalsInput = new PriorityQueue[speciesCount];
-        for (int i = 0; i < speciesCount; i++) {
-            intervalsInput[i] = new PriorityQueue<>();
-        }
+        // reserve memory for coalescence times
+        final int coalescences = gtNodes.length - gtLineages;
+        coalescenceSpecies = new int[coalescences];
+        coalescenceHeights = new double[coalescences];
+        times = new double[coalescences + 2 * speciesCount];
+        timesOffset = new int[speciesCount];
+        intervalCount = new int[speciesCount];
+        cachedTimes = new double[times.length];
+        cachedTimesOffset = new int[speciesCount];
+        cachedIntervalCount = new int[speciesCount];
+        cachedNrOfLineages = new int[speciesCount];
+        cachedPopSizeBottom = new double[speciesCount];
+        cachedPopSizeTop = new double[speciesCount];
+        branchLogP = new double[speciesCount];
+        isBranchCached = new boolean[speciesCount];
+        intervalsValid = false;
 
         // sanity check lineage nodes are all at height=0
         for (int i = 0; i < gtLineages; i++) {
@@ -154,176 +195,244 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
 
     @Override
     public double calculateLogP() {
+        final TreeInterface stree = speciesTreeInput.get();
+
+        // outside an MCMC step there is no information on what changed
+        final boolean intervalsChanged = !intervalsValid || !isDirtyCalculation();
+        if (intervalsChanged) {
+            intervalsCollected = true;
+            intervalsValid = collectIntervals(stree);
+            if (!intervalsValid) {
+                // the gene tree does not fit the species tree
+                logP = Double.NEGATIVE_INFINITY;
+                return logP;
+            }
+        }
+
         logP = 0;
-        for (final PriorityQueue<Double> m_interval : intervalsInput) {
-            m_interval.clear();
+        traverseSpeciesTree(stree.getRoot(), intervalsChanged);
+        if (intervalsChanged) {
+            // all branch contributions are now up to date with the current intervals
+            final int length = timesOffset[timesOffset.length - 1] + intervalCount[intervalCount.length - 1] + 2;
+            System.arraycopy(times, 0, cachedTimes, 0, length);
+            System.arraycopy(timesOffset, 0, cachedTimesOffset, 0, timesOffset.length);
+            System.arraycopy(intervalCount, 0, cachedIntervalCount, 0, intervalCount.length);
+            System.arraycopy(nrOfLineages, 0, cachedNrOfLineages, 0, nrOfLineages.length);
         }
+        return logP;
+    }
 
+    /**
+     * assign coalescences in the gene tree to species tree branches, and fill times
+     * with the sorted coalescence times per branch.
+     *
+     * @return false if the gene tree does not fit in the species tree
+     */
+    private boolean collectIntervals(final TreeInterface stree) {
         Arrays.fill(nrOfLineages, 0);
-
-        final TreeInterface stree = speciesTreeInput.get();
+        Arrays.fill(intervalCount, 0);
+        coalescenceCount = 0;
         final Node[] speciesNodes = stree.getNodesAsArray();
+        if (traverseLineageTree(speciesNodes, treeInput.get().getRoot()) < 0) {
+            return false;
+        }
 
-        traverseLineageTree(speciesNodes, treeInput.get().getRoot());
-//		System.err.println(getID());
-//		for (int i = 0; i < m_intervals.length; i++) {
-//			System.err.println(m_intervals[i]);
-//		}
-        // if the gene tree does not fit the species tree, logP = -infinity by now
-        if (logP == 0) {
-            traverseSpeciesTree(stree.getRoot());
+        // counting sort of coalescences by species tree branch
+        int offset = 0;
+        for (int i = 0; i < speciesNodes.length; i++) {
+            timesOffset[i] = offset;
+            offset += intervalCount[i] + 2;
+        }
+        Arrays.fill(intervalCount, 0);
+        for (int i = 0; i < coalescenceCount; i++) {
+            final int species = coalescenceSpecies[i];
+            intervalCount[species]++;
+            times[timesOffset[species] + intervalCount[species]] = coalescenceHeights[i];
+        }
+        for (final Node node : speciesNodes) {
+            fillBranchTimes(node);
+        }
+        return true;
+    }
+
+    /** sort the coalescence times of a species tree branch and add the times of its ends **/
+    private void fillBranchTimes(final Node node) {
+        final int nodeIndex = node.getNr();
+        final int k = intervalCount[nodeIndex];
+        final int offset = timesOffset[nodeIndex];
+        times[offset] = node.getHeight();
+        Arrays.sort(times, offset + 1, offset + k + 1);
+        if (!node.isRoot()) {
+            times[offset + k + 1] = node.getParent().getHeight();
+        } else {
+            if (isConstantPopFunction == TreePopSizeFunction.linear) {
+                times[offset + k + 1] = treeTopFinderInput.get().getHighestTreeHeight();
+            } else {
+                times[offset + k + 1] = Math.max(node.getHeight(), treeInput.get().getRoot().getHeight());
+            }
+        }
+        // sanity check
+        for (int i = offset; i <= offset + k; i++) {
+            if (times[i] > times[i + 1]) {
+            	Log.warning.println("invalid times");
+            	break;
+            }
         }
-//		System.err.println("logp=" + logP);
-        return logP;
     }
 
     /**
-     * calculate contribution to logP for each of the branches of the species tree
+     * add contribution to logP for each of the branches of the species tree,
+     * recalculating only branches for which times, lineage counts or population sizes changed
      *
      * @param node*
      */
-    private void traverseSpeciesTree(final Node node) {
+    private void traverseSpeciesTree(final Node node, final boolean intervalsChanged) {
         if (!node.isLeaf()) {
-            traverseSpeciesTree(node.getLeft());
-            traverseSpeciesTree(node.getRight());
+            traverseSpeciesTree(node.getLeft(), intervalsChanged);
+            traverseSpeciesTree(node.getRight(), intervalsChanged);
         }
         // calculate contribution of a branch in the species tree to the log probability
         final int nodeIndex = node.getNr();
 
-        // k, as defined in the paper
-        //System.err.println(Arrays.toString(m_nLineages));
-        final int k = intervalsInput[nodeIndex].size();
-        final double[] times = new double[k + 2];
-        times[0] = node.getHeight();
-        for (int i = 1; i <= k; i++) {
-            times[i] = intervalsInput[nodeIndex].poll();
-        }
-        if (!node.isRoot()) {
-            times[k + 1] = node.getParent().getHeight();
+        // population sizes at bottom and top of the branch, before multiplying by ploidy
+        final double popSizeBottom;
+        double popSizeTop = 0;
+        if (isConstantPopFunction == TreePopSizeFunction.constant) {
+            popSizeBottom = popSizesBottom.getValue(nodeIndex);
+        } else if (node.isRoot() && isConstantPopFunction == TreePopSizeFunction.linear_with_constant_root) {
+            popSizeBottom = getTopPopSize(node.getLeft().getNr()) + getTopPopSize(node.getRight().getNr());
         } else {
-            if (isConstantPopFunction == TreePopSizeFunction.linear) {
-                times[k + 1] = treeTopFinderInput.get().getHighestTreeHeight();
+            if (node.isLeaf()) {
+                popSizeBottom = popSizesBottom.getValue(nodeIndex);
             } else {
-                times[k + 1] = Math.max(node.getHeight(), treeInput.get().getRoot().getHeight());
+                // use sum of left and right child branches for internal nodes
+                popSizeBottom = getTopPopSize(node.getLeft().getNr()) + getTopPopSize(node.getRight().getNr());
             }
+            popSizeTop = getTopPopSize(nodeIndex);
         }
-        // sanity check
-        for (int i = 0; i <= k; i++) {
-            if (times[i] > times[i + 1]) {
-            	Log.warning.println("invalid times");
-                calculateLogP();
+
+        if (!isBranchCached[nodeIndex] || popSizeBottom != cachedPopSizeBottom[nodeIndex] ||
+                popSizeTop != cachedPopSizeTop[nodeIndex] || (intervalsChanged && !sameIntervals(nodeIndex))) {
+            branchLogP[nodeIndex] = calcBranchContribution(node, popSizeBottom, popSizeTop);
+            cachedPopSizeBottom[nodeIndex] = popSizeBottom;
+            cachedPopSizeTop[nodeIndex] = popSizeTop;
+            isBranchCached[nodeIndex] = true;
+        }
+        logP += branchLogP[nodeIndex];
+    }
+
+    /** @return whether times and lineage count of a branch are the same as for its cached contribution **/
+    private boolean sameIntervals(final int nodeIndex) {
+        final int k = intervalCount[nodeIndex];
+        if (k != cachedIntervalCount[nodeIndex] || nrOfLineages[nodeIndex] != cachedNrOfLineages[nodeIndex]) {
+            return false;
+        }
+        final int offset = timesOffset[nodeIndex];
+        final int cachedOffset = cachedTimesOffset[nodeIndex];
+        for (int i = 0; i < k + 2; i++) {
+            if (times[offset + i] != cachedTimes[cachedOffset + i]) {
+                return false;
             }
         }
+        return true;
+    }
 
+    private double calcBranchContribution(final Node node, final double popSizeBottom, final double popSizeTop) {
+        final int nodeIndex = node.getNr();
         final int lineagesBottom = nrOfLineages[nodeIndex];
-
+        final int k = intervalCount[nodeIndex];
+        final int offset = timesOffset[nodeIndex];
         switch (isConstantPopFunction) {
             case constant:
-                calcConstantPopSizeContribution(lineagesBottom, popSizesBottom.getValue(nodeIndex), times, k);
-                break;
+                return calcConstantPopSizeContribution(lineagesBottom, popSizeBottom, offset, k);
             case linear:
-                logP += calcLinearPopSizeContributionJH(lineagesBottom, nodeIndex, times, k, node);
-                break;
+                return calcLinearPopSizeContributionJH(lineagesBottom, popSizeBottom, popSizeTop, offset, k);
             case linear_with_constant_root:
+            default:
                 if (node.isRoot()) {
-                    final double popSize = getTopPopSize(node.getLeft().getNr()) + getTopPopSize(node.getRight().getNr());
-                    calcConstantPopSizeContribution(lineagesBottom, popSize, times, k);
+                    return calcConstantPopSizeContribution(lineagesBottom, popSizeBottom, offset, k);
                 } else {
-                    logP += calcLinearPopSizeContribution(lineagesBottom, nodeIndex, times, k, node);
+                    return calcLinearPopSizeContribution(lineagesBottom, popSizeBottom, popSizeTop, offset, k);
                 }
-                break;
         }
     }
 
     /* the contribution of a branch in the species tree to
       * the log probability, for constant population function.
       */
-    private void calcConstantPopSizeContribution(final int lineagesBottom, final double popSize2,
-                                                 final double[] times, final int k) {
+    private double calcConstantPopSizeContribution(final int lineagesBottom, final double popSize2,
+                                                   final int offset, final int k) {
         final double popSize = popSize2 * ploidy;
-        logP += -k * Math.log(popSize);
-//		System.err.print(logP);
-        for (int i = 0; i <= k; i++) {
-            logP += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (times[i + 1] - times[i]) / popSize;
+        double lp = -k * Math.log(popSize);
+        for (int i = offset; i <= offset + k; i++) {
+            final int i1 = lineagesBottom - (i - offset);
+            lp += -(i1 * (i1 - 1.0) / 2.0) * (times[i + 1] - times[i]) / popSize;
         }
-//		System.err.println(" " + logP + " " + Arrays.toString(times) + " " + nodeIndex + " " + k);
+        return lp;
     }
 
     /* the contribution of a branch in the species tree to
       * the log probability, for linear population function.
       */
-    private double calcLinearPopSizeContribution(final int lineagesBottom, final int nodeIndex, final double[] times,
-                                                 final int k, final Node node) {
+    private double calcLinearPopSizeContribution(final int lineagesBottom, final double popSizeBottom2,
+                                                 final double popSizeTop2, final int offset, final int k) {
         double lp = 0.0;
-        final double popSizeBottom;
-        if (node.isLeaf()) {
-            popSizeBottom = popSizesBottom.getValue(nodeIndex) * ploidy;
-        } else {
-            // use sum of left and right child branches for internal nodes
-            popSizeBottom = (getTopPopSize(node.getLeft().getNr()) + getTopPopSize(node.getRight().getNr())) * ploidy;
-        }
-        final double popSizeTop = getTopPopSize(nodeIndex) * ploidy;
-        final double a = (popSizeTop - popSizeBottom) / (times[k + 1] - times[0]);
+        final double popSizeBottom = popSizeBottom2 * ploidy;
+        final double popSizeTop = popSizeTop2 * ploidy;
+        final double time0 = times[offset];
+        final double a = (popSizeTop - popSizeBottom) / (times[offset + k + 1] - time0);
         final double b = popSizeBottom;
-        for (int i = 0; i < k; i++) {
-            //double popSize = popSizeBottom + (popSizeTop-popSizeBottom) * times[i+1]/(times[k]-times[0]);
-            final double popSize = a * (times[i + 1] - times[0]) + b;
+        for (int i = offset; i < offset + k; i++) {
+            final double popSize = a * (times[i + 1] - time0) + b;
             lp += -Math.log(popSize);
         }
-        for (int i = 0; i <= k; i++) {
+        for (int i = offset; i <= offset + k; i++) {
+            final int i1 = lineagesBottom - (i - offset);
             if (Math.abs(popSizeTop - popSizeBottom) < 1e-10) {
                 // slope = 0, so population function is constant
-                final double popSize = a * (times[i + 1] - times[0]) + b;
-                lp += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (times[i + 1] - times[i]) / popSize;
+                final double popSize = a * (times[i + 1] - time0) + b;
+                lp += -(i1 * (i1 - 1.0) / 2.0) * (times[i + 1] - times[i]) / popSize;
             } else {
-                final double f = (a * (times[i + 1] - times[0]) + b) / (a * (times[i] - times[0]) + b);
-                lp += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * Math.log(f) / a;
+                final double f = (a * (times[i + 1] - time0) + b) / (a * (times[i] - time0) + b);
+                lp += -(i1 * (i1 - 1.0) / 2.0) * Math.log(f) / a;
             }
         }
         return lp;
     }
 
-    private double calcLinearPopSizeContributionJH(final int lineagesBottom, final int nodeIndex, final double[] times,
-                                                   final int k, final Node node) {
+    private double calcLinearPopSizeContributionJH(final int lineagesBottom, final double popSizeBottom2,
+                                                   final double popSizeTop2, final int offset, final int k) {
         double lp = 0.0;
-        double popSizeBottom;
-        if (node.isLeaf()) {
-            popSizeBottom = popSizesBottom.getValue(nodeIndex);
-        } else {
-            // use sum of left and right child branches for internal nodes
-            popSizeBottom = (getTopPopSize(node.getLeft().getNr()) + getTopPopSize(node.getRight().getNr()));
-        }
-        popSizeBottom *= ploidy;
-
-        final double popSizeTop = getTopPopSize(nodeIndex) * ploidy;
+        final double popSizeBottom = popSizeBottom2 * ploidy;
+        final double popSizeTop = popSizeTop2 * ploidy;
         final double d5 = popSizeTop - popSizeBottom;
-        final double time0 = times[0];
-        final double a = d5 / (times[k + 1] - time0);
+        final double time0 = times[offset];
+        final double a = d5 / (times[offset + k + 1] - time0);
         final double b = popSizeBottom;
 
         if (Math.abs(d5) < 1e-10) {
             // use approximation for small values to bypass numerical instability
-            for (int i = 0; i <= k; i++) {
+            for (int i = offset; i <= offset + k; i++) {
                 final double timeip1 = times[i + 1];
                 final double popSize = a * (timeip1 - time0) + b;
-                if( i < k ) {
+                if( i < offset + k ) {
                   lp += -Math.log(popSize);
                 }
                 // slope = 0, so population function is constant
 
-                final int i1 = lineagesBottom - i;
+                final int i1 = lineagesBottom - (i - offset);
                 lp -= (i1 * (i1 - 1.0) / 2.0) * (timeip1 - times[i]) / popSize;
             }
         } else {
             final double vv = b - a * time0;
-            for (int i = 0; i <= k; i++) {
+            for (int i = offset; i <= offset + k; i++) {
                 final double popSize = a * times[i + 1] + vv;
-                if( i < k ) {
+                if( i < offset + k ) {
                   lp += -Math.log(popSize);
                 }
                 final double f = popSize / (a * times[i] + vv);
 
-                final int i1 = lineagesBottom - i;
+                final int i1 = lineagesBottom - (i - offset);
                 lp += -(i1 * (i1 - 1.0) / 2.0) * Math.log(f) / a;
             }
         }
@@ -336,7 +445,8 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
      *
      * @param speciesNodes
      * @param node
-     * @return
+     * @return species tree branch containing the top of the lineage, or -1 if the
+     * gene tree does not fit in the species tree
      */
     private int traverseLineageTree(final Node[] speciesNodes, final Node node) {
         if (node.isLeaf()) {
@@ -345,7 +455,13 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
             return species;
         } else {
             int speciesLeft = traverseLineageTree(speciesNodes, node.getLeft());
+            if (speciesLeft < 0) {
+                return -1;
+            }
             int speciesRight = traverseLineageTree(speciesNodes, node.getRight());
+            if (speciesRight < 0) {
+                return -1;
+            }
             final double height = node.getHeight();
 
             while (!speciesNodes[speciesLeft].isRoot() && height > speciesNodes[speciesLeft].getParent().getHeight()) {
@@ -360,9 +476,12 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
             if (speciesLeft != speciesRight) {
                 // if we got here, it means the gene tree does
                 // not fit in the species tree
-                logP = Double.NEGATIVE_INFINITY;
+                return -1;
             }
-            intervalsInput[speciesRight].add(height);
+            coalescenceSpecies[coalescenceCount] = speciesRight;
+            coalescenceHeights[coalescenceCount] = height;
+            coalescenceCount++;
+            intervalCount[speciesRight]++;
             return speciesRight;
         }
     }
@@ -382,8 +501,36 @@ public class GeneTreeForSpeciesTreeDistribution extends TreeDistribution {
 
     @Override
     public boolean requiresRecalculation() {
-        // TODO: check whether this is worth optimising?
-        return true;
+        if (treeInput.get().somethingIsDirty() || speciesTreeInput.get().somethingIsDirty() ||
+                (treeTopFinderInput.get() != null && treeTopFinderInput.get().isDirtyCalculation())) {
+            // coalescence times need to be collected again
+            intervalsValid = false;
+            return true;
+        }
+        return (popSizesBottom != null && popSizesBottom.somethingIsDirty()) ||
+                (popSizesTop != null && popSizesTop.somethingIsDirty());
+    }
+
+    @Override
+    public void store() {
+        intervalsCollected = false;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (intervalsCollected) {
+            // the intervals belong to the rejected trees
+            intervalsValid = false;
+        }
+        intervalsCollected = false;
+        super.restore();
+    }
+
+    @Override
+    protected void accept() {
+        intervalsCollected = false;
+        super.accept();
     }
 
     @Override
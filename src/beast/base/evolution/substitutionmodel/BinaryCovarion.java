@@ -143,6 +143,7 @@ public class BinaryCovarion extends GeneralSubstitutionModel {
         storedUnnormalizedQ = new double[4][4];
 
         updateMatrix = true;
+        startNewVersion();
         try {
 			eigenSystem = createEigenSystem();
 		} catch (SecurityException | ClassNotFoundException | InstantiationException | IllegalAccessException | IllegalArgumentException
@@ -344,5 +345,8 @@ public class BinaryCovarion extends GeneralSubstitutionModel {
         }
     }
 
-
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == BinaryCovarion.class;
+    }
 }
@@ -270,4 +270,9 @@ public class Blosum62 extends EmpiricalSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Aminoacid;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == Blosum62.class;
+    }
 } // class WAG
@@ -269,4 +269,9 @@ public class CPREV extends EmpiricalSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Aminoacid;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == CPREV.class;
+    }
 } // class WAG
@@ -50,6 +50,7 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel {
 	@Override
 	public void initAndValidate() {
         updateMatrix = true;
+        startNewVersion();
         frequencies = frequenciesInput.get();
         nrOfStates = frequencies.getFreqs().length;
         
@@ -87,12 +88,14 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel {
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
         double distance = (startTime - endTime) * rate;
 
-        synchronized (this) {
-            if (updateMatrix) {
-                setupRelativeRates();
-                setupRateMatrix();
-                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
-                updateMatrix = false;
+        if (updateMatrix) {
+            synchronized (this) {
+                if (updateMatrix) {
+                    setupRelativeRates();
+                    setupRateMatrix();
+                    eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+                    updateMatrix = false;
+                }
             }
         }
         int stateCount = getStateCount();
@@ -103,12 +106,11 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel {
         }
 
         double[] Evec = eigenDecomposition.getEigenVectors();
+        // imaginary parts of Eigen values are stored after the real parts
         double[] Eval = eigenDecomposition.getEigenValues();
-        double[] EvalImag = new double[stateCount];
-        System.arraycopy(Eval, stateCount, EvalImag, 0, stateCount);
         double[] Ievc = eigenDecomposition.getInverseEigenVectors();
 
-        double[][] iexp = new double[stateCount][stateCount];
+        double[] iexp = getScratchMatrix();
         
         double temp;
 
@@ -127,26 +129,26 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel {
 
         for (int i = 0; i < stateCount; i++) {
 
-            if (EvalImag[i] == 0) {
+            if (Eval[stateCount + i] == 0) {
                 // 1x1 block
                 temp = Math.exp(distance * Eval[i]);
                 for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = Ievc[i * stateCount + j] * temp;
+                    iexp[i * stateCount + j] = Ievc[i * stateCount + j] * temp;
                 }
             } else {
                 // 2x2 conjugate block
                 // If A is 2x2 with complex conjugate pair eigenvalues a +/- bi, then
                 // exp(At) = exp(at)*( cos(bt)I + \frac{sin(bt)}{b}(A - aI)).
                 int i2 = i + 1;
-                double b = EvalImag[i];
+                double b = Eval[stateCount + i];
                 double expat = Math.exp(distance * Eval[i]);
                 double expatcosbt = expat * Math.cos(distance * b);
                 double expatsinbt = expat * Math.sin(distance * b);
 
                 for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = expatcosbt * Ievc[i * stateCount + j] +
+                    iexp[i * stateCount + j] = expatcosbt * Ievc[i * stateCount + j] +
                             expatsinbt * Ievc[i2 * stateCount + j];
-                    iexp[i2][j] = expatcosbt * Ievc[i2 * stateCount + j] -
+                    iexp[i2 * stateCount + j] = expatcosbt * Ievc[i2 * stateCount + j] -
                             expatsinbt * Ievc[i * stateCount + j];
                 }
                 i++; // processed two conjugate rows
@@ -158,7 +160,7 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel {
             for (int j = 0; j < stateCount; j++) {
                 temp = 0.0;
                 for (int k = 0; k < stateCount; k++) {
-                    temp += Evec[i * stateCount + k] * iexp[k][j];
+                    temp += Evec[i * stateCount + k] * iexp[k * stateCount + j];
                 }
                 matrix[u] = Math.abs(temp);
                 u++;
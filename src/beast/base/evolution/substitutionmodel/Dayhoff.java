@@ -272,4 +272,9 @@ public class Dayhoff extends EmpiricalSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Aminoacid;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == Dayhoff.class;
+    }
 } // class WAG
@@ -29,6 +29,7 @@ public abstract class EmpiricalSubstitutionModel extends GeneralSubstitutionMode
         }
 
         updateMatrix = true;
+        startNewVersion();
         nrOfStates = frequencies.getFreqs().length;
         try {
 			eigenSystem = createEigenSystem();
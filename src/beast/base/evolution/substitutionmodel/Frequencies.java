@@ -52,9 +52,10 @@ public class Frequencies extends CalculationNode {
     protected double[] freqs;
 
     /**
-     * flag to indicate m_fFreqs is up to date *
+     * flag to indicate m_fFreqs is up to date.
+     * Volatile, so getFreqs() only needs to lock when an update is required.
      */
-    protected boolean needsUpdate;
+    protected volatile boolean needsUpdate;
 
 
     @Override
@@ -74,11 +75,13 @@ public class Frequencies extends CalculationNode {
      * return up to date frequencies *
      */
     public double[] getFreqs() {
-    	synchronized (this) {
-            if (needsUpdate) {
-                update();
-            }			
-		}
+        if (needsUpdate) {
+            synchronized (this) {
+                if (needsUpdate) {
+                    update();
+                }
+            }
+        }
 
         return freqs.clone();
     }
@@ -62,6 +62,7 @@ public class GeneralSubstitutionModel extends SubstitutionModel.Base {
     public void initAndValidate() {
         super.initAndValidate();
         updateMatrix = true;
+        startNewVersion();
         nrOfStates = frequencies.getFreqs().length;
         if (ratesInput.get().getDimension() != nrOfStates * (nrOfStates - 1)) {
             throw new IllegalArgumentException("Dimension of input 'rates' is " + ratesInput.get().getDimension() + " but a " +
@@ -111,9 +112,34 @@ public class GeneralSubstitutionModel extends SubstitutionModel.Base {
     protected EigenDecomposition eigenDecomposition;
     private EigenDecomposition storedEigenDecomposition;
 
-    protected boolean updateMatrix = true;
+    /**
+     * flag to indicate the eigen decomposition needs updating.
+     * Volatile, so that threads sharing this model only need to lock when
+     * the matrix needs updating: the flag is reset after eigenDecomposition
+     * is assigned, which publishes the new decomposition to other threads.
+     */
+    protected volatile boolean updateMatrix = true;
     private boolean storedUpdateMatrix = true;
 
+    /**
+     * per thread scratch array of nrOfStates x nrOfStates, so that threads sharing
+     * this model do not need to allocate memory for every transition probability matrix
+     */
+    private final ThreadLocal<double[]> scratchMatrix = ThreadLocal.withInitial(() -> new double[nrOfStates * nrOfStates]);
+
+    /**
+     * @return nrOfStates x nrOfStates array for temporary use by the calling thread
+     */
+    protected double[] getScratchMatrix() {
+        double[] scratch = scratchMatrix.get();
+        if (scratch.length != nrOfStates * nrOfStates) {
+            // state count changed since this thread last used the model
+            scratch = new double[nrOfStates * nrOfStates];
+            scratchMatrix.set(scratch);
+        }
+        return scratch;
+    }
+
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix, boolean normalized) {
         double distance = (startTime - endTime) * rate;
 
@@ -122,24 +148,23 @@ public class GeneralSubstitutionModel extends SubstitutionModel.Base {
 
         // this must be synchronized to avoid being called simultaneously by
         // two different likelihood threads - AJD
-        synchronized (this) {
-            if (updateMatrix) {
-                setupRelativeRates();
-                if (normalized) {
-                    setupRateMatrix();
-                } else {
-                    setupRateMatrixUnnormalized();
+        // only lock when an update is required, see updateMatrix
+        if (updateMatrix) {
+            synchronized (this) {
+                if (updateMatrix) {
+                    setupRelativeRates();
+                    if (normalized) {
+                        setupRateMatrix();
+                    } else {
+                        setupRateMatrixUnnormalized();
+                    }
+                    eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+                    updateMatrix = false;
                 }
-                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
-                updateMatrix = false;
             }
         }
 
-        // is the following really necessary?
-        // implemented a pool of iexp matrices to support multiple threads
-        // without creating a new matrix each call. - AJD
-        // a quick timing experiment shows no difference - RRB
-        double[] iexp = new double[nrOfStates * nrOfStates];
+        double[] iexp = getScratchMatrix();
         // Eigen vectors
         double[] Evec = eigenDecomposition.getEigenVectors();
         // inverse Eigen vectors
@@ -281,12 +306,19 @@ public class GeneralSubstitutionModel extends SubstitutionModel.Base {
     protected boolean requiresRecalculation() {
         // we only get here if something is dirty
         updateMatrix = true;
+        startNewVersion();
         return true;
     }
 
     
     public void doUpdate() {
     	updateMatrix = true;
+    	startNewVersion();
+    }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == GeneralSubstitutionModel.class;
     }
 
     /**
@@ -296,28 +328,30 @@ public class GeneralSubstitutionModel extends SubstitutionModel.Base {
      */
     @Override
     public EigenDecomposition getEigenDecomposition(Node node) {
-        synchronized (this) {
-            if (updateMatrix) {
-                setupRelativeRates();
-                setupRateMatrix();
-                try {
-                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
-                }catch(Exception e) {
-                	Log.warning(this.getID());
-                	Log.warning(this.toString());
-                	System.out.print("freqs:\t");
-                	for (int i = 0; i < 4; i++) {
-                		System.out.print(this.getFrequencies()[i] + "\t");
-                	}
-                	System.out.println();
-                	for (int i = 0; i < 4; i++) {
-                		for (int j = 0; j < 4; j++) {
-                			System.out.println(rateMatrix[i][j] + "\t"); 
-                		}
-                		System.out.println();
-                	}
+        if (updateMatrix) {
+            synchronized (this) {
+                if (updateMatrix) {
+                    setupRelativeRates();
+                    setupRateMatrix();
+                    try {
+                    eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+                    }catch(Exception e) {
+                    	Log.warning(this.getID());
+                    	Log.warning(this.toString());
+                    	System.out.print("freqs:\t");
+                    	for (int i = 0; i < 4; i++) {
+                    		System.out.print(this.getFrequencies()[i] + "\t");
+                    	}
+                    	System.out.println();
+                    	for (int i = 0; i < 4; i++) {
+                    		for (int j = 0; j < 4; j++) {
+                    			System.out.println(rateMatrix[i][j] + "\t"); 
+                    		}
+                    		System.out.println();
+                    	}
+                    }
+                    updateMatrix = false;
                 }
-                updateMatrix = false;
             }
         }
         return eigenDecomposition;
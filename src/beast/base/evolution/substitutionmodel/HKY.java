@@ -58,9 +58,12 @@ public class HKY extends SubstitutionModel.NucleotideBase {
      */
     private boolean updateEigen = true;
     /**
-     * flag to indicate matrix is up to date *
+     * flag to indicate matrix is up to date.
+     * Volatile, so that threads sharing this model only need to lock when
+     * the matrix needs updating: setupMatrix() resets the flag after the
+     * precalculated values are set, which publishes them to other threads.
      */
-    protected boolean updateMatrix = true;
+    protected volatile boolean updateMatrix = true;
 
     @Override
     public void initAndValidate() {
@@ -77,10 +80,12 @@ public class HKY extends SubstitutionModel.NucleotideBase {
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
         double distance = (startTime - endTime) * rate;
 
-        synchronized(this) {
-        	if (updateMatrix) {
-        		setupMatrix();
-        	}
+        if (updateMatrix) {
+            synchronized (this) {
+                if (updateMatrix) {
+                    setupMatrix();
+                }
+            }
         }
 
         final double xx = beta * distance;
@@ -248,6 +253,7 @@ public class HKY extends SubstitutionModel.NucleotideBase {
         // we only get here if something is dirty
         updateMatrix = true;
         updateEigen = true;
+        startNewVersion();
         return true;
     }
 
@@ -261,6 +267,7 @@ public class HKY extends SubstitutionModel.NucleotideBase {
 
     @Override
     protected void restore() {
+        // the version is reset to the stored one by super.restore()
         updateMatrix = true;
         updateEigen = true;
         if (storedEigenDecomposition != null) {
@@ -269,6 +276,11 @@ public class HKY extends SubstitutionModel.NucleotideBase {
         super.restore();
     }
 
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == HKY.class;
+    }
+
     @Override
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Nucleotide;
@@ -271,4 +271,9 @@ public class JTT extends EmpiricalSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Aminoacid;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == JTT.class;
+    }
 } // class WAG
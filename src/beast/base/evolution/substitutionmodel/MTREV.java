@@ -277,4 +277,9 @@ public class MTREV extends EmpiricalSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Aminoacid;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == MTREV.class;
+    }
 } // class WAG
@@ -62,6 +62,7 @@ public class SYM extends GeneralSubstitutionModel {
         //frequencies = new double[]{0.25, 0.25, 0.25, 0.25};
         frequencies = frequenciesInput.get();
         updateMatrix = true;
+        startNewVersion();
         nrOfStates = frequencies.getFreqs().length;
 
         try {
@@ -112,4 +113,9 @@ public class SYM extends GeneralSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Nucleotide;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == SYM.class;
+    }
 }
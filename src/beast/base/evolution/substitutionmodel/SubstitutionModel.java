@@ -25,8 +25,11 @@
 package beast.base.evolution.substitutionmodel;
 
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.tree.Node;
@@ -136,6 +139,80 @@ public interface SubstitutionModel {
             return null;
         }
 
+        /**
+         * Version of the transition probabilities, used as key by the TransitionMatrixCache.
+         * A new version is started whenever the model is stored, since its inputs may be changed
+         * by the proposal that follows, and the previous version is reinstated on restore.
+         */
+        private long version = versionCounter.incrementAndGet();
+        private long storedVersion = version;
+        private static final AtomicLong versionCounter = new AtomicLong();
+
+        private TransitionMatrixCache transitionMatrixCache;
+
+        /**
+         * @return true if getTransitionProbabilities only depends on startTime - endTime and rate,
+         * (and not on the node), so that transition probability matrices can be shared between
+         * branches and tree likelihoods through a TransitionMatrixCache.
+         * <p/>
+         * The cache relies on the model starting a new version (see startNewVersion()) whenever
+         * its matrices may change between calls to store(), as requiresRecalculation() of
+         * GeneralSubstitutionModel, HKY and TN93 does. A derived class can break this without
+         * noticing, for instance by overriding requiresRecalculation() or setting updateMatrix
+         * directly, so models opt in class by class: an implementation should return true only
+         * when getClass() is the class it was written for, and derived classes that keep to the
+         * rule opt in by overriding this method in turn.
+         */
+        public boolean canCacheTransitionProbabilities() {
+            return false;
+        }
+
+        /**
+         * @return cache of transition probability matrices for this substitution model,
+         * or null if canCacheTransitionProbabilities() returns false
+         */
+        public synchronized TransitionMatrixCache getTransitionMatrixCache() {
+            if (transitionMatrixCache == null && canCacheTransitionProbabilities()) {
+                transitionMatrixCache = new TransitionMatrixCache(this);
+            }
+            return transitionMatrixCache;
+        }
+
+        /**
+         * @return version of the transition probabilities, see TransitionMatrixCache
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Start a new version of the transition probabilities. Should be called
+         * when the model changes outside the store/restore cycle.
+         */
+        protected void startNewVersion() {
+            version = versionCounter.incrementAndGet();
+        }
+
+        @Override
+        protected void store() {
+            storedVersion = version;
+            startNewVersion();
+            super.store();
+        }
+
+        @Override
+        protected void restore() {
+            version = storedVersion;
+            super.restore();
+        }
+
+        @Override
+        public void reportStatistics() {
+            if (transitionMatrixCache != null && transitionMatrixCache.getHitCount() + transitionMatrixCache.getMissCount() > 0) {
+                Log.info.println(transitionMatrixCache.toString());
+            }
+        }
+
     } // class Base
 
     /**
@@ -45,6 +45,7 @@ public class TIM extends GeneralSubstitutionModel {
 
         frequencies = frequenciesInput.get();
         updateMatrix = true;
+        startNewVersion();
         nrOfStates = frequencies.getFreqs().length;
         if (nrOfStates != 4) {
             throw new IllegalArgumentException("Frequencies has wrong size. Expected 4, but got " + nrOfStates);
@@ -96,4 +97,9 @@ public class TIM extends GeneralSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Nucleotide;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == TIM.class;
+    }
 }
\ No newline at end of file
@@ -64,7 +64,11 @@ public class TN93 extends SubstitutionModel.NucleotideBase {
     final public Input<RealParameter> kappa1Variable = new Input<>("kappa1", "rate of A<->G transitions", Validate.REQUIRED);
     final public Input<RealParameter> kappa2Variable = new Input<>("kappa2", "rate of C<->T transitions", Validate.REQUIRED);
 
-    private boolean updateIntermediates = true;
+    /**
+     * flag to indicate intermediates are up to date, volatile so that threads
+     * sharing this model only lock when they need recalculating
+     */
+    private volatile boolean updateIntermediates = true;
 
     /**
      * Used for precalculations
@@ -144,9 +148,11 @@ public class TN93 extends SubstitutionModel.NucleotideBase {
 
         double distance = (startTime - endTime) * rate;
 
-        synchronized (this) {
-            if (updateIntermediates) {
-                calculateIntermediates();
+        if (updateIntermediates) {
+            synchronized (this) {
+                if (updateIntermediates) {
+                    calculateIntermediates();
+                }
             }
         }
 
@@ -362,6 +368,7 @@ public class TN93 extends SubstitutionModel.NucleotideBase {
         // we only get here if something is dirty
         updateEigen = true;
         updateIntermediates = true;
+        startNewVersion();
         return true;
     }
 
@@ -375,6 +382,7 @@ public class TN93 extends SubstitutionModel.NucleotideBase {
 
     @Override
     protected void restore() {
+        // the version is reset to the stored one by super.restore()
         updateEigen = true;
         updateIntermediates = true;
         if (storedEigenDecomposition != null) {
@@ -383,6 +391,11 @@ public class TN93 extends SubstitutionModel.NucleotideBase {
         super.restore();
     }
 
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == TN93.class;
+    }
+
     @Override
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Nucleotide;
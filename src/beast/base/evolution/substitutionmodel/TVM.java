@@ -47,6 +47,7 @@ public class TVM extends GeneralSubstitutionModel {
 
         frequencies = frequenciesInput.get();
         updateMatrix = true;
+        startNewVersion();
         nrOfStates = frequencies.getFreqs().length;
         if (nrOfStates != 4) {
             throw new IllegalArgumentException("Frequencies has wrong size. Expected 4, but got " + nrOfStates);
@@ -100,4 +101,9 @@ public class TVM extends GeneralSubstitutionModel {
     public boolean canHandleDataType(DataType dataType) {
         return dataType instanceof Nucleotide;
     }
+
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == TVM.class;
+    }
 }
@@ -0,0 +1,140 @@
+package beast.base.evolution.substitutionmodel;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Cache of transition probability matrices of a substitution model, shared by all
+ * tree likelihoods using the model, so that linked partitions with the same
+ * branch lengths and rates do not recalculate identical matrices.
+ * <p/>
+ * Matrices are keyed by the version of the substitution model (see SubstitutionModel.Base.getVersion()),
+ * the branch time (startTime - endTime) and the rate. The version changes whenever the model may have
+ * changed and is reset when the model is restored, so matrices calculated before a rejected proposal
+ * are found again, while stale matrices are never returned.
+ * <p/>
+ * The cache is a direct mapped table of bounded size: a matrix replaces whatever was stored in its slot.
+ * Entries and their matrices are allocated up front and overwritten in place, so a miss, which is the
+ * common case for continuous branch lengths, does not allocate. Each entry is locked while it is read
+ * or written, since tree likelihoods may be calculated in threads.
+ */
+public class TransitionMatrixCache {
+
+    /** max number of doubles held by a cache **/
+    final static int MAX_CACHE_SIZE = 1 << 20;
+    /** max number of entries of a cache **/
+    final static int MAX_ENTRY_COUNT = 4096;
+
+    private static class Entry {
+        boolean used;
+        long version;
+        long timeBits;
+        long rateBits;
+        final double[] matrix;
+
+        Entry(int matrixSize) {
+            matrix = new double[matrixSize];
+        }
+    }
+
+    private final SubstitutionModel.Base substitutionModel;
+    private final Entry[] entries;
+    private final int mask;
+    private final int matrixSize;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    TransitionMatrixCache(SubstitutionModel.Base substitutionModel) {
+        this.substitutionModel = substitutionModel;
+        final int stateCount = substitutionModel.getStateCount();
+        matrixSize = stateCount * stateCount;
+        // largest power of two such that the cache does not exceed its size limit
+        int entryCount = MAX_ENTRY_COUNT;
+        while (entryCount > 16 && entryCount * matrixSize > MAX_CACHE_SIZE) {
+            entryCount /= 2;
+        }
+        entries = new Entry[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            entries[i] = new Entry(matrixSize);
+        }
+        mask = entryCount - 1;
+    }
+
+    /**
+     * get the transition probability matrix from the cache, or calculate it through
+     * the substitution model if it is not in the cache.
+     * Arguments as for SubstitutionModel.getTransitionProbabilities()
+     */
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        final long version = substitutionModel.getVersion();
+        final long timeBits = Double.doubleToLongBits(startTime - endTime);
+        final long rateBits = Double.doubleToLongBits(rate);
+        final int slot = slot(version, timeBits, rateBits);
+
+        final Entry entry = entries[slot];
+        synchronized (entry) {
+            if (entry.used && entry.version == version && entry.timeBits == timeBits && entry.rateBits == rateBits) {
+                System.arraycopy(entry.matrix, 0, matrix, 0, matrixSize);
+                hitCount.increment();
+                return;
+            }
+        }
+
+        substitutionModel.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+        synchronized (entry) {
+            entry.used = true;
+            entry.version = version;
+            entry.timeBits = timeBits;
+            entry.rateBits = rateBits;
+            System.arraycopy(matrix, 0, entry.matrix, 0, matrixSize);
+        }
+        missCount.increment();
+    }
+
+    private int slot(final long version, final long timeBits, final long rateBits) {
+        long h = version * 0x9E3779B97F4A7C15L;
+        h = (h ^ timeBits) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ rateBits) * 0x165667B19E3779F9L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** remove all entries and reset statistics **/
+    public void clear() {
+        for (final Entry entry : entries) {
+            synchronized (entry) {
+                entry.used = false;
+            }
+        }
+        hitCount.reset();
+        missCount.reset();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return fraction of requests served from the cache, 0 if there were no requests yet
+     */
+    public double getHitRate() {
+        final long hits = hitCount.sum();
+        final long total = hits + missCount.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    @Override
+    public String toString() {
+        return "TransitionMatrixCache(" + substitutionModel.getID() + "): " + getHitCount() + " hits, " +
+                getMissCount() + " misses, hit rate " + String.format("%.1f%%", 100 * getHitRate());
+    }
+}
@@ -723,6 +723,8 @@ public class WAG extends EmpiricalSubstitutionModel {
         System.out.println("Between count = " +  between);
     }
 
-
-
+    @Override
+    public boolean canCacheTransitionProbabilities() {
+        return getClass() == WAG.class;
+    }
 } // class WAG
@@ -29,15 +29,19 @@ package beast.base.evolution.tree;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.distance.Distance;
 import beast.base.evolution.distance.JukesCantorDistance;
 import beast.base.inference.StateNode;
 import beast.base.inference.StateNodeInitialiser;
+import beast.base.inference.util.ForkJoinScheduler;
 
 
 
@@ -64,11 +68,19 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
 
     double EPSILON = 1e-10;
 
+    /** number of taxa above which distances are stored in single precision to save memory **/
+    static final int SINGLE_PRECISION_TAXON_COUNT = 4096;
+    /** minimum number of pairwise distances per task when processing the distance matrix in parallel **/
+    static final long MIN_PAIRS_PER_TASK = 100000;
+    /** relative tolerance for rounding errors in the lower bound used by neighbor joining **/
+    static final double BOUND_TOLERANCE = 1e-12;
+
     final public Input<Type> clusterTypeInput = new Input<>("clusterType", "type of clustering algorithm used for generating initial beast.tree. " +
             "Should be one of " + Arrays.toString(Type.values()) + " (default " + Type.average + ")", Type.average, Type.values());
     final public Input<Alignment> dataInput = new Input<>("taxa", "alignment data used for calculating distances for clustering");
 
-    final public Input<Distance> distanceInput = new Input<>("distance", "method for calculating distance between two sequences (default Jukes Cantor)");
+    final public Input<Distance> distanceInput = new Input<>("distance", "method for calculating distance between two sequences (default Jukes Cantor). "
+            + "Distances are calculated in parallel when running with multiple threads, if the distance is thread safe");
 
     final public Input<Function> clockRateInput = new Input<>("clock.rate",
             "the clock rate parameter, used to divide all divergence times by, to convert from substitutions to times. (default 1.0)",
@@ -333,6 +345,270 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
         }
     }
 
+    /**
+     * Symmetric matrix of distances between clusters with zero diagonal. Only the lower triangle
+     * is stored, one array per row, so it takes half the memory of a square matrix and the number
+     * of taxa is not limited by the maximum size of an array.
+     */
+    static abstract class DistanceMatrix {
+        /** @return distance between clusters i and j, where i != j **/
+        abstract double get(int i, int j);
+
+        abstract void set(int i, int j, double distance);
+    }
+
+    static class DoubleDistanceMatrix extends DistanceMatrix {
+        final double[][] rows;
+
+        DoubleDistanceMatrix(final int n) {
+            rows = new double[n][];
+            for (int i = 0; i < n; i++) {
+                rows[i] = new double[i];
+            }
+        }
+
+        @Override
+        double get(final int i, final int j) {
+            return i > j ? rows[i][j] : rows[j][i];
+        }
+
+        @Override
+        void set(final int i, final int j, final double distance) {
+            if (i > j) {
+                rows[i][j] = distance;
+            } else {
+                rows[j][i] = distance;
+            }
+        }
+    }
+
+    static class FloatDistanceMatrix extends DistanceMatrix {
+        final float[][] rows;
+
+        FloatDistanceMatrix(final int n) {
+            rows = new float[n][];
+            for (int i = 0; i < n; i++) {
+                rows[i] = new float[i];
+            }
+        }
+
+        @Override
+        double get(final int i, final int j) {
+            return i > j ? rows[i][j] : rows[j][i];
+        }
+
+        @Override
+        void set(final int i, final int j, final double distance) {
+            if (i > j) {
+                rows[i][j] = (float) distance;
+            } else {
+                rows[j][i] = (float) distance;
+            }
+        }
+    }
+
+    /**
+     * binary min-heap of clusters, ordered by distance to their nearest neighbour (and cluster index
+     * for equal distances), where the distance of any cluster in the heap can be updated
+     */
+    static class ClusterHeap {
+        final double[] key;
+        final int[] heap;
+        // position of each cluster in the heap, or -1 if not in the heap
+        final int[] position;
+        int size = 0;
+
+        ClusterHeap(final double[] key) {
+            this.key = key;
+            heap = new int[key.length];
+            position = new int[key.length];
+            Arrays.fill(position, -1);
+        }
+
+        int top() {
+            return heap[0];
+        }
+
+        /** add cluster i, or restore the heap order after the key of cluster i changed **/
+        void update(final int i) {
+            if (position[i] < 0) {
+                heap[size] = i;
+                position[i] = size;
+                size++;
+                siftUp(size - 1);
+            } else {
+                siftUp(position[i]);
+                siftDown(position[i]);
+            }
+        }
+
+        void remove(final int i) {
+            final int p = position[i];
+            if (p < 0) {
+                return;
+            }
+            position[i] = -1;
+            size--;
+            if (p < size) {
+                final int last = heap[size];
+                heap[p] = last;
+                position[last] = p;
+                siftUp(p);
+                siftDown(position[last]);
+            }
+        }
+
+        private boolean less(final int i, final int j) {
+            return key[i] < key[j] || (key[i] == key[j] && i < j);
+        }
+
+        private void siftUp(int p) {
+            final int i = heap[p];
+            while (p > 0) {
+                final int parent = (p - 1) / 2;
+                final int j = heap[parent];
+                if (!less(i, j)) {
+                    break;
+                }
+                heap[p] = j;
+                position[j] = p;
+                p = parent;
+            }
+            heap[p] = i;
+            position[i] = p;
+        }
+
+        private void siftDown(int p) {
+            final int i = heap[p];
+            while (true) {
+                int child = 2 * p + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && less(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                final int j = heap[child];
+                if (!less(j, i)) {
+                    break;
+                }
+                heap[p] = j;
+                position[j] = p;
+                p = child;
+            }
+            heap[p] = i;
+            position[i] = p;
+        }
+    } // class ClusterHeap
+
+    /**
+     * Calls action for every row of a lower triangular matrix with rowCount rows. For large matrices,
+     * rows are split into slices with similar numbers of entries, which are processed in parallel
+     * on the shared ForkJoinScheduler pool, so action must be safe to call from multiple threads.
+     */
+    static void forAllRows(final int rowCount, final IntConsumer action) {
+        final long pairs = (long) rowCount * (rowCount - 1) / 2;
+        final int sliceCount = (int) Math.max(1, Math.min(ProgramStatus.m_nThreads, pairs / MIN_PAIRS_PER_TASK));
+        if (sliceCount == 1) {
+            for (int i = 0; i < rowCount; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+        final List<RecursiveAction> tasks = new ArrayList<>(sliceCount);
+        for (int k = 0; k < sliceCount; k++) {
+            // row i has i entries, so boundaries are spaced by the square root of the number of entries
+            final int from = (int) (rowCount * Math.sqrt((double) k / sliceCount));
+            final int to = k == sliceCount - 1 ? rowCount : (int) (rowCount * Math.sqrt((double) (k + 1) / sliceCount));
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    for (int i = from; i < to; i++) {
+                        action.accept(i);
+                    }
+                }
+            });
+        }
+        ForkJoinScheduler.invokeAll(tasks);
+    }
+
+    /**
+     * calculate distances between all taxa, in parallel for large numbers of taxa
+     * if the Distance implementation is thread safe (see Distance.isThreadSafe()).
+     */
+    DistanceMatrix calcDistanceMatrix() {
+        final int n = taxaNames.size();
+        final DistanceMatrix dist = n > SINGLE_PRECISION_TAXON_COUNT ? new FloatDistanceMatrix(n) : new DoubleDistanceMatrix(n);
+        final IntConsumer row = i -> {
+            for (int j = 0; j < i; j++) {
+                dist.set(i, j, distance(j, i));
+            }
+        };
+        if (distance.isThreadSafe()) {
+            forAllRows(n, row);
+        } else {
+            for (int i = 0; i < n; i++) {
+                row.accept(i);
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * sort key[from..to) in increasing order, and permute index[from..to) along with it
+     */
+    static void sortByKey(final double[] key, final int[] index, int from, int to) {
+        while (to - from > 16) {
+            // quicksort with median of three pivot, recursing into the smaller part
+            final double a = key[from];
+            final double b = key[(from + to) >>> 1];
+            final double c = key[to - 1];
+            final double pivot = a < b ? (b < c ? b : Math.max(a, c)) : (a < c ? a : Math.max(b, c));
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (key[i] < pivot) {
+                    i++;
+                }
+                while (key[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final double k = key[i];
+                    key[i] = key[j];
+                    key[j] = k;
+                    final int x = index[i];
+                    index[i] = index[j];
+                    index[j] = x;
+                    i++;
+                    j--;
+                }
+            }
+            if (j + 1 - from < to - i) {
+                sortByKey(key, index, from, j + 1);
+                from = i;
+            } else {
+                sortByKey(key, index, i, to);
+                to = j + 1;
+            }
+        }
+        // insertion sort for short ranges
+        for (int i = from + 1; i < to; i++) {
+            final double k = key[i];
+            final int x = index[i];
+            int j = i - 1;
+            while (j >= from && key[j] > k) {
+                key[j + 1] = key[j];
+                index[j + 1] = index[j];
+                j--;
+            }
+            key[j + 1] = k;
+            index[j + 1] = x;
+        }
+    }
+
     // return distance according to distance metric
     double distance(final int taxon1, final int taxon2) {
         return distance.pairwiseDistance(taxon1, taxon2);
@@ -373,6 +649,8 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
         final NodeX[] clusterNodes = new NodeX[taxonCount];
         if (linkType == Type.neighborjoining || linkType == Type.neighborjoining2) {
             neighborJoining(clusters, clusterID, clusterNodes);
+        } else if (linkType == Type.average) {
+            doAverageLinkClustering(clusters, clusterID, clusterNodes);
         } else {
             doLinkClustering(clusters, clusterID, clusterNodes);
         }
@@ -389,8 +667,11 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
 
     /**
      * use neighbor joining algorithm for clustering
-     * This is roughly based on the RapidNJ simple implementation and runs at O(n^3)
-     * More efficient implementations exist, see RapidNJ (or my GPU implementation :-))
+     * This follows RapidNJ: the rows of the distance matrix are sorted once, and the search
+     * for the pair to join scans each row in order of increasing distance, stopping as soon
+     * as a lower bound based on the largest separation exceeds the best pair found so far.
+     * This is O(n^3) in the worst case, but typically only a small part of each row is visited.
+     * Ties are broken as in the exhaustive search: the pair with lowest indices is joined.
      *
      * @param clusters
      * @param clusterID
@@ -399,14 +680,7 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
     void neighborJoining(int clusters, final List<Integer>[] clusterID, final NodeX[] clusterNodes) {
         final int n = taxaNames.size();
 
-        final double[][] dist = new double[clusters][clusters];
-        for (int i = 0; i < clusters; i++) {
-            dist[i][i] = 0;
-            for (int j = i + 1; j < clusters; j++) {
-                dist[i][j] = getDistance0(clusterID[i], clusterID[j]);
-                dist[j][i] = dist[i][j];
-            }
-        }
+        final DistanceMatrix dist = calcDistanceMatrix();
 
         final double[] separationSums = new double[n];
         final double[] separations = new double[n];
@@ -416,40 +690,77 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
         for (int i = 0; i < n; i++) {
             double sum = 0;
             for (int j = 0; j < n; j++) {
-                sum += dist[i][j];
+                if (j != i) {
+                    sum += dist.get(i, j);
+                }
             }
             separationSums[i] = sum;
             separations[i] = sum / (clusters - 2);
             nextActive[i] = i + 1;
         }
 
+        // sortedColumns[i] contains columns in order of increasing distance to i, starting at rowStart[i].
+        // Initially, row i contains all j < i. A joined cluster gets a new row with all other clusters,
+        // and a higher rowStamp, so every pair of clusters is found in the row with the highest stamp.
+        final int[][] sortedColumns = new int[n][];
+        final int[] rowStart = new int[n];
+        final int[] rowStamp = new int[n];
+        forAllRows(n, i -> {
+            final int[] columns = new int[i];
+            final double[] keys = new double[i];
+            for (int j = 0; j < i; j++) {
+                columns[j] = j;
+                keys[j] = dist.get(i, j);
+            }
+            sortByKey(keys, columns, 0, i);
+            sortedColumns[i] = columns;
+        });
+        final double[] keys = new double[n];
+        final int[] columnBuffer = new int[n];
+        int stamp = 0;
+
         while (clusters > 2) {
             // find minimum
+            double maxSeparation = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i = nextActive[i]) {
+                maxSeparation = Math.max(maxSeparation, separations[i]);
+            }
             int min1 = -1;
             int min2 = -1;
             double min = Double.MAX_VALUE;
-            {
-                int i = 0;
-                while (i < n) {
-                    final double sep1 = separations[i];
-                    final double[] row = dist[i];
-                    int j = nextActive[i];
-                    while (j < n) {
-                        final double sep2 = separations[j];
-                        final double val = row[j] - sep1 - sep2;
-                        if (val < min) {
-                            // new minimum
-                            min1 = i;
-                            min2 = j;
-                            min = val;
-                        }
-                        j = nextActive[j];
+            for (int i = 0; i < n; i = nextActive[i]) {
+                final double sep1 = separations[i];
+                final int[] columns = sortedColumns[i];
+                // skip columns that will never be valid for this row again
+                int k = rowStart[i];
+                while (k < columns.length && !isInRow(columns[k], i, clusterID, rowStamp)) {
+                    k++;
+                }
+                rowStart[i] = k;
+                for (; k < columns.length; k++) {
+                    final int j = columns[k];
+                    if (!isInRow(j, i, clusterID, rowStamp)) {
+                        continue;
+                    }
+                    final double d = dist.get(i, j);
+                    final double bound = d - sep1 - maxSeparation;
+                    if (bound - min > (Math.abs(d) + Math.abs(sep1) + Math.abs(maxSeparation)) * BOUND_TOLERANCE) {
+                        // all remaining columns in this row are worse than the minimum
+                        break;
+                    }
+                    final int lo = Math.min(i, j);
+                    final int hi = Math.max(i, j);
+                    final double val = d - separations[lo] - separations[hi];
+                    if (val < min || (val == min && (lo < min1 || (lo == min1 && hi < min2)))) {
+                        // new minimum
+                        min1 = lo;
+                        min2 = hi;
+                        min = val;
                     }
-                    i = nextActive[i];
                 }
             }
             // record distance
-            final double minDistance = dist[min1][min2];
+            final double minDistance = dist.get(min1, min2);
             clusters--;
             final double sep1 = separations[min1];
             final double sep2 = separations[min2];
@@ -458,22 +769,21 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
             if (clusters > 2) {
                 // update separations  & distance
                 double newSeparationSum = 0;
-                final double mutualDistance = dist[min1][min2];
-                final double[] row1 = dist[min1];
-                final double[] row2 = dist[min2];
+                final double mutualDistance = minDistance;
+                int columnCount = 0;
                 for (int i = 0; i < n; i++) {
-                    if (i == min1 || i == min2 || clusterID[i].size() == 0) {
-                        row1[i] = 0;
-                    } else {
-                        final double val1 = row1[i];
-                        final double val2 = row2[i];
+                    if (i != min1 && i != min2 && clusterID[i].size() != 0) {
+                        final double val1 = dist.get(min1, i);
+                        final double val2 = dist.get(min2, i);
                         final double distance = (val1 + val2 - mutualDistance) / 2.0;
                         newSeparationSum += distance;
                         // update the separationsum of cluster i.
                         separationSums[i] += (distance - val1 - val2);
                         separations[i] = separationSums[i] / (clusters - 2);
-                        row1[i] = distance;
-                        dist[i][min1] = distance;
+                        dist.set(min1, i, distance);
+                        columnBuffer[columnCount] = i;
+                        keys[columnCount] = dist.get(min1, i);
+                        columnCount++;
                     }
                 }
                 separationSums[min1] = newSeparationSum;
@@ -486,6 +796,13 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
                     prev--;
                 }
                 nextActive[prev] = nextActive[min2];
+
+                // new row for the joined cluster
+                sortByKey(keys, columnBuffer, 0, columnCount);
+                sortedColumns[min1] = Arrays.copyOf(columnBuffer, columnCount);
+                sortedColumns[min2] = null;
+                rowStart[min1] = 0;
+                rowStamp[min1] = ++stamp;
             } else {
                 merge(min1, min2, dist1, dist2, clusterID, clusterNodes);
                 break;
@@ -496,7 +813,7 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
             if (clusterID[i].size() > 0) {
                 for (int j = i + 1; j < n; j++) {
                     if (clusterID[j].size() > 0) {
-                        final double dist1 = dist[i][j];
+                        final double dist1 = dist.get(i, j);
                         if (clusterID[i].size() == 1) {
                             merge(i, j, dist1, 0, clusterID, clusterNodes);
                         } else if (clusterID[j].size() == 1) {
@@ -511,6 +828,13 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
         }
     } // neighborJoining
 
+    /**
+     * @return whether the distance between cluster j and cluster row is looked up in the sorted row of row
+     */
+    private boolean isInRow(final int j, final int row, final List<Integer>[] clusterID, final int[] rowStamp) {
+        return clusterID[j].size() > 0 && rowStamp[j] <= rowStamp[row];
+    }
+
     /**
      * Perform clustering using a link method
      * This implementation uses a priority queue resulting in a O(n^2 log(n)) algorithm
@@ -559,6 +883,109 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
         }
     } // doLinkClustering
 
+    /**
+     * Perform UPGMA (average link) clustering.
+     * Distances between clusters are updated in place using the Lance-Williams formula, and a heap
+     * keeps every cluster ordered by the distance to its nearest neighbour with lower index.
+     * As in Muellner's generic clustering algorithm, nearest neighbours are only recalculated when
+     * they turn out to be out of date on reaching the top of the heap, which relies on the distance
+     * of a joined cluster never being less than that of both clusters joined. This needs no memory
+     * beyond the distance matrix and typically runs in O(n^2) time.
+     * <p/>
+     * Ties are broken by index: of the clusters with a nearest neighbour at the smallest distance,
+     * the one with lowest index is joined to the lowest-indexed of its nearest neighbours, so taxa
+     * with identical sequences are joined in taxon order. This differs from the order in which
+     * the PriorityQueue of doLinkClustering returned tied pairs in BEAST 2.7.8 and earlier, so
+     * the topology of starting trees for such data may differ from those versions.
+     *
+     * @param clusters    number of clusters
+     * @param clusterID
+     * @param clusterNodes
+     */
+    void doAverageLinkClustering(int clusters, final List<Integer>[] clusterID, final NodeX[] clusterNodes) {
+        final int n = taxaNames.size();
+        final DistanceMatrix dist = calcDistanceMatrix();
+
+        final int[] nextActive = new int[n];
+        for (int i = 0; i < n; i++) {
+            nextActive[i] = i + 1;
+        }
+        // nearest neighbour with lower index for each cluster, and its distance
+        final int[] neighbor = new int[n];
+        final double[] minDist = new double[n];
+        forAllRows(n, i -> {
+            if (i > 0) {
+                findNearestNeighbor(i, dist, nextActive, neighbor, minDist);
+            }
+        });
+        final ClusterHeap heap = new ClusterHeap(minDist);
+        for (int i = 1; i < n; i++) {
+            heap.update(i);
+        }
+
+        while (clusters > 1) {
+            // use heap to find next best pair to cluster
+            int i = heap.top();
+            while (clusterID[neighbor[i]].size() == 0 || dist.get(i, neighbor[i]) != minDist[i]) {
+                // out of date since the neighbour was joined with another cluster
+                findNearestNeighbor(i, dist, nextActive, neighbor, minDist);
+                heap.update(i);
+                i = heap.top();
+            }
+            final int min1 = neighbor[i];
+            final int min2 = i;
+            final int size1 = clusterID[min1].size();
+            final int size2 = clusterID[min2].size();
+            merge(min1, min2, minDist[min2] / 2.0, minDist[min2] / 2.0, clusterID, clusterNodes);
+            heap.remove(min2);
+            // since min1 < min2 cluster 0 is always active, so the next loop should be safe
+            int prev = min2;
+            while (clusterID[prev].size() == 0) {
+                prev--;
+            }
+            nextActive[prev] = nextActive[min2];
+
+            // update distances & heap
+            for (int k = 0; k < n; k = nextActive[k]) {
+                if (k != min1) {
+                    dist.set(min1, k, (size1 * dist.get(min1, k) + size2 * dist.get(min2, k)) / (size1 + size2));
+                    if (k > min1) {
+                        final double d = dist.get(min1, k);
+                        if (d < minDist[k] || (d == minDist[k] && min1 < neighbor[k])) {
+                            neighbor[k] = min1;
+                            minDist[k] = d;
+                            heap.update(k);
+                        }
+                    }
+                }
+            }
+            if (min1 > 0) {
+                findNearestNeighbor(min1, dist, nextActive, neighbor, minDist);
+                heap.update(min1);
+            }
+            clusters--;
+        }
+    } // doAverageLinkClustering
+
+    /**
+     * find the nearest active cluster with index lower than i (the one with lowest index if there
+     * are several at the same distance), where i > 0, so that cluster 0 is a candidate
+     */
+    private void findNearestNeighbor(final int i, final DistanceMatrix dist, final int[] nextActive,
+                                     final int[] neighbor, final double[] minDist) {
+        int best = 0;
+        double bestDist = dist.get(i, 0);
+        for (int j = nextActive[0]; j < i; j = nextActive[j]) {
+            final double d = dist.get(i, j);
+            if (d < bestDist) {
+                best = j;
+                bestDist = d;
+            }
+        }
+        neighbor[i] = best;
+        minDist[i] = bestDist;
+    }
+
     void merge(int min1, int min2, double dist1, double dist2, final List<Integer>[] clusterID, final NodeX[] clusterNodes) {
         if (min1 > min2) {
             final int h = min1;
@@ -569,8 +996,7 @@ public class ClusterTree extends Tree implements StateNodeInitialiser {
             dist2 = f;
         }
         clusterID[min1].addAll(clusterID[min2]);
-        //clusterID[min2].removeAllElements();
-        clusterID[min2].removeAll(clusterID[min2]);
+        clusterID[min2].clear();
 
         // track hierarchy
         final NodeX node = new NodeX();
@@ -42,6 +42,10 @@ public class Node extends BEASTObject {
 
     /**
      * height of this node.
+     * Change it through the setters only: they let the tree keep a copy of the node
+     * before it changes, which is all the tree restores on a rejected proposal (see
+     * Tree.storeNode()). Subclasses that write it directly should return false from
+     * canStorePartially().
      */
     protected double height = Double.MAX_VALUE;
 
@@ -59,11 +63,19 @@ public class Node extends BEASTObject {
      * list of children of this node *
      * Don't use m_left and m_right directly
      * Use getChildCount() and getChild(x) or getChildren() instead
+     * Change it through the setters only: they let the tree keep a copy of the node
+     * before it changes, which is all the tree restores on a rejected proposal (see
+     * Tree.storeNode()). Subclasses that write it directly should return false from
+     * canStorePartially().
      */
     protected List<Node> children = new ArrayList<>();
 
     /**
      * parent node in the beast.tree, null if root *
+     * Change it through the setters only: they let the tree keep a copy of the node
+     * before it changes, which is all the tree restores on a rejected proposal (see
+     * Tree.storeNode()). Subclasses that write it directly should return false from
+     * canStorePartially().
      */
     protected Node parent = null;
 
@@ -115,6 +127,9 @@ public class Node extends BEASTObject {
     }
 
     public void setNr(final int labelIndex) {
+        if (m_tree != null && labelIndex != labelNr) {
+            m_tree.storeAllNodes();
+        }
         labelNr = labelIndex;
     }
 
@@ -208,7 +223,7 @@ public class Node extends BEASTObject {
      * @param inOperator if true, then startEditing() is called and setting the parent will make tree "filthy"
      */
     public void setParent(final Node parent, final boolean inOperator) {
-        if (inOperator) startEditing();
+        if (inOperator) startEditing(); else storeNode();
         if (this.parent != parent) {
         	this.parent = parent;
             if (inOperator) isDirty = Tree.IS_FILTHY;
@@ -236,6 +251,7 @@ public class Node extends BEASTObject {
      * @return modifiable list of children of this node
      */
     public List<Node> getChildrenMutable() {
+        storeNode();
         return children;
     }
 
@@ -329,11 +345,12 @@ public class Node extends BEASTObject {
      *                   use set to false.
      */
     public void removeAllChildren(final boolean inOperator) {
-        if (inOperator) startEditing();
+        if (inOperator) startEditing(); else storeNode();
         children.clear();
     }
 
     public void addChild(final Node child) {
+        storeNode();
         child.setParent(this);
         children.add(child);
     }
@@ -857,9 +874,32 @@ public class Node extends BEASTObject {
 //        }
 //    }
 
+    /**
+     * @return true if the height, parent and children of this node only change through
+     * the setters, so that the tree only needs to store the nodes that are edited.
+     * Node types that change these fields in other ways should return false, so that
+     * the tree stores all nodes on every store().
+     */
+    protected boolean canStorePartially() {
+        return true;
+    }
+
     protected void startEditing() {
-        if (m_tree != null && m_tree.getState() != null) {
-            m_tree.startEditing(null);
+        if (m_tree != null) {
+            if (m_tree.getState() != null) {
+                m_tree.startEditing(null);
+            }
+            m_tree.storeNode(this);
+        }
+    }
+
+    /**
+     * Lets the tree keep a copy of this node before it is changed, for
+     * changes that do not call startEditing(). See Tree.storeNode().
+     */
+    private void storeNode() {
+        if (m_tree != null) {
+            m_tree.storeNode(this);
         }
     }
 
@@ -887,6 +927,7 @@ public class Node extends BEASTObject {
      * This sets the i'th child of this node. Will pad out the children with null's if getChildCount() <= childIndex.
      */
     public void setChild(final int childIndex, final Node node) {
+        storeNode();
         while (children.size() <= childIndex) {
             children.add(null);
         }
@@ -900,6 +941,7 @@ public class Node extends BEASTObject {
      * trees should not be assumed to be binary. One child and more than two are both valid in some models.
      */
     public void setLeft(final Node leftChild) {
+        storeNode();
         if (children.size() == 0) {
             children.add(leftChild);
         } else {
@@ -929,6 +971,7 @@ public class Node extends BEASTObject {
      * trees should not be assumed to be binary. One child and more than two are both valid in some models.
      */
     public void setRight(final Node rightChild) {
+        storeNode();
         switch (children.size()) {
             case 0:
                 children.add(null);
@@ -1,5 +1,8 @@
 package beast.base.evolution.tree;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,6 +29,8 @@ public class Tree extends StateNode implements TreeInterface {
     final public Input<String> nodeTypeInput = new Input<>("nodetype",
             "type of the nodes in the beast.tree", Node.class.getName());
 
+    final public Input<Boolean> storePartiallyInput = new Input<>("storePartially", "if true (default), only nodes that are edited are stored before a proposal. Set to false when nodes are changed without calling the Node setters, so that all nodes are stored.", true);
+
     final public Input<Boolean> adjustTreeNodeHeightsInput = new Input<>("adjustTreeNodeHeights", "if true (default), then tree node heights are adjusted to avoid non-positive branch lengths. If you want to maintain zero branch lengths then you must set this to false.", true, Input.Validate.OPTIONAL);
 
     /**
@@ -56,6 +61,27 @@ public class Tree extends StateNode implements TreeInterface {
 
     protected Node[] m_storedNodes = null;
 
+    /**
+     * Unless storedAllNodes is true, store() does not copy any nodes. Instead, a node
+     * is copied to m_storedNodes by storeNode() just before it is changed for the first
+     * time, and restore() copies back only those nodes. storedNodeNrs lists the numbers
+     * of the first storedNodeCount nodes copied, isStored flags them by number.
+     */
+    private boolean storedAllNodes = true;
+    private boolean[] isStored;
+    private int[] storedNodeNrs;
+    private int storedNodeCount;
+
+    /**
+     * With -Dbeast.debug=true, a partial store also records heights, parents and
+     * children of all nodes, and restore() checks the restored tree against them,
+     * to catch changes to nodes that bypass the Node setters.
+     */
+    private final boolean checkRestore = Boolean.getBoolean("beast.debug");
+    private double[] checkHeights;
+    private int[] checkParents;
+    private int[][] checkChildren;
+
     /**
      * array of taxa names for the nodes in the tree
      * such that m_sTaxaNames[node.getNr()] == node.getID()*
@@ -194,6 +220,7 @@ public class Tree extends StateNode implements TreeInterface {
         m_storedNodes = new Node[nodeCount];
         final Node copy = root.copy();
         listNodes(copy, m_storedNodes);
+        storedAllNodes = true;
         postCache = null;
     }
 
@@ -311,6 +338,7 @@ public class Tree extends StateNode implements TreeInterface {
         nodeCount = this.root.getNodeCount();
         // ensure root is the last node
         if (m_nodes != null && root.getNr() != m_nodes.length - 1) {
+            storeAllNodes();
             final int rootPos = m_nodes.length - 1;
             Node tmp = m_nodes[rootPos];
             m_nodes[rootPos] = root;
@@ -531,6 +559,8 @@ public class Tree extends StateNode implements TreeInterface {
     @Override
     public void assignTo(final StateNode other) {
         final Tree tree = (Tree) other;
+        // nodes of the other tree are assigned directly, not through Node methods
+        tree.storeAllNodes();
         final Node[] nodes = new Node[nodeCount];
         listNodes(tree.root, nodes);
         tree.setID(getID());
@@ -575,6 +605,8 @@ public class Tree extends StateNode implements TreeInterface {
         if (m_nodes == null) {
             initArrays();
         }
+        // nodes are assigned directly, not through Node methods
+        storeAllNodes();
         root = m_nodes[tree.root.getNr()];
         final Node[] otherNodes = tree.m_nodes;
         final int rootNr = root.getNr();
@@ -775,6 +807,51 @@ public class Tree extends StateNode implements TreeInterface {
         initArrays();
     }
 
+    /**
+     * Binary representation: node count, root number, and for every node
+     * (by number) its height followed by the numbers of its children.
+     * As with assignFromFragile(), taxon labels and meta data are not stored.
+     */
+    @Override
+    public void toBinary(final DataOutput out) throws IOException {
+        out.writeInt(nodeCount);
+        out.writeInt(root.getNr());
+        for (final Node node : m_nodes) {
+            out.writeDouble(node.height);
+            out.writeInt(node.getChildCount());
+            for (final Node child : node.getChildren()) {
+                out.writeInt(child.getNr());
+            }
+        }
+    }
+
+    @Override
+    public void fromBinary(final DataInput in) throws IOException {
+        final int count = in.readInt();
+        final int rootNr = in.readInt();
+        final Node[] nodes = new Node[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = newNode();
+            nodes[i].setNr(i);
+        }
+        leafNodeCount = 0;
+        for (int i = 0; i < count; i++) {
+            nodes[i].height = in.readDouble();
+            final int childCount = in.readInt();
+            for (int j = 0; j < childCount; j++) {
+                nodes[i].addChild(nodes[in.readInt()]);
+            }
+            if (childCount == 0) {
+                leafNodeCount++;
+            }
+        }
+        root = nodes[rootNr];
+        root.setParent(null);
+        nodeCount = count;
+        internalNodeCount = count - leafNodeCount;
+        initArrays();
+    }
+
     /**
      * Valuable implementation *
      */
@@ -807,14 +884,123 @@ public class Tree extends StateNode implements TreeInterface {
                 tmp[m_storedNodes.length - 1] = m_storedNodes[m_storedNodes.length - 1];
                 tmp[nodeCount - 1] = newNode();
                 tmp[nodeCount - 1].setNr(nodeCount - 1);
+                tmp[nodeCount - 1].setTree(this);
             }
             m_storedNodes = tmp;
         }
 
-        storeNodes(0, nodeCount);
+        if (m_storedNodes.length != m_nodes.length || !storePartiallyInput.get() || !root.canStorePartially()) {
+            // the tree changes its number of nodes, which storeNode() cannot track,
+            // or its nodes may change without storeNode() being called
+            storeNodes(0, nodeCount);
+            storedAllNodes = true;
+        } else {
+            // nodes are stored by storeNode() as they get edited
+            if (isStored == null || isStored.length != nodeCount) {
+                isStored = new boolean[nodeCount];
+                storedNodeNrs = new int[nodeCount];
+            } else {
+                for (int i = 0; i < storedNodeCount; i++) {
+                    isStored[storedNodeNrs[i]] = false;
+                }
+            }
+            storedNodeCount = 0;
+            storedAllNodes = false;
+            if (checkRestore) {
+                recordNodesForCheck();
+            }
+        }
         storedRoot = m_storedNodes[root.getNr()];
     }
 
+    private void recordNodesForCheck() {
+        checkHeights = new double[nodeCount];
+        checkParents = new int[nodeCount];
+        checkChildren = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = m_nodes[i];
+            checkHeights[i] = node.height;
+            checkParents[i] = node.parent == null ? -1 : node.parent.labelNr;
+            checkChildren[i] = new int[node.children.size()];
+            for (int k = 0; k < checkChildren[i].length; k++) {
+                checkChildren[i][k] = node.children.get(k).labelNr;
+            }
+        }
+    }
+
+    /**
+     * Compares the nodes restored by restoreStoredNodes() with the copy of all nodes
+     * made in store(), see checkRestore.
+     */
+    private void checkRestoredNodes() {
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = m_nodes[i];
+            boolean same = node.height == checkHeights[i] &&
+                    (node.parent == null ? -1 : node.parent.labelNr) == checkParents[i] &&
+                    node.children.size() == checkChildren[i].length;
+            for (int k = 0; same && k < checkChildren[i].length; k++) {
+                same = node.children.get(k).labelNr == checkChildren[i][k];
+            }
+            if (!same) {
+                throw new RuntimeException("Node " + i + " of tree " + getID() + " was not restored correctly. " +
+                        "It was probably changed without calling the Node setters, which partial store " +
+                        "relies on: set storePartially=\"false\" on the tree, or return false from " +
+                        "Node.canStorePartially() in the node type.");
+            }
+        }
+    }
+
+    /**
+     * Called by a node just before it is changed. If the node was not changed
+     * since store(), its height, parent and children are copied to m_storedNodes.
+     * Nodes that are not part of this tree are ignored.
+     */
+    void storeNode(final Node node) {
+        if (!hasStartedEditing || storedAllNodes) {
+            return;
+        }
+        final int nr = node.labelNr;
+        if (nr < 0 || nr >= isStored.length || isStored[nr] || m_nodes[nr] != node) {
+            return;
+        }
+        isStored[nr] = true;
+        storedNodeNrs[storedNodeCount++] = nr;
+
+        final Node sink = m_storedNodes[nr];
+        sink.height = node.height;
+        sink.parent = node.parent == null ? null : m_storedNodes[node.parent.labelNr];
+        final List<Node> children = sink.children;
+        final List<Node> srcChildren = node.children;
+        if (children.size() == srcChildren.size()) {
+            for (int k = 0; k < children.size(); ++k) {
+                children.set(k, m_storedNodes[srcChildren.get(k).labelNr]);
+            }
+        } else {
+            children.clear();
+            for (final Node srcChild : srcChildren) {
+                children.add(m_storedNodes[srcChild.labelNr]);
+            }
+        }
+    }
+
+    /**
+     * Completes the copy of the tree in m_storedNodes while editing, for changes that
+     * cannot be tracked node by node, such as renumbering nodes. Since the nodes not
+     * stored yet are unchanged since store(), the result is the same as storing all
+     * nodes in store(), and restore() swaps the node arrays again.
+     */
+    void storeAllNodes() {
+        if (!hasStartedEditing || storedAllNodes) {
+            return;
+        }
+        for (int i = 0; i < m_storedNodes.length; i++) {
+            if (!isStored[i]) {
+                storeNodes(i, i + 1);
+            }
+        }
+        storedAllNodes = true;
+    }
+
 
     /**
      * Stores nodes with index i, for start <= i < end
@@ -872,6 +1058,10 @@ public class Tree extends StateNode implements TreeInterface {
 
     @Override
     public void restore() {
+        if (!storedAllNodes) {
+            restoreStoredNodes();
+            return;
+        }
 
         // necessary for sampled ancestor trees
         nodeCount = m_storedNodes.length;
@@ -899,6 +1089,50 @@ public class Tree extends StateNode implements TreeInterface {
         postCache = null;
     }
 
+    /**
+     * Restores only the nodes copied by storeNode(). Nodes keep their identity,
+     * so unlike the swap of node arrays, references to nodes remain valid.
+     */
+    private void restoreStoredNodes() {
+        for (int i = 0; i < storedNodeCount; i++) {
+            final int nr = storedNodeNrs[i];
+            final Node sink = m_nodes[nr];
+            final Node src = m_storedNodes[nr];
+            if (sink.isLeaf()) {
+                leafNodeCount--;
+            }
+            sink.height = src.height;
+            sink.parent = src.parent == null ? null : m_nodes[src.parent.labelNr];
+            final List<Node> children = sink.children;
+            final List<Node> srcChildren = src.children;
+            if (children.size() == srcChildren.size()) {
+                for (int k = 0; k < children.size(); ++k) {
+                    children.set(k, m_nodes[srcChildren.get(k).labelNr]);
+                }
+            } else {
+                children.clear();
+                for (final Node srcChild : srcChildren) {
+                    children.add(m_nodes[srcChild.labelNr]);
+                }
+            }
+            if (sink.isLeaf()) {
+                leafNodeCount++;
+            }
+        }
+        root = m_nodes[storedRoot.getNr()];
+        if (checkRestore) {
+            checkRestoredNodes();
+        }
+
+        hasStartedEditing = false;
+
+        for( Node n : m_nodes ) {
+            n.isDirty = Tree.IS_CLEAN;
+        }
+
+        postCache = null;
+    }
+
     /**
      * @return Date trait set if available, null otherwise.
      */
@@ -1036,6 +1270,10 @@ public class Tree extends StateNode implements TreeInterface {
      * Determine whether a child was replaced in a binary tree 
      **/
     public boolean childrenChanged(int nodeNr) {
+        if (!storedAllNodes && !isStored[nodeNr]) {
+            // the node was not changed since store()
+            return false;
+        }
         Node node = m_nodes[nodeNr];
         Node old = m_storedNodes[nodeNr];
         if (node.getLeft().getNr() == old.getLeft().getNr() &&
@@ -1054,7 +1292,7 @@ public class Tree extends StateNode implements TreeInterface {
      * @param i
      */
 	public void setNodeCount(int i) {
-		// TODO Auto-generated method stub
+		storeAllNodes();
 		this.nodeCount = i;
 	}
 } // class Tree
\ No newline at end of file
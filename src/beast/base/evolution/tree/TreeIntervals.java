@@ -107,6 +107,10 @@ public class TreeIntervals extends CalculationNode implements IntervalList {
         intervalsKnown = false;
     }
 
+    public double getMultifurcationLimit() {
+        return multifurcationLimit;
+    }
+
     /**
      * Sets the limit for which adjacent events are merged.
      *
@@ -321,14 +325,20 @@ public class TreeIntervals extends CalculationNode implements IntervalList {
 
         final int nodeCount = tree.getNodeCount();
 
-        times = new double[nodeCount];
-        int[] childCounts = new int[nodeCount];
+        if (times == null || times.length != nodeCount) {
+            times = new double[nodeCount];
+            childCounts = new int[nodeCount];
+            indices = null;
+        }
 
         collectTimes(tree, times, childCounts);
 
-        indices = new int[nodeCount];
-
-        HeapSort.sort(times, indices);
+        if (indices == null) {
+            indices = new int[nodeCount];
+            HeapSort.sort(times, indices);
+        } else if (!sortIndices()) {
+            HeapSort.sort(times, indices);
+        }
 
         if (intervals == null || intervals.length != nodeCount) {
             intervals = new double[nodeCount];
@@ -427,6 +437,31 @@ public class TreeIntervals extends CalculationNode implements IntervalList {
         intervalsKnown = true;
     }
 
+    /**
+     * Sorts indices by times, starting from the order of the previous calculation.
+     * Operators typically move a few node heights only, so indices is nearly sorted
+     * and insertion sort takes linear time.
+     *
+     * @return false if too many nodes are out of order, in which case indices is not sorted
+     */
+    private boolean sortIndices() {
+        long budget = 8L * indices.length;
+        for (int i = 1; i < indices.length; i++) {
+            final int index = indices[i];
+            final double time = times[index];
+            int j = i - 1;
+            while (j >= 0 && times[indices[j]] > time) {
+                indices[j + 1] = indices[j];
+                j--;
+                if (--budget < 0) {
+                    return false;
+                }
+            }
+            indices[j + 1] = index;
+        }
+        return true;
+    }
+
     /**
      * Returns the time of the start of an interval
      *
@@ -488,6 +523,7 @@ public class TreeIntervals extends CalculationNode implements IntervalList {
     /** interval times **/
     protected double[] times;
     protected int[] indices;
+    protected int[] childCounts;
     
     /**
      * The number of uncoalesced lineages within a particular interval.
@@ -50,6 +50,9 @@ public class BayesianSkyline extends TreeDistribution {
     IntegerParameter groupSizes;
     Tree tree;
     TreeIntervals intervals;
+    /** intervals that are updated incrementally when the tree changes, or null if intervals are
+     * not plain TreeIntervals, in which case the likelihood is calculated from intervals **/
+    IncrementalIntervals incrementalIntervals;
     double[] coalescentTimes;
 
     int[] cumulativeGroupSizes;
@@ -129,6 +132,11 @@ public class BayesianSkyline extends TreeDistribution {
         }
 
         prepare();
+
+        incrementalIntervals = null;
+        if (intervals.getClass() == TreeIntervals.class) {
+            incrementalIntervals = new IncrementalIntervals(intervals.treeInput.get(), null);
+        }
     }
 
     public void prepare() {
@@ -182,6 +190,12 @@ public class BayesianSkyline extends TreeDistribution {
      */
     @Override
     public double calculateLogP() {
+        if (incrementalIntervals != null && intervals.getMultifurcationLimit() < 0) {
+            logP = calculateGroupLogP();
+            checkLogP();
+            return logP;
+        }
+
         if (!m_bIsPrepared) {
             prepare();
         }
@@ -231,7 +245,38 @@ public class BayesianSkyline extends TreeDistribution {
 
             currentTime += intervals.getInterval(j);
         }
-        
+
+        checkLogP();
+        return logP;
+    }
+
+    /**
+     * Calculates the log likelihood group by group: the intervals up to the last coalescent
+     * event of a group share a population size, so each group contributes
+     * -sum_i choose2(k_i) w_i / N - c log N, for c coalescent events and intervals i of
+     * duration w_i with k_i lineages, and the sum is obtained from incrementalIntervals.
+     */
+    private double calculateGroupLogP() {
+        final int coalescentCount = intervals.treeInput.get().getInternalNodeCount();
+        final int popSizeCount = popSizes.getDimension();
+
+        double logP = 0.0;
+        int coalescents = 0;
+        double lineagePairWeight = 0.0;
+        final int groupCount = groupSizes.getDimension();
+        for (int i = 0; i <= groupCount && coalescents < coalescentCount; i++) {
+            // intervals after the last group get the population size after the last group, like in getPopSize()
+            final int groupEnd = i == groupCount ? coalescentCount : Math.min(coalescents + groupSizes.getValue(i), coalescentCount);
+            final double popSize = popSizes.getArrayValue(Math.min(i, popSizeCount - 1));
+            final double weight = incrementalIntervals.getLineagePairWeight(groupEnd);
+            logP -= (weight - lineagePairWeight) / popSize + (groupEnd - coalescents) * Math.log(popSize);
+            coalescents = groupEnd;
+            lineagePairWeight = weight;
+        }
+        return logP;
+    }
+
+    private void checkLogP() {
         if (logP == Double.POSITIVE_INFINITY && warningCount == 0) {
         	Log.warning("WARNING: Positive infinity calculated for Bayesian skyline");
         	Log.warning("This indicates there may be some numerical instability due to\n"
@@ -240,7 +285,6 @@ public class BayesianSkyline extends TreeDistribution {
         			  + "popSize parameter to prevent this.");
         	warningCount++;
         }
-        return logP;
     }
     
     public static double calculateIntervalLikelihood(double popSize, double width,
@@ -29,6 +29,11 @@ public class Coalescent extends TreeDistribution {
     final public Input<PopulationFunction> popSizeInput = new Input<>("populationModel", "A population size model", Validate.REQUIRED);
 
     TreeIntervals intervals;
+    /** intervals that are updated incrementally when the tree changes, or null if intervals are
+     * not plain TreeIntervals, in which case the likelihood is calculated from intervals **/
+    IncrementalIntervals incrementalIntervals;
+    /** whether the population function changed since the last store **/
+    boolean popSizeChanged;
 
     @Override
     public void initAndValidate() {
@@ -37,6 +42,10 @@ public class Coalescent extends TreeDistribution {
         	intervals = new TreeIntervals();
         	intervals.initByName("tree", treeInput.get());
         }
+        incrementalIntervals = null;
+        if (intervals.getClass() == TreeIntervals.class) {
+            incrementalIntervals = new IncrementalIntervals(intervals.treeInput.get(), popSizeInput.get());
+        }
         calculateLogP();
     }
 
@@ -47,7 +56,11 @@ public class Coalescent extends TreeDistribution {
     @Override
     public double calculateLogP() {
 
-        logP = calculateLogLikelihood(intervals, popSizeInput.get());
+        if (incrementalIntervals != null && intervals.getMultifurcationLimit() < 0) {
+            logP = incrementalIntervals.getLogLikelihood();
+        } else {
+            logP = calculateLogLikelihood(intervals, popSizeInput.get());
+        }
 
         if (Double.isInfinite(logP)) {
         	logP = Double.NEGATIVE_INFINITY;
@@ -149,6 +162,28 @@ public class Coalescent extends TreeDistribution {
 
     @Override
     protected boolean requiresRecalculation() {
-        return ((CalculationNode) popSizeInput.get()).isDirtyCalculation() || super.requiresRecalculation();
+        if (((CalculationNode) popSizeInput.get()).isDirtyCalculation()) {
+            popSizeChanged = true;
+            if (incrementalIntervals != null) {
+                incrementalIntervals.setWeightsUnknown();
+            }
+            return true;
+        }
+        return super.requiresRecalculation();
+    }
+
+    @Override
+    public void store() {
+        popSizeChanged = false;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (popSizeChanged && incrementalIntervals != null) {
+            incrementalIntervals.setWeightsUnknown();
+        }
+        popSizeChanged = false;
+        super.restore();
     }
 }
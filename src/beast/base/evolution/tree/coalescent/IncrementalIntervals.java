@@ -0,0 +1,551 @@
+package beast.base.evolution.tree.coalescent;
+
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.util.HeapSort;
+
+/**
+ * Coalescent intervals of a binary tree that are kept up to date incrementally.
+ * <p/>
+ * Every node of the tree is an event that adds a lineage (a tip) or removes one (an internal
+ * node), and closes the interval since the previous event, as in TreeIntervals with the default
+ * multifurcation limit. Events are kept in a treap: a binary search tree ordered by height (and
+ * node number to break ties) that is balanced by fixed pseudo-random priorities. Every subtree
+ * of the treap stores sums over its events from which the coalescent likelihood follows, so when
+ * an operator moves a few node heights, only the events of these nodes and their successors
+ * are updated, in O(log n) each, instead of sorting all heights and revisiting all intervals.
+ * Finding the nodes that moved still takes a linear scan comparing all node heights with the
+ * heights of the previous update, so an update is O(n + m log n) for m moved nodes; the scan
+ * only reads an array of doubles, which is much cheaper than a sort and sweep over all events.
+ * <p/>
+ * The weight of an interval is its integral over the inverse population size if a population
+ * function is given, and its duration otherwise. The coalescent log likelihood is
+ * -sum_i choose2(k_i) w_i - sum_c log N(t_c), with k_i the number of lineages and w_i the weight
+ * of interval i, and t_c the times of coalescent events. Times are relative to the first event.
+ * The population function is assumed unchanged unless setWeightsUnknown() is called.
+ */
+public class IncrementalIntervals {
+
+    final private TreeInterface tree;
+    final private PopulationFunction popSize;
+
+    private int nodeCount = -1;
+    /** heights of the nodes when the treap was last updated **/
+    private double[] times;
+    /** treap structure **/
+    private int[] left, right;
+    private long[] priority;
+    private int root = -1;
+
+    /** per event: change in number of lineages, coalescent or not, weight and log population size of the interval it closes **/
+    private int[] delta;
+    private double[] weight;
+    private double[] logPopSize;
+    /** whether the interval closed by the event has a population size that makes the likelihood zero **/
+    private boolean[] invalid;
+
+    /** per subtree: sums of delta, of weights, of weights times lineages, of weights times lineages squared,
+     * of log population sizes at coalescent events, and number of coalescent events and invalid intervals.
+     * Lineage counts are relative to the first event of the subtree **/
+    private int[] sumDelta;
+    private double[] sumWeight, sumLineageWeight, sumLineage2Weight;
+    private double[] sumLogPopSize;
+    private int[] coalescentCount, invalidCount;
+
+    /** time of the first event, all times are relative to this time **/
+    private double startTime;
+    private boolean weightsKnown = false;
+    /** integral of the population function when weights were calculated, used to detect changes **/
+    private double probeTime, probeIntegral;
+
+    /** scratch arrays for events that moved, and events that need their weight updated **/
+    private int[] moved;
+    private int[] updates;
+    private int updateCount;
+    private int[] order;
+    private int[] stack;
+    /** results of split() **/
+    private int splitLeft, splitRight;
+
+    /**
+     * @param popSize population function, or null if interval weights are durations
+     */
+    public IncrementalIntervals(TreeInterface tree, PopulationFunction popSize) {
+        this.tree = tree;
+        this.popSize = popSize;
+    }
+
+    /** population function changed, so all interval weights need to be recalculated **/
+    public void setWeightsUnknown() {
+        weightsKnown = false;
+    }
+
+    /**
+     * @return log likelihood of the intervals of the tree given the population function
+     */
+    public double getLogLikelihood() {
+        update();
+        if (invalidCount[root] > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return -lineagePairs(sumLineage2Weight[root], sumLineageWeight[root]) - sumLogPopSize[root];
+    }
+
+    /**
+     * @param coalescents number of coalescent events
+     * @return sum of choose2(k_i) w_i over all intervals up to and including the one
+     * that ends in coalescent event number coalescents (counting from 1)
+     */
+    public double getLineagePairWeight(int coalescents) {
+        update();
+        if (coalescents <= 0) {
+            return 0;
+        }
+        // accumulate sums over all events up to the coalescent
+        int lineages = 0;
+        double w = 0, lw = 0, l2w = 0;
+        int t = root;
+        while (t >= 0) {
+            final int l = left[t];
+            final int leftCoalescents = l < 0 ? 0 : coalescentCount[l];
+            if (coalescents <= leftCoalescents) {
+                t = l;
+                continue;
+            }
+            if (l >= 0) {
+                l2w += sumLineage2Weight[l] + 2.0 * lineages * sumLineageWeight[l] + (double) lineages * lineages * sumWeight[l];
+                lw += sumLineageWeight[l] + lineages * sumWeight[l];
+                w += sumWeight[l];
+                lineages += sumDelta[l];
+            }
+            l2w += (double) lineages * lineages * weight[t];
+            lw += lineages * weight[t];
+            w += weight[t];
+            lineages += delta[t];
+            coalescents -= leftCoalescents + (delta[t] < 0 ? 1 : 0);
+            if (coalescents == 0) {
+                break;
+            }
+            t = right[t];
+        }
+        return lineagePairs(l2w, lw);
+    }
+
+    /** sum choose2(k) w = sum (k^2 - k) w / 2 **/
+    private static double lineagePairs(double l2w, double lw) {
+        return (l2w - lw) / 2.0;
+    }
+
+    /**
+     * bring the events up to date with the node heights of the tree:
+     * a linear scan for the nodes that moved, then O(log n) per moved node
+     */
+    public void update() {
+        final Node[] nodes = tree.getNodesAsArray();
+        if (nodes.length != nodeCount) {
+            initArrays(nodes);
+            rebuild(nodes);
+            return;
+        }
+
+        int movedCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (nodes[i].getHeight() != times[i]) {
+                moved[movedCount++] = i;
+            }
+        }
+        if (movedCount > nodeCount / 16) {
+            // many nodes moved, e.g. by scaling the tree, so reorder all events
+            rebuild(nodes);
+            return;
+        }
+
+        updateCount = 0;
+        for (int i = 0; i < movedCount; i++) {
+            final int x = moved[i];
+            addUpdate(successor(x));
+            root = remove(root, x);
+        }
+        for (int i = 0; i < movedCount; i++) {
+            final int x = moved[i];
+            times[x] = nodes[x].getHeight();
+            left[x] = -1;
+            right[x] = -1;
+            root = insert(root, x);
+            addUpdate(x);
+            addUpdate(successor(x));
+        }
+
+        int first = root;
+        while (left[first] >= 0) {
+            first = left[first];
+        }
+        if (times[first] != startTime) {
+            startTime = times[first];
+            if (popSize != null) {
+                weightsKnown = false;
+            }
+        }
+        if (weightsKnown && popSize != null && popSize.getIntegral(0, probeTime) != probeIntegral) {
+            weightsKnown = false;
+        }
+
+        if (!weightsKnown) {
+            inOrder();
+            calculateWeights();
+            pullAll(root);
+        } else {
+            for (int i = 0; i < updateCount; i++) {
+                final int x = updates[i];
+                calculateWeight(predecessor(x), x);
+                refresh(root, x);
+            }
+        }
+    }
+
+    private void addUpdate(int x) {
+        if (x >= 0) {
+            updates[updateCount++] = x;
+        }
+    }
+
+    private void initArrays(Node[] nodes) {
+        nodeCount = nodes.length;
+        times = new double[nodeCount];
+        left = new int[nodeCount];
+        right = new int[nodeCount];
+        priority = new long[nodeCount];
+        delta = new int[nodeCount];
+        weight = new double[nodeCount];
+        logPopSize = new double[nodeCount];
+        invalid = new boolean[nodeCount];
+        sumDelta = new int[nodeCount];
+        sumWeight = new double[nodeCount];
+        sumLineageWeight = new double[nodeCount];
+        sumLineage2Weight = new double[nodeCount];
+        sumLogPopSize = new double[nodeCount];
+        coalescentCount = new int[nodeCount];
+        invalidCount = new int[nodeCount];
+        moved = new int[nodeCount];
+        // every moved node adds at most three updates
+        updates = new int[3 * nodeCount];
+        stack = new int[nodeCount];
+        order = null;
+        for (int i = 0; i < nodeCount; i++) {
+            priority[i] = mix(i);
+        }
+        root = -1;
+    }
+
+    /** fixed pseudo-random priority, so that the Randomizer is not affected **/
+    private static long mix(long x) {
+        x += 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /**
+     * sort all events and build a balanced treap
+     */
+    private void rebuild(Node[] nodes) {
+        for (int i = 0; i < nodeCount; i++) {
+            times[i] = nodes[i].getHeight();
+            // assumes a binary tree, like TreeIntervals
+            delta[i] = nodes[i].isLeaf() ? 1 : -1;
+        }
+        if (order == null) {
+            order = new int[nodeCount];
+            HeapSort.sort(times, order);
+            sortTies();
+        } else {
+            // the previous order is usually nearly sorted
+            inOrder();
+            if (!insertionSort()) {
+                HeapSort.sort(times, order);
+                sortTies();
+            }
+        }
+
+        // Cartesian tree of the sorted events with respect to their priorities
+        int top = -1;
+        for (final int x : order) {
+            int last = -1;
+            while (top >= 0 && priority[stack[top]] < priority[x]) {
+                last = stack[top--];
+            }
+            left[x] = last;
+            right[x] = -1;
+            if (top >= 0) {
+                right[stack[top]] = x;
+            }
+            stack[++top] = x;
+        }
+        root = stack[0];
+        startTime = times[order[0]];
+
+        calculateWeights();
+        pullAll(root);
+    }
+
+    /** order events with equal times by node number **/
+    private void sortTies() {
+        for (int i = 1; i < nodeCount; i++) {
+            final int x = order[i];
+            int j = i - 1;
+            while (j >= 0 && times[order[j]] == times[x] && order[j] > x) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = x;
+        }
+    }
+
+    /**
+     * insertion sort of order, giving up when too many events are out of order
+     * @return whether order is sorted
+     */
+    private boolean insertionSort() {
+        long budget = 8L * nodeCount;
+        for (int i = 1; i < nodeCount; i++) {
+            final int x = order[i];
+            int j = i - 1;
+            while (j >= 0 && less(x, order[j])) {
+                order[j + 1] = order[j];
+                j--;
+                if (--budget < 0) {
+                    return false;
+                }
+            }
+            order[j + 1] = x;
+        }
+        return true;
+    }
+
+    /** fill order with the events in the treap from first to last **/
+    private void inOrder() {
+        if (order == null) {
+            order = new int[nodeCount];
+        }
+        int top = -1, k = 0, t = root;
+        while (t >= 0 || top >= 0) {
+            while (t >= 0) {
+                stack[++top] = t;
+                t = left[t];
+            }
+            t = stack[top--];
+            order[k++] = t;
+            t = right[t];
+        }
+    }
+
+    /** calculate weights of all events, which are in order **/
+    private void calculateWeights() {
+        calculateWeight(-1, order[0]);
+        for (int i = 1; i < nodeCount; i++) {
+            calculateWeight(order[i - 1], order[i]);
+        }
+        if (popSize != null) {
+            probeTime = times[order[nodeCount - 1]] - startTime;
+            probeIntegral = popSize.getIntegral(0, probeTime);
+        }
+        weightsKnown = true;
+    }
+
+    /** weight of the interval closed by event x, which is preceded by event prev **/
+    private void calculateWeight(int prev, int x) {
+        final double finish = times[x] - startTime;
+        final double start = prev < 0 ? finish : times[prev] - startTime;
+        final double duration = prev < 0 ? 0.0 : times[x] - times[prev];
+        if (popSize == null) {
+            weight[x] = duration;
+            return;
+        }
+        weight[x] = popSize.getIntegral(start, finish);
+        // same tests as Coalescent.calculateLogLikelihood with zero threshold
+        invalid[x] = weight[x] == 0 && duration > 1e-10;
+        if (delta[x] < 0) {
+            final double popSizeAtCoalescent = popSize.getPopSize(finish);
+            logPopSize[x] = Math.log(popSizeAtCoalescent);
+            if (!(duration == 0.0 || popSizeAtCoalescent * (weight[x] / duration) >= 0)) {
+                invalid[x] = true;
+            }
+        } else {
+            logPopSize[x] = 0;
+        }
+    }
+
+    /** x < y in order of time, then node number **/
+    private boolean less(int x, int y) {
+        return times[x] < times[y] || (times[x] == times[y] && x < y);
+    }
+
+    private int successor(int x) {
+        int result = -1;
+        int t = root;
+        while (t >= 0) {
+            if (less(x, t)) {
+                result = t;
+                t = left[t];
+            } else {
+                t = right[t];
+            }
+        }
+        return result;
+    }
+
+    private int predecessor(int x) {
+        int result = -1;
+        int t = root;
+        while (t >= 0) {
+            if (less(t, x)) {
+                result = t;
+                t = right[t];
+            } else {
+                t = left[t];
+            }
+        }
+        return result;
+    }
+
+    /*
+     * treap operations
+     */
+
+    private int insert(int t, int x) {
+        if (t < 0) {
+            pull(x);
+            return x;
+        }
+        if (priority[x] > priority[t]) {
+            split(t, x);
+            left[x] = splitLeft;
+            right[x] = splitRight;
+            pull(x);
+            return x;
+        }
+        if (less(x, t)) {
+            left[t] = insert(left[t], x);
+        } else {
+            right[t] = insert(right[t], x);
+        }
+        pull(t);
+        return t;
+    }
+
+    private int remove(int t, int x) {
+        if (t == x) {
+            return merge(left[t], right[t]);
+        }
+        if (less(x, t)) {
+            left[t] = remove(left[t], x);
+        } else {
+            right[t] = remove(right[t], x);
+        }
+        pull(t);
+        return t;
+    }
+
+    /** split treap t into events before x (splitLeft) and the others (splitRight) **/
+    private void split(int t, int x) {
+        if (t < 0) {
+            splitLeft = -1;
+            splitRight = -1;
+            return;
+        }
+        if (less(t, x)) {
+            split(right[t], x);
+            right[t] = splitLeft;
+            pull(t);
+            splitLeft = t;
+        } else {
+            split(left[t], x);
+            left[t] = splitRight;
+            pull(t);
+            splitRight = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a < 0) {
+            return b;
+        }
+        if (b < 0) {
+            return a;
+        }
+        if (priority[a] > priority[b]) {
+            right[a] = merge(right[a], b);
+            pull(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        pull(b);
+        return b;
+    }
+
+    /** recalculate sums on the path from t to x **/
+    private void refresh(int t, int x) {
+        if (t != x) {
+            refresh(less(x, t) ? left[t] : right[t], x);
+        }
+        pull(t);
+    }
+
+    private void pullAll(int t) {
+        if (t >= 0) {
+            pullAll(left[t]);
+            pullAll(right[t]);
+            pull(t);
+        }
+    }
+
+    /** calculate sums of subtree t from those of its children **/
+    private void pull(int t) {
+        final int l = left[t];
+        final int r = right[t];
+
+        int lineages = 0;
+        double w = 0, lw = 0, l2w = 0, logN = 0;
+        int coalescents = 0, invalids = 0;
+        if (l >= 0) {
+            lineages = sumDelta[l];
+            w = sumWeight[l];
+            lw = sumLineageWeight[l];
+            l2w = sumLineage2Weight[l];
+            logN = sumLogPopSize[l];
+            coalescents = coalescentCount[l];
+            invalids = invalidCount[l];
+        }
+
+        w += weight[t];
+        lw += lineages * weight[t];
+        l2w += (double) lineages * lineages * weight[t];
+        logN += logPopSize[t];
+        lineages += delta[t];
+        if (delta[t] < 0) {
+            coalescents++;
+        }
+        if (invalid[t]) {
+            invalids++;
+        }
+
+        if (r >= 0) {
+            l2w += sumLineage2Weight[r] + 2.0 * lineages * sumLineageWeight[r] + (double) lineages * lineages * sumWeight[r];
+            lw += sumLineageWeight[r] + lineages * sumWeight[r];
+            w += sumWeight[r];
+            logN += sumLogPopSize[r];
+            lineages += sumDelta[r];
+            coalescents += coalescentCount[r];
+            invalids += invalidCount[r];
+        }
+
+        sumDelta[t] = lineages;
+        sumWeight[t] = w;
+        sumLineageWeight[t] = lw;
+        sumLineage2Weight[t] = l2w;
+        sumLogPopSize[t] = logN;
+        coalescentCount[t] = coalescents;
+        invalidCount[t] = invalids;
+    }
+}
@@ -0,0 +1,224 @@
+package beast.base.inference;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import beast.base.core.Log;
+
+/**
+ * Output stream for log files that hands off writing to a background thread.
+ * <p/>
+ * Bytes are collected in pooled buffers, and full buffers are queued for a single
+ * writer thread that is shared by all log files and writes them through the file's
+ * FileChannel. The queue is bounded, so when the disk cannot keep up, the MCMC thread
+ * blocks instead of buffering without limit. Buffers are handed off when full,
+ * at most MAX_DELAY milliseconds after the previous hand off (so log files can still be
+ * followed while a chain runs), or when flush() is called.
+ * <p/>
+ * flush() is a barrier: it returns once everything written before has been passed to
+ * the operating system, so MCMC uses it to make log files line up with the state file.
+ */
+class AsyncLogWriter extends OutputStream {
+
+    /** size of pooled buffers **/
+    static final int BUFFER_SIZE = 1 << 16;
+    /** max number of buffers waiting to be written **/
+    static final int QUEUE_CAPACITY = 64;
+    /** max time in milliseconds between hand offs of a partly filled buffer **/
+    static final long MAX_DELAY = 1000;
+
+    /** unit of work for the writer thread: a buffer to write, a barrier to release, or both **/
+    private static class Batch {
+        final AsyncLogWriter owner;
+        final ByteBuffer buffer;
+        final CountDownLatch barrier;
+
+        Batch(AsyncLogWriter owner, ByteBuffer buffer, CountDownLatch barrier) {
+            this.owner = owner;
+            this.buffer = buffer;
+            this.barrier = barrier;
+        }
+    }
+
+    private static final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    /** writers that are not closed yet, flushed when the JVM shuts down **/
+    private static final Set<AsyncLogWriter> openWriters = new LinkedHashSet<>();
+    private static Thread writerThread;
+
+    private final FileChannel channel;
+    private ByteBuffer current;
+    private long lastHandOff;
+    private boolean isClosed = false;
+    /** first error encountered by the writer thread, reported on the next flush **/
+    private volatile IOException error;
+
+    AsyncLogWriter(final FileChannel channel) {
+        this.channel = channel;
+        lastHandOff = System.currentTimeMillis();
+        synchronized (AsyncLogWriter.class) {
+            if (writerThread == null) {
+                writerThread = new Thread(AsyncLogWriter::writeLoop, "BEAST log writer");
+                writerThread.setDaemon(true);
+                writerThread.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(AsyncLogWriter::flushAll));
+            }
+            openWriters.add(this);
+        }
+    }
+
+    @Override
+    public synchronized void write(final int b) throws IOException {
+        ensureOpen();
+        if (current == null || !current.hasRemaining()) {
+            handOff(null);
+            current = obtainBuffer();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(final byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (current == null || !current.hasRemaining()) {
+                handOff(null);
+                current = obtainBuffer();
+            }
+            final int n = Math.min(length, current.remaining());
+            current.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+        if (System.currentTimeMillis() - lastHandOff > MAX_DELAY) {
+            handOff(null);
+        }
+    }
+
+    /**
+     * Hand off everything written so far and wait till it has been written.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        final CountDownLatch barrier = new CountDownLatch(1);
+        handOff(barrier);
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for log file to be written");
+        }
+        if (error != null) {
+            final IOException e = error;
+            error = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            isClosed = true;
+            synchronized (AsyncLogWriter.class) {
+                openWriters.remove(this);
+            }
+            channel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (isClosed) {
+            throw new IOException("Log file is closed");
+        }
+    }
+
+    /** queue current buffer (if not empty) and barrier (if not null) for the writer thread **/
+    private void handOff(final CountDownLatch barrier) throws IOException {
+        ByteBuffer buffer = null;
+        if (current != null && current.position() > 0) {
+            buffer = current;
+            buffer.flip();
+            current = null;
+        }
+        lastHandOff = System.currentTimeMillis();
+        if (buffer == null && barrier == null) {
+            return;
+        }
+        try {
+            // blocks when the writer thread falls behind
+            queue.put(new Batch(this, buffer, barrier));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing log file");
+        }
+    }
+
+    private static ByteBuffer obtainBuffer() {
+        final ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            final Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch.buffer != null) {
+                try {
+                    while (batch.buffer.hasRemaining()) {
+                        batch.owner.channel.write(batch.buffer);
+                    }
+                } catch (IOException e) {
+                    if (batch.owner.error == null) {
+                        batch.owner.error = e;
+                    }
+                }
+                batch.buffer.clear();
+                freeBuffers.add(batch.buffer);
+            }
+            if (batch.barrier != null) {
+                batch.barrier.countDown();
+            }
+        }
+    }
+
+    /** make sure logs are complete when the JVM exits, e.g. through System.exit() **/
+    private static void flushAll() {
+        final List<AsyncLogWriter> writers;
+        synchronized (AsyncLogWriter.class) {
+            writers = new ArrayList<>(openWriters);
+        }
+        for (final AsyncLogWriter writer : writers) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                Log.err.println("Could not complete log file: " + e.getMessage());
+            }
+        }
+    }
+}
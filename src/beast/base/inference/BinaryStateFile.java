@@ -0,0 +1,254 @@
+package beast.base.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import beast.base.core.Log;
+import beast.base.util.Randomizer;
+
+/**
+ * Binary checkpoint format for the State.
+ * <p/>
+ * A state file starts with a header, followed by a sequence of records. Every record
+ * holds the sample number and the binary representation (see StateNode.toBinary())
+ * of a set of StateNodes, and is protected by a CRC32 checksum. The first record is a
+ * full snapshot containing all StateNodes, and is written to a new file that atomically
+ * replaces the old one. Later records are deltas that only contain the StateNodes that
+ * changed since the previous checkpoint, and are appended to the file.
+ * <p/>
+ * When restoring, records are replayed in order. A truncated or corrupt record (e.g. when
+ * the process was killed while appending) ends the replay, so the state is restored from the
+ * last complete checkpoint.
+ * <p/>
+ * Since version 2, every record ends with the state of the random stream of the thread
+ * that stored the state, so that a resumed chain draws the same random numbers.
+ */
+class BinaryStateFile {
+
+    /** first bytes of a binary state file, distinguishes it from an XML state file **/
+    private static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'S', 'T', 'B'};
+    private static final int VERSION = 2;
+
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+
+    private BinaryStateFile() {
+    }
+
+    /**
+     * @return true if file exists and is a binary state file
+     */
+    static boolean isBinary(final File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] header = new byte[MAGIC.length];
+            return in.read(header) == MAGIC.length && Arrays.equals(header, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a full snapshot of all state nodes. The snapshot is written to
+     * a temporary file first, which then replaces file.
+     */
+    static void writeFull(final File file, final long sample, final StateNode[] stateNodes) throws IOException {
+        final File newFile = new File(file.getPath() + ".new");
+        try (FileOutputStream out = new FileOutputStream(newFile)) {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            writeRecord(data, FULL, sample, stateNodes, null);
+            data.flush();
+            out.getFD().sync();
+        }
+        replace(newFile, file);
+    }
+
+    /**
+     * Write content to a temporary file first, which then replaces file, so
+     * that file is never left partially written. Used for files next to a
+     * binary state file, such as the operator schedule.
+     */
+    static void writeAtomically(final File file, final byte[] content) throws IOException {
+        final File newFile = new File(file.getPath() + ".new");
+        try (FileOutputStream out = new FileOutputStream(newFile)) {
+            out.write(content);
+            out.getFD().sync();
+        }
+        replace(newFile, file);
+    }
+
+    private static void replace(final File newFile, final File file) throws IOException {
+        try {
+            Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Append a record containing only those state nodes for which changed is true.
+     * File should have been created by writeFull() before.
+     */
+    static void appendDelta(final File file, final long sample, final StateNode[] stateNodes, final boolean[] changed) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            writeRecord(data, DELTA, sample, stateNodes, changed);
+            data.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static void writeRecord(final DataOutputStream data, final byte type, final long sample,
+                                    final StateNode[] stateNodes, final boolean[] changed) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        final ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        final DataOutputStream node = new DataOutputStream(nodeBytes);
+
+        int nodeCount = 0;
+        for (int i = 0; i < stateNodes.length; i++) {
+            if (changed == null || changed[i]) {
+                nodeCount++;
+            }
+        }
+        record.writeByte(type);
+        record.writeLong(sample);
+        record.writeInt(nodeCount);
+        for (int i = 0; i < stateNodes.length; i++) {
+            if (changed == null || changed[i]) {
+                nodeBytes.reset();
+                stateNodes[i].toBinary(node);
+                node.flush();
+                record.writeUTF(stateNodes[i].getID() == null ? "" : stateNodes[i].getID());
+                record.writeInt(nodeBytes.size());
+                nodeBytes.writeTo(record);
+            }
+        }
+        nodeBytes.reset();
+        Randomizer.writeState(node);
+        node.flush();
+        record.writeInt(nodeBytes.size());
+        nodeBytes.writeTo(record);
+        record.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        data.writeInt(bytes.size());
+        bytes.writeTo(data);
+        data.writeLong(crc.getValue());
+    }
+
+    /**
+     * Restore state nodes from file by replaying its records.
+     *
+     * @return sample number of the last complete checkpoint
+     */
+    static long read(final File file, final StateNode[] stateNodes) throws IOException {
+        // latest representation of every state node, by id
+        final Map<String, byte[]> latest = new LinkedHashMap<>();
+        byte[] randomizerState = null;
+        long sample = -1;
+
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final byte[] header = new byte[MAGIC.length];
+            data.readFully(header);
+            if (!Arrays.equals(header, MAGIC)) {
+                throw new IOException("Not a binary state file: " + file.getPath());
+            }
+            final int version = data.readInt();
+            if (version > VERSION) {
+                throw new IOException("Binary state file " + file.getPath() + " has unsupported version " + version);
+            }
+
+            boolean isFirst = true;
+            while (true) {
+                final byte[] bytes;
+                try {
+                    final int length = data.readInt();
+                    if (length < 0 || length > file.length()) {
+                        Log.warning.println("Corrupt checkpoint found in " + file.getPath() + " -- ignoring it and later ones");
+                        break;
+                    }
+                    bytes = new byte[length];
+                    data.readFully(bytes);
+                    final long checksum = data.readLong();
+                    final CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, length);
+                    if (crc.getValue() != checksum) {
+                        Log.warning.println("Corrupt checkpoint found in " + file.getPath() + " -- ignoring it and later ones");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // end of file, or a checkpoint that was not completely written
+                    break;
+                }
+
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+                final byte type = record.readByte();
+                if (isFirst && type != FULL) {
+                    throw new IOException("Binary state file " + file.getPath() + " does not start with a full checkpoint");
+                }
+                isFirst = false;
+                if (type == FULL) {
+                    latest.clear();
+                }
+                sample = record.readLong();
+                final int nodeCount = record.readInt();
+                for (int i = 0; i < nodeCount; i++) {
+                    final String id = record.readUTF();
+                    final byte[] node = new byte[record.readInt()];
+                    record.readFully(node);
+                    latest.put(id, node);
+                }
+                if (version >= 2) {
+                    randomizerState = new byte[record.readInt()];
+                    record.readFully(randomizerState);
+                }
+            }
+            if (isFirst) {
+                throw new IOException("Binary state file " + file.getPath() + " contains no complete checkpoint");
+            }
+        }
+
+        for (final Map.Entry<String, byte[]> entry : latest.entrySet()) {
+            final String id = entry.getKey();
+            int stateNodeIndex = 0;
+            while (stateNodeIndex < stateNodes.length && !id.equals(stateNodes[stateNodeIndex].getID())) {
+                stateNodeIndex++;
+            }
+            if (stateNodeIndex < stateNodes.length) {
+                final StateNode stateNode2 = stateNodes[stateNodeIndex].copy();
+                stateNode2.fromBinary(new DataInputStream(new ByteArrayInputStream(entry.getValue())));
+                stateNodes[stateNodeIndex].assignFromFragile(stateNode2);
+            } else {
+                Log.warning.println("Cannot restore statenode id " + id + " -- item is ignored");
+            }
+        }
+        if (randomizerState != null) {
+            Randomizer.readState(new DataInputStream(new ByteArrayInputStream(randomizerState)));
+        }
+        return sample;
+    }
+
+}
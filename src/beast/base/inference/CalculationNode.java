@@ -129,6 +129,18 @@ public abstract class CalculationNode extends BEASTObject {
      */
     private boolean isDirty = false;
 
+    /**
+     * Called once at the end of an MCMC run, so that a node can report statistics
+     * on its calculations, such as cache hit rates. Does nothing by default.
+     */
+    public void reportStatistics() {
+    }
+
+    /**
+     * records time spent in this node when profiling, null otherwise
+     */
+    Profiler.Timer profileTimer;
+
     /**
      * Compute a checksum of this calculation node. Checksums are used for validity checks, to ensure
      * that state nodes and fat calculation nodes are correctly restored. The base implementation will
@@ -0,0 +1,487 @@
+package beast.base.inference;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static beast.base.inference.ColumnarLogWriter.BLOCK;
+import static beast.base.inference.ColumnarLogWriter.DOUBLE;
+import static beast.base.inference.ColumnarLogWriter.INDEX;
+import static beast.base.inference.ColumnarLogWriter.LONG;
+import static beast.base.inference.ColumnarLogWriter.MAGIC;
+import static beast.base.inference.ColumnarLogWriter.MAGIC_END;
+import static beast.base.inference.ColumnarLogWriter.VERSION;
+
+/**
+ * Reads a columnar log as written by ColumnarLogWriter (see there for the format),
+ * through memory mapped regions of the file, so only the parts of the file that are
+ * accessed are read from disk.
+ * <p/>
+ * Values can be accessed by row and column, or a column can be streamed block by block.
+ * Any column can be read as strings, which gives the values as they appear in the text
+ * log. Numeric access to a column stored as strings parses its values.
+ * <p/>
+ * A reader is safe to use by multiple threads.
+ */
+public class ColumnarLogReader implements Closeable {
+
+    /** max size of a mapped region, regions hold whole blocks unless a block is larger **/
+    static final long MAX_REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final String preamble;
+    private final String[] columnNames;
+
+    /** position, first row and row count of every block **/
+    private final long[] blockPositions;
+    private final long[] firstRows;
+    private final int[] rowCounts;
+    private final long rowCount;
+    /** end of the last block **/
+    private final long dataEnd;
+
+    /** region that holds every block, and start of every region in the file **/
+    private final int[] blockRegions;
+    private final long[] regionStarts;
+    private final long[] regionEnds;
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+
+    public ColumnarLogReader(final File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+
+            // header
+            ByteBuffer buffer = read(0, MAGIC.length + 8);
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file.getPath() + " is not a columnar log");
+            }
+            final int version = buffer.getInt();
+            if (version > VERSION) {
+                throw new IOException("Columnar log " + file.getPath() + " has version " + version
+                        + ", but only versions up to " + VERSION + " are supported");
+            }
+            final int preambleLength = buffer.getInt();
+            long position = MAGIC.length + 8;
+            preamble = new String(read(position, preambleLength).array(), StandardCharsets.UTF_8);
+            position += preambleLength;
+            final int columnCount = read(position, 4).getInt();
+            position += 4;
+            columnNames = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                final int length = read(position, 4).getInt();
+                columnNames[i] = new String(read(position + 4, length).array(), StandardCharsets.UTF_8);
+                position += 4 + length;
+            }
+
+            // blocks, from the index if there is one, else by following the blocks
+            final List<long[]> blocks = new ArrayList<>();
+            long end = position;
+            boolean hasIndex = false;
+            if (size >= position + 5 + 8 + MAGIC_END.length) {
+                buffer = read(size - 8 - MAGIC_END.length, 8 + MAGIC_END.length);
+                final long indexPosition = buffer.getLong();
+                final byte[] magicEnd = new byte[MAGIC_END.length];
+                buffer.get(magicEnd);
+                if (Arrays.equals(magicEnd, MAGIC_END) && indexPosition >= position && indexPosition < size) {
+                    buffer = read(indexPosition, 5);
+                    if (buffer.get() == INDEX) {
+                        final int blockCount = buffer.getInt();
+                        buffer = read(indexPosition + 5, 12L * blockCount);
+                        for (int i = 0; i < blockCount; i++) {
+                            blocks.add(new long[]{buffer.getLong(), buffer.getInt()});
+                        }
+                        end = indexPosition;
+                        hasIndex = true;
+                    }
+                }
+            }
+            if (!hasIndex) {
+                while (position + 9 <= size) {
+                    buffer = read(position, 9);
+                    if (buffer.get() != BLOCK) {
+                        break;
+                    }
+                    final long blockEnd = position + 5 + buffer.getInt();
+                    if (blockEnd > size) {
+                        // incomplete block
+                        break;
+                    }
+                    blocks.add(new long[]{position, buffer.getInt()});
+                    position = blockEnd;
+                }
+                end = position;
+            }
+            dataEnd = end;
+
+            final int blockCount = blocks.size();
+            blockPositions = new long[blockCount];
+            firstRows = new long[blockCount];
+            rowCounts = new int[blockCount];
+            long rows = 0;
+            for (int i = 0; i < blockCount; i++) {
+                blockPositions[i] = blocks.get(i)[0];
+                rowCounts[i] = (int) blocks.get(i)[1];
+                firstRows[i] = rows;
+                rows += rowCounts[i];
+            }
+            rowCount = rows;
+
+            // group blocks into regions
+            blockRegions = new int[blockCount];
+            final List<long[]> regionList = new ArrayList<>();
+            for (int i = 0; i < blockCount; i++) {
+                final long blockEnd = i + 1 < blockCount ? blockPositions[i + 1] : dataEnd;
+                final long[] last = regionList.isEmpty() ? null : regionList.get(regionList.size() - 1);
+                if (last != null && blockEnd - last[0] <= MAX_REGION_SIZE) {
+                    last[1] = blockEnd;
+                } else {
+                    regionList.add(new long[]{blockPositions[i], blockEnd});
+                }
+                blockRegions[i] = regionList.size() - 1;
+            }
+            regionStarts = new long[regionList.size()];
+            regionEnds = new long[regionList.size()];
+            for (int i = 0; i < regionStarts.length; i++) {
+                regionStarts[i] = regionList.get(i)[0];
+                regionEnds[i] = regionList.get(i)[1];
+            }
+            regions = new AtomicReferenceArray<>(regionStarts.length);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if file exists and is a columnar log
+     */
+    public static boolean isColumnarLog(final File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(MAGIC.length);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+            }
+            return Arrays.equals(header.array(), MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** text that precedes the column names in the text log **/
+    public String getPreamble() {
+        return preamble;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(final int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @return index of the column with given name, or -1 if there is no such column
+     */
+    public int getColumnIndex(final String name) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockCount() {
+        return blockPositions.length;
+    }
+
+    public int getBlockRowCount(final int block) {
+        return rowCounts[block];
+    }
+
+    /** @return row number of the first row in block **/
+    public long getBlockFirstRow(final int block) {
+        return firstRows[block];
+    }
+
+    long getBlockPosition(final int block) {
+        return blockPositions[block];
+    }
+
+    /** end of the last complete block, where ColumnarLogWriter.append() continues **/
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    public double getDouble(final long row, final int column) {
+        final int block = blockOf(row);
+        return getDouble(block, (int) (row - firstRows[block]), column);
+    }
+
+    public long getLong(final long row, final int column) {
+        final int block = blockOf(row);
+        final int i = (int) (row - firstRows[block]);
+        final ByteBuffer region = region(block);
+        final int data = columnData(region, block, column);
+        switch (region.get(columnEntry(block, column))) {
+        case LONG:
+            return region.getLong(data + 8 * i);
+        case DOUBLE:
+            return (long) region.getDouble(data + 8 * i);
+        default:
+            return Long.parseLong(getString(region, data, rowCounts[block], i));
+        }
+    }
+
+    /**
+     * @return value as it appears in the text log
+     */
+    public String getString(final long row, final int column) {
+        final int block = blockOf(row);
+        return getString(block, (int) (row - firstRows[block]), column);
+    }
+
+    /**
+     * @return values of a column in a block
+     */
+    public double[] getDoubles(final int block, final int column) {
+        final ByteBuffer region = region(block);
+        final int data = columnData(region, block, column);
+        final double[] values = new double[rowCounts[block]];
+        switch (region.get(columnEntry(block, column))) {
+        case LONG:
+            for (int i = 0; i < values.length; i++) {
+                values[i] = region.getLong(data + 8 * i);
+            }
+            break;
+        case DOUBLE:
+            for (int i = 0; i < values.length; i++) {
+                values[i] = region.getDouble(data + 8 * i);
+            }
+            break;
+        default:
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.parseDouble(getString(region, data, values.length, i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return all values of a column, which should have fewer than 2^31 rows
+     */
+    public double[] getDoubles(final int column) {
+        if (rowCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many rows for an array, use doubles(column) instead");
+        }
+        final double[] values = new double[(int) rowCount];
+        for (int i = 0; i < getBlockCount(); i++) {
+            System.arraycopy(getDoubles(i, column), 0, values, (int) firstRows[i], rowCounts[i]);
+        }
+        return values;
+    }
+
+    /**
+     * @return values of a column, read block by block as the stream is consumed
+     */
+    public DoubleStream doubles(final int column) {
+        return IntStream.range(0, getBlockCount()).mapToObj(block -> getDoubles(block, column)).flatMapToDouble(DoubleStream::of);
+    }
+
+    /**
+     * @return values of a column as longs, read block by block as the stream is consumed
+     */
+    public LongStream longs(final int column) {
+        return LongStream.range(0, rowCount).map(row -> getLong(row, column));
+    }
+
+    /**
+     * @return values of a column as they appear in the text log, read block by block as the stream is consumed
+     */
+    public Stream<String> strings(final int column) {
+        return IntStream.range(0, getBlockCount()).boxed().flatMap(block ->
+                IntStream.range(0, rowCounts[block]).mapToObj(i -> getString(block, i, column)));
+    }
+
+    /**
+     * Write the text log this columnar log represents.
+     */
+    public void toText(final PrintStream out) {
+        out.print(preamble);
+        out.println(String.join("\t", columnNames));
+        final StringBuilder b = new StringBuilder();
+        for (int block = 0; block < getBlockCount(); block++) {
+            for (int i = 0; i < rowCounts[block]; i++) {
+                b.setLength(0);
+                for (int column = 0; column < columnNames.length; column++) {
+                    if (column > 0) {
+                        b.append('\t');
+                    }
+                    b.append(getString(block, i, column));
+                }
+                out.println(b.toString().trim());
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Convert a columnar log to a text trace log in UTF-8.
+     */
+    public static void toText(final File columnarLog, final File textLog) throws IOException {
+        try (ColumnarLogReader reader = new ColumnarLogReader(columnarLog);
+             PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(textLog), 1 << 16), false, "UTF-8")) {
+            reader.toText(out);
+        }
+    }
+
+    /**
+     * Converts a columnar log to a text log, or a text log to a columnar log.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ColumnarLogReader <input log> <output log>");
+            System.err.println("Converts a columnar (binary) log to a text log, or a text log to a columnar log.");
+            System.exit(1);
+        }
+        final File in = new File(args[0]);
+        final File out = new File(args[1]);
+        if (isColumnarLog(in)) {
+            toText(in, out);
+        } else {
+            ColumnarLogWriter.fromText(in, out, ColumnarLogWriter.DEFAULT_BLOCK_SIZE);
+        }
+    }
+
+    private double getDouble(final int block, final int i, final int column) {
+        final ByteBuffer region = region(block);
+        final int data = columnData(region, block, column);
+        switch (region.get(columnEntry(block, column))) {
+        case LONG:
+            return region.getLong(data + 8 * i);
+        case DOUBLE:
+            return region.getDouble(data + 8 * i);
+        default:
+            return Double.parseDouble(getString(region, data, rowCounts[block], i));
+        }
+    }
+
+    private String getString(final int block, final int i, final int column) {
+        final ByteBuffer region = region(block);
+        final int data = columnData(region, block, column);
+        switch (region.get(columnEntry(block, column))) {
+        case LONG:
+            return Long.toString(region.getLong(data + 8 * i));
+        case DOUBLE:
+            return Double.toString(region.getDouble(data + 8 * i));
+        default:
+            return getString(region, data, rowCounts[block], i);
+        }
+    }
+
+    /** string i of a STRING column with given number of rows, of which the data starts at data **/
+    private String getString(final ByteBuffer region, final int data, final int rows, final int i) {
+        final int start = region.getInt(data + 4 * i);
+        final int end = region.getInt(data + 4 * i + 4);
+        final byte[] bytes = new byte[end - start];
+        final ByteBuffer strings = region.duplicate();
+        strings.position(data + 4 * (rows + 1) + start);
+        strings.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** position in the region of the type and offset of column in block **/
+    private int columnEntry(final int block, final int column) {
+        if (column < 0 || column >= columnNames.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " out of range, there are " + columnNames.length + " columns");
+        }
+        return (int) (blockPositions[block] - regionStarts[blockRegions[block]]) + 9 + 5 * column;
+    }
+
+    /** position in the region of the data of column in block **/
+    private int columnData(final ByteBuffer region, final int block, final int column) {
+        final int entry = columnEntry(block, column);
+        return (int) (blockPositions[block] - regionStarts[blockRegions[block]]) + 5 + region.getInt(entry + 1);
+    }
+
+    private int blockOf(final long row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of range, there are " + rowCount + " rows");
+        }
+        final int i = Arrays.binarySearch(firstRows, row);
+        if (i >= 0) {
+            // skip empty blocks
+            int block = i;
+            while (rowCounts[block] == 0) {
+                block++;
+            }
+            return block;
+        }
+        return -i - 2;
+    }
+
+    private ByteBuffer region(final int block) {
+        final int r = blockRegions[block];
+        MappedByteBuffer region = regions.get(r);
+        if (region == null) {
+            synchronized (this) {
+                region = regions.get(r);
+                if (region == null) {
+                    try {
+                        region = channel.map(FileChannel.MapMode.READ_ONLY, regionStarts[r], regionEnds[r] - regionStarts[r]);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Could not map columnar log: " + e.getMessage(), e);
+                    }
+                    regions.set(r, region);
+                }
+            }
+        }
+        return region;
+    }
+
+    /** read length bytes at position, without mapping the file **/
+    private ByteBuffer read(final long position, final long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE || position + length > channel.size()) {
+            throw new IOException("Columnar log is truncated or corrupt");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Columnar log is truncated or corrupt");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
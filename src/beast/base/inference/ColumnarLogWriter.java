@@ -0,0 +1,394 @@
+package beast.base.inference;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a trace log in columnar binary format, which can be read by ColumnarLogReader.
+ * <p/>
+ * A columnar log starts with a header holding the text that precedes the column
+ * names in a text log (such as the model) and the column names. Rows are collected
+ * in blocks of blockSize rows, and every block stores its values column by column.
+ * For every block, each column gets the narrowest type that represents all its values
+ * exactly as they appear in a text log: LONG for integers, DOUBLE for numbers that
+ * print the same as Double.toString(), and STRING otherwise. So, a columnar log can be
+ * converted back to the text log it represents. The file ends with an index of blocks,
+ * which is written by close(). A file without index, for instance when the process was
+ * killed, can still be read up to its last complete block.
+ * <p/>
+ * Layout, using big-endian numbers:
+ * <pre>
+ * header: MAGIC, int version, int preamble length, preamble (UTF-8),
+ *         int column count, for every column: int name length, name (UTF-8)
+ * block:  byte BLOCK, int length of the rest of the block, int row count,
+ *         for every column: byte type, int offset of the column data from the row count,
+ *         column data: LONG and DOUBLE: a long or double per row,
+ *                      STRING: row count + 1 int offsets into the UTF-8 bytes that follow
+ * index:  byte INDEX, int block count, for every block: long position, int row count,
+ *         long position of the index, MAGIC_END
+ * </pre>
+ */
+public class ColumnarLogWriter implements Closeable {
+
+    /** first bytes of a columnar log file, distinguishes it from a text log **/
+    static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'L', 'O', 'G'};
+    /** last bytes of a columnar log file that has an index **/
+    static final byte[] MAGIC_END = {'B', 'E', 'A', 'S', 'T', 'I', 'D', 'X'};
+    static final int VERSION = 1;
+
+    static final byte BLOCK = 'B';
+    static final byte INDEX = 'I';
+
+    static final byte LONG = 0;
+    static final byte DOUBLE = 1;
+    static final byte STRING = 2;
+
+    /** default number of rows in a block **/
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final FileChannel channel;
+    private final int columnCount;
+    private final String[] columnNames;
+    private final int blockSize;
+
+    /** rows of the block that is not written yet **/
+    private final String[][] rows;
+    private int rowCount;
+
+    /** position and row count of blocks written so far, for the index **/
+    private final List<long[]> blocks = new ArrayList<>();
+    private String[] lastRow;
+    private boolean isClosed = false;
+
+    /**
+     * Create a new columnar log, replacing file if it exists.
+     * @param preamble text that precedes the column names in the text log, may be empty
+     */
+    public ColumnarLogWriter(final File file, final String preamble, final String[] columnNames, final int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize should be positive, not " + blockSize);
+        }
+        this.columnNames = columnNames.clone();
+        this.columnCount = columnNames.length;
+        this.blockSize = blockSize;
+        rows = new String[blockSize][];
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        final byte[] preambleBytes = preamble.getBytes(StandardCharsets.UTF_8);
+        final byte[][] names = new byte[columnCount][];
+        int size = MAGIC.length + 12 + preambleBytes.length;
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = columnNames[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + names[i].length;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(size);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(preambleBytes.length);
+        header.put(preambleBytes);
+        header.putInt(columnCount);
+        for (final byte[] name : names) {
+            header.putInt(name.length);
+            header.put(name);
+        }
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Open an existing columnar log to add rows to it. The index, and anything after
+     * the last complete block, is removed from the file, and written again by close().
+     */
+    public static ColumnarLogWriter append(final File file, final int blockSize) throws IOException {
+        return new ColumnarLogWriter(file, blockSize);
+    }
+
+    private ColumnarLogWriter(final File file, final int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize should be positive, not " + blockSize);
+        }
+        final long end;
+        try (ColumnarLogReader reader = new ColumnarLogReader(file)) {
+            columnCount = reader.getColumnCount();
+            columnNames = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = reader.getColumnName(i);
+            }
+            for (int i = 0; i < reader.getBlockCount(); i++) {
+                blocks.add(new long[]{reader.getBlockPosition(i), reader.getBlockRowCount(i)});
+            }
+            end = reader.getDataEnd();
+            if (reader.getRowCount() > 0) {
+                lastRow = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    lastRow[i] = reader.getString(reader.getRowCount() - 1, i);
+                }
+            }
+        }
+        this.blockSize = blockSize;
+        rows = new String[blockSize][];
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public String getColumnName(final int column) {
+        return columnNames[column];
+    }
+
+    /**
+     * @return values of the last row added, or null if there are no rows
+     */
+    public String[] getLastRow() {
+        return lastRow == null ? null : lastRow.clone();
+    }
+
+    /**
+     * Add a row. Missing values are stored as empty strings, and values beyond
+     * the last column are added to the last column, separated by tabs.
+     */
+    public void addRow(final String[] values) throws IOException {
+        if (isClosed) {
+            throw new IOException("Columnar log is closed");
+        }
+        String[] row = values.clone();
+        if (row.length != columnCount) {
+            row = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = i < values.length ? values[i] : "";
+            }
+            if (values.length > columnCount && columnCount > 0) {
+                final StringBuilder b = new StringBuilder(values[columnCount - 1]);
+                for (int i = columnCount; i < values.length; i++) {
+                    b.append('\t').append(values[i]);
+                }
+                row[columnCount - 1] = b.toString();
+            }
+        }
+        rows[rowCount++] = row;
+        lastRow = row;
+        if (rowCount == blockSize) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Add a line of a text log, with values separated by tabs.
+     */
+    public void addLine(final String line) throws IOException {
+        addRow(line.split("\t", -1));
+    }
+
+    /**
+     * Write rows added so far to the file, as a block that may be shorter than blockSize.
+     */
+    public void flush() throws IOException {
+        if (rowCount > 0) {
+            writeBlock();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Write remaining rows and the index, and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        if (rowCount > 0) {
+            writeBlock();
+        }
+        final long position = channel.position();
+        final ByteBuffer index = ByteBuffer.allocate(1 + 4 + blocks.size() * 12 + 8 + MAGIC_END.length);
+        index.put(INDEX);
+        index.putInt(blocks.size());
+        for (final long[] block : blocks) {
+            index.putLong(block[0]);
+            index.putInt((int) block[1]);
+        }
+        index.putLong(position);
+        index.put(MAGIC_END);
+        index.flip();
+        write(index);
+        channel.close();
+        isClosed = true;
+    }
+
+    private void writeBlock() throws IOException {
+        final byte[] types = new byte[columnCount];
+        final byte[][][] strings = new byte[columnCount][][];
+        final double[][] values = new double[columnCount][];
+        // size of the block after the length field
+        long size = 4 + columnCount * 5L;
+        for (int i = 0; i < columnCount; i++) {
+            values[i] = new double[rowCount];
+            types[i] = typeOf(i, values[i]);
+            if (types[i] == STRING) {
+                strings[i] = new byte[rowCount][];
+                size += 4L * (rowCount + 1);
+                for (int j = 0; j < rowCount; j++) {
+                    strings[i][j] = rows[j][i].getBytes(StandardCharsets.UTF_8);
+                    size += strings[i][j].length;
+                }
+            } else {
+                size += 8L * rowCount;
+            }
+        }
+        if (size > Integer.MAX_VALUE - 5) {
+            throw new IOException("Block of columnar log too large, use a smaller block size");
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(5 + (int) size);
+        buffer.put(BLOCK);
+        buffer.putInt((int) size);
+        buffer.putInt(rowCount);
+        int offset = 4 + columnCount * 5;
+        for (int i = 0; i < columnCount; i++) {
+            buffer.put(types[i]);
+            buffer.putInt(offset);
+            if (types[i] == STRING) {
+                offset += 4 * (rowCount + 1);
+                for (final byte[] bytes : strings[i]) {
+                    offset += bytes.length;
+                }
+            } else {
+                offset += 8 * rowCount;
+            }
+        }
+        for (int i = 0; i < columnCount; i++) {
+            switch (types[i]) {
+            case LONG:
+                for (int j = 0; j < rowCount; j++) {
+                    buffer.putLong(Long.parseLong(rows[j][i]));
+                }
+                break;
+            case DOUBLE:
+                for (int j = 0; j < rowCount; j++) {
+                    buffer.putDouble(values[i][j]);
+                }
+                break;
+            default:
+                int stringOffset = 0;
+                for (final byte[] bytes : strings[i]) {
+                    buffer.putInt(stringOffset);
+                    stringOffset += bytes.length;
+                }
+                buffer.putInt(stringOffset);
+                for (final byte[] bytes : strings[i]) {
+                    buffer.put(bytes);
+                }
+            }
+        }
+        buffer.flip();
+
+        blocks.add(new long[]{channel.position(), rowCount});
+        write(buffer);
+        for (int j = 0; j < rowCount; j++) {
+            rows[j] = null;
+        }
+        rowCount = 0;
+    }
+
+    /**
+     * @return narrowest type that represents all values of column in the current block exactly
+     * @param values if the type is DOUBLE, this is filled with the values
+     */
+    private byte typeOf(final int column, final double[] values) {
+        boolean isLong = true;
+        for (int j = 0; j < rowCount && isLong; j++) {
+            isLong = isLong(rows[j][column]);
+        }
+        if (isLong) {
+            return LONG;
+        }
+        for (int j = 0; j < rowCount; j++) {
+            final String value = rows[j][column];
+            if (!mayBeDouble(value)) {
+                return STRING;
+            }
+            try {
+                values[j] = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return STRING;
+            }
+            if (!Double.toString(values[j]).equals(value)) {
+                return STRING;
+            }
+        }
+        return DOUBLE;
+    }
+
+    /** true if value is printed by Long.toString(), without risking an overflow when parsing it **/
+    private static boolean isLong(final String value) {
+        final int length = value.length();
+        int i = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (i == length || length - i > 18 || (value.charAt(i) == '0' && length > i + 1) || value.equals("-0")) {
+            return false;
+        }
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** quick check that saves parsing values that cannot be numbers **/
+    private static boolean mayBeDouble(final String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        final char c = value.charAt(0);
+        return (c >= '0' && c <= '9') || c == '-' || c == 'N' || c == 'I';
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Convert a text trace log in UTF-8 to a columnar log. Lines before the column names that
+     * start with # are kept as preamble, comment lines after the column names are dropped.
+     */
+    public static void fromText(final File textLog, final File columnarLog, final int blockSize) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(textLog), StandardCharsets.UTF_8))) {
+            final StringBuilder preamble = new StringBuilder();
+            String line = in.readLine();
+            while (line != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                preamble.append(line).append(System.lineSeparator());
+                line = in.readLine();
+            }
+            if (line == null) {
+                throw new IOException("No column names found in " + textLog.getPath());
+            }
+            try (ColumnarLogWriter writer = new ColumnarLogWriter(columnarLog, preamble.toString(), line.trim().split("\t"), blockSize)) {
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("#") && !line.trim().isEmpty()) {
+                        writer.addLine(line.trim());
+                    }
+                }
+            }
+        }
+    }
+
+}
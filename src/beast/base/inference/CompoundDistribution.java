@@ -30,9 +30,8 @@ package beast.base.inference;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
 
 import beast.base.core.BEASTInterface;
@@ -40,6 +39,7 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.core.ProgramStatus;
+import beast.base.inference.util.ForkJoinScheduler;
 
 
 @Description("Takes a collection of distributions, typically a number of likelihoods " +
@@ -63,7 +63,18 @@ public class CompoundDistribution extends Distribution {
     boolean useThreads;
     int nrOfThreads;
     boolean ignore;
+    /**
+     * no longer used: threaded distributions are calculated on the
+     * pool shared through ForkJoinScheduler
+     */
+    @Deprecated
     public static ExecutorService exec;
+
+    /**
+     * time in nano seconds taken by the last calculation of each of the distributions,
+     * used to start the most expensive distributions first when using threads
+     */
+    private long[] calculationTime;
     
     @Override
     public void initAndValidate() {
@@ -72,10 +83,9 @@ public class CompoundDistribution extends Distribution {
 		nrOfThreads = useThreads ? ProgramStatus.m_nThreads : 1;
 		if (useThreads && maxNrOfThreadsInput.get() > 0) {
 			nrOfThreads = Math.min(maxNrOfThreadsInput.get(), ProgramStatus.m_nThreads);
+			useThreads = nrOfThreads > 1;
 		}
-		if (useThreads) {
-		     exec = Executors.newFixedThreadPool(nrOfThreads);
-		}
+		calculationTime = new long[pDistributions.get().size()];
 
         ignore = ignoreInput.get();
 
@@ -110,7 +120,7 @@ public class CompoundDistribution extends Distribution {
         } else {
             for (Distribution dists : pDistributions.get()) {
                 if (dists.isDirtyCalculation()) {
-                    logP += dists.calculateLogP();
+                    logP += Profiler.calculateLogP(dists);
                 } else {
                     logP += dists.getCurrentLogP();
                 }
@@ -122,57 +132,56 @@ public class CompoundDistribution extends Distribution {
         return logP;
     }
 
-    class CoreRunnable implements java.lang.Runnable {
-        Distribution distr;
+    class CoreTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Distribution distr;
+        final int index;
 
-        CoreRunnable(Distribution core) {
-            distr = core;
+        CoreTask(Distribution distr, int index) {
+            this.distr = distr;
+            this.index = index;
         }
 
         @Override
-		public void run() {
+        protected void compute() {
             try {
-                if (distr.isDirtyCalculation()) {
-                    logP += distr.calculateLogP();
-                } else {
-                    logP += distr.getCurrentLogP();
+                long start = System.nanoTime();
+                distr.calculateLogP();
+                calculationTime[index] = System.nanoTime() - start;
+                if (distr.profileTimer != null) {
+                    distr.profileTimer.add(Profiler.CALCULATE, start);
                 }
-            } catch (Exception e) {
+            } catch (RuntimeException e) {
                 Log.err.println("Something went wrong in a calculation of " + distr.getID());
-                e.printStackTrace();
-                System.exit(1);
+                throw e;
             }
-            countDown.countDown();
         }
 
-    } // CoreRunnable
-
-    CountDownLatch countDown;
+    } // CoreTask
 
     private double calculateLogPUsingThreads() {
         try {
-
-            int dirtyDistrs = 0;
-            for (Distribution dists : pDistributions.get()) {
-                if (dists.isDirtyCalculation()) {
-                    dirtyDistrs++;
-                }
-            }
-            countDown = new CountDownLatch(dirtyDistrs);
-            // kick off the threads
-            for (Distribution dists : pDistributions.get()) {
-                if (dists.isDirtyCalculation()) {
-                    CoreRunnable coreRunnable = new CoreRunnable(dists);
-                    exec.execute(coreRunnable);
+            // collect dirty distributions, most expensive first so that cheap
+            // ones can fill up idle threads at the end
+            List<Distribution> distrs = pDistributions.get();
+            List<CoreTask> tasks = new ArrayList<>();
+            for (int i = 0; i < distrs.size(); i++) {
+                if (distrs.get(i).isDirtyCalculation()) {
+                    tasks.add(new CoreTask(distrs.get(i), i));
                 }
             }
-            countDown.await();
+            tasks.sort((t1, t2) -> Long.compare(calculationTime[t2.index], calculationTime[t1.index]));
+
+            // threads are shared through ForkJoinScheduler, which runs
+            // no more than nrOfThreads distributions at the same time
+            ForkJoinScheduler.invokeAll(tasks, nrOfThreads);
+
             logP = 0;
-            for (Distribution distr : pDistributions.get()) {
+            for (Distribution distr : distrs) {
                 logP += distr.getCurrentLogP();
             }
             return logP;
-        } catch (RejectedExecutionException | InterruptedException e) {
+        } catch (RejectedExecutionException e) {
             useThreads = false;
             Log.err.println("Stop using threads: " + e.getMessage());
             return calculateLogP();
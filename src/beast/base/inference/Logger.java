@@ -33,6 +33,7 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
@@ -64,6 +65,10 @@ public class Logger extends BEASTObject {
         none, alphabetic, smart
     }
 
+    public enum LOGFORMAT {
+        text, binary
+    }
+
     final public Input<String> fileNameInput = new Input<>("fileName", "Name of the file, or stdout if left blank");
 
     final public Input<Integer> everyInput = new Input<>("logEvery", "Number of the samples logged", 1);
@@ -78,6 +83,9 @@ public class Logger extends BEASTObject {
             "Element in a log. This can be any plug in that is Loggable.",
             new ArrayList<>(), Validate.REQUIRED, Loggable.class);
     final public Input<Boolean> convertToASCIIInput = new Input<>("ascii", "whether to convert the log output to ASCII" , true);
+    final public Input<LOGFORMAT> formatInput = new Input<>("format", "format of the log file, one of " + Arrays.toString(LOGFORMAT.values()) + ". "
+    		+ "A binary log stores values column by column, and is much faster to load than a text log (see ColumnarLogReader). "
+    		+ "Only trace logs written to file can be binary.", LOGFORMAT.text, LOGFORMAT.values());
     // the file name to log to, or null, or "" if logging to stdout
     private String fileName;
 
@@ -111,6 +119,31 @@ public class Logger extends BEASTObject {
      */
     protected PrintStream m_out;
 
+    /**
+     * background writer m_out writes to when logging to file, null otherwise
+     */
+    private AsyncLogWriter writer;
+
+    /**
+     * buffer that Loggables write a log line into, reused for every line
+     */
+    private LineBuffer lineBuffer;
+    private PrintStream lineStream;
+
+    /**
+     * columnar log to write to when the format is binary, null otherwise
+     */
+    private ColumnarLogWriter columnarLog;
+    /** collects the text preceding the first line of a binary log in init() **/
+    private ByteArrayOutputStream columnarHeader;
+
+    /** ByteArrayOutputStream that gives access to its bytes without copying **/
+    private static class LineBuffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
     /**
      * keep track of time taken between logs to estimate speed *
      */
@@ -154,6 +187,15 @@ public class Logger extends BEASTObject {
         if (everyInput.get() != null) {
             every = everyInput.get();
         }
+
+        if (formatInput.get() == LOGFORMAT.binary) {
+            if (this.mode != LOGMODE.compound) {
+                throw new IllegalArgumentException("Binary format is only supported for trace logs, not for tree logs");
+            }
+            if (isLoggingToStdout()) {
+                throw new IllegalArgumentException("Binary format requires a file name");
+            }
+        }
         
         if (this.mode == LOGMODE.compound) {
         	switch (sortModeInput.get()) {
@@ -276,9 +318,28 @@ public class Logger extends BEASTObject {
                 }
             }
             m_out.println();
+
+            if (columnarHeader != null) {
+                openColumnarLog();
+            }
         }
     } // init
 
+    /**
+     * Create the columnar log from the text written to m_out in init(),
+     * of which the last line has the column names.
+     */
+    private void openColumnarLog() throws IOException {
+        m_out.flush();
+        String text = columnarHeader.toString();
+        columnarHeader = null;
+        text = text.substring(0, text.length() - System.lineSeparator().length());
+        final int lineStart = text.lastIndexOf('\n') + 1;
+        columnarLog = new ColumnarLogWriter(new File(fileName), text.substring(0, lineStart),
+                text.substring(lineStart).split("\t"), ColumnarLogWriter.DEFAULT_BLOCK_SIZE);
+        m_out = new PrintStream(OutputStream.nullOutputStream());
+    }
+
     /** remove indicators of partition context from header of a log file **/
     public String sanitiseHeader(String header) {
     	// collect partitions
@@ -400,7 +461,7 @@ public class Logger extends BEASTObject {
                             System.exit(0);
                         }
                     }
-                    m_out = new PrintStream(fileName);
+                    m_out = openFile(false);
                     Log.info.println("Writing file " + fileName);
                     return true;
                 }
@@ -410,7 +471,7 @@ public class Logger extends BEASTObject {
                     if (new File(fileName).exists()) {
                         msg = "Warning: Overwriting";
                     }
-                    m_out = new PrintStream(fileName);
+                    m_out = openFile(false);
                     Log.warning.println(msg + " file " + fileName);
                     return true;
                 }
@@ -422,8 +483,7 @@ public class Logger extends BEASTObject {
                             // first find the sample nr offset
                             Logger.sampleOffset = getLogOffset();
                             // open the file for appending
-                            final FileOutputStream out2 = new FileOutputStream(fileName, true);
-                            m_out = new PrintStream(out2);
+                            m_out = openFile(true);
                         } else {
                             // it is a tree logger, we may need to get rid of the last line!
 
@@ -435,8 +495,7 @@ public class Logger extends BEASTObject {
                             // open the file and write back all but the last line
                             final BufferedReader fin = new BufferedReader(new FileReader(fileName+".bu"));
 
-                            final FileOutputStream out2 = new FileOutputStream(fileName);
-                            m_out = new PrintStream(out2);
+                            m_out = openFile(false);
 
                             //final StringBuilder buf = new StringBuilder();
                             String strLast = null;
@@ -476,7 +535,7 @@ public class Logger extends BEASTObject {
                         Log.info.println("Appending file " + fileName);
                         return false;
                     } else {
-                        m_out = new PrintStream(fileName);
+                        m_out = openFile(false);
                         Log.warning.println("WARNING: Resuming, but file " + fileName + " does not exist yet (perhaps the seed number is not the same as before?).");
                         Log.info.println("Writing new file " + fileName);
                         return true;
@@ -488,6 +547,24 @@ public class Logger extends BEASTObject {
         }
     } // openLogFile
 
+    /**
+     * open log file for writing through an AsyncLogWriter
+     * @param append whether to append to the file or overwrite it
+     */
+    private PrintStream openFile(final boolean append) throws IOException {
+        if (formatInput.get() == LOGFORMAT.binary) {
+            if (append) {
+                columnarLog = ColumnarLogWriter.append(new File(fileName), ColumnarLogWriter.DEFAULT_BLOCK_SIZE);
+                return new PrintStream(OutputStream.nullOutputStream());
+            }
+            // the columnar log is created when init() has written the header
+            columnarHeader = new ByteArrayOutputStream();
+            return new PrintStream(columnarHeader);
+        }
+        writer = new AsyncLogWriter(new FileOutputStream(fileName, append).getChannel());
+        return new PrintStream(writer);
+    }
+
 	/**
 	 * Determines the last state in a (trace or tree) log file
 	 * Tries to detect if last line is corrupted and fixes it by removing the last line if so.
@@ -499,6 +576,14 @@ public class Logger extends BEASTObject {
 	 */
 	public long getLogOffset() throws IOException {
 	    final File file = new File(fileName);
+	    if (file.exists() && ColumnarLogReader.isColumnarLog(file)) {
+	    	// incomplete blocks at the end of a columnar log are ignored, so no need to fix the file
+	    	try (ColumnarLogReader reader = new ColumnarLogReader(file)) {
+	    		return reader.getRowCount() == 0 ? 0 : reader.getLong(reader.getRowCount() - 1, 0);
+	    	} catch (NumberFormatException e) {
+	    		return 0;
+	    	}
+	    }
 	    if (file.exists()) {
             final BufferedReader fin = new BufferedReader(new FileReader(fileName));
 	        if (mode == LOGMODE.compound) {
@@ -651,8 +736,12 @@ public class Logger extends BEASTObject {
             sampleNr += sampleOffset;
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PrintStream out = new PrintStream(baos);
+        if (lineBuffer == null) {
+            lineBuffer = new LineBuffer();
+            lineStream = new PrintStream(lineBuffer);
+        }
+        lineBuffer.reset();
+        final PrintStream out = lineStream;
 
         if (mode == LOGMODE.compound) {
             out.print((sampleNr) + "\t");
@@ -661,20 +750,34 @@ public class Logger extends BEASTObject {
         for (final Loggable m_logger : loggerList) {
             m_logger.log(sampleNr, out);
         }
+        out.flush();
+
+        if (writer != null && writeLine()) {
+            return;
+        }
 
         // Acquire log string and trim excess tab
         String logContent;
         try {
         	// Convert to ASCII?
         	if (convertToASCIIInput.get()) {
-        		logContent = baos.toString("ASCII").trim();
+        		logContent = lineBuffer.toString("ASCII").trim();
         	} else { 
-        		logContent = baos.toString().trim();
+        		logContent = lineBuffer.toString().trim();
         	}
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("ASCII string encoding not supported: required for logging!");
         }
 
+        if (columnarLog != null) {
+            try {
+                columnarLog.addLine(logContent);
+            } catch (IOException e) {
+                Log.err.println("Could not write to log file " + fileName + ": " + e.getMessage());
+            }
+            return;
+        }
+
         // Include calculation speed estimate if this log is going to the terminal
         if ( m_out == System.out ) {
             logContent = prettifyLogLine(logContent);
@@ -707,6 +810,40 @@ public class Logger extends BEASTObject {
     } // log
 
 
+    /**
+     * Write the line in lineBuffer, trimmed, directly to the writer, without converting it to a String.
+     * @return false if the line has to be converted to ASCII first, and nothing was written
+     */
+    private boolean writeLine() {
+        final byte[] bytes = lineBuffer.bytes();
+        int start = 0;
+        int end = lineBuffer.size();
+        if (convertToASCIIInput.get()) {
+            for (int i = start; i < end; i++) {
+                if (bytes[i] < 0) {
+                    return false;
+                }
+            }
+        }
+        // same as String.trim()
+        while (start < end && (bytes[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        try {
+            writer.write(bytes, start, end - start);
+            writer.write(LINE_SEPARATOR);
+        } catch (IOException e) {
+            // PrintStream swallows errors too
+            Log.err.println("Could not write to log file " + fileName + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
     private String prettifyLogLine(String logContent) {
         final String[] strs = logContent.split("\t");
         logContent = "";
@@ -766,8 +903,32 @@ public class Logger extends BEASTObject {
             // close all file, except stdout
             m_out.close();
         }
+        if (columnarLog != null) {
+            try {
+                columnarLog.close();
+            } catch (IOException e) {
+                Log.err.println("Could not close log file " + fileName + ": " + e.getMessage());
+            }
+        }
     } // close
 
+    /**
+     * Make sure everything logged so far is written to the log file.
+     * Blocks till the background writer has caught up.
+     */
+    public void flush() {
+        if (m_out != null) {
+            m_out.flush();
+        }
+        if (columnarLog != null) {
+            try {
+                columnarLog.flush();
+            } catch (IOException e) {
+                Log.err.println("Could not write to log file " + fileName + ": " + e.getMessage());
+            }
+        }
+    }
+
     public PrintStream getM_out() {
         return m_out;
     }
@@ -779,6 +940,8 @@ public class Logger extends BEASTObject {
 
     public void setPrintStream(PrintStream m_out_alt){
     	m_out = new PrintStream(m_out_alt);    	
+    	writer = null;
+    	columnarLog = null;
     }
     
     public PrintStream getPrintStream(){
@@ -0,0 +1,361 @@
+package beast.base.inference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Phaser;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.util.MersenneTwisterFast;
+import beast.base.util.Randomizer;
+
+@Description("Metropolis coupled MCMC, also known as parallel tempering. Runs heated copies of the model " +
+        "in separate threads next to the cold chain, and regularly proposes to swap the states of " +
+        "chains with neighbouring temperatures, so that the cold chain can escape local optima. " +
+        "Only the cold chain is logged.")
+@Citation(value = "Altekar G, Dwarkadas S, Huelsenbeck JP, Ronquist F. Parallel Metropolis coupled Markov chain Monte Carlo " +
+        "for Bayesian phylogenetic inference. Bioinformatics. 2004;20(3):407-415.",
+        year = 2004, firstAuthorSurname = "altekar", DOI = "10.1093/bioinformatics/btg427")
+public class MC3 extends MCMC {
+    final public Input<Integer> chainCountInput = new Input<>("chains", "number of chains, including the cold chain (default 4)", 4);
+    final public Input<Integer> swapEveryInput = new Input<>("swapEvery", "number of samples between attempts to swap " +
+            "the states of two chains (default 100)", 100);
+    final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "temperature increment: chain i " +
+            "starts sampling from the posterior raised to the power 1/(1+i*deltaTemperature) (default 0.1)", 0.1);
+    final public Input<Boolean> adaptTemperatureInput = new Input<>("adaptTemperature", "whether to adapt the temperatures " +
+            "during the run so that swaps between neighbouring chains are accepted at the target swap rate (default true)", true);
+    final public Input<Double> targetSwapRateInput = new Input<>("targetSwapRate", "target acceptance rate of swaps " +
+            "when adapting the temperature (default 0.234)", 0.234);
+
+    /** chain 0 is this, the cold chain, the others are heated **/
+    private MCMC[] chains;
+    /** inverse temperature of each chain **/
+    private double[] beta;
+    /** stateNodes[i][k] is the copy in chain i of the k-th state node of the cold chain **/
+    private StateNode[][] stateNodes;
+    /** scratch copy of each state node, to hold the state of one chain during a swap **/
+    private StateNode[] swapNodes;
+    /** chains that need to recalculate their posterior after a swap **/
+    private boolean[] needsRecalculation;
+
+    /** log of the ratio minus one of the temperatures of chain i+1 and chain i **/
+    private double[] logTemperatureRatio;
+
+    private int swapEvery;
+    private long[] swapAttempts;
+    private long[] swapAcceptances;
+
+    private Phaser phaser;
+    private volatile Throwable failure;
+    /** stream of the cold chain, used for swaps so that these do not depend on which chain arrives last **/
+    private MersenneTwisterFast swapRandom;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (chainCountInput.get() < 1) {
+            throw new IllegalArgumentException("chains should be at least 1");
+        }
+        if (swapEveryInput.get() < 1) {
+            throw new IllegalArgumentException("swapEvery should be at least 1");
+        }
+        if (deltaTemperatureInput.get() <= 0) {
+            throw new IllegalArgumentException("deltaTemperature should be positive");
+        }
+        swapEvery = swapEveryInput.get();
+
+        final int chainCount = chainCountInput.get();
+        chains = new MCMC[chainCount];
+        chains[0] = this;
+        final double deltaTemperature = deltaTemperatureInput.get();
+        logTemperatureRatio = new double[chainCount];
+        for (int i = 0; i < chainCount - 1; i++) {
+            logTemperatureRatio[i] = Math.log(deltaTemperature / (1.0 + deltaTemperature * i));
+        }
+        beta = new double[chainCount];
+        updateTemperatures();
+        needsRecalculation = new boolean[chainCount];
+        swapAttempts = new long[chainCount];
+        swapAcceptances = new long[chainCount];
+
+        final int stateNodeCount = state.getNrOfStateNodes();
+        stateNodes = new StateNode[chainCount][stateNodeCount];
+        swapNodes = new StateNode[stateNodeCount];
+        for (int k = 0; k < stateNodeCount; k++) {
+            stateNodes[0][k] = state.getStateNode(k);
+            swapNodes[k] = stateNodes[0][k].copy();
+        }
+        for (int i = 1; i < chainCount; i++) {
+            final Map<BEASTInterface, BEASTInterface> copies = new IdentityHashMap<>();
+            final HeatedChain chain = new HeatedChain(this, i);
+            // inputs are set directly, since a heated chain has no loggers
+            chain.chainLengthInput.setValue(chainLengthInput.get(), chain);
+            if (startStateInput.get() != null) {
+                chain.startStateInput.setValue(copy(startStateInput.get(), copies), chain);
+            }
+            for (final StateNodeInitialiser initialiser : initialisersInput.get()) {
+                chain.initialisersInput.setValue(copy((BEASTInterface) initialiser, copies), chain);
+            }
+            chain.storeEveryInput.setValue(storeEveryInput.get(), chain);
+            chain.burnInInput.setValue(burnInInput.get(), chain);
+            chain.numInitializationAttempts.setValue(numInitializationAttempts.get(), chain);
+            chain.posteriorInput.setValue(copy(posteriorInput.get(), copies), chain);
+            for (final Operator operator : operatorsInput.get()) {
+                chain.operatorsInput.setValue(copy(operator, copies), chain);
+            }
+            chain.operatorScheduleInput.setValue(copy(operatorScheduleInput.get(), copies), chain);
+            chain.initAndValidate();
+            for (int k = 0; k < stateNodeCount; k++) {
+                stateNodes[i][k] = (StateNode) copies.get(stateNodes[0][k]);
+                if (stateNodes[i][k] == null) {
+                    throw new IllegalArgumentException("State node " + stateNodes[0][k].getID() +
+                            " cannot be reached from the posterior or operators, so it cannot be copied to heated chains");
+                }
+            }
+            chains[i] = chain;
+        }
+    }
+
+    /**
+     * Copy a BEASTObject together with everything it depends on, sharing objects
+     * that declare themselves notCloneable, such as alignments.
+     */
+    private static BEASTInterface copy(final BEASTInterface o, final Map<BEASTInterface, BEASTInterface> copies) {
+        if (o.notCloneable()) {
+            return o;
+        }
+        BEASTInterface copy = copies.get(o);
+        if (copy != null) {
+            return copy;
+        }
+        try {
+            copy = o.getClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot copy " + o.getID() + " for heated chain: " + e.getMessage());
+        }
+        copy.setID(o.getID());
+        copies.put(o, copy);
+        for (final Input<?> input : o.listInputs()) {
+            final Object value = input.get();
+            if (value == null || input.getName().startsWith("*")) {
+                // inputs starting with '*' are filled by the object itself in initAndValidate
+                continue;
+            }
+            final Input<?> target = copy.getInput(input.getName());
+            target.determineClass(copy);
+            if (value instanceof List<?>) {
+                for (final Object element : (List<?>) value) {
+                    target.setValue(copyValue(element, copies), copy);
+                }
+            } else {
+                target.setValue(copyValue(value, copies), copy);
+            }
+        }
+        copy.validateInputs();
+        copy.initAndValidate();
+        return copy;
+    }
+
+    private static Object copyValue(final Object value, final Map<BEASTInterface, BEASTInterface> copies) {
+        return value instanceof BEASTInterface ? copy((BEASTInterface) value, copies) : value;
+    }
+
+    private void updateTemperatures() {
+        beta[0] = 1.0;
+        for (int i = 1; i < beta.length; i++) {
+            beta[i] = beta[i - 1] / (1.0 + Math.exp(logTemperatureRatio[i - 1]));
+        }
+    }
+
+    /** @return inverse temperature of chain **/
+    public double getBeta(final int chainNr) {
+        return beta[chainNr];
+    }
+
+    /** @return fraction of accepted swaps between chainNr and chainNr+1 **/
+    public double getSwapRate(final int chainNr) {
+        return swapAttempts[chainNr] == 0 ? 0 : (double) swapAcceptances[chainNr] / swapAttempts[chainNr];
+    }
+
+    @Override
+    protected void doLoop() throws IOException {
+        if (chains.length == 1) {
+            super.doLoop();
+            return;
+        }
+
+        failure = null;
+        swapRandom = Randomizer.getCurrentStream();
+        phaser = new Phaser(chains.length) {
+            @Override
+            protected boolean onAdvance(final int phase, final int registeredParties) {
+                // chains that finished or failed deregister, and then there is nothing to swap
+                if (registeredParties == chains.length && failure == null) {
+                    try {
+                        swapStates();
+                    } catch (Throwable e) {
+                        // release all chains, which then stop since failure is set
+                        failure = e;
+                        forceTermination();
+                        return true;
+                    }
+                }
+                return registeredParties == 0;
+            }
+        };
+        final Thread[] threads = new Thread[chains.length - 1];
+        for (int i = 1; i < chains.length; i++) {
+            final MCMC chain = chains[i];
+            chain.stateFileName = stateFileName + ".chain" + i;
+            chain.restoreFromFile = restoreFromFile;
+            threads[i - 1] = new Thread(() -> {
+                try {
+                    chain.run();
+                } catch (Throwable e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                } finally {
+                    phaser.arriveAndDeregister();
+                }
+            }, "MC3 chain " + i);
+            threads[i - 1].start();
+        }
+
+        try {
+            super.doLoop();
+        } catch (IOException | RuntimeException | Error e) {
+            if (failure == null) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            phaser.arriveAndDeregister();
+            for (final Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (failure != null) {
+            throw new RuntimeException("Heated chain failed: " + failure.getMessage(), failure);
+        }
+
+        Log.info.println();
+        Log.info.println("Chain\tbeta\tswap rate with next chain");
+        for (int i = 0; i < chains.length; i++) {
+            Log.info.println(i + "\t" + beta[i] + (i < chains.length - 1 ? "\t" + getSwapRate(i) : ""));
+        }
+    }
+
+    @Override
+    protected void callUserFunction(final long sample) {
+        exchange(0, sample);
+    }
+
+    /**
+     * Wait till all chains reach the sample, so that the states of two chains
+     * can be swapped, then recalculate the posterior if this chain got a new state.
+     */
+    void exchange(final int chainNr, final long sample) {
+        if (chains.length == 1 || sample % swapEvery != 0) {
+            return;
+        }
+        phaser.arriveAndAwaitAdvance();
+        if (failure != null) {
+            throw new RuntimeException("MC3 chain stopped because another chain failed", failure);
+        }
+        if (needsRecalculation[chainNr]) {
+            needsRecalculation[chainNr] = false;
+            final MCMC chain = chains[chainNr];
+            chain.oldLogLikelihood = chain.state.robustlyCalcPosterior(chain.posterior);
+        }
+    }
+
+    /**
+     * Propose to swap the states of a random pair of neighbouring chains.
+     * Called while all chains wait at the barrier.
+     */
+    private void swapStates() {
+        final int i = swapRandom.nextInt(chains.length - 1);
+        final int j = i + 1;
+        final double logAlpha = (beta[i] - beta[j]) * (chains[j].oldLogLikelihood - chains[i].oldLogLikelihood);
+        final boolean accept = logAlpha >= 0 || swapRandom.nextDouble() < Math.exp(logAlpha);
+        swapAttempts[i]++;
+        if (accept) {
+            swapAcceptances[i]++;
+            for (int k = 0; k < stateNodes[i].length; k++) {
+                // assignFrom, unlike assignFromFragile, sets up a complete copy, also for trees
+                swapNodes[k].assignFrom(stateNodes[i][k]);
+                stateNodes[i][k].assignFromFragile(stateNodes[j][k]);
+                stateNodes[j][k].assignFromFragile(swapNodes[k]);
+            }
+            needsRecalculation[i] = true;
+            needsRecalculation[j] = true;
+        }
+
+        if (adaptTemperatureInput.get()) {
+            // Robbins-Monro on the spacing of this pair, with decreasing step size so the adaptation vanishes
+            logTemperatureRatio[i] += ((accept ? 1.0 : 0.0) - targetSwapRateInput.get()) / Math.pow(swapAttempts[i], 0.6);
+            updateTemperatures();
+        }
+    }
+
+    /** heated copy of the model, running in its own thread without loggers **/
+    static class HeatedChain extends MCMC {
+        private final MC3 mc3;
+        private final int chainNr;
+
+        HeatedChain(final MC3 mc3, final int chainNr) {
+            this.mc3 = mc3;
+            this.chainNr = chainNr;
+        }
+
+        @Override
+        protected void logCitations() {
+            // already reported by the cold chain
+        }
+
+        @Override
+        protected double calcLogAlpha(final double newLogP, final double oldLogP, final double logHastingsRatio) {
+            return mc3.beta[chainNr] * (newLogP - oldLogP) + logHastingsRatio;
+        }
+
+        @Override
+        protected void callUserFunction(final long sample) {
+            mc3.exchange(chainNr, sample);
+        }
+
+        @Override
+        protected Profiler createProfiler() {
+            // only the cold chain is profiled
+            return null;
+        }
+
+        @Override
+        protected void reportStartLikelihood(final int initialisationAttempts) {
+            if (Double.isInfinite(oldLogLikelihood) || Double.isNaN(oldLogLikelihood)) {
+                throw new RuntimeException("Could not find a proper state to initialise heated chain " + chainNr);
+            }
+        }
+
+        @Override
+        protected void initLoggers() {
+            loggers = new ArrayList<>();
+        }
+
+        @Override
+        protected void reportEnd(final long startTime) {
+            // the cold chain reports for all chains
+        }
+    }
+}
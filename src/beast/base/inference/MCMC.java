@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -103,6 +105,9 @@ public class MCMC extends Runnable {
 
     final public Input<OperatorSchedule> operatorScheduleInput = new Input<>("operatorschedule", "specify operator selection and optimisation schedule", new OperatorSchedule(), Validate.REQUIRED);
 
+    final public Input<Profiler> profilerInput = new Input<>("profiler", "records time spent by operators and calculation nodes " +
+            "and reports it at the end of the run. Can also be switched on by setting the beast.profile system property to a file name.");
+
     /**
      * Alternative representation of operatorsInput that allows random selection
      * of operators and calculation of statistics.
@@ -144,10 +149,7 @@ public class MCMC extends Runnable {
 
     @Override
     public void initAndValidate() {
-        Log.info.println("===============================================================================");
-        Log.info.println("Citations for this model:");
-        Log.info.println(getCitations());
-        Log.info.println("===============================================================================");
+        logCitations();
 
         operatorSchedule = operatorScheduleInput.get();
         for (final Operator op : operatorsInput.get()) {
@@ -259,6 +261,14 @@ public class MCMC extends Runnable {
         }
     } // init
 
+    /** report citations of the model to the info log **/
+    protected void logCitations() {
+        Log.info.println("===============================================================================");
+        Log.info.println("Citations for this model:");
+        Log.info.println(getCitations());
+        Log.info.println("===============================================================================");
+    }
+
     public void log(final long sampleNr) {
         for (final Logger log : loggers) {
             log.log(sampleNr);
@@ -271,6 +281,16 @@ public class MCMC extends Runnable {
         }
     } // close
 
+    /**
+     * Wait till all loggers have written everything logged so far,
+     * so that log files line up with the state file when storing the state.
+     */
+    protected void flushLoggers() {
+        for (final Logger log : loggers) {
+            log.flush();
+        }
+    }
+
     protected double logAlpha;
     protected boolean debugFlag;
     protected double oldLogLikelihood;
@@ -281,8 +301,48 @@ public class MCMC extends Runnable {
 
     protected List<Logger> loggers;
 
+    /** records time spent by operators and calculation nodes, null when not profiling **/
+    protected Profiler profiler;
+
     @Override
     public void run() throws IOException, SAXException, ParserConfigurationException {
+        final int initialisationAttempts = initState();
+        final long startTime = System.currentTimeMillis();
+
+        state.storeCalculationNodes();
+
+        profiler = createProfiler();
+        if (profiler != null) {
+            profiler.attach(state, operatorSchedule, posterior);
+        }
+        
+        // do the sampling
+        logAlpha = 0;
+        debugFlag = Boolean.valueOf(System.getProperty("beast.debug"));
+
+//        System.err.println("Start state:");
+//        System.err.println(state.toString());
+
+        reportStartLikelihood(initialisationAttempts);
+
+        initLoggers();
+
+        doLoop();
+
+        reportEnd(startTime);
+
+//        System.err.println(state);
+        state.storeToFile(chainLength);
+        operatorSchedule.storeToFile();
+        //Randomizer.storeToFile(stateFileName);
+    } // run;
+
+    /**
+     * Set up the state, either by restoring it from file when resuming, or through the
+     * StateNodeInitialisers, and calculate the posterior of the start state.
+     * @return number of attempts made to find a start state with finite posterior
+     */
+    protected int initState() throws IOException, SAXException, ParserConfigurationException {
         // set up state (again). Other beastObjects may have manipulated the
         // StateNodes, e.g. set up bounds or dimensions
         state.initAndValidate();
@@ -310,24 +370,29 @@ public class MCMC extends Runnable {
                 initialisationAttempts += 1;
             } while (Double.isInfinite(oldLogLikelihood) && initialisationAttempts < numInitializationAttempts.get());
         }
-        final long startTime = System.currentTimeMillis();
-
-        state.storeCalculationNodes();
-
-        
-        // do the sampling
-        logAlpha = 0;
-        debugFlag = Boolean.valueOf(System.getProperty("beast.debug"));
+        return initialisationAttempts;
+    }
 
-//        System.err.println("Start state:");
-//        System.err.println(state.toString());
+    /** @return profiler to attach to the chain, or null when not profiling **/
+    protected Profiler createProfiler() {
+        Profiler profiler = profilerInput.get();
+        if (profiler == null && System.getProperty("beast.profile") != null) {
+            profiler = new Profiler(System.getProperty("beast.profile"));
+        }
+        return profiler;
+    }
 
+    /** report the posterior of the start state, and fail if it is not finite **/
+    protected void reportStartLikelihood(final int initialisationAttempts) {
         Log.info.println("Start likelihood: " + oldLogLikelihood + " " + (initialisationAttempts > 1 ? "after " + initialisationAttempts + " initialisation attempts" : ""));
         if (Double.isInfinite(oldLogLikelihood) || Double.isNaN(oldLogLikelihood)) {
             reportLogLikelihoods(posterior, "");
             throw new RuntimeException("Could not find a proper state to initialise. Perhaps try another seed.\nSee http://www.beast2.org/2018/07/04/fatal-errors.html for other possible solutions.");
         }
+    }
 
+    /** set up loggers, and write log file headers **/
+    protected void initLoggers() throws IOException {
         loggers = loggersInput.get();
 
         // put the loggers logging to stdout at the bottom of the logger list so that screen output is tidier.
@@ -385,24 +450,29 @@ public class MCMC extends Runnable {
         for (final Logger log : loggers) {
             log.init();
         }
+    }
 
-        doLoop();
-
+    /** report operator rates, timing and statistics after the chain finished, and close the loggers **/
+    protected void reportEnd(final long startTime) {
         Log.info.println();
         operatorSchedule.showOperatorRates(System.out);
 
         Log.info.println();
         final long endTime = System.currentTimeMillis();
         Log.info.println("Total calculation time: " + (endTime - startTime) / 1000.0 + " seconds");
+        if (profiler != null) {
+            profiler.report();
+            profiler.detach(state);
+        }
+        final Set<CalculationNode> calcNodes = new LinkedHashSet<>();
+        collectCalcNodes(posterior, calcNodes);
+        for (final CalculationNode node : calcNodes) {
+            node.reportStatistics();
+        }
         close();
 
         Log.warning.println("End likelihood: " + oldLogLikelihood);
-//        System.err.println(state);
-        state.storeToFile(chainLength);
-        operatorSchedule.storeToFile();
-        //Randomizer.storeToFile(stateFileName);
-    } // run;
-
+    }
 
     protected void makeSureLogFilesAreSameLength() throws IOException {
     	// make sure log files all end in the same state
@@ -465,6 +535,7 @@ public class MCMC extends Runnable {
                         if (corrections > 100) {
                             // after 100 repairs, there must be something seriously wrong with the implementation
                         	Log.err.println("Too many corrections. There is something seriously wrong that cannot be corrected");
+                            flushLoggers();
                             state.storeToFile(sampleNr);
                             operatorSchedule.storeToFile();
                             System.exit(1);
@@ -474,6 +545,7 @@ public class MCMC extends Runnable {
                 } else {
                     if (isTooDifferent(logLikelihood, originalLogP)) {
                         // halt due to incorrect posterior during initial debug period
+                        flushLoggers();
                         state.storeToFile(sampleNr);
                         operatorSchedule.storeToFile();
                         System.exit(1);
@@ -490,6 +562,7 @@ public class MCMC extends Runnable {
             if (storeEvery > 0 && (sampleNr + 1) % storeEvery == 0 || sampleNr == chainLength) {
                 /*final double logLikelihood = */
                 state.robustlyCalcNonStochasticPosterior(posterior);
+                flushLoggers();
                 state.storeToFile(sampleNr);
                 operatorSchedule.storeToFile();
             }
@@ -555,7 +628,11 @@ public class MCMC extends Runnable {
             }
         }
 
+        final long start = profiler == null ? 0 : System.nanoTime();
         final double logHastingsRatio = operator.proposal(evaluator);
+        final long proposed = profiler == null ? 0 : System.nanoTime();
+        long evaluated = proposed;
+        boolean accepted = false;
 
         if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
 
@@ -564,13 +641,19 @@ public class MCMC extends Runnable {
                 state.checkCalculationNodesDirtiness();
             }
 
-            newLogLikelihood = posterior.calculateLogP();
+            if (profiler == null) {
+                newLogLikelihood = posterior.calculateLogP();
+            } else {
+                newLogLikelihood = Profiler.calculateLogP(posterior);
+                evaluated = System.nanoTime();
+            }
 
-            logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio; //CHECK HASTINGS
+            logAlpha = calcLogAlpha(newLogLikelihood, oldLogLikelihood, logHastingsRatio); //CHECK HASTINGS
             if (printDebugInfo) System.err.print(logAlpha + " " + newLogLikelihood + " " + oldLogLikelihood);
 
             if (logAlpha >= 0 || (logAlpha != Double.NEGATIVE_INFINITY && Randomizer.nextDouble() < Math.exp(logAlpha))) {
                 // accept
+                accepted = true;
                 oldLogLikelihood = newLogLikelihood;
                 state.acceptCalculationNodes();
 
@@ -607,10 +690,25 @@ public class MCMC extends Runnable {
                 validateReject(operator);
             }
         }
+        if (profiler != null) {
+            profiler.recordStep(operator, start, proposed, evaluated, accepted);
+        }
         log(sampleNr);
         return operator;
     }
 
+    /**
+     * Log of the acceptance ratio of a proposal. Chains that do not sample
+     * from the posterior itself, such as heated chains in MC3, override this.
+     *
+     * @param newLogP posterior of the proposed state
+     * @param oldLogP posterior of the current state
+     * @param logHastingsRatio log of Hastings ratio of the proposal
+     */
+    protected double calcLogAlpha(final double newLogP, final double oldLogP, final double logHastingsRatio) {
+        return newLogP - oldLogP + logHastingsRatio;
+    }
+
     /**
      * Test whether state nodes and fat calculation nodes have been correctly
      * restored (according to their checksums) after the operator was rejected.
@@ -641,11 +739,19 @@ public class MCMC extends Runnable {
      * @param allNodes the list where the calculationNodes are collected.
      **/
     protected void collectCalcNodes(BEASTInterface o, Set<CalculationNode> allNodes) {
+        collectCalcNodes(o, allNodes, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    /** as collectCalcNodes, but visits objects shared by several inputs only once **/
+    private void collectCalcNodes(BEASTInterface o, Set<CalculationNode> allNodes, Set<BEASTInterface> visited) {
+        if (!visited.add(o)) {
+            return;
+        }
         if (o instanceof CalculationNode) {
             allNodes.add((CalculationNode) o);
         }
         for (BEASTInterface o2 : o.listActiveBEASTObjects()) {
-            collectCalcNodes(o2, allNodes);
+            collectCalcNodes(o2, allNodes, visited);
         }
     }
 
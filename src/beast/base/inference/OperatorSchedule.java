@@ -11,6 +11,8 @@ import beast.base.core.Log;
 import beast.base.util.Randomizer;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 
 @Description("Specify operator selection and optimisation schedule")
@@ -93,6 +95,9 @@ public class OperatorSchedule extends BEASTObject {
      */
     String stateFileName;
 
+    /** extension of file containing the operator state when the state file is in binary format **/
+    static final String OPERATOR_FILE_EXTENSION = ".operators";
+
     /**
      * Don't start optimisation at the start of the chain, but wait till
      * autoOptimizeDelay has been reached.
@@ -311,11 +316,29 @@ public class OperatorSchedule extends BEASTObject {
      * @throws IOException
      */
     public void storeToFile() throws IOException {
-        // appends state of operator set to state file
         File file = new File(stateFileName);
-        PrintWriter out = new PrintWriter(new FileWriter(file, true));
+        if (BinaryStateFile.isBinary(file)) {
+            // binary state files cannot be appended to, so use a separate file,
+            // which is replaced as a whole so it is never left partially written
+            final StringWriter json = new StringWriter();
+            final PrintWriter out = new PrintWriter(json);
+            storeOperators(out);
+            out.flush();
+            BinaryStateFile.writeAtomically(new File(stateFileName + OPERATOR_FILE_EXTENSION),
+                    json.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
 
+        // appends state of operator set to state file
+        PrintWriter out = new PrintWriter(new FileWriter(file, true));
         out.println("<!--");
+        storeOperators(out);
+        out.println("-->");
+        out.flush();
+        out.close();
+    }
+
+    private void storeOperators(final PrintWriter out) {
         out.println("{\"operators\":[");
         int k = 0;
         for (Operator operator: operators) {
@@ -325,9 +348,6 @@ public class OperatorSchedule extends BEASTObject {
             }
         }
         out.println("\n]}");
-        out.println("-->");
-        out.flush();
-        out.close();
     }
 
     /**
@@ -335,18 +355,28 @@ public class OperatorSchedule extends BEASTObject {
      * @throws IOException
      */
     public void restoreFromFile() throws IOException {
-        // reads state of operator set from state file
-        String xml = "";
-        final BufferedReader fin = new BufferedReader(new FileReader(stateFileName));
-        while (fin.ready()) {
-            xml += fin.readLine() + "\n";
-        }
-        fin.close();
-        int start = xml.indexOf("</itsabeastystatewerein>") + 25 + 5;
-        if (start >= xml.length() - 4) {
-        	return;
+        String xml;
+        if (BinaryStateFile.isBinary(new File(stateFileName))) {
+            // the operator file of a binary state file only contains the JSON
+            final File file = new File(stateFileName + OPERATOR_FILE_EXTENSION);
+            if (!file.exists()) {
+                return;
+            }
+            xml = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } else {
+            // reads state of operator set from state file
+            xml = "";
+            final BufferedReader fin = new BufferedReader(new FileReader(stateFileName));
+            while (fin.ready()) {
+                xml += fin.readLine() + "\n";
+            }
+            fin.close();
+            int start = xml.indexOf("</itsabeastystatewerein>") + 25 + 5;
+            if (start >= xml.length() - 4) {
+            	return;
+            }
+            xml = xml.substring(xml.indexOf("</itsabeastystatewerein>") + 25 + 5, xml.length() - 4);
         }
-        xml = xml.substring(xml.indexOf("</itsabeastystatewerein>") + 25 + 5, xml.length() - 4);
         try {
 	        JSONObject o = new JSONObject(xml);
 	        JSONArray operatorlist = o.getJSONArray("operators");
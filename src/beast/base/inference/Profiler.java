@@ -0,0 +1,255 @@
+package beast.base.inference;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+
+@Description("Records time spent by operators and calculation nodes during an MCMC run, and reports a tab delimited " +
+        "profile at the end of the run. When logged, it reports the milliseconds spent so far by each operator and " +
+        "calculation node. Add it as profiler to the MCMC, or set the beast.profile system property to a file name.")
+public class Profiler extends BEASTObject implements Loggable {
+    final public Input<String> fileInput = new Input<>("fileName", "name of file to write the profile to at the end " +
+            "of the run. If not specified, the profile is written to the screen.");
+
+    /** phases of a calculation node **/
+    static final int STORE = 0, CHECK = 1, CALCULATE = 2, ACCEPT = 3, RESTORE = 4;
+    static final String[] CALCULATION_NODE_PHASES = {"store", "requiresRecalculation", "calculateLogP", "accept", "restore"};
+
+    /** phases of an operator step **/
+    static final int PROPOSE = 0, EVALUATE = 1, ACCEPTED = 2, REJECTED = 3;
+    static final String[] OPERATOR_PHASES = {"proposal", "evaluation", "accept", "reject"};
+
+    /** time and number of calls for each phase of an operator or calculation node **/
+    static final class Timer {
+        final String name;
+        final long[] time;
+        final long[] count;
+
+        Timer(final String name, final int phaseCount) {
+            this.name = name;
+            time = new long[phaseCount];
+            count = new long[phaseCount];
+        }
+
+        void add(final int phase, final long start) {
+            time[phase] += System.nanoTime() - start;
+            count[phase]++;
+        }
+
+        long getTotalTime() {
+            long total = 0;
+            for (final long t : time) {
+                total += t;
+            }
+            return total;
+        }
+    }
+
+    private final Map<Operator, Timer> operatorTimers = new IdentityHashMap<>();
+    /** operator timers in order of the operator schedule **/
+    private final List<Timer> operatorTimerList = new ArrayList<>();
+    private final List<Timer> calculationNodeTimers = new ArrayList<>();
+    private Timer posteriorTimer;
+    private long steps;
+
+    public Profiler() {
+    }
+
+    public Profiler(final String fileName) {
+        initByName("fileName", fileName);
+    }
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    /**
+     * start recording time for the operators in the schedule and all calculation nodes
+     * the posterior depends on
+     */
+    void attach(final State state, final OperatorSchedule operatorSchedule, final Distribution posterior) {
+        operatorTimers.clear();
+        operatorTimerList.clear();
+        calculationNodeTimers.clear();
+        steps = 0;
+        final Set<String> names = new HashSet<>();
+        for (final Operator operator : operatorSchedule.operators) {
+            final Timer timer = new Timer(uniqueName(operator, names), OPERATOR_PHASES.length);
+            operatorTimers.put(operator, timer);
+            operatorTimerList.add(timer);
+        }
+        attach(posterior, names, new HashSet<>());
+        posteriorTimer = posterior.profileTimer;
+        state.setProfiling(true);
+    }
+
+    private void attach(final BEASTInterface o, final Set<String> names, final Set<BEASTInterface> done) {
+        if (!done.add(o)) {
+            return;
+        }
+        if (o instanceof CalculationNode && !(o instanceof StateNode)) {
+            final CalculationNode node = (CalculationNode) o;
+            node.profileTimer = new Timer(uniqueName(node, names), CALCULATION_NODE_PHASES.length);
+            calculationNodeTimers.add(node.profileTimer);
+        }
+        for (final BEASTInterface o2 : o.listActiveBEASTObjects()) {
+            attach(o2, names, done);
+        }
+    }
+
+    private static String uniqueName(final BEASTInterface o, final Set<String> names) {
+        String name = o.getID() != null ? o.getID() : o.getClass().getSimpleName();
+        if (!names.add(name)) {
+            int i = 2;
+            while (!names.add(name + "." + i)) {
+                i++;
+            }
+            name = name + "." + i;
+        }
+        return name;
+    }
+
+    /** stop recording time **/
+    void detach(final State state) {
+        state.setProfiling(false);
+    }
+
+    /**
+     * record the time of an MCMC step
+     *
+     * @param start start of the proposal
+     * @param proposed end of the proposal and start of the evaluation of the posterior
+     * @param evaluated end of the evaluation, and start of accepting or rejecting the proposal
+     */
+    void recordStep(final Operator operator, final long start, final long proposed, final long evaluated, final boolean accepted) {
+        final long end = System.nanoTime();
+        final Timer timer = operatorTimers.get(operator);
+        if (timer != null) {
+            timer.time[PROPOSE] += proposed - start;
+            timer.count[PROPOSE]++;
+            timer.time[EVALUATE] += evaluated - proposed;
+            timer.count[EVALUATE]++;
+            final int phase = accepted ? ACCEPTED : REJECTED;
+            timer.time[phase] += end - evaluated;
+            timer.count[phase]++;
+        }
+        steps++;
+    }
+
+    /**
+     * calculate the log probability of distribution, recording the time it takes if
+     * the distribution is being profiled
+     */
+    static double calculateLogP(final Distribution distribution) {
+        final Timer timer = distribution.profileTimer;
+        if (timer == null) {
+            return distribution.calculateLogP();
+        }
+        final long start = System.nanoTime();
+        final double logP = distribution.calculateLogP();
+        timer.add(CALCULATE, start);
+        return logP;
+    }
+
+    /** write profile, most expensive operators and calculation nodes first **/
+    public void report() {
+        final String fileName = fileInput.get();
+        if (fileName == null) {
+            Log.info.println();
+            report(Log.info);
+            return;
+        }
+        try (PrintStream out = new PrintStream(fileName)) {
+            report(out);
+        } catch (FileNotFoundException e) {
+            Log.warning.println("Could not write profile to " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    public void report(final PrintStream out) {
+        final List<Timer> operators = new ArrayList<>(operatorTimerList);
+        operators.sort(Comparator.comparingLong(Timer::getTotalTime).reversed());
+        out.print("operator\tproposals\ttotal(ms)\tns/proposal");
+        for (final String phase : OPERATOR_PHASES) {
+            out.print("\t" + phase + "(ms)");
+        }
+        out.println();
+        for (final Timer timer : operators) {
+            final long proposals = timer.count[PROPOSE];
+            out.print(timer.name + "\t" + proposals + "\t" + ms(timer.getTotalTime()) + "\t" +
+                    (proposals == 0 ? 0 : timer.getTotalTime() / proposals));
+            for (final long time : timer.time) {
+                out.print("\t" + ms(time));
+            }
+            out.println();
+        }
+        out.println();
+
+        // calculateLogP time of a distribution includes that of the distributions it contains
+        final List<Timer> nodes = new ArrayList<>(calculationNodeTimers);
+        nodes.sort(Comparator.comparingLong(Timer::getTotalTime).reversed());
+        out.print("calculationNode\tcalculations\ttotal(ms)\tns/step");
+        for (final String phase : CALCULATION_NODE_PHASES) {
+            out.print("\t" + phase + "(ms)");
+        }
+        out.println();
+        for (final Timer timer : nodes) {
+            out.print(timer.name + "\t" + timer.count[CALCULATE] + "\t" + ms(timer.getTotalTime()) + "\t" +
+                    (steps == 0 ? 0 : timer.getTotalTime() / steps));
+            for (final long time : timer.time) {
+                out.print("\t" + ms(time));
+            }
+            out.println();
+        }
+    }
+
+    private static String ms(final long nanos) {
+        return String.valueOf(Math.round(nanos / 1e3) / 1e3);
+    }
+
+    /** @return time spent in posterior evaluations so far, in milliseconds **/
+    public double getPosteriorTime() {
+        return posteriorTimer == null ? 0 : posteriorTimer.time[CALCULATE] / 1e6;
+    }
+
+    /**
+     * Loggable interface implementation follows *
+     */
+    @Override
+    public void init(final PrintStream out) {
+        for (final Timer timer : operatorTimerList) {
+            out.print(timer.name + ".ms\t");
+        }
+        for (final Timer timer : calculationNodeTimers) {
+            out.print(timer.name + ".ms\t");
+        }
+    }
+
+    @Override
+    public void log(final long sample, final PrintStream out) {
+        for (final Timer timer : operatorTimerList) {
+            out.print(ms(timer.getTotalTime()) + "\t");
+        }
+        for (final Timer timer : calculationNodeTimers) {
+            out.print(ms(timer.getTotalTime()) + "\t");
+        }
+    }
+
+    @Override
+    public void close(final PrintStream out) {
+        // nothing to do
+    }
+}
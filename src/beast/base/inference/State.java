@@ -26,15 +26,20 @@ package beast.base.inference;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -49,6 +54,7 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.util.Randomizer;
 
 
 
@@ -67,8 +73,21 @@ public class State extends BEASTObject {
 //    public Input<Boolean> m_checkPoint =
 //            new Input<>("checkpoint", "keep saved states (every X samples).", false);
 
-  public Input<Boolean> experimentalInput = new Input<>("experimental", "Use experimental code to calculate calcNodePath.", false);
-  private boolean experimental;
+    final public Input<Boolean> binaryInput =
+            new Input<>("binary", "store the state to disk in a compact binary format instead of XML. " +
+                    "Only state nodes that changed since the previous store are written, with a full snapshot every " +
+                    "fullSnapshotEvery stores. Can also be switched on with the " + BINARY_STATE_PROPERTY + " property.", false);
+    final public Input<Integer> fullSnapshotEveryInput =
+            new Input<>("fullSnapshotEvery", "when storing the state in binary format, write a full snapshot every X stores " +
+                    "and only the changed state nodes in between.", 10);
+
+    /** system property for storing states in binary format, see binaryInput **/
+    public static final String BINARY_STATE_PROPERTY = "beast.state.binary";
+
+    /** element of an XML state file holding the state of the random number generator **/
+    static final String RANDOMIZER_ELEMENT = "randomizer";
+
+  public Input<Boolean> experimentalInput = new Input<>("experimental", "ignored, kept for backward compatibility: calcNodePaths are always calculated from a precomputed dependency graph.", false);
     /**
      * The components of the state, for instance tree & parameters.
      * This represents the current state, but a copy is kept so that when
@@ -100,6 +119,13 @@ public class State extends BEASTObject {
      */
     private String stateFileName = "state.backup.xml";
 
+    /** whether the state is stored in binary format **/
+    private boolean binary;
+    /** StateNodes that may have been changed since the state was last stored in binary format **/
+    private boolean[] changedSinceStore;
+    /** number of binary stores since the last full snapshot, -1 if the next store must be a full snapshot **/
+    private int storesSinceSnapshot = -1;
+
 
     /** The following members are involved in calculating the set of
      * CalculatioNodes that need to be notified when an operation
@@ -140,62 +166,31 @@ public class State extends BEASTObject {
     private int[] changeStateNodes;
     private int nrOfChangedStateNodes;
 
+    /** same information as changeStateNodes, as a set for fast look up **/
+    private BitSet changedStateNodes;
+
     /**
-     * Maps the changed states node code to
-     * the set of calculation nodes that is potentially affected by an operation *
+     * All CalculationNodes on a path from a StateNode to the posterior, in partial
+     * order as determined by the BEASTObject-input relations (i.e. if A is input of B then A < B).
+     * Calculated in setPosterior().
      */
-    Trie trie;
-    /** keeps track of number of leafs in trie **/
-    private long trieSize = 0;
-    /** upper limit on the size of the trie. If the limit is reached, 
-     * no further leafs are added and every *new* calculation node 
-     * path is recalculated from scratch 
+    private CalculationNode[] calcNodes;
+    /**
+     * Dependency graph compiled by setPosterior(): bit k of stateNodeCalcNodes[i] is set
+     * if calcNodes[k] is on a path from StateNode i to the posterior.
      */
-    private final static long TRIE_SIZE_LIMIT = 1000; 
+    private long[][] stateNodeCalcNodes;
 
     /**
-     * class for quickly finding which calculation nodes need to be updated
-     * due to state-node changes
+     * Maps the set of changed StateNodes to
+     * the set of calculation nodes that is potentially affected by an operation *
      */
-    class Trie {
-        List<CalculationNode> list;
-        final Trie[] children;
+    private Map<BitSet, List<CalculationNode>> calcNodePaths = new HashMap<>();
+    /** calculation nodes for the current set of changed StateNodes, null if not determined yet **/
+    private List<CalculationNode> currentCalcNodes;
 
-        Trie() {
-            children = new Trie[stateNode.length];
-        }
-
-        /**
-         * get entry from Trie, return null if no entry is present yet *
-         * @param pos
-         */
-        List<CalculationNode> get(final int pos) {
-            if (pos == 0) {
-                return list;
-            }
-            final Trie child = children[changeStateNodes[pos - 1]];
-            if (child == null) {
-                return null;
-            }
-            return child.get(pos - 1);
-        }
-
-        /**
-         * set entry int Trie, create new entries if no entry is present yet *
-         */
-        void set(final List<CalculationNode> list, final int pos) {
-            if (pos == 0) {
-                this.list = list;
-                return;
-            }
-            Trie child = children[changeStateNodes[pos - 1]];
-            if (child == null) {
-                child = new Trie();
-                children[changeStateNodes[pos - 1]] = child;
-            }
-            child.set(list, pos - 1);
-        }
-    }
+    /** whether to record time spent by calculation nodes, see Profiler **/
+    private boolean profiling;
 
 
     @Override
@@ -225,12 +220,13 @@ public class State extends BEASTObject {
         changeStateNodes = new int[stateNode.length];
         //Arrays.fill(changeStateNodes, -1);
         nrOfChangedStateNodes = 0;
-        trie = new Trie();
-        trieSize = 0;
-        // add the empty list for the case none of the StateNodes have changed
-        trie.list = new ArrayList<>();
+        changedStateNodes = new BitSet(stateNode.length);
+        calcNodePaths.clear();
+        currentCalcNodes = null;
 
-        experimental = experimentalInput.get();
+        binary = binaryInput.get() || Boolean.getBoolean(BINARY_STATE_PROPERTY);
+        changedSinceStore = new boolean[stateNode.length];
+        storesSinceSnapshot = -1;
     } // initialise
 
 
@@ -254,12 +250,13 @@ public class State extends BEASTObject {
      * method on the input associated with this StateNode.
      */
     protected StateNode getEditableStateNode(int _id, Operator operator) {
-        for (int i = 0; i < nrOfChangedStateNodes; i++) {
-            if (changeStateNodes[i] == _id) {
-                return stateNode[_id];
-            }
+        if (changedStateNodes.get(_id)) {
+            return stateNode[_id];
         }
         changeStateNodes[nrOfChangedStateNodes++] = _id;
+        changedStateNodes.set(_id);
+        currentCalcNodes = null;
+        changedSinceStore[_id] = true;
         return stateNode[_id];
     }
 
@@ -277,6 +274,8 @@ public class State extends BEASTObject {
     public void store(final long sample) {
         //Arrays.fill(changeStateNodes, -1);
         nrOfChangedStateNodes = 0;
+        changedStateNodes.clear();
+        currentCalcNodes = null;
     }
 
     /**
@@ -308,6 +307,16 @@ public class State extends BEASTObject {
      */
     public void storeCalculationNodes() {
         final List<CalculationNode> currentSetOfCalculationNodes = getCurrentCalculationNodes();
+        if (profiling) {
+            for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
+                final long start = System.nanoTime();
+                calculationNode.store();
+                if (calculationNode.profileTimer != null) {
+                    calculationNode.profileTimer.add(Profiler.STORE, start);
+                }
+            }
+            return;
+        }
         for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
             calculationNode.store();
         }
@@ -315,6 +324,16 @@ public class State extends BEASTObject {
 
     public void checkCalculationNodesDirtiness() {
         final List<CalculationNode> currentSetOfCalculationNodes = getCurrentCalculationNodes();
+        if (profiling) {
+            for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
+                final long start = System.nanoTime();
+                calculationNode.checkDirtiness();
+                if (calculationNode.profileTimer != null) {
+                    calculationNode.profileTimer.add(Profiler.CHECK, start);
+                }
+            }
+            return;
+        }
         for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
             calculationNode.checkDirtiness();
         }
@@ -322,6 +341,16 @@ public class State extends BEASTObject {
 
     public void restoreCalculationNodes() {
         final List<CalculationNode> currentSetOfCalculationNodes = getCurrentCalculationNodes();
+        if (profiling) {
+            for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
+                final long start = System.nanoTime();
+                calculationNode.restore();
+                if (calculationNode.profileTimer != null) {
+                    calculationNode.profileTimer.add(Profiler.RESTORE, start);
+                }
+            }
+            return;
+        }
         for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
             calculationNode.restore();
         }
@@ -329,11 +358,28 @@ public class State extends BEASTObject {
 
     public void acceptCalculationNodes() {
         final List<CalculationNode> currentSetOfCalculationNodes = getCurrentCalculationNodes();
+        if (profiling) {
+            for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
+                final long start = System.nanoTime();
+                calculationNode.accept();
+                if (calculationNode.profileTimer != null) {
+                    calculationNode.profileTimer.add(Profiler.ACCEPT, start);
+                }
+            }
+            return;
+        }
         for (final CalculationNode calculationNode : currentSetOfCalculationNodes) {
             calculationNode.accept();
         }
     }
 
+    /**
+     * switch recording of time spent by calculation nodes that have a timer on or off
+     */
+    void setProfiling(final boolean profiling) {
+        this.profiling = profiling;
+    }
+
     /**
      * set name of state file, used when storing/restoring the state to disk *
      */
@@ -350,6 +396,10 @@ public class State extends BEASTObject {
      * @param sample TODO
      */
     public void storeToFile(final long sample) {
+        if (binary) {
+            storeToBinaryFile(sample);
+            return;
+        }
         try {
             PrintStream out = new PrintStream(stateFileName + ".new");
             out.print(toXML(sample));
@@ -365,6 +415,29 @@ public class State extends BEASTObject {
         }
     }
 
+    /**
+     * Store state in binary format, see BinaryStateFile.
+     * Only StateNodes that were requested by an operator since the previous call
+     * are written, unless a full snapshot is due.
+     */
+    private void storeToBinaryFile(final long sample) {
+        final File file = new File(stateFileName);
+        try {
+            if (storesSinceSnapshot < 0 || storesSinceSnapshot + 1 >= fullSnapshotEveryInput.get() || !BinaryStateFile.isBinary(file)) {
+                BinaryStateFile.writeFull(file, sample, stateNode);
+                storesSinceSnapshot = 0;
+            } else {
+                BinaryStateFile.appendDelta(file, sample, stateNode, changedSinceStore);
+                storesSinceSnapshot++;
+            }
+            Arrays.fill(changedSinceStore, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // make sure the next store does not depend on the failed one
+            storesSinceSnapshot = -1;
+        }
+    }
+
     /**
      * convert state to XML string,
      * The state can be reconstructed using the fromXML() method
@@ -377,6 +450,7 @@ public class State extends BEASTObject {
         for (final StateNode node : stateNode) {
             buf.append(node.toXML());
         }
+        buf.append("<" + RANDOMIZER_ELEMENT + ">").append(randomizerState()).append("</" + RANDOMIZER_ELEMENT + ">\n");
         buf.append("</itsabeastystatewerein>\n");
         return buf.toString();
     }
@@ -394,7 +468,9 @@ public class State extends BEASTObject {
             final NodeList children = topNode.getChildNodes();
             for (int childIndex = 0; childIndex < children.getLength(); childIndex++) {
                 final Node child = children.item(childIndex);
-                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (child.getNodeName().equals(RANDOMIZER_ELEMENT)) {
+                    restoreRandomizerState(child.getTextContent());
+                } else if (child.getNodeType() == Node.ELEMENT_NODE) {
                     final String id = child.getAttributes().getNamedItem("id").getNodeValue();
                     int stateNodeIndex = 0;
                     while (!stateNode[stateNodeIndex].getID().equals(id)) {
@@ -411,6 +487,29 @@ public class State extends BEASTObject {
         }
     }
 
+    /**
+     * @return Base64 encoded state of the random stream of the current thread,
+     * so that a resumed chain continues with the same random numbers
+     */
+    private static String randomizerState() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            Randomizer.writeState(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // cannot happen when writing to a byte array
+            throw new RuntimeException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    private static void restoreRandomizerState(final String state) {
+        try {
+            Randomizer.readState(new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(state.trim()))));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warning.println("Could not restore random number generator state: " + e.getMessage());
+        }
+    }
+
     /**
      * restore a state from file for resuming an MCMC chain 
      * @throws ParserConfigurationException 
@@ -419,6 +518,12 @@ public class State extends BEASTObject {
      */
     public void restoreFromFile() throws SAXException, IOException, ParserConfigurationException  {
         Log.info.println("Restoring from file");
+        // the next store in binary format writes a full snapshot
+        storesSinceSnapshot = -1;
+        if (BinaryStateFile.isBinary(new File(stateFileName))) {
+            BinaryStateFile.read(new File(stateFileName), stateNode);
+            return;
+        }
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         Document doc = factory.newDocumentBuilder().parse(new File(stateFileName));
         doc.normalize();
@@ -427,7 +532,9 @@ public class State extends BEASTObject {
         final NodeList children = topNode.getChildNodes();
         for (int childIndex = 0; childIndex < children.getLength(); childIndex++) {
             final Node child = children.item(childIndex);
-            if (child.getNodeType() == Node.ELEMENT_NODE) {
+            if (child.getNodeName().equals(RANDOMIZER_ELEMENT)) {
+                restoreRandomizerState(child.getTextContent());
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
             	Node idNode = child.getAttributes().getNamedItem("id");
             	if (idNode != null) {
 	                final String id = idNode.getNodeValue();
@@ -486,6 +593,8 @@ public class State extends BEASTObject {
                 changeStateNodes[i] = i;
             }
             nrOfChangedStateNodes = stateNode.length;
+            changedStateNodes.set(0, stateNode.length);
+            currentCalcNodes = null;
         }
     }
 
@@ -549,178 +658,150 @@ public class State extends BEASTObject {
                 Log.warning.println("\nWARNING: StateNode (" + stateNode[i].getID() + ") found that has no effect on posterior!\n");
             }
         }
+        compileCalcNodeGraph();
     } // setPosterior
 
     /**
-     * return current set of calculation nodes based on the set of StateNodes that have changed *
+     * Collect all CalculationNodes on a path from any StateNode to the posterior
+     * in partial order, and record for every StateNode which of them depend on it.
      */
-    public List<CalculationNode> getCurrentCalculationNodes() {
-        List<CalculationNode> calcNodes = trie.get(nrOfChangedStateNodes);
-        if (calcNodes != null) {
-            // the list is pre-calculated
-            return calcNodes;
+    private void compileCalcNodeGraph() {
+        // collect calculation nodes reachable from StateNodes
+        final Map<CalculationNode, Integer> index = new HashMap<>();
+        final List<CalculationNode> nodes = new ArrayList<>();
+        for (final List<CalculationNode> outputs : stateNodeOutputs) {
+            for (final CalculationNode node : outputs) {
+                if (!index.containsKey(node)) {
+                    index.put(node, nodes.size());
+                    nodes.add(node);
+                }
+            }
         }
-        // we need to calculate the list of CalculationNodes now
-        try {
-            calcNodes = calculateCalcNodePath();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+        for (int k = 0; k < nodes.size(); k++) {
+            for (final BEASTInterface output : outputMap.get(nodes.get(k))) {
+                if (output instanceof CalculationNode) {
+                    if (!index.containsKey(output)) {
+                        index.put((CalculationNode) output, nodes.size());
+                        nodes.add((CalculationNode) output);
+                    }
+                } else {
+                    throw new RuntimeException("DEVELOPER ERROR: found a"
+                            + " non-CalculatioNode ("
+                            +output.getClass().getName()
+                            +") on path between StateNode and Runnable");
+                }
+            }
         }
 
-        if (trieSize < TRIE_SIZE_LIMIT) {
-        	trie.set(calcNodes, nrOfChangedStateNodes);
-        	trieSize++;
-        } else {
-        	if (trieSize == TRIE_SIZE_LIMIT) {
-        		Log.debug("Trie size limit reached");
-        		trieSize++;
-        	}
+        // put calc nodes in partial order: a node comes after all of its inputs
+        final int nodeCount = nodes.size();
+        final int[] inputCount = new int[nodeCount];
+        for (final CalculationNode node : nodes) {
+            for (final BEASTInterface output : outputMap.get(node)) {
+                inputCount[index.get(output)]++;
+            }
         }
-//    	System.err.print(java.util.Arrays.toString(changeStateNodes) + ":");
-//    	for (CalculationNode node : calcNodes) {
-//    		Log.warning.print(node.getID() + " ");
-//    	}
-//    	System.err.println();
-
-        return calcNodes;
-    } // getCurrentCalculationNodes
-
-
-    /**
-     * Collect all CalculationNodes on a path from any StateNode that is changed (as
-     * indicated by m_changedStateNodeCode) to the posterior. Return the list in
-     * partial order as determined by the BEASTObjects input relations.
-     * @throws IllegalAccessException 
-     * @throws IllegalArgumentException 
-     */
-    private List<CalculationNode> calculateCalcNodePath() throws IllegalArgumentException, IllegalAccessException {
-    	if (experimental) {
-    		return calculateCalcNodePath2();
-    	}
-    	
-        final List<CalculationNode> calcNodes = new ArrayList<>();
-//    	for (int i = 0; i < stateNode.length; i++) {
-//    		if (m_changedStateNodeCode.get(i)) {
-        for (int k = 0; k < nrOfChangedStateNodes; k++) {
-            int i = changeStateNodes[k];
-            // go grab the path to the Runnable
-            // first the outputs of the StateNodes that is changed
-            boolean progress = false;
-            for (CalculationNode node : stateNodeOutputs[i]) {
-                if (!calcNodes.contains(node)) {
-                    calcNodes.add(node);
-                    progress = true;
+        calcNodes = new CalculationNode[nodeCount];
+        int ordered = 0;
+        for (int k = 0; k < nodeCount; k++) {
+            if (inputCount[k] == 0) {
+                calcNodes[ordered++] = nodes.get(k);
+            }
+        }
+        for (int k = 0; k < ordered; k++) {
+            for (final BEASTInterface output : outputMap.get(calcNodes[k])) {
+                if (--inputCount[index.get(output)] == 0) {
+                    calcNodes[ordered++] = (CalculationNode) output;
                 }
             }
-            // next the path following the outputs
-            while (progress) {
-                progress = false;
-                // loop over beastObjects till no more beastObjects can be added
-                // efficiency is no issue here, assuming the graph remains 
-                // constant
-                for (int calcNodeIndex = 0; calcNodeIndex < calcNodes.size(); calcNodeIndex++) {
-                    CalculationNode node = calcNodes.get(calcNodeIndex);
-                    for (BEASTInterface output : outputMap.get(node)) {
-                        if (output instanceof CalculationNode) {
-                            final CalculationNode calcNode = (CalculationNode) output;
-                            if (!calcNodes.contains(calcNode)) {
-                                calcNodes.add(calcNode);
-                                progress = true;
-                            }
-                        } else {
-                            throw new RuntimeException("DEVELOPER ERROR: found a"
-                                    + " non-CalculatioNode ("
-                                    +output.getClass().getName()
-                                    +") on path between StateNode and Runnable");
-                        }
-                    }
+        }
+        if (ordered < nodeCount) {
+            throw new RuntimeException("DEVELOPER ERROR: found a cycle in the calculation nodes between StateNodes and posterior");
+        }
+        for (int k = 0; k < nodeCount; k++) {
+            index.put(calcNodes[k], k);
+        }
+
+        // for every StateNode, mark calculation nodes on a path to the posterior
+        final int wordCount = (nodeCount + 63) >> 6;
+        stateNodeCalcNodes = new long[stateNode.length][];
+        final int[] stack = new int[nodeCount];
+        for (int i = 0; i < stateNode.length; i++) {
+            final long[] bits = new long[wordCount];
+            int top = 0;
+            for (final CalculationNode node : stateNodeOutputs[i]) {
+                final int k = index.get(node);
+                if ((bits[k >> 6] & (1L << k)) == 0) {
+                    bits[k >> 6] |= 1L << k;
+                    stack[top++] = k;
                 }
             }
-//    		}
-        }
-
-        // put calc nodes in partial order
-        for (int i = 0; i < calcNodes.size(); i++) {
-            CalculationNode node = calcNodes.get(i);
-            List<BEASTInterface> inputList = node.listActiveBEASTObjects();
-            for (int j = calcNodes.size() - 1; j > i; j--) {
-                if (inputList.contains(calcNodes.get(j))) {
-                    // swap
-                    final CalculationNode node2 = calcNodes.get(j);
-                    calcNodes.set(j, node);
-                    calcNodes.set(i, node2);
-                    j = 0;
-                    i--;
+            while (top > 0) {
+                for (final BEASTInterface output : outputMap.get(calcNodes[stack[--top]])) {
+                    final int k = index.get(output);
+                    if ((bits[k >> 6] & (1L << k)) == 0) {
+                        bits[k >> 6] |= 1L << k;
+                        stack[top++] = k;
+                    }
                 }
             }
+            stateNodeCalcNodes[i] = bits;
         }
+        calcNodePaths.clear();
+        currentCalcNodes = null;
+    } // compileCalcNodeGraph
 
+    /**
+     * return current set of calculation nodes based on the set of StateNodes that have changed *
+     */
+    public List<CalculationNode> getCurrentCalculationNodes() {
+        if (currentCalcNodes != null) {
+            return currentCalcNodes;
+        }
+        List<CalculationNode> calcNodes = calcNodePaths.get(changedStateNodes);
+        if (calcNodes == null) {
+            // we need to calculate the list of CalculationNodes now
+            calcNodes = calculateCalcNodePath();
+            calcNodePaths.put((BitSet) changedStateNodes.clone(), calcNodes);
+        }
+        currentCalcNodes = calcNodes;
         return calcNodes;
-    } // calculateCalcNodePath
+    } // getCurrentCalculationNodes
 
-    /** optimised version of calculateCalcNodePath -- needs testing **/
-    private List<CalculationNode> calculateCalcNodePath2() {
-        final List<CalculationNode> calcNodes = new ArrayList<>();
-        final Set<CalculationNode> seen = new HashSet<>();
-        
-        boolean progress = false;
+
+    /**
+     * Collect all CalculationNodes on a path from any StateNode that is changed (as
+     * indicated by changedStateNodes) to the posterior. Return the list in
+     * partial order as determined by the BEASTObjects input relations.
+     */
+    private List<CalculationNode> calculateCalcNodePath() {
+        if (nrOfChangedStateNodes == 0) {
+            return new ArrayList<>();
+        }
+        if (stateNodeCalcNodes == null) {
+            throw new IllegalStateException("setPosterior() should be called before calculation nodes can be determined");
+        }
+        final long[] bits = new long[stateNodeCalcNodes[0].length];
         for (int k = 0; k < nrOfChangedStateNodes; k++) {
-            int i = changeStateNodes[k];
-            // go grab the path to the Runnable
-            // first the outputs of the StateNodes that is changed
-            for (CalculationNode node : stateNodeOutputs[i]) {
-                if (!seen.contains(node)) {
-                	calcNodes.add(node);
-                    seen.add(node);
-                    progress = true;
-                }
+            final long[] stateNodeBits = stateNodeCalcNodes[changeStateNodes[k]];
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] |= stateNodeBits[w];
             }
         }
-        
-        // next the path following the outputs
-        if (progress) {
-            progress = false;
-            // loop over beastObjects till no more beastObjects can be added
-            // efficiency is no issue here, assuming the graph remains 
-            // constant
-            for (int calcNodeIndex = 0; calcNodeIndex < calcNodes.size(); calcNodeIndex++) {
-                CalculationNode node = calcNodes.get(calcNodeIndex);
-                for (BEASTInterface output : outputMap.get(node)) {
-                    if (output instanceof CalculationNode) {
-                        final CalculationNode calcNode = (CalculationNode) output;
-                        if (!seen.contains(calcNode)) {
-                            calcNodes.add(calcNode);
-                            seen.add(calcNode);
-                            progress = true;
-                        }
-                    } else {
-                        throw new RuntimeException("DEVELOPER ERROR: found a"
-                                + " non-CalculatioNode ("
-                                +output.getClass().getName()
-                                +") on path between StateNode and Runnable");
-                    }
-                }
-            }
+        int count = 0;
+        for (final long word : bits) {
+            count += Long.bitCount(word);
         }
-
-        // put calc nodes in partial order
-        for (int i = calcNodes.size()-1; i > 0; i--) {
-            CalculationNode node = calcNodes.get(i);
-            Set<BEASTInterface> outputs = node.getOutputs();
-            for (int j = 0; j < i; j++) {
-                if (outputs.contains(calcNodes.get(j))) {
-                    // swap
-                    final CalculationNode node2 = calcNodes.get(j);
-                    calcNodes.set(j, node);
-                    calcNodes.set(i, node2);
-                    i++;
-                    break;
-                }
+        final List<CalculationNode> calcNodes = new ArrayList<>(count);
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            while (word != 0) {
+                calcNodes.add(this.calcNodes[(w << 6) + Long.numberOfTrailingZeros(word)]);
+                word &= word - 1;
             }
         }
         return calcNodes;
-	}
+    } // calculateCalcNodePath
 
 	public double robustlyCalcPosterior(final Distribution posterior) {
         store(-1);
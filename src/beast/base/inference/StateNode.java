@@ -1,9 +1,17 @@
 package beast.base.inference;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import beast.base.core.BEASTInterface;
@@ -148,6 +156,33 @@ public abstract class StateNode extends CalculationNode implements Loggable, Clo
      */
     public abstract void fromXML(Node node);
 
+    /**
+     * stores a state node in binary format, to be restored by fromBinary().
+     * Used for binary checkpoints. By default, the XML representation is written,
+     * so that any StateNode can be checkpointed; parameters and trees override this
+     * with a compact encoding.
+     */
+    public void toBinary(final DataOutput out) throws IOException {
+        final byte[] xml = toXML().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(xml.length);
+        out.write(xml);
+    }
+
+    /**
+     * for restoring a state that was stored using toBinary() above *
+     */
+    public void fromBinary(final DataInput in) throws IOException {
+        final byte[] xml = new byte[in.readInt()];
+        in.readFully(xml);
+        try {
+            final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+            doc.normalize();
+            fromXML(doc.getDocumentElement());
+        } catch (Exception e) {
+            throw new IOException("Could not restore state node " + getID() + ": " + e.getMessage(), e);
+        }
+    }
+
 
 //    /**
 //     * @return true if this node is acting as a random variable, false if this node is fixed and effectively data.
@@ -1,6 +1,7 @@
 package beast.base.inference.distribution;
 
 
+import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ContinuousDistribution;
 import org.apache.commons.math.distribution.GammaDistributionImpl;
 
@@ -8,6 +9,7 @@ import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.util.QuantileFunction;
 
 @Description("Gamma distribution. for x>0  g(x;alpha,beta) = 1/Gamma(alpha) beta^alpha} x^{alpha - 1} e^{-\frac{x}{beta}}" +
         "If the input x is a multidimensional parameter, each of the dimensions is considered as a " +
@@ -26,7 +28,15 @@ public class Gamma extends ParametricDistribution {
     		+ "For ShapeMean beta is interpreted as mean."
     		+ "For OneParameter beta is ignored.", mode.ShapeScale, mode.values());
 
-    org.apache.commons.math.distribution.GammaDistribution m_dist = new GammaDistributionImpl(1, 1);
+    org.apache.commons.math.distribution.GammaDistribution m_dist = new GammaDistributionImpl(1, 1) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public double inverseCumulativeProbability(final double p) throws MathException {
+			// closed form start and Halley iterations instead of bracketing and a root solver
+			return QuantileFunction.gamma(p, getAlpha(), getBeta());
+		}
+    };
 
     mode parameterisation = mode.ShapeScale;
     		
@@ -9,6 +9,7 @@ import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.util.QuantileFunction;
 
 
 
@@ -106,7 +107,7 @@ public class LogNormalDistributionModel extends ParametricDistribution {
 
         @Override
         public double inverseCumulativeProbability(double p) throws MathException {
-            return Math.exp(m_normal.inverseCumulativeProbability(p));
+            return Math.exp(QuantileFunction.normal(p, m_fMean, m_fStdDev));
         }
 
         @Override
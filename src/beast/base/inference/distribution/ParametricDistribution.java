@@ -67,6 +67,28 @@ public abstract class ParametricDistribution extends CalculationNode implements
         return logP;
     }
 
+    /**
+     * Calculate log probability of element i of a valuable x for this distribution,
+     * so that calcLogP(x) is the sum over all elements of x when hasIndependentElements()
+     * returns true.
+     */
+    public double calcLogP(final Function fun, final int i) {
+        return logDensity(fun.getArrayValue(i), offsetInput.get());
+    }
+
+    /**
+     * @return true if calcLogP(Function) is the sum of log densities of independent elements,
+     * so that a Prior only needs to recalculate the elements that changed. This is the case
+     * unless calcLogP(Function) is overridden, as it is for multivariate distributions.
+     */
+    public boolean hasIndependentElements() {
+        try {
+            return getClass().getMethod("calcLogP", Function.class).getDeclaringClass() == ParametricDistribution.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
     /*
      * This implementation is only suitable for univariate distributions.
      * Must be overwritten for multivariate ones.
@@ -103,6 +125,47 @@ public abstract class ParametricDistribution extends CalculationNode implements
         return 0.0;
     }
 
+    /**
+     * Batch version of inverseCumulativeProbability(double): fills x[i] such that
+     * P(X &lt; x[i]) = p[i] for the first count elements of p, refreshing the
+     * underlying distribution only once.
+     *
+     * @throws MathException if any inverse cumulative probability can not be computed
+     */
+    public void inverseCumulativeProbabilities(final double[] p, final double[] x, final int count) throws MathException {
+        if (overridesInverseCumulativeProbability()) {
+            for (int i = 0; i < count; i++) {
+                x[i] = inverseCumulativeProbability(p[i]);
+            }
+            return;
+        }
+        final org.apache.commons.math.distribution.Distribution dist = getDistribution();
+        final double offset = getOffset();
+        if (dist instanceof ContinuousDistribution) {
+            final ContinuousDistribution continuous = (ContinuousDistribution) dist;
+            for (int i = 0; i < count; i++) {
+                x[i] = offset + continuous.inverseCumulativeProbability(p[i]);
+            }
+        } else if (dist instanceof IntegerDistribution) {
+            final IntegerDistribution integer = (IntegerDistribution) dist;
+            for (int i = 0; i < count; i++) {
+                x[i] = offset + integer.inverseCumulativeProbability(p[i]);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                x[i] = inverseCumulativeProbability(p[i]);
+            }
+        }
+    }
+
+    private boolean overridesInverseCumulativeProbability() {
+        try {
+            return getClass().getMethod("inverseCumulativeProbability", double.class).getDeclaringClass() != ParametricDistribution.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
     /**
      * Return the probability density for a particular point.
      * NB this does not take offset in account
@@ -2,6 +2,7 @@
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -15,6 +16,7 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.*;
 import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
 import beast.base.inference.parameter.RealParameter;
 
 
@@ -30,15 +32,53 @@ public class Prior extends Distribution {
      */
     protected ParametricDistribution dist;
 
+    /**
+     * whether the elements of x are independent, so that only elements that
+     * changed need their log densities recalculated
+     */
+    private boolean byElement;
+    /** log densities of the elements of x, and the values they were calculated for **/
+    private double[] elementLogP;
+    private double[] elementValue;
+    /** elementLogP and elementValue at the time of store(), if all elements were recalculated since **/
+    private double[] storedElementLogP;
+    private double[] storedElementValue;
+    private boolean allElementsChanged;
+    /** elements recalculated since store(), with their log densities and values at the time of store() **/
+    private int[] changedElements;
+    private double[] changedElementLogP;
+    private double[] changedElementValue;
+    private boolean[] isChanged;
+    private int changedElementCount;
+    /** sum of the finite log densities in elementLogP, and number of elements with a log density that is not finite **/
+    private double elementLogPSum;
+    private int nonFiniteCount;
+    /** number of elements that changed elementLogPSum since it was last summed over all elements **/
+    private int updateCount;
+    /** elementLogPSum, nonFiniteCount and updateCount at the time of store() **/
+    private double storedElementLogPSum;
+    private int storedNonFiniteCount;
+    private int storedUpdateCount;
+
     @Override
     public void initAndValidate() {
         dist = distInput.get();
+        byElement = dist.hasIndependentElements();
+        elementLogP = null;
+        elementValue = null;
+        storedElementLogP = null;
+        storedElementValue = null;
+        allElementsChanged = false;
+        changedElementCount = 0;
         calculateLogP();
     }
 
     @Override
     public double calculateLogP() {
         Function x = m_x.get();
+        if (byElement && (x instanceof RealParameter || x instanceof IntegerParameter)) {
+            return calculateLogPByElement((Parameter.Base<?>) x);
+        }
         if (x instanceof RealParameter || x instanceof IntegerParameter) {
             // test that parameter is inside its bounds
             double l = 0.0;
@@ -65,6 +105,180 @@ public class Prior extends Distribution {
         return logP;
     }
 
+    /**
+     * Calculate the log density from cached log densities of the elements of x. During
+     * an MCMC step that leaves the distribution itself unchanged, only the elements that
+     * x marked dirty are recalculated, and the sum of log densities is updated by the
+     * differences; otherwise all elements are. When x does not know which elements
+     * changed (e.g. after RealParameter.scale) values are compared with the ones the
+     * cached densities were calculated for. To avoid accumulating rounding errors, the
+     * sum is recalculated over all elements once as many elements as x has were updated.
+     */
+    private double calculateLogPByElement(final Parameter.Base<?> x) {
+        double l = 0.0;
+        double h = 0.0;
+        if (x instanceof RealParameter) {
+            l = ((RealParameter) x).getLower();
+            h = ((RealParameter) x).getUpper();
+        } else {
+            l = ((IntegerParameter) x).getLower();
+            h = ((IntegerParameter) x).getUpper();
+        }
+        final int dimension = x.getDimension();
+
+        if (elementLogP == null || elementLogP.length != dimension || !isDirtyCalculation() || dist.isDirtyCalculation()) {
+            if (!allElementsChanged) {
+                // keep the current densities for restore(), including any changes recorded since store()
+                storedElementLogP = elementLogP;
+                storedElementValue = elementValue;
+                allElementsChanged = true;
+                elementLogP = new double[dimension];
+                elementValue = new double[dimension];
+            } else if (elementLogP == null || elementLogP.length != dimension) {
+                elementLogP = new double[dimension];
+                elementValue = new double[dimension];
+            }
+            for (int i = 0; i < dimension; i++) {
+                final double value = x.getArrayValue(i);
+                elementValue[i] = value;
+                elementLogP[i] = value < l || value > h ? Double.NEGATIVE_INFINITY : dist.calcLogP(x, i);
+            }
+            sumElementLogP();
+        } else {
+            final int dirtyCount = x.getDirtyElementCount();
+            if (dirtyCount >= 0) {
+                for (int k = 0; k < dirtyCount; k++) {
+                    updateElement(x, x.getDirtyElement(k), l, h);
+                }
+            } else {
+                for (int i = 0; i < dimension; i++) {
+                    updateElement(x, i, l, h);
+                }
+            }
+            if (updateCount > dimension) {
+                sumElementLogP();
+            }
+        }
+        if (isChanged == null) {
+            isChanged = new boolean[dimension];
+            changedElements = new int[dimension];
+            changedElementLogP = new double[dimension];
+            changedElementValue = new double[dimension];
+        } else if (isChanged.length < dimension) {
+            // grow, keeping the changes recorded so far for restore()
+            isChanged = Arrays.copyOf(isChanged, dimension);
+            changedElements = Arrays.copyOf(changedElements, dimension);
+            changedElementLogP = Arrays.copyOf(changedElementLogP, dimension);
+            changedElementValue = Arrays.copyOf(changedElementValue, dimension);
+        }
+
+        if (nonFiniteCount == 0) {
+            logP = elementLogPSum;
+            return logP;
+        }
+        logP = 0;
+        for (int i = 0; i < dimension; i++) {
+            final double value = elementValue[i];
+            if (value < l || value > h) {
+                logP = Double.NEGATIVE_INFINITY;
+                return Double.NEGATIVE_INFINITY;
+            }
+            logP += elementLogP[i];
+        }
+        if (logP == Double.POSITIVE_INFINITY) {
+            logP = Double.NEGATIVE_INFINITY;
+        }
+        return logP;
+    }
+
+    /** recalculate the log density of element i if its value changed, recording the old one for restore() **/
+    private void updateElement(final Parameter.Base<?> x, final int i, final double l, final double h) {
+        final double value = x.getArrayValue(i);
+        if (Double.doubleToLongBits(value) == Double.doubleToLongBits(elementValue[i])) {
+            return;
+        }
+        if (!allElementsChanged && !isChanged[i]) {
+            isChanged[i] = true;
+            changedElements[changedElementCount] = i;
+            changedElementLogP[changedElementCount] = elementLogP[i];
+            changedElementValue[changedElementCount] = elementValue[i];
+            changedElementCount++;
+        }
+        final double oldLogP = elementLogP[i];
+        final double newLogP = value < l || value > h ? Double.NEGATIVE_INFINITY : dist.calcLogP(x, i);
+        elementValue[i] = value;
+        elementLogP[i] = newLogP;
+        if (Double.isFinite(oldLogP)) {
+            elementLogPSum -= oldLogP;
+        } else {
+            nonFiniteCount--;
+        }
+        if (Double.isFinite(newLogP)) {
+            elementLogPSum += newLogP;
+        } else {
+            nonFiniteCount++;
+        }
+        updateCount++;
+    }
+
+    /** sum log densities of all elements, in the same order as ParametricDistribution.calcLogP **/
+    private void sumElementLogP() {
+        elementLogPSum = 0;
+        nonFiniteCount = 0;
+        for (final double logDensity : elementLogP) {
+            if (Double.isFinite(logDensity)) {
+                elementLogPSum += logDensity;
+            } else {
+                nonFiniteCount++;
+            }
+        }
+        updateCount = 0;
+    }
+
+    private void clearChangedElements() {
+        for (int k = 0; k < changedElementCount; k++) {
+            isChanged[changedElements[k]] = false;
+        }
+        changedElementCount = 0;
+        storedElementLogP = null;
+        storedElementValue = null;
+        allElementsChanged = false;
+        storedElementLogPSum = elementLogPSum;
+        storedNonFiniteCount = nonFiniteCount;
+        storedUpdateCount = updateCount;
+    }
+
+    @Override
+    public void store() {
+        clearChangedElements();
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (allElementsChanged) {
+            elementLogP = storedElementLogP;
+            elementValue = storedElementValue;
+        }
+        if (elementLogP != null) {
+            for (int k = changedElementCount - 1; k >= 0; k--) {
+                elementLogP[changedElements[k]] = changedElementLogP[k];
+                elementValue[changedElements[k]] = changedElementValue[k];
+            }
+        }
+        elementLogPSum = storedElementLogPSum;
+        nonFiniteCount = storedNonFiniteCount;
+        updateCount = storedUpdateCount;
+        clearChangedElements();
+        super.restore();
+    }
+
+    @Override
+    protected void accept() {
+        clearChangedElements();
+        super.accept();
+    }
+
     /**
      * return name of the parameter this prior is applied to *
      */
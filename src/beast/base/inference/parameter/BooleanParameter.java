@@ -25,6 +25,9 @@
 package beast.base.inference.parameter;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 
 import beast.base.core.Description;
@@ -37,6 +40,12 @@ import beast.base.core.Log;
 @Description("A Boolean-valued parameter represents a value (or array of values if the dimension is larger than one) " +
         "in the state space that can be changed by operators.")
 public class BooleanParameter extends Parameter.Base<java.lang.Boolean> {
+    /**
+     * the actual values of this parameter
+     */
+    protected boolean[] values;
+    protected boolean[] storedValues;
+
     public BooleanParameter() {
         m_fUpper = true;
     }
@@ -65,6 +74,54 @@ public class BooleanParameter extends Parameter.Base<java.lang.Boolean> {
         return false;
     }
 
+    @Override
+    Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    Object storedValuesArray() {
+        return storedValues;
+    }
+
+    @Override
+    void setValuesArrays(final Object values, final Object storedValues) {
+        this.values = (boolean[]) values;
+        this.storedValues = (boolean[]) storedValues;
+    }
+
+    @Override
+    Object newArray(final int dimension) {
+        return new boolean[dimension];
+    }
+
+    @Override
+    void set(final int i, final Boolean value) {
+        values[i] = value;
+    }
+
+    @Override
+    public int getDimension() {
+        return values.length;
+    }
+
+    @Override
+    public Boolean getValue(final int i) {
+        return values[i];
+    }
+
+    @Override
+    public Boolean getStoredValue(final int i) {
+        return storedValues[i];
+    }
+
+    /**
+     * @return value i, without boxing
+     */
+    public boolean getNativeValue(final int i) {
+        return values[i];
+    }
+
     /** Valuable implementation follows **/
     /**
      * we need this here, because the base implementation (public T getValue()) fails
@@ -94,7 +151,7 @@ public class BooleanParameter extends Parameter.Base<java.lang.Boolean> {
         int valueCount = var.getDimension();
         for (int i = 0; i < valueCount; i++) {
             // Output 0/1 for tracer
-            out.print((var.getValue(i) ? '1' : '0') + "\t");
+            out.print((var.getNativeValue(i) ? '1' : '0') + "\t");
         }
     }
 
@@ -110,9 +167,29 @@ public class BooleanParameter extends Parameter.Base<java.lang.Boolean> {
 
     @Override
     void fromXML(int dimension, String lower, String upper, String[] valueStrings) {
-        values = new Boolean[dimension];
+        values = new boolean[dimension];
         for (int i = 0; i < valueStrings.length; i++) {
             values[i] = Boolean.parseBoolean(valueStrings[i]);
         }
     }
+
+    @Override
+    public void toBinary(final DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        out.writeInt(minorDimension);
+        for (final boolean value : values) {
+            out.writeBoolean(value);
+        }
+    }
+
+    @Override
+    public void fromBinary(final DataInput in) throws IOException {
+        final int dimension = in.readInt();
+        minorDimension = in.readInt();
+        setDirtyElementsUnknown();
+        values = new boolean[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = in.readBoolean();
+        }
+    }
 }
@@ -82,6 +82,25 @@ public class CompoundRealParameter extends RealParameter {
 		return parameters[mapIndexToParameter[i]].getArrayValue(i - offset[i]);
 	}
 
+	@Override
+	public Double getStoredValue(int i) {
+		return parameters[mapIndexToParameter[i]].getStoredValue(i - offset[i]);
+	}
+
+	@Override
+	public double[] getDoubleValues() {
+		double[] values = new double[dim];
+		getArrayValues(values);
+		return values;
+	}
+
+	@Override
+	public void getArrayValues(double[] target) {
+		for (int i = 0; i < dim; i++) {
+			target[i] = getArrayValue(i);
+		}
+	}
+
 	@Override
 	public void setValue(Double value) {
 		parameters[0].setValue(value);
@@ -141,6 +160,14 @@ public class CompoundRealParameter extends RealParameter {
 		}
     }
     
+    /**
+     * values change through the underlying parameters, which does not mark elements of this parameter dirty
+     */
+    @Override
+    public int getDirtyElementCount() {
+    	return -1;
+    }
+
     @Override
     public StateNode getCurrent() {
     	return this;
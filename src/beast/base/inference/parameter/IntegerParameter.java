@@ -1,6 +1,9 @@
 package beast.base.inference.parameter;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 
 import beast.base.core.Description;
@@ -18,6 +21,12 @@ public class IntegerParameter extends Parameter.Base<java.lang.Integer> {
     final public Input<Integer> lowerValueInput = new Input<>("lower", "lower value for this parameter (default -infinity)");
     final public Input<Integer> upperValueInput = new Input<>("upper", "upper value for this parameter  (default +infinity)");
 
+    /**
+     * the actual values of this parameter
+     */
+    protected int[] values;
+    protected int[] storedValues;
+
     public IntegerParameter() {
     }
 
@@ -57,6 +66,47 @@ public class IntegerParameter extends Parameter.Base<java.lang.Integer> {
         return Integer.MIN_VALUE + 1;
     }
 
+    @Override
+    Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    Object storedValuesArray() {
+        return storedValues;
+    }
+
+    @Override
+    void setValuesArrays(final Object values, final Object storedValues) {
+        this.values = (int[]) values;
+        this.storedValues = (int[]) storedValues;
+    }
+
+    @Override
+    Object newArray(final int dimension) {
+        return new int[dimension];
+    }
+
+    @Override
+    void set(final int i, final Integer value) {
+        values[i] = value;
+    }
+
+    @Override
+    public int getDimension() {
+        return values.length;
+    }
+
+    @Override
+    public Integer getValue(final int i) {
+        return values[i];
+    }
+
+    @Override
+    public Integer getStoredValue(final int i) {
+        return storedValues[i];
+    }
+
     /** Valuable implementation follows **/
     /**
      * we need this here, because the base implementation (public T getValue()) fails
@@ -76,6 +126,13 @@ public class IntegerParameter extends Parameter.Base<java.lang.Integer> {
         return values[value];
     }
 
+    /**
+     * @return copy of the values, without boxing
+     */
+    public int[] getNativeValues() {
+        return values.clone();
+    }
+
     @Override
     public double getArrayValue(int value) {
         return values[value];
@@ -89,7 +146,7 @@ public class IntegerParameter extends Parameter.Base<java.lang.Integer> {
         IntegerParameter var = (IntegerParameter) getCurrent();
         int valueCount = var.getDimension();
         for (int i = 0; i < valueCount; i++) {
-            out.print(var.getValue(i) + "\t");
+            out.print(var.getNativeValue(i) + "\t");
         }
     }
 
@@ -107,9 +164,33 @@ public class IntegerParameter extends Parameter.Base<java.lang.Integer> {
     void fromXML(int dimension, String lower, String upper, String[] valueStrings) {
         setLower(Integer.parseInt(lower));
         setUpper(Integer.parseInt(upper));
-        values = new Integer[dimension];
+        values = new int[dimension];
         for (int i = 0; i < values.length; i++) {
             values[i] = Integer.parseInt(valueStrings[i]);
         }
     }
+
+    @Override
+    public void toBinary(final DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        out.writeInt(minorDimension);
+        out.writeInt(m_fLower);
+        out.writeInt(m_fUpper);
+        for (final int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    @Override
+    public void fromBinary(final DataInput in) throws IOException {
+        final int dimension = in.readInt();
+        minorDimension = in.readInt();
+        setLower(in.readInt());
+        setUpper(in.readInt());
+        setDirtyElementsUnknown();
+        values = new int[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = in.readInt();
+        }
+    }
 }
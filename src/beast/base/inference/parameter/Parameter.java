@@ -159,8 +159,11 @@ public interface Parameter<T> extends Function {
         }
 
         public Base(final T[] values) {
-            this.values = values.clone();
-            this.storedValues = values.clone();
+            setValuesArrays(newArray(values.length), newArray(values.length));
+            for (int i = 0; i < values.length; i++) {
+                set(i, values[i]);
+            }
+            store();
             m_fUpper = getMax();
             m_fLower = getMin();
             m_bIsDirty = new boolean[values.length];
@@ -176,19 +179,19 @@ public interface Parameter<T> extends Function {
 
             int dimension = Math.max(dimensionInput.get(), valuesString.length);
             dimensionInput.setValue(dimension, this);
-            values = (T[]) Array.newInstance(getMax().getClass(), dimension);
-            storedValues = (T[]) Array.newInstance(getMax().getClass(), dimension);
-            for (int i = 0; i < values.length; i++) {
-                values[i] = valuesString[i % valuesString.length];
+            setValuesArrays(newArray(dimension), newArray(dimension));
+            for (int i = 0; i < dimension; i++) {
+                set(i, valuesString[i % valuesString.length]);
             }
 
             m_bIsDirty = new boolean[dimensionInput.get()];
+            dirtyElementCount = -1;
 
             minorDimension = minorDimensionInput.get();
             if (minorDimension > 0 && dimensionInput.get() % minorDimension > 0) {
                 throw new IllegalArgumentException("Dimension must be divisible by stride");
             }
-            this.storedValues = values.clone();
+            store();
 
             if (keysInput.get() != null) {
                 String[] keysArr = keysInput.get().split(" ");
@@ -240,10 +243,42 @@ public interface Parameter<T> extends Function {
         abstract T getMin();
 
         /**
-         * the actual values of this parameter
+         * The values are kept in arrays of the primitive type, a double[], int[] or
+         * boolean[], so that reading and writing them in likelihood calculations and
+         * operators does not box. The array holding the values before an
+         * operator changed them is swapped in on restore.
+         * <p/>
+         * This replaces the protected T[] values and storedValues fields of earlier
+         * versions. Subclasses that read or assigned those fields directly should use
+         * getValue(i), getStoredValue(i) and setValue(i, value) instead.
+         *
+         * @return the array holding the current values
+         */
+        abstract Object valuesArray();
+
+        /**
+         * @return the array holding the values as they were before editing started
          */
-        protected T[] values;
-        protected T[] storedValues;
+        abstract Object storedValuesArray();
+
+        abstract void setValuesArrays(Object values, Object storedValues);
+
+        /**
+         * @return new primitive array for dimension values
+         */
+        abstract Object newArray(int dimension);
+
+        /**
+         * set value i, without notifying the state
+         */
+        abstract void set(int i, T value);
+
+        private Object copyOf(final Object array) {
+            final int length = Array.getLength(array);
+            final Object copy = newArray(length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
         /**
          * sub-dimension when parameter is considered a matrix
          */
@@ -256,6 +291,13 @@ public interface Parameter<T> extends Function {
          * last element to be changed *
          */
         protected int m_nLastDirty;
+        /**
+         * elements marked dirty since everything was last marked clean, in the order
+         * they were first changed. The count is -1 when values may have changed without
+         * marking the elements dirty, e.g. by scale(), or everything is dirty.
+         */
+        private int[] dirtyElements;
+        private int dirtyElementCount = -1;
 
         private List<String> keys = null; // unmodifiableList
         private java.util.Map<String, Integer> keyToIndexMap = null;
@@ -316,19 +358,59 @@ public interface Parameter<T> extends Function {
             return m_nLastDirty;
         }
 
+        /**
+         * Allows calculation nodes to visit only the elements that changed, instead
+         * of testing isDirty() for every element.
+         *
+         * @return number of elements marked dirty since everything was last marked clean,
+         * or -1 if it is not known which elements changed
+         */
+        public int getDirtyElementCount() {
+            return dirtyElementCount;
+        }
+
+        /**
+         * @param k number of the change, less than getDirtyElementCount()
+         * @return index of the k-th element marked dirty
+         */
+        public int getDirtyElement(final int k) {
+            return dirtyElements[k];
+        }
+
+        /**
+         * To be called when values change without marking the changed elements dirty,
+         * so that getDirtyElementCount() returns -1 until everything is marked clean.
+         */
+        protected void setDirtyElementsUnknown() {
+            dirtyElementCount = -1;
+        }
+
+        private void markDirty(final int index) {
+            if (!m_bIsDirty[index]) {
+                m_bIsDirty[index] = true;
+                if (dirtyElementCount >= 0) {
+                    dirtyElements[dirtyElementCount++] = index;
+                }
+            }
+        }
+
         @Override
         public void setEverythingDirty(final boolean isDirty) {
             setSomethingIsDirty(isDirty);
             Arrays.fill(m_bIsDirty, isDirty);
+            if (isDirty) {
+                dirtyElementCount = -1;
+            } else {
+                if (dirtyElements == null || dirtyElements.length != m_bIsDirty.length) {
+                    dirtyElements = new int[m_bIsDirty.length];
+                }
+                dirtyElementCount = 0;
+            }
         }
 
         /*
          * various setters & getters *
          */
-        @Override
-        public int getDimension() {
-            return values.length;
-        }
 
         /**
          * Change the dimension of a parameter
@@ -340,20 +422,26 @@ public interface Parameter<T> extends Function {
          * Values are sourced from the original parameter values.
          *
          * @param dimension
+         * @throws IllegalArgumentException when the parameter has no values to source new values from
          */
-        @SuppressWarnings("unchecked")
         public void setDimension(final int dimension) {
         	startEditing(null);
         	
-            if (getDimension() != dimension) {
-                final T[] values2 = (T[]) Array.newInstance(getMax().getClass(), dimension);
-                for (int i = 0; i < dimension; i++) {
-                    values2[i] = values[i % getDimension()];
+            final int oldDimension = getDimension();
+            if (oldDimension != dimension) {
+                if (oldDimension == 0) {
+                    throw new IllegalArgumentException("Cannot set dimension of " + getID() + " to " + dimension +
+                            ": it has no values to copy");
+                }
+                final Object values = valuesArray();
+                final Object values2 = newArray(dimension);
+                for (int i = 0; i < dimension; i += oldDimension) {
+                    System.arraycopy(values, 0, values2, i, Math.min(oldDimension, dimension - i));
                 }
-                values = values2;
-                //storedValues = (T[]) Array.newInstance(m_fUpper.getClass(), dimension);
+                setValuesArrays(values2, storedValuesArray());
             }
             m_bIsDirty = new boolean[dimension];
+            dirtyElementCount = -1;
             try {
                 dimensionInput.setValue(dimension, this);
             } catch (Exception e) {
@@ -370,7 +458,7 @@ public interface Parameter<T> extends Function {
 
         @Override
         public T getValue() {
-            return values[0];
+            return getValue(0);
         }
 
         @Override
@@ -393,23 +481,24 @@ public interface Parameter<T> extends Function {
             m_fUpper = upper;
         }
 
-        @Override
-        public T getValue(final int param) {
-            return values[param];
-        }
-
-        public T getStoredValue(final int param) {
-            return storedValues[param];
-        }
+        public abstract T getStoredValue(int param);
 
+        @SuppressWarnings("unchecked")
         @Override
         public T[] getValues() {
-            return Arrays.copyOf(values, values.length);
+            final T[] copy = (T[]) Array.newInstance(getMax().getClass(), getDimension());
+            getValues(copy);
+            return copy;
         }
 
 
+        @SuppressWarnings("unchecked")
         public T[] getStoredValues() {
-            return Arrays.copyOf(storedValues, storedValues.length);
+            final T[] copy = (T[]) Array.newInstance(getMax().getClass(), Array.getLength(storedValuesArray()));
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = getStoredValue(i);
+            }
+            return copy;
         }
         
         /**
@@ -418,7 +507,9 @@ public interface Parameter<T> extends Function {
          * @param copyTo
          */
         public void getValues(T[] copyTo) {
-            System.arraycopy(values, 0, copyTo, 0, values.length);
+            for (int i = 0; i < getDimension(); i++) {
+                copyTo[i] = getValue(i);
+            }
         }
 
         public void setBounds(final T lower, final T upper) {
@@ -430,8 +521,8 @@ public interface Parameter<T> extends Function {
         public void setValue(final T value) {
             startEditing(null);
 
-            values[0] = value;
-            m_bIsDirty[0] = true;
+            set(0, value);
+            markDirty(0);
             m_nLastDirty = 0;
         }
 
@@ -439,8 +530,8 @@ public interface Parameter<T> extends Function {
         public void setValue(final int param, final T value) {
             startEditing(null);
 
-            values[param] = value;
-            m_bIsDirty[param] = true;
+            set(param, value);
+            markDirty(param);
             m_nLastDirty = param;
 
         }
@@ -448,11 +539,11 @@ public interface Parameter<T> extends Function {
         @Override
         public void swap(final int left, final int right) {
             startEditing(null);
-            final T tmp = values[left];
-            values[left] = values[right];
-            values[right] = tmp;
-            m_bIsDirty[left] = true;
-            m_bIsDirty[right] = true;
+            final T tmp = getValue(left);
+            set(left, getValue(right));
+            set(right, tmp);
+            markDirty(left);
+            markDirty(right);
         }
 
         /**
@@ -462,14 +553,14 @@ public interface Parameter<T> extends Function {
         @Override
         public String toString() {
             final StringBuilder buf = new StringBuilder();
-            buf.append(getID()).append("[").append(values.length);
+            buf.append(getID()).append("[").append(getDimension());
             if (minorDimension > 0) {
                 buf.append(" ").append(minorDimension);
             }
             buf.append("] ");
             buf.append("(").append(m_fLower).append(",").append(m_fUpper).append("): ");
-            for (final T value : values) {
-                buf.append(value).append(" ");
+            for (int i = 0; i < getDimension(); i++) {
+                buf.append(getValue(i)).append(" ");
             }
             return buf.toString();
         }
@@ -478,8 +569,10 @@ public interface Parameter<T> extends Function {
         public Base<T> copy() {
             try {
                 @SuppressWarnings("unchecked") final Parameter.Base<T> copy = (Parameter.Base<T>) this.clone();
-                copy.values = values.clone();//new Boolean[values.length];
-                copy.m_bIsDirty = new boolean[values.length];
+                copy.setValuesArrays(copyOf(valuesArray()), copyOf(storedValuesArray()));
+                copy.m_bIsDirty = new boolean[getDimension()];
+                copy.dirtyElements = null;
+                copy.dirtyElementCount = -1;
                 return copy;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -492,31 +585,31 @@ public interface Parameter<T> extends Function {
             @SuppressWarnings("unchecked") final Parameter.Base<T> copy = (Parameter.Base<T>) other;
             copy.setID(getID());
             copy.index = index;
-            copy.values = values.clone();
-            //System.arraycopy(values, 0, copy.values, 0, values.length);
+            copy.setValuesArrays(copyOf(valuesArray()), copy.storedValuesArray());
             copy.m_fLower = m_fLower;
             copy.m_fUpper = m_fUpper;
-            copy.m_bIsDirty = new boolean[values.length];
+            copy.m_bIsDirty = new boolean[getDimension()];
+            copy.dirtyElementCount = -1;
         }
 
         @Override
         public void assignFrom(final StateNode other) {
             @SuppressWarnings("unchecked") final Parameter.Base<T> source = (Parameter.Base<T>) other;
             setID(source.getID());
-            values = source.values.clone();
-            storedValues = source.storedValues.clone();
-            System.arraycopy(source.values, 0, values, 0, values.length);
+            setValuesArrays(copyOf(source.valuesArray()), copyOf(source.storedValuesArray()));
             m_fLower = source.m_fLower;
             m_fUpper = source.m_fUpper;
-            m_bIsDirty = new boolean[source.values.length];
+            m_bIsDirty = new boolean[source.getDimension()];
+            dirtyElementCount = -1;
         }
 
         @Override
         public void assignFromFragile(final StateNode other) {
             @SuppressWarnings("unchecked") final Parameter.Base<T> source = (Parameter.Base<T>) other;
-            this.setDimension(source.values.length);
-            System.arraycopy(source.values, 0, values, 0, source.values.length);
+            this.setDimension(source.getDimension());
+            System.arraycopy(source.valuesArray(), 0, valuesArray(), 0, source.getDimension());
             Arrays.fill(m_bIsDirty, false);
+            dirtyElementCount = -1;
         }
 
         /**
@@ -548,6 +641,7 @@ public interface Parameter<T> extends Function {
             final NamedNodeMap atts = node.getAttributes();
             setID(atts.getNamedItem("id").getNodeValue());
             final String str = node.getTextContent();
+            dirtyElementCount = -1;
             Pattern pattern = Pattern.compile(".*\\[(.*) (.*)\\].*\\((.*),(.*)\\): (.*) ");
             Matcher matcher = pattern.matcher(str);
 
@@ -603,7 +697,7 @@ public interface Parameter<T> extends Function {
 
         @Override
         public T getMatrixValue(final int i, final int j) {
-            return values[i * minorDimension + j];
+            return getValue(i * minorDimension + j);
         }
 
         public void setMatrixValue(final int i, final int j, final T value) {
@@ -612,7 +706,9 @@ public interface Parameter<T> extends Function {
 
         public void getMatrixValues1(final int i, final T[] row) {
             assert (row.length == minorDimension);
-            System.arraycopy(values, i * minorDimension, row, 0, minorDimension);
+            for (int j = 0; j < minorDimension; j++) {
+                row[j] = getValue(i * minorDimension + j);
+            }
         }
 
         public void getMatrixValues1(final int i, final double[] row) {
@@ -625,7 +721,7 @@ public interface Parameter<T> extends Function {
         public void getMatrixValues2(final int j, final T[] col) {
             assert (col.length == getMinorDimension2());
             for (int i = 0; i < getMinorDimension2(); i++) {
-                col[i] = values[i * minorDimension + j];
+                col[i] = getValue(i * minorDimension + j);
             }
         }
 
@@ -636,23 +732,25 @@ public interface Parameter<T> extends Function {
             }
         }
 
-        @SuppressWarnings("unchecked")
         @Override
         protected void store() {
-            if (storedValues.length != values.length) {
-                storedValues = (T[]) Array.newInstance(m_fUpper.getClass(), values.length);
+            final Object values = valuesArray();
+            Object storedValues = storedValuesArray();
+            final int dimension = getDimension();
+            if (Array.getLength(storedValues) != dimension) {
+                storedValues = newArray(dimension);
+                setValuesArrays(values, storedValues);
             }
-            System.arraycopy(values, 0, storedValues, 0, values.length);
+            System.arraycopy(values, 0, storedValues, 0, dimension);
         }
 
         @Override
         public void restore() {
-            final T[] tmp = storedValues;
-            storedValues = values;
-            values = tmp;
+            setValuesArrays(storedValuesArray(), valuesArray());
             hasStartedEditing = false;
-            if (m_bIsDirty.length != values.length) {
-                m_bIsDirty = new boolean[values.length];
+            if (m_bIsDirty.length != getDimension()) {
+                m_bIsDirty = new boolean[getDimension()];
+                dirtyElementCount = -1;
             }
         }
     } // class Parameter
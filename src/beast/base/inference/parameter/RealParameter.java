@@ -1,6 +1,9 @@
 package beast.base.inference.parameter;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 
 import beast.base.core.Description;
@@ -17,6 +20,12 @@ public class RealParameter extends Parameter.Base<Double> {
     final public Input<Double> lowerValueInput = new Input<>("lower", "lower value for this parameter (default -infinity)");
     final public Input<Double> upperValueInput = new Input<>("upper", "upper value for this parameter (default +infinity)");
 
+    /**
+     * the actual values of this parameter
+     */
+    protected double[] values;
+    protected double[] storedValues;
+
     public RealParameter() {
     }
 
@@ -55,6 +64,48 @@ public class RealParameter extends Parameter.Base<Double> {
     Double getMin() {
         return Double.NEGATIVE_INFINITY;
     }
+
+    @Override
+    Object valuesArray() {
+        return values;
+    }
+
+    @Override
+    Object storedValuesArray() {
+        return storedValues;
+    }
+
+    @Override
+    void setValuesArrays(final Object values, final Object storedValues) {
+        this.values = (double[]) values;
+        this.storedValues = (double[]) storedValues;
+    }
+
+    @Override
+    Object newArray(final int dimension) {
+        return new double[dimension];
+    }
+
+    @Override
+    void set(final int i, final Double value) {
+        values[i] = value;
+    }
+
+    @Override
+    public int getDimension() {
+        return values.length;
+    }
+
+    @Override
+    public Double getValue(final int i) {
+        return values[i];
+    }
+
+    @Override
+    public Double getStoredValue(final int i) {
+        return storedValues[i];
+    }
+
     /** Valuable implementation follows **/
 
     /**
@@ -76,6 +127,16 @@ public class RealParameter extends Parameter.Base<Double> {
         return values[index];
     }
 
+    @Override
+    public double[] getDoubleValues() {
+        return values.clone();
+    }
+
+    @Override
+    public void getArrayValues(final double[] target) {
+        System.arraycopy(values, 0, target, 0, values.length);
+    }
+
     /**
      * Loggable implementation *
      */
@@ -84,7 +145,7 @@ public class RealParameter extends Parameter.Base<Double> {
         final RealParameter var = (RealParameter) getCurrent();
         final int values = var.getDimension();
         for (int value = 0; value < values; value++) {
-            out.print(var.getValue(value) + "\t");
+            out.print(var.getArrayValue(value) + "\t");
         }
     }
 
@@ -93,6 +154,7 @@ public class RealParameter extends Parameter.Base<Double> {
      */
     @Override
     public int scale(final double scale) {
+        setDirtyElementsUnknown();
         int nScaled = 0;
 
         for (int i = 0; i < values.length; i++) {
@@ -115,12 +177,35 @@ public class RealParameter extends Parameter.Base<Double> {
     void fromXML(final int dimension, final String lower, final String upper, final String[] valuesString) {
         setLower(Double.parseDouble(lower));
         setUpper(Double.parseDouble(upper));
-        values = new Double[dimension];
+        values = new double[dimension];
         for (int i = 0; i < valuesString.length; i++) {
             values[i] = Double.parseDouble(valuesString[i]);
         }
     }
 
+    @Override
+    public void toBinary(final DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        out.writeInt(minorDimension);
+        out.writeDouble(m_fLower);
+        out.writeDouble(m_fUpper);
+        for (final double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    @Override
+    public void fromBinary(final DataInput in) throws IOException {
+        final int dimension = in.readInt();
+        minorDimension = in.readInt();
+        setLower(in.readDouble());
+        setUpper(in.readDouble());
+        setDirtyElementsUnknown();
+        values = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = in.readDouble();
+        }
+    }
 
 }
 
@@ -1,7 +1,6 @@
 package beast.base.inference.util;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.List;
 
 import beast.base.core.BEASTObject;
@@ -15,28 +14,23 @@ import beast.base.core.Input.Validate;
 //import beast.core.Distribution;
 
 @Description("Report effective sample size of a parameter or log values from a distribution. " +
-        "This uses the same criterion as Tracer and assumes 10% burn in.")
+        "This uses batch means in bounded memory and assumes 10% burn in.")
 public class ESS extends BEASTObject implements Loggable {
     final public Input<Function> functionInput =
             new Input<>("arg", "value (e.g. parameter or distribution) to report ESS for", Validate.REQUIRED);
 
+    final public Input<Integer> maxBatchesInput = new Input<>("maxBatches", "maximum number of batches the trace is " +
+            "summarised in. Memory use is proportional to this number, and larger numbers give more accurate estimates " +
+            "once the chain is long (default 200)", 200);
+
     /**
-     * values from which the ESS is calculated *
-     */
-    protected List<Double> trace;
-    /**
-     * sum of trace, excluding burn-in  *
-     */
-    protected double sum = 0;
-    /**
-     * keep track of sums of trace(i)*trace(i_+ lag) for all lags, excluding burn-in  *
+     * batch means estimator of the ESS, which keeps memory bounded however long the chain runs *
      */
-    protected List<Double> squareLaggedSums;
+    protected OnlineESS ess;
 
     @Override
     public void initAndValidate() {
-        trace = new ArrayList<>();
-        squareLaggedSums = new ArrayList<>();
+        ess = new OnlineESS(1, maxBatchesInput.get());
     }
 
     @Override
@@ -61,79 +55,17 @@ public class ESS extends BEASTObject implements Loggable {
 //  roughly linear and so the ACT (the point on the X axis) is approximately equal to twice the area under the curve divided
 //  by the value at x=0 (the AC of the sequence). This is the reason for summing up twice the variances inside the loop - a
 //  basic numerical integration technique.
+//
+//  The batch versions below use this criterion. While logging, the criterion is applied to batch means instead
+//  (see OnlineESS), since applying it to the samples requires the complete trace to be kept in memory.
 
     @Override
     public void log(final long sample, PrintStream out) {
-        final Double newValue = functionInput.get().getArrayValue();
-        trace.add(newValue);
-        sum += newValue;
-
-        final int totalSamples = trace.size();
-
-        // take 10% burn in
-        final int start = totalSamples / 10;
-        if (start != ((totalSamples - 1) / 10)) {
-            // compensate for 10% burnin
-            sum -= trace.get((totalSamples - 1) / 10);
-        }
-        final int sampleCount = totalSamples - start;
-        final int maxLag = Math.min(sampleCount, MAX_LAG);
-
-        // calculate mean
-        final double mean = sum / sampleCount;
-
-        if (start != ((totalSamples - 1) / 10)) {
-            // compensate for 10% burnin
-            int traceIndex = ((totalSamples - 1) / 10);
-            for (int lagIndex = 0; lagIndex < squareLaggedSums.size(); lagIndex++) {
-                squareLaggedSums.set(lagIndex, squareLaggedSums.get(lagIndex) - trace.get(traceIndex) * trace.get(traceIndex + lagIndex));
-            }
-        }
-
-        while (squareLaggedSums.size() < maxLag) {
-            squareLaggedSums.add(0.0);
+        ess.add(functionInput.get().getArrayValue());
+        String str = ess.getESS(0) + "";
+        if (str.indexOf('.') >= 0) {
+            str = str.substring(0, str.indexOf('.') + 2);
         }
-
-        // calculate auto correlation for selected lag times
-        double[] autoCorrelation = new double[maxLag];
-        // sum1 = \sum_{start ... totalSamples-lagIndex-1} trace
-        double sum1 = sum;
-        // sum2 = \sum_{start+lagIndex ... totalSamples-1} trace
-        double sum2 = sum;
-        for (int lag = 0; lag < maxLag; lag++) {
-            squareLaggedSums.set(lag, squareLaggedSums.get(lag) + trace.get(totalSamples - lag - 1) * trace.get(totalSamples - 1));
-            // The following line is the same approximation as in Tracer 
-            // (valid since mean *(samples - lag), sum1, and sum2 are approximately the same)
-            // though a more accurate estimate would be
-            // autoCorrelation[lag] = m_fSquareLaggedSums.get(lag) - sum1 * sum2
-            autoCorrelation[lag] = squareLaggedSums.get(lag) - (sum1 + sum2) * mean + mean * mean * (sampleCount - lag);
-            autoCorrelation[lag] /= (sampleCount - lag);
-            sum1 -= trace.get(totalSamples - 1 - lag);
-            sum2 -= trace.get(start + lag);
-        }
-
-        double integralOfACFunctionTimes2 = 0.0;
-        for (int lagIndex = 0; lagIndex < maxLag; lagIndex++) {
-            if (lagIndex == 0) {
-                integralOfACFunctionTimes2 = autoCorrelation[0];
-            } else if (lagIndex % 2 == 0) {
-                // fancy stopping criterion - see main comment
-                if (autoCorrelation[lagIndex - 1] + autoCorrelation[lagIndex] > 0) {
-                    integralOfACFunctionTimes2 += 2.0 * (autoCorrelation[lagIndex - 1] + autoCorrelation[lagIndex]);
-                } else {
-                    // stop
-                    break;
-                }
-            }
-        }
-
-        // auto correlation time
-        final double act = integralOfACFunctionTimes2 / autoCorrelation[0];
-
-        // effective sample size
-        final double ess = sampleCount / act;
-        String str = ess + "";
-        str = str.substring(0, str.indexOf('.') + 2);
         out.print(str + "\t");
     } // log
 
@@ -0,0 +1,98 @@
+package beast.base.inference.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import beast.base.core.ProgramStatus;
+
+/**
+ * Process wide scheduler for threaded likelihood calculations.
+ * <p/>
+ * Threaded CompoundDistributions and ThreadedTreeLikelihoods all submit their work
+ * to a single work-stealing ForkJoinPool with ProgramStatus.m_nThreads workers.
+ * Tasks forked from inside a worker (e.g. the pattern slices of a ThreadedTreeLikelihood
+ * that is itself calculated as part of a threaded CompoundDistribution) are queued on
+ * that worker and stolen by idle workers, so nested parallelism neither oversubscribes
+ * the machine nor leaves cores idle when partitions differ in size.
+ */
+public class ForkJoinScheduler {
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * @return the shared pool, created on first use with ProgramStatus.m_nThreads workers
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(Math.max(1, ProgramStatus.m_nThreads));
+		}
+		return pool;
+	}
+
+	/**
+	 * Run all tasks and wait for them to complete. When called from a worker of the
+	 * pool, the tasks are forked on that worker so other workers can steal them,
+	 * otherwise they are submitted to the shared pool. Tasks are started in list order,
+	 * so callers should put the most expensive tasks first.
+	 * Exceptions thrown by any of the tasks are rethrown.
+	 */
+	public static void invokeAll(final List<? extends ForkJoinTask<?>> tasks) {
+		if (tasks.size() == 0) {
+			return;
+		}
+		if (ForkJoinTask.getPool() == getPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			getPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					ForkJoinTask.invokeAll(tasks);
+				}
+			});
+		}
+	}
+
+	/**
+	 * As invokeAll(tasks), but with at most maxParallelism tasks running at the same time.
+	 * The tasks are run by maxParallelism workers that each take the next task in list order
+	 * as soon as they finish the previous one. Tasks forked from inside the tasks are not
+	 * limited, since they are queued on the shared pool.
+	 */
+	public static void invokeAll(final List<? extends ForkJoinTask<?>> tasks, final int maxParallelism) {
+		if (maxParallelism >= tasks.size()) {
+			invokeAll(tasks);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final List<RecursiveAction> workers = new ArrayList<>(maxParallelism);
+		for (int i = 0; i < Math.max(1, maxParallelism); i++) {
+			workers.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					for (int k = next.getAndIncrement(); k < tasks.size(); k = next.getAndIncrement()) {
+						tasks.get(k).invoke();
+					}
+				}
+			});
+		}
+		invokeAll(workers);
+	}
+
+	/**
+	 * Shut down the shared pool, if any. A new pool is created on the next call to getPool().
+	 */
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+}
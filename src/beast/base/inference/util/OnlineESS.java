@@ -0,0 +1,199 @@
+package beast.base.inference.util;
+
+import java.util.Arrays;
+
+/**
+ * Effective sample size of one or more traces, estimated online with batch means
+ * in bounded memory.
+ * <p/>
+ * Samples are summed into batches. When all maxBatches batches are filled, neighbouring
+ * batches are merged and the batch size doubles, so there are always between maxBatches/2
+ * and maxBatches batches, and adding a sample takes amortised constant time. The auto
+ * correlation time is estimated as batch size times the variance of the batch means times
+ * their auto correlation time divided by the variance of the samples, where the auto
+ * correlation time of the batch means is calculated as in ESS.ACT(). Batch means are
+ * themselves correlated when batches are short compared to the auto correlation time of
+ * the trace, which is always the case early in a run. Like Tracer, the first 10% of the
+ * samples are considered burn-in, which is approximated by leaving out the first 10% of
+ * the batches.
+ * <p/>
+ * Sums are taken over the samples minus the first sample of the trace, to avoid loss
+ * of precision in the variance of traces with a large mean, such as the posterior.
+ */
+public class OnlineESS {
+
+    private final int traceCount;
+    private final int maxBatches;
+
+    /** number of samples in a batch **/
+    private long batchSize = 1;
+    /** number of completed batches **/
+    private int batchCount;
+    /** number of samples in the batch being filled **/
+    private long currentCount;
+
+    /** sums and sums of squares of the samples in the completed batches, batch by batch, trace by trace **/
+    private final double[] batchSums;
+    private final double[] batchSquares;
+    /** sums and sums of squares of the samples in the batch being filled **/
+    private final double[] currentSums;
+    private final double[] currentSquares;
+    /** first sample of each trace **/
+    private final double[] shift;
+
+    /**
+     * @param traceCount number of traces that are sampled together
+     * @param maxBatches maximum number of batches, determines memory use and the
+     *                   accuracy of the estimate
+     */
+    public OnlineESS(final int traceCount, final int maxBatches) {
+        if (traceCount < 1) {
+            throw new IllegalArgumentException("traceCount should be at least 1");
+        }
+        if (maxBatches < 4 || maxBatches % 2 != 0) {
+            throw new IllegalArgumentException("maxBatches should be an even number of at least 4");
+        }
+        this.traceCount = traceCount;
+        this.maxBatches = maxBatches;
+        batchSums = new double[maxBatches * traceCount];
+        batchSquares = new double[maxBatches * traceCount];
+        currentSums = new double[traceCount];
+        currentSquares = new double[traceCount];
+        shift = new double[traceCount];
+    }
+
+    /**
+     * add a sample of every trace
+     *
+     * @param values array of at least traceCount values
+     */
+    public void add(final double[] values) {
+        if (getSampleCount() == 0) {
+            System.arraycopy(values, 0, shift, 0, traceCount);
+        }
+        for (int i = 0; i < traceCount; i++) {
+            final double value = values[i] - shift[i];
+            currentSums[i] += value;
+            currentSquares[i] += value * value;
+        }
+        completeSample();
+    }
+
+    /** add a sample of a single trace **/
+    public void add(final double value) {
+        if (traceCount != 1) {
+            throw new IllegalArgumentException("add(double) requires a single trace, but there are " + traceCount);
+        }
+        if (getSampleCount() == 0) {
+            shift[0] = value;
+        }
+        final double shifted = value - shift[0];
+        currentSums[0] += shifted;
+        currentSquares[0] += shifted * shifted;
+        completeSample();
+    }
+
+    private void completeSample() {
+        currentCount++;
+        if (currentCount < batchSize) {
+            return;
+        }
+        final int offset = batchCount * traceCount;
+        System.arraycopy(currentSums, 0, batchSums, offset, traceCount);
+        System.arraycopy(currentSquares, 0, batchSquares, offset, traceCount);
+        Arrays.fill(currentSums, 0.0);
+        Arrays.fill(currentSquares, 0.0);
+        currentCount = 0;
+        batchCount++;
+
+        if (batchCount == maxBatches) {
+            // merge neighbouring batches
+            for (int batch = 0; batch < maxBatches / 2; batch++) {
+                final int to = batch * traceCount;
+                final int from = 2 * batch * traceCount;
+                for (int i = 0; i < traceCount; i++) {
+                    batchSums[to + i] = batchSums[from + i] + batchSums[from + traceCount + i];
+                    batchSquares[to + i] = batchSquares[from + i] + batchSquares[from + traceCount + i];
+                }
+            }
+            batchCount = maxBatches / 2;
+            batchSize *= 2;
+        }
+    }
+
+    /** @return number of samples added so far **/
+    public long getSampleCount() {
+        return batchCount * batchSize + currentCount;
+    }
+
+    /** @return number of completed batches, at most maxBatches **/
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return effective sample size of trace, after removing 10% burn-in, or NaN if there
+     * are fewer than two batches after burn-in, or the samples do not vary.
+     * Samples in the batch that is not completed yet are ignored.
+     */
+    public double getESS(final int trace) {
+        final int start = batchCount / 10;
+        final int batches = batchCount - start;
+        final double sampleCount = (double) batches * batchSize;
+        if (batches < 2) {
+            return Double.NaN;
+        }
+
+        double sum = 0, squares = 0;
+        for (int batch = start; batch < batchCount; batch++) {
+            sum += batchSums[batch * traceCount + trace];
+            squares += batchSquares[batch * traceCount + trace];
+        }
+        final double mean = sum / sampleCount;
+        final double variance = squares / sampleCount - mean * mean;
+
+        // auto correlation time
+        final double act = batchSize * getBatchMeanVarianceSum(trace, start, mean) / variance;
+        return sampleCount / Math.max(act, 1.0);
+    }
+
+    /**
+     * Sum of the auto covariances of the batch means from batch start onwards over all lags,
+     * that is, the variance of the batch means times their auto correlation time. Lags are
+     * added in pairs while a pair sums to a positive value, as in ESS.ACT().
+     */
+    private double getBatchMeanVarianceSum(final int trace, final int start, final double mean) {
+        final int n = batchCount - start;
+        final int maxLag = Math.min(n, ESS.MAX_LAG);
+        double integralOfACFunctionTimes2 = 0;
+        double previous = 0;
+        for (int lag = 0; lag < maxLag; lag++) {
+            double autoCovariance = 0;
+            for (int k = start; k < batchCount - lag; k++) {
+                autoCovariance += (batchSums[k * traceCount + trace] / batchSize - mean) *
+                        (batchSums[(k + lag) * traceCount + trace] / batchSize - mean);
+            }
+            autoCovariance /= n - lag;
+            if (lag == 0) {
+                integralOfACFunctionTimes2 = autoCovariance;
+            } else if (lag % 2 == 0) {
+                if (previous + autoCovariance > 0) {
+                    integralOfACFunctionTimes2 += 2.0 * (previous + autoCovariance);
+                } else {
+                    break;
+                }
+            }
+            previous = autoCovariance;
+        }
+        return integralOfACFunctionTimes2;
+    }
+
+    /**
+     * @param ess array of at least traceCount length in which the effective sample sizes of all traces are stored
+     */
+    public void getESS(final double[] ess) {
+        for (int i = 0; i < traceCount; i++) {
+            ess[i] = getESS(i);
+        }
+    }
+}
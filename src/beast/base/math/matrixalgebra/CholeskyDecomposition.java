@@ -63,4 +63,59 @@ public class CholeskyDecomposition {
 
 	}
 
+	/**
+	 * Rank-one update: replaces the lower triangular factor L of A
+	 * by the factor of A + v v^T in O(n^2) operations.
+	 * @param L lower triangular factor with positive diagonal, updated in place
+	 * @param v update vector, overwritten
+	 * @return false if L has a zero diagonal element, in which case L is left in an undefined state
+	 */
+	public static boolean update(double[][] L, double[] v) {
+		final int n = L.length;
+		for (int k = 0; k < n; k++) {
+			final double lkk = L[k][k];
+			if (lkk <= 0.0) {
+				return false;
+			}
+			final double r = Math.sqrt(lkk * lkk + v[k] * v[k]);
+			final double c = r / lkk;
+			final double s = v[k] / lkk;
+			L[k][k] = r;
+			for (int i = k + 1; i < n; i++) {
+				final double lik = (L[i][k] + s * v[i]) / c;
+				v[i] = c * v[i] - s * lik;
+				L[i][k] = lik;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rank-one downdate: replaces the lower triangular factor L of A
+	 * by the factor of A - v v^T in O(n^2) operations.
+	 * @param L lower triangular factor with positive diagonal, updated in place
+	 * @param v downdate vector, overwritten
+	 * @return false if A - v v^T is not positive definite, in which case L is left in an undefined state
+	 */
+	public static boolean downdate(double[][] L, double[] v) {
+		final int n = L.length;
+		for (int k = 0; k < n; k++) {
+			final double lkk = L[k][k];
+			final double d = lkk * lkk - v[k] * v[k];
+			if (!(d > 0.0)) {
+				return false;
+			}
+			final double r = Math.sqrt(d);
+			final double c = r / lkk;
+			final double s = v[k] / lkk;
+			L[k][k] = r;
+			for (int i = k + 1; i < n; i++) {
+				final double lik = (L[i][k] - s * v[i]) / c;
+				v[i] = c * v[i] - s * lik;
+				L[i][k] = lik;
+			}
+		}
+		return true;
+	}
+
 }
@@ -0,0 +1,440 @@
+package beast.base.parser;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.VirtualBEASTObject;
+import beast.base.inference.Runnable;
+import beast.base.parser.XMLParser.NameValuePair;
+import beast.base.util.Randomizer;
+import beast.pkgmgmt.BEASTClassLoader;
+import beast.pkgmgmt.PackageManager;
+
+/**
+ * Cache of the object graphs created by XMLParser.parseFile.
+ * <p/>
+ * While an XML file is parsed, the construction of every object is recorded: its class, id
+ * and the values of its inputs, which are either strings or references to objects created
+ * earlier. After a successful parse this plan is stored in a binary file, keyed by a hash of
+ * the XML and the installed packages. Next time the same XML is parsed, the objects are
+ * created from the plan, without parsing the XML or resolving class names and inputs, and
+ * initAndValidate is called in the same order as before, so that files are read and random
+ * numbers are drawn exactly as in a normal parse.
+ * <p/>
+ * Only graphs of BEASTObjects created through their default constructor are cached. Objects
+ * created through annotated constructors, or inputs filled in by a RequiredInputProvider,
+ * cause the XML to be parsed every time.
+ */
+class ModelGraphCache {
+
+	/** extension of cache files **/
+	static final String EXTENSION = ".bxc";
+	private static final int MAGIC = 0x42584d43;
+	private static final int VERSION = 1;
+
+	/** value and reference entries in the plan of an object **/
+	private static final byte STRING_VALUE = 0;
+	private static final byte OBJECT_VALUE = 1;
+
+	/** class of objects in the plan, with its Inputs in the order of public fields **/
+	private static class ClassPlan {
+		final String className;
+		final List<String> fieldNames = new ArrayList<>();
+		final List<String> inputNames = new ArrayList<>();
+		/** classes of the Inputs as determined during parsing, or null if unknown **/
+		final List<String> typeNames = new ArrayList<>();
+
+		ClassPlan(String className) {
+			this.className = className;
+		}
+	}
+
+	/** object in the plan: class, id and assignments to inputs in the order they were made **/
+	private static class ObjectPlan {
+		final int classIndex;
+		final String id;
+		final List<Integer> inputs = new ArrayList<>();
+		/** String values, or Integer indices of objects created earlier **/
+		final List<Object> values = new ArrayList<>();
+
+		ObjectPlan(int classIndex, String id) {
+			this.classIndex = classIndex;
+			this.id = id;
+		}
+	}
+
+	private final File dir;
+
+	private final List<ClassPlan> classes = new ArrayList<>();
+	private final Map<Class<?>, Integer> classIndex = new HashMap<>();
+	private final List<ObjectPlan> objects = new ArrayList<>();
+	private final Map<BEASTInterface, Integer> objectIndex = new IdentityHashMap<>();
+	/** false when an object was created that cannot be recreated from the plan **/
+	private boolean supported = true;
+
+	ModelGraphCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Key identifying the object graph an XML file produces: a hash of the XML (after
+	 * parser definitions are substituted), of the values of $(filebase) and $(seed) if
+	 * these are used, the sampleFromPrior flag, the BEAST version and the version.xml
+	 * files of all installed packages.
+	 */
+	static String key(String xml, String baseName, boolean sampleFromPrior) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		update(digest, VERSION + " " + PackageManager.beastVersion.getVersionString());
+		update(digest, xml);
+		update(digest, xml.contains("$(filebase)") ? baseName : "");
+		update(digest, xml.contains("$(seed)") ? Long.toString(Randomizer.getSeed()) : "");
+		update(digest, Boolean.toString(sampleFromPrior));
+		for (String packageDir : PackageManager.getBeastDirectories()) {
+			File versionFile = new File(packageDir, "version.xml");
+			if (versionFile.exists()) {
+				try {
+					update(digest, versionFile.getAbsolutePath());
+					digest.update(Files.readAllBytes(versionFile.toPath()));
+				} catch (IOException e) {
+					update(digest, e.getMessage());
+				}
+			}
+		}
+		StringBuilder b = new StringBuilder();
+		for (byte x : digest.digest()) {
+			b.append(String.format("%02x", x));
+		}
+		return b.toString();
+	}
+
+	private static void update(MessageDigest digest, String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+	}
+
+	File getFile(String key) {
+		return new File(dir, key + EXTENSION);
+	}
+
+	/*
+	 * Recording the plan while parsing
+	 */
+
+	/** mark the graph as one that cannot be cached **/
+	void unsupported() {
+		supported = false;
+	}
+
+	boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * record creation of an object, after its inputs are set and their classes are determined
+	 * @param inputInfo inputs in the order they were set
+	 */
+	void record(BEASTInterface beastObject, String id, List<NameValuePair> inputInfo) {
+		if (!supported) {
+			return;
+		}
+		if (beastObject instanceof VirtualBEASTObject) {
+			supported = false;
+			return;
+		}
+		ClassPlan classPlan = classPlan(beastObject);
+		if (classPlan == null) {
+			supported = false;
+			return;
+		}
+		ObjectPlan plan = new ObjectPlan(classIndex.get(beastObject.getClass()), id);
+		for (NameValuePair pair : inputInfo) {
+			if (pair.name.equals("xml:base")) {
+				// ignored by the parser
+				continue;
+			}
+			int input = classPlan.inputNames.indexOf(pair.name);
+			if (input < 0) {
+				// not an input of a public field
+				supported = false;
+				return;
+			}
+			if (pair.value instanceof String) {
+				plan.values.add(pair.value);
+			} else if (pair.value instanceof BEASTInterface && objectIndex.containsKey(pair.value)) {
+				plan.values.add(objectIndex.get(pair.value));
+			} else {
+				supported = false;
+				return;
+			}
+			plan.inputs.add(input);
+		}
+		objectIndex.put(beastObject, objects.size());
+		objects.add(plan);
+	}
+
+	private ClassPlan classPlan(BEASTInterface beastObject) {
+		Class<?> clazz = beastObject.getClass();
+		if (classIndex.containsKey(clazz)) {
+			return classes.get(classIndex.get(clazz));
+		}
+		ClassPlan plan = new ClassPlan(clazz.getName());
+		for (Field field : clazz.getFields()) {
+			if (field.getType().isAssignableFrom(Input.class)) {
+				try {
+					Input<?> input = (Input<?>) field.get(beastObject);
+					if (input == null) {
+						return null;
+					}
+					plan.fieldNames.add(field.getName());
+					plan.inputNames.add(input.getName());
+					plan.typeNames.add(input.getType() == null ? null : input.getType().getName());
+				} catch (IllegalAccessException e) {
+					// not a publicly accessible input, ignore
+				}
+			}
+		}
+		classIndex.put(clazz, classes.size());
+		classes.add(plan);
+		return plan;
+	}
+
+	/**
+	 * store the recorded plan under key
+	 */
+	void save(String key, Runnable runnable) throws IOException {
+		if (!supported || !objectIndex.containsKey(runnable)) {
+			return;
+		}
+		dir.mkdirs();
+		File file = getFile(key);
+		File newFile = new File(dir, key + ".new");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(classes.size());
+			for (ClassPlan plan : classes) {
+				writeString(out, plan.className);
+				out.writeInt(plan.fieldNames.size());
+				for (int i = 0; i < plan.fieldNames.size(); i++) {
+					writeString(out, plan.fieldNames.get(i));
+					writeString(out, plan.inputNames.get(i));
+					writeString(out, plan.typeNames.get(i));
+				}
+			}
+			out.writeInt(objects.size());
+			for (ObjectPlan plan : objects) {
+				out.writeInt(plan.classIndex);
+				writeString(out, plan.id);
+				out.writeInt(plan.inputs.size());
+				for (int i = 0; i < plan.inputs.size(); i++) {
+					out.writeInt(plan.inputs.get(i));
+					Object value = plan.values.get(i);
+					if (value instanceof String) {
+						out.writeByte(STRING_VALUE);
+						writeString(out, (String) value);
+					} else {
+						out.writeByte(OBJECT_VALUE);
+						out.writeInt((Integer) value);
+					}
+				}
+			}
+			out.writeInt(objectIndex.get(runnable));
+		}
+		if (!newFile.renameTo(file)) {
+			file.delete();
+			if (!newFile.renameTo(file)) {
+				newFile.delete();
+				throw new IOException("Could not write " + file);
+			}
+		}
+	}
+
+	/*
+	 * Rebuilding the object graph from a stored plan
+	 */
+
+	/**
+	 * Create the objects of the plan stored under key, and initialise them in the order
+	 * they were initialised when the XML was parsed.
+	 *
+	 * @param IDMap map in which objects with an id are registered
+	 * @return the runnable, or null if there is no usable plan
+	 * @throws XMLParserException if initialisation of an object fails
+	 */
+	Runnable load(String key, Map<String, BEASTInterface> IDMap) throws XMLParserException {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		int runnableIndex;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			int classCount = in.readInt();
+			for (int i = 0; i < classCount; i++) {
+				ClassPlan plan = new ClassPlan(readString(in));
+				int fieldCount = in.readInt();
+				for (int j = 0; j < fieldCount; j++) {
+					plan.fieldNames.add(readString(in));
+					plan.inputNames.add(readString(in));
+					plan.typeNames.add(readString(in));
+				}
+				classes.add(plan);
+			}
+			int objectCount = in.readInt();
+			for (int i = 0; i < objectCount; i++) {
+				ObjectPlan plan = new ObjectPlan(in.readInt(), readString(in));
+				int inputCount = in.readInt();
+				for (int j = 0; j < inputCount; j++) {
+					plan.inputs.add(in.readInt());
+					if (in.readByte() == STRING_VALUE) {
+						plan.values.add(readString(in));
+					} else {
+						plan.values.add(in.readInt());
+					}
+				}
+				objects.add(plan);
+			}
+			runnableIndex = in.readInt();
+		} catch (IOException e) {
+			Log.warning("Could not read model graph cache " + file + ": " + e);
+			return null;
+		}
+
+		BEASTInterface[] beastObjects;
+		try {
+			beastObjects = create();
+		} catch (Exception e) {
+			// the plan does not match the installed classes, so parse the XML instead
+			Log.warning("Could not use model graph cache " + file + ": " + e.getMessage());
+			return null;
+		}
+		if (!(beastObjects[runnableIndex] instanceof Runnable)) {
+			return null;
+		}
+
+		for (int i = 0; i < beastObjects.length; i++) {
+			if (objects.get(i).id != null) {
+				IDMap.put(objects.get(i).id, beastObjects[i]);
+			}
+		}
+		BEASTInterface beastObject = null;
+		try {
+			for (int i = 0; i < beastObjects.length; i++) {
+				beastObject = beastObjects[i];
+				beastObject.initAndValidate();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new XMLParserException("validate and intialize error: " + e.getMessage() +
+					(beastObject.getID() == null ? "" : " (id=" + beastObject.getID() + ")"));
+		}
+		Log.info.println("Model graph read from cache " + file);
+		return (Runnable) beastObjects[runnableIndex];
+	}
+
+	@SuppressWarnings("deprecation")
+	private BEASTInterface[] create() throws ReflectiveOperationException {
+		// resolve classes and fields only once per class
+		Class<?>[] clazzes = new Class<?>[classes.size()];
+		Field[][] fields = new Field[classes.size()][];
+		Class<?>[][] types = new Class<?>[classes.size()][];
+		for (int i = 0; i < clazzes.length; i++) {
+			ClassPlan plan = classes.get(i);
+			clazzes[i] = BEASTClassLoader.forName(plan.className, BEASTInterface.class.getName());
+			fields[i] = new Field[plan.fieldNames.size()];
+			types[i] = new Class<?>[plan.fieldNames.size()];
+			for (int j = 0; j < fields[i].length; j++) {
+				fields[i][j] = clazzes[i].getField(plan.fieldNames.get(j));
+				if (plan.typeNames.get(j) != null) {
+					types[i][j] = BEASTClassLoader.forName(plan.typeNames.get(j));
+				}
+			}
+		}
+
+		BEASTInterface[] beastObjects = new BEASTInterface[objects.size()];
+		for (int i = 0; i < beastObjects.length; i++) {
+			ObjectPlan plan = objects.get(i);
+			int c = plan.classIndex;
+			BEASTInterface beastObject = (BEASTInterface) clazzes[c].newInstance();
+			beastObject.setID(plan.id);
+
+			Input<?>[] inputs = new Input<?>[fields[c].length];
+			for (int j = 0; j < inputs.length; j++) {
+				inputs[j] = (Input<?>) fields[c][j].get(beastObject);
+				if (inputs[j].getType() == null && types[c][j] != null) {
+					inputs[j].setType(types[c][j]);
+				}
+			}
+			for (int j = 0; j < plan.inputs.size(); j++) {
+				Input<?> input = inputs[plan.inputs.get(j)];
+				Object value = plan.values.get(j);
+				if (value instanceof Integer) {
+					value = beastObjects[(Integer) value];
+				}
+				if (!input.canSetValue(value, beastObject)) {
+					throw new IllegalArgumentException("Cannot set input value of " + input.getName());
+				}
+				input.setValue(value, beastObject);
+				if (value instanceof BEASTInterface) {
+					((BEASTInterface) value).getOutputs().add(beastObject);
+				}
+			}
+			beastObjects[i] = beastObject;
+		}
+		return beastObjects;
+	}
+
+	/** strings of any length, and null **/
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		if (str == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -268,6 +268,14 @@ public class XMLParser {
      * will be saved here
      */
     String outFile = null;
+
+    /**
+     * directory where object graphs of parsed files are cached, or null if the
+     * graphs should not be cached. Set through the beast.xml.cache property.
+     */
+    File modelCacheDir = System.getProperty("beast.xml.cache") == null ? null : new File(System.getProperty("beast.xml.cache"));
+    /** records the object graph while parsing a file, if it is to be cached **/
+    ModelGraphCache graphCache = null;
     
 
     public XMLParser() {
@@ -309,14 +317,28 @@ public class XMLParser {
         }
         
         outputXML(xml);
+
+        int pointIdx = file.getName().lastIndexOf('.');
+        String baseName = pointIdx<0 ? file.getName() : file.getName().substring(0, pointIdx);
+
+        // rebuild the object graph from the cache, if it was parsed before
+        graphCache = null;
+        String cacheKey = null;
+        if (modelCacheDir != null && requiredInputProvider == null) {
+        	cacheKey = ModelGraphCache.key(xml, baseName, sampleFromPrior);
+            IDMap = new HashMap<>();
+            m_runnable = new ModelGraphCache(modelCacheDir).load(cacheKey, IDMap);
+            if (m_runnable != null) {
+            	return m_runnable;
+            }
+            graphCache = new ModelGraphCache(modelCacheDir);
+        }
         
         doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes()));
         doc.normalize();
         processPlates(doc,PLATE_ELEMENT);
 
         // Substitute occurrences of "$(filebase)" with name of file 
-        int pointIdx = file.getName().lastIndexOf('.');
-        String baseName = pointIdx<0 ? file.getName() : file.getName().substring(0, pointIdx);
         if (doc.getElementsByTagName(BEAST_ELEMENT).item(0) == null) {
         	Log.err.println("Incorrect XML: Could not find 'beast' element in file " + file.getName());
         	throw new RuntimeException();
@@ -345,6 +367,16 @@ public class XMLParser {
 
         
         parse();
+        if (graphCache != null) {
+        	if (m_runnable != null && unavailablePacakges.length() == 0) {
+        		try {
+        			graphCache.save(cacheKey, m_runnable);
+        		} catch (IOException e) {
+        			Log.warning("Could not write model graph cache: " + e.getMessage());
+        		}
+        	}
+        	graphCache = null;
+        }
         //assert m_runnable == null || m_runnable instanceof Runnable;
         if (m_runnable != null)
             return m_runnable;
@@ -949,6 +981,9 @@ public class XMLParser {
                 beastObject.validateInputs();
                 beastObjectsWaitingToInit.add(beastObject);
                 nodesWaitingToInit.add(node);
+                if (graphCache != null) {
+                	graphCache.record(beastObject, id, inputInfo);
+                }
             } catch (IllegalArgumentException e) {
                 // next lines for debugging only
                 //beastObject.validateInputs();
@@ -965,6 +1000,9 @@ public class XMLParser {
 	private BEASTInterface createBeastObject(Node node, String ID, String clazzName, List<NameValuePair> inputInfo) throws XMLParserException {
 		BEASTInterface beastObject = useAnnotatedConstructor(node, ID, clazzName, inputInfo);
 		if (beastObject != null) {
+			if (graphCache != null) {
+				graphCache.unsupported();
+			}
 			return beastObject;
 		}
 		
@@ -1502,6 +1540,14 @@ public class XMLParser {
         partitionContext = context;
     }
 
+    /**
+     * Cache object graphs of files parsed by parseFile in directory dir,
+     * or do not cache them if dir is null.
+     */
+    public void setModelCacheDir(final File dir) {
+    	modelCacheDir = dir;
+    }
+
     public HashMap<String, BEASTInterface> getIDMap() {
         return IDMap;
     }
@@ -50,6 +50,9 @@
 package beast.base.util;
 
 import java.io.FileNotFoundException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 
@@ -134,8 +137,9 @@ public class MersenneTwisterFast implements Serializable {
     private boolean haveNextNextGaussian;
 
     // The following can be accessed externally by the static accessor methods which
-    // inforce synchronization
-    public static final MersenneTwisterFast DEFAULT_INSTANCE = new MersenneTwisterFast();
+    // inforce synchronization. It is the master stream of Randomizer, but may be used by
+    // several threads at once, so unlike other instances it is synchronized.
+    public static final MersenneTwisterFast DEFAULT_INSTANCE = new SynchronizedMersenneTwisterFast();
 
     // Added to curernt time in default constructor, and then adjust to allow for programs that construct
     // multiple MersenneTwisterFast in a short amount of time.
@@ -207,15 +211,37 @@ public class MersenneTwisterFast implements Serializable {
     }
 
     /**
-     * grabbing the next int should be synchronized,
-     * If 2 threads request, say, a double and a gaussian at the same time,
-     * and mti = N - 1, the condition (mit >= N) is false for both threads,
-     * but the first increase mti before the second results in an out-of-bounds
-     * exception when 'return mt[mti++] is called.
-     * <p/>
-     * To prevent this, this part of the code should be synchronized
+     * Write the complete state of the generator, so that it can be resumed by readState().
+     */
+    public void writeState(final DataOutput out) throws IOException {
+        out.writeLong(initializationSeed);
+        out.writeInt(mti);
+        for (int i = 0; i < N; i++) {
+            out.writeInt(mt[i]);
+        }
+        out.writeBoolean(haveNextNextGaussian);
+        out.writeDouble(nextNextGaussian);
+    }
+
+    /**
+     * Restore a state written by writeState().
+     */
+    public void readState(final DataInput in) throws IOException {
+        initializationSeed = in.readLong();
+        mti = in.readInt();
+        for (int i = 0; i < N; i++) {
+            mt[i] = in.readInt();
+        }
+        haveNextNextGaussian = in.readBoolean();
+        nextNextGaussian = in.readDouble();
+    }
+
+    /**
+     * Instances are not thread-safe: Randomizer gives every thread its own instance,
+     * so grabbing the next int does not need to be synchronized. The exception is
+     * DEFAULT_INSTANCE, see SynchronizedMersenneTwisterFast.
      */
-    synchronized private int next() {
+    int next() {
         int y;
         if (mti >= N)   // generate N words at one time
         {
@@ -775,4 +801,20 @@ public class MersenneTwisterFast implements Serializable {
         System.out.format("E[x]=%g\n",DiscreteStatistics.mean(vals));
         System.out.format("Var[x]=%g\n", DiscreteStatistics.variance(vals));
     }
+
+    /**
+     * grabbing the next int of a shared instance should be synchronized,
+     * If 2 threads request, say, a double and a gaussian at the same time,
+     * and mti = N - 1, the condition (mit >= N) is false for both threads,
+     * but the first increase mti before the second results in an out-of-bounds
+     * exception when 'return mt[mti++] is called.
+     */
+    private static final class SynchronizedMersenneTwisterFast extends MersenneTwisterFast {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        synchronized int next() {
+            return super.next();
+        }
+    }
 }
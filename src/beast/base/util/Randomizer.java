@@ -49,11 +49,21 @@
 
 package beast.base.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Handy utility functions which have some Mathematical relevance.
+ * <p/>
+ * Every thread draws from its own stream, so no locking is required. The thread that
+ * set the seed uses the master stream. Every other thread gets a stream that is seeded
+ * from the master seed, the thread name and the number of threads with that name that
+ * drew random numbers before. A thread with a unique name therefore gets the same
+ * sequence in every run with the same seed, no matter when it starts, and threads
+ * that share a name never share a stream.
  *
  * @author Matthew Goode
  * @author Alexei Drummond
@@ -65,15 +75,10 @@ public class Randomizer {
     }
 
     /**
-     * A random number generator that is initialized with the clock when this
-     * class is loaded into the JVM. Use this for all random numbers.
-     * Note: This method or getting random numbers in not thread-safe. Since
-     * MersenneTwisterFast is currently (as of 9/01) not synchronized using
-     * this function may cause concurrency issues. Use the static get methods of the
-     * MersenneTwisterFast class for access to a single instance of the class, that
-     * has synchronization.
+     * The master stream, initialized with the clock when this class is loaded into the JVM.
+     * It is used by the thread that last set the seed (or the first thread asking for a random
+     * number if the seed was never set).
      */
-    //private static final MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
     final private static MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
 
     /**
@@ -100,28 +105,77 @@ public class Randomizer {
         return s;
     }
 
-    
-    private static Map<String, MersenneTwisterFast> randomMap = new HashMap<>();
-    
+
+    /** stream of a thread, valid as long as the seed is not reset **/
+    private static final class Stream {
+        final int generation;
+        final MersenneTwisterFast random;
+
+        Stream(final int generation, final MersenneTwisterFast random) {
+            this.generation = generation;
+            this.random = random;
+        }
+    }
+
+    /** seed that streams of threads other than the master thread are derived from **/
+    private static volatile long masterSeed = random.getSeed();
+    private static volatile Thread masterThread;
+    private static boolean masterStreamUsed;
+    /** incremented whenever the seed is set, so that threads pick up new streams **/
+    private static volatile int generation;
+    /** number of threads other than the master thread that got a stream, by thread name **/
+    private static final Map<String, Integer> threadsByName = new HashMap<>();
+    private static final ThreadLocal<Stream> currentStream = new ThreadLocal<>();
+
     private static MersenneTwisterFast random() {
-    	final String threadName = Thread.currentThread().getName();
-    	if (threadName == null) {
-        	// no thread name used, so use default MersenneTwisterFast
-    		return random;
-    	}
-
-    	// retrieve MersenneTwisterFast from the randomMap
-    	// creating a new one if it is not already in the randomMap
-    	MersenneTwisterFast r = randomMap.get(threadName);
-    	if (r != null) {
-    		return r;
-    	}
-
-    	r = new MersenneTwisterFast();
-    	r.setSeed(random.getSeed() + randomMap.size());
-    	randomMap.put(threadName, r);
-    	return r;
-	}
+        final Stream stream = currentStream.get();
+        if (stream != null && stream.generation == generation) {
+            return stream.random;
+        }
+        return newStream();
+    }
+
+    private static synchronized MersenneTwisterFast newStream() {
+        final Thread thread = Thread.currentThread();
+        if (masterThread == null) {
+            masterThread = thread;
+        }
+        masterStreamUsed |= thread == masterThread;
+        final MersenneTwisterFast r;
+        if (thread == masterThread) {
+            r = random;
+        } else {
+            final String name = thread.getName();
+            final int index = threadsByName.merge(name, 1, Integer::sum) - 1;
+            r = new MersenneTwisterFast();
+            r.setSeed(streamSeed(masterSeed, name, index));
+        }
+        currentStream.set(new Stream(generation, r));
+        return r;
+    }
+
+    /**
+     * @return seed for the stream of the index-th thread with the given name, mixing the
+     * master seed, the name and the index with the SplitMix64 finaliser so that streams of
+     * similarly named threads start far apart
+     */
+    static long streamSeed(final long seed, final String name, final int index) {
+        long z = seed * 0x9E3779B97F4A7C15L + name.hashCode() + index * 0xD1B54A32D192ED03L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        // MersenneTwisterFast only uses the lower 32 bits, and these must not be zero
+        final int seed32 = (int) z;
+        return seed32 == 0 ? 4357 : seed32;
+    }
+
+    /**
+     * @return the random stream of the current thread. It is not thread-safe, so should only
+     * be shared with other threads while the current thread is waiting for them.
+     */
+    public static MersenneTwisterFast getCurrentStream() {
+        return random();
+    }
 
 	/**
      * Binary search to sample an integer given a cumulative probability distribution.
@@ -219,65 +273,71 @@ public class Randomizer {
 
     }
 
-    // ===================== (Synchronized) Static access methods to the private random instance ===========
+    // ===================== Static access methods to the random stream of the current thread ===========
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      * @return 
      */
     public static long getSeed() {
-        synchronized (random) {
-            return random().getSeed();
-        }
+        return random().getSeed();
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Set the seed of the master stream, and make the current thread use it.
+     * Streams of other threads are derived from the seed again.
      */
-    public static void setSeed(long seed) {
-        synchronized (random) {
-            random.setSeed(seed == 1 ? 4357 : seed-1);
-            int i = 0;
-            for (MersenneTwisterFast r : randomMap.values()) {
-            	r.setSeed(seed + i++);
-            }
-        }
+    public static synchronized void setSeed(long seed) {
+        // as in earlier versions, the seed is offset only before the first random number is drawn,
+        // so that seeded runs reproduce the same sequences
+        random.setSeed(masterStreamUsed ? seed : (seed == 1 ? 4357 : seed-1));
+        masterSeed = seed;
+        masterThread = Thread.currentThread();
+        threadsByName.clear();
+        generation++;
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Write the state of the random stream of the current thread,
+     * so that it can be resumed with readState().
+     */
+    public static void writeState(DataOutput out) throws IOException {
+        random().writeState(out);
+    }
+
+    /**
+     * Restore the random stream of the current thread from a state written by writeState().
+     */
+    public static void readState(DataInput in) throws IOException {
+        random().readState(in);
+    }
+
+    /**
+     * Access the random stream of the current thread
      */
     public static byte nextByte() {
-        synchronized (random) {
-            return random().nextByte();
-        }
+        return random().nextByte();
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      */
     public static boolean nextBoolean() {
-        synchronized (random) {
-            return random().nextBoolean();
-        }
+        return random().nextBoolean();
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      */
     public static void nextBytes(byte[] bs) {
-        synchronized (random) {
-            random().nextBytes(bs);
-        }
+        random().nextBytes(bs);
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      */
     public static char nextChar() {
-        synchronized (random) {
-            return random().nextChar();
-        }
+        return random().nextChar();
     }
 
     /**
@@ -287,48 +347,40 @@ public class Randomizer {
      * @return sample
      */
     public static double nextGaussian() {
-        synchronized (random) {
-            return random().nextGaussian();
-        }
+        return random().nextGaussian();
     }
 
     /**
      * Sample a double from a Gamma distribution with a mean of
      * alpha/lambda and a variance of alpha/lambda^2.
-     * Access a default instance of this class, access is synchronized.
+     * Access the random stream of the current thread.
      *
      * @param alpha
      * @param lambda
      * @return sample
      */
     public static double nextGamma(double alpha, double lambda) {
-        synchronized (random) {
-            return random().nextGamma(alpha, lambda);
-        }
+        return random().nextGamma(alpha, lambda);
     }
     
     /**
      * Draw sample from a Poissonian distribution of mean lambda. Accesses
-     * a default instance of this class, access is synchronized.
+     * the random stream of the current thread.
      * 
      * @param lambda mean of Poissonian distribution
      * @return sample (as double for historical reasons)
      */
     public static long nextPoisson(double lambda) {
-        synchronized (random) {
-            return random().nextPoisson(lambda);
-        }
+        return random().nextPoisson(lambda);
     }
 
     /**
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      *
      * @return a pseudo random double precision floating point number in [01)
      */
     public static double nextDouble() {
-        synchronized (random) {
-            return random().nextDouble();
-        }
+        return random().nextDouble();
     }
 
     /**
@@ -339,16 +391,14 @@ public class Randomizer {
     }
 
     /**
-     * Draw from an exponential distribution.  Accesses a default instance of
-     * this class, access is synchronized.
+     * Draw from an exponential distribution.  Accesses the random stream
+     * of the current thread.
      * 
      * @param lambda rate parameter (not mean) for the exponential
      * @return number drawn from distribution
      */
     public static double nextExponential(double lambda) {
-        synchronized (random) {
-            return -1.0 * Math.log(1 - random().nextDouble()) / lambda;
-        }
+        return -1.0 * Math.log(1 - random().nextDouble()) / lambda;
     }
 
     /**
@@ -356,81 +406,69 @@ public class Randomizer {
      * This method uses the form of the geometric distribution in which
      * the random variable represents the number of failures before success,
      * i.e. P(n) = (1-p)^n * p
-     * Access a default instance of this class, access is synchronized.
+     * Access the random stream of the current thread.
      * 
      * @param p success probability of each Bernoulli trial
      * @return number drawn from distribution
      */
     public static long nextGeometric(double p) {
-        synchronized (random) {
-            double lambda = -Math.log(1.0-p);
-            return Math.round(Math.floor(nextExponential(lambda)));
-        }
+        double lambda = -Math.log(1.0-p);
+        return Math.round(Math.floor(nextExponential(lambda)));
     }
 
     /**
-     * Samples a float uniformly from [0,1). Access a default
-     * instance of this class, access is synchronized
+     * Samples a float uniformly from [0,1). Access the random
+     * stream of the current thread
      * 
      * @return sample
      */
     public static float nextFloat() {
-        synchronized (random) {
-            return random().nextFloat();
-        }
+        return random().nextFloat();
     }
 
     /**
      * Samples a long int uniformly from between Long.MIN_VALUE
      * and Long.MAX_VALUE.
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      * 
      * @return sample
      */
     public static long nextLong() {
-        synchronized (random) {
-            return random().nextLong();
-        }
+        return random().nextLong();
     }
 
     
     /**
      * Samples a short int uniformly from between Short.MIN_VALUE
      * and Short.MAX_VALUE.
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      * 
      * @return sample
      */
     public static short nextShort() {
-        synchronized (random) {
-            return random().nextShort();
-        }
+        return random().nextShort();
     }
 
     /**
      * Samples an int uniformly from between Integer.MIN_VALUE
      * and Integer.MAX_VALUE.
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      * 
      * @return sample
      */
     public static int nextInt() {
-        synchronized (random) {
-            return random().nextInt();
-        }
+        return random().nextInt();
     }
 
     /**
      * Samples an int uniformly from between 0 and n-1.
-     * Access a default instance of this class, access is synchronized
+     * Access the random stream of the current thread
      * 
      * @param n
      * @return sample
      */
     public static int nextInt(int n) {
-        synchronized (random) {
-            return random().nextInt(n);
-        }
+        return random().nextInt(n);
     }
 
     /**
@@ -464,9 +502,7 @@ public class Randomizer {
      * @param array
      */
     public static void shuffle(int[] array) {
-        synchronized (random) {
-            random().shuffle(array);
-        }
+        random().shuffle(array);
     }
 
     /**
@@ -475,9 +511,7 @@ public class Randomizer {
      * @param numberOfShuffles
      */
     public static void shuffle(int[] array, int numberOfShuffles) {
-        synchronized (random) {
-            random().shuffle(array, numberOfShuffles);
-        }
+        random().shuffle(array, numberOfShuffles);
     }
 
     /**
@@ -487,9 +521,7 @@ public class Randomizer {
      * @return array
      */
     public static int[] shuffled(int l) {
-        synchronized (random) {
-            return random().shuffled(l);
-        }
+        return random().shuffled(l);
     }
 
 
@@ -501,12 +533,10 @@ public class Randomizer {
      * @return array
      */
     public static int[] sampleIndicesWithReplacement(int l) {
-        synchronized (random) {
-            int[] result = new int[l];
-            for (int i = 0; i < l; i++)
-                result[i] = random().nextInt(l);
-            return result;
-        }
+        int[] result = new int[l];
+        for (int i = 0; i < l; i++)
+            result[i] = random().nextInt(l);
+        return result;
     }
 
     /**
@@ -515,9 +545,7 @@ public class Randomizer {
      * @param array
      */
     public static void permute(int[] array) {
-        synchronized (random) {
-            random().permute(array);
-        }
+        random().permute(array);
     }
 
     /**
@@ -527,9 +555,7 @@ public class Randomizer {
      * @return array containing permuted indices
      */
     public static int[] permuted(int l) {
-        synchronized (random) {
-            return random().permuted(l);
-        }
+        return random().permuted(l);
     }
 
     static int m_nIDNr = 0;
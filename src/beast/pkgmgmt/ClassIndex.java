@@ -0,0 +1,451 @@
+package beast.pkgmgmt;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Modifier;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Index of the class hierarchy of the jar files and class directories on the class path.
+ * <p/>
+ * The superclass, interfaces and modifiers of a class are read from the header of its class
+ * file, so classes do not need to be loaded (and initialised) to find out whether they extend
+ * a class or implement an interface. For jar files of packages installed in one of the package
+ * directories, the index is kept in a file next to version.xml, and only rebuilt when a jar file
+ * changes, so that the jar files do not need to be read at all.
+ */
+public class ClassIndex {
+
+    /** name of the index file in a package directory **/
+    public static final String INDEX_FILE = "classindex.txt";
+    private static final String HEADER = "# BEAST class index 1";
+    private static final String JAR = "jar";
+
+    /** superclass, interfaces and modifiers of a class **/
+    static final class Entry {
+        final String name;
+        final int modifiers;
+        final String superName;
+        final String[] interfaces;
+
+        Entry(final String name, final int modifiers, final String superName, final String[] interfaces) {
+            this.name = name;
+            this.modifiers = modifiers;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        boolean isInterface() {
+            return (modifiers & Modifier.INTERFACE) != 0;
+        }
+
+        boolean isAbstract() {
+            return (modifiers & Modifier.ABSTRACT) != 0;
+        }
+    }
+
+    /** access flag of module-info classes **/
+    private static final int ACC_MODULE = 0x8000;
+
+    /** classes by name, in class path order **/
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    /** class names in class path order, including duplicates **/
+    private final List<String> classNames = new ArrayList<>();
+    /** directories packages are installed in **/
+    private final Set<File> packageDirs = new HashSet<>();
+
+    /** index that does not keep index files **/
+    public ClassIndex() {
+    }
+
+    /**
+     * @param packageDirs directories packages are installed in, such as the ones returned by
+     * PackageManager.getBeastDirectories(). Index files are only kept for packages in one of
+     * these, so not for, say, a source checkout with a version.xml that is on the class path.
+     */
+    public ClassIndex(final Collection<String> packageDirs) {
+        for (final String dir : packageDirs) {
+            this.packageDirs.add(new File(dir).getAbsoluteFile());
+        }
+    }
+
+    /** @return names of all indexed classes in class path order **/
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    /** @return whether the class is in the index **/
+    public boolean contains(final String className) {
+        return entries.containsKey(className);
+    }
+
+    private void add(final Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        classNames.add(entry.name);
+        if (!entries.containsKey(entry.name)) {
+            entries.put(entry.name, entry);
+        }
+    }
+
+    /**
+     * add all classes in directory and its sub-directories
+     */
+    public void addDirectory(final File dir) {
+        final File[] files = dir.canRead() ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(file);
+            } else if (file.getName().endsWith(".class")) {
+                addClassFile(file);
+            }
+        }
+    }
+
+    /**
+     * add the class in a class file
+     */
+    public void addClassFile(final File file) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            add(readClass(in));
+        } catch (IOException e) {
+            System.err.println("WARNING: " + file + " could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * add all classes in a jar file, using the index file of the package
+     * the jar file belongs to if it is up to date
+     */
+    public void addJar(final File jarFile) throws IOException {
+        final File indexFile = getIndexFile(jarFile);
+        final Map<String, List<String>> sections = indexFile == null ? new LinkedHashMap<>() : readIndexFile(indexFile);
+        final String key = jarKey(jarFile);
+        List<Entry> jarEntries = fromLines(sections.get(key));
+        if (jarEntries == null) {
+            jarEntries = new ArrayList<>();
+            final List<String> section = new ArrayList<>();
+            try (JarFile jar = new JarFile(jarFile)) {
+                for (final Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                    final JarEntry jarEntry = e.nextElement();
+                    if (jarEntry.getName().endsWith(".class")) {
+                        try (InputStream in = new BufferedInputStream(jar.getInputStream(jarEntry))) {
+                            final Entry entry = readClass(in);
+                            if (entry != null) {
+                                jarEntries.add(entry);
+                                section.add(toLine(entry));
+                            }
+                        }
+                    }
+                }
+            }
+            if (indexFile != null) {
+                // replace the out of date section of this jar, if any
+                final String prefix = JAR + " " + jarFile.getName() + " ";
+                sections.keySet().removeIf(k -> k.startsWith(prefix));
+                sections.put(key, section);
+                writeIndexFile(indexFile, sections);
+            }
+        }
+        for (final Entry entry : jarEntries) {
+            add(entry);
+        }
+    }
+
+    /**
+     * @return index file of the package the jar file is part of, that is, the file next to
+     * version.xml in the jar file's directory or its parent, or null if there is no such package
+     * in one of the package directories
+     */
+    private File getIndexFile(final File jarFile) {
+        File dir = jarFile.getAbsoluteFile().getParentFile();
+        for (int i = 0; i < 2 && dir != null; i++) {
+            if (new File(dir, "version.xml").exists()) {
+                return packageDirs.contains(dir.getParentFile()) ? new File(dir, INDEX_FILE) : null;
+            }
+            dir = dir.getParentFile();
+        }
+        return null;
+    }
+
+    /** identifies the jar file and its version, so that the index is rebuilt when the jar changes **/
+    private static String jarKey(final File jarFile) {
+        return JAR + " " + jarFile.getName() + " " + jarFile.length() + " " + jarFile.lastModified();
+    }
+
+    private static Map<String, List<String>> readIndexFile(final File indexFile) {
+        final Map<String, List<String>> sections = new LinkedHashMap<>();
+        if (!indexFile.exists()) {
+            return sections;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(indexFile))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                return sections;
+            }
+            List<String> section = null;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(JAR + " ")) {
+                    section = new ArrayList<>();
+                    sections.put(line, section);
+                } else if (section != null && line.length() > 0) {
+                    section.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // rebuild the index
+            sections.clear();
+        }
+        return sections;
+    }
+
+    /**
+     * Write the index to a temporary file, and move it in place once it is complete, so that
+     * BEAST instances starting at the same time never read an incomplete index file.
+     */
+    private static void writeIndexFile(final File indexFile, final Map<String, List<String>> sections) {
+        File newFile = null;
+        try {
+            newFile = File.createTempFile(INDEX_FILE, ".tmp", indexFile.getParentFile());
+            try (PrintWriter out = new PrintWriter(newFile)) {
+                out.println(HEADER);
+                for (final Map.Entry<String, List<String>> section : sections.entrySet()) {
+                    out.println(section.getKey());
+                    for (final String line : section.getValue()) {
+                        out.println(line);
+                    }
+                }
+                if (out.checkError()) {
+                    throw new IOException("could not write " + newFile);
+                }
+            }
+            try {
+                Files.move(newFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(newFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // the package directory is not writable (or full), so the index is not persisted
+            if (newFile != null) {
+                newFile.delete();
+            }
+        }
+    }
+
+    /** an entry in the index file: name, modifiers, superclass (or -) and comma separated interfaces **/
+    private static String toLine(final Entry entry) {
+        return entry.name + " " + entry.modifiers + " " + (entry.superName == null ? "-" : entry.superName) +
+                (entry.interfaces.length == 0 ? "" : " " + String.join(",", entry.interfaces));
+    }
+
+    /** @return entries of a section of the index file, or null if the section is missing or damaged **/
+    private static List<Entry> fromLines(final List<String> section) {
+        if (section == null) {
+            return null;
+        }
+        final List<Entry> entries = new ArrayList<>(section.size());
+        for (final String line : section) {
+            final Entry entry = fromLine(line);
+            if (entry == null) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static Entry fromLine(final String line) {
+        final String[] strs = line.split(" ");
+        if (strs.length < 3) {
+            return null;
+        }
+        try {
+            return new Entry(strs[0], Integer.parseInt(strs[1]), strs[2].equals("-") ? null : strs[2],
+                    strs.length > 3 ? strs[3].split(",") : new String[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read name, modifiers, superclass and interfaces from the header of a class file.
+     *
+     * @return entry for the class, or null for module-info classes
+     */
+    static Entry readClass(final InputStream classFile) throws IOException {
+        final DataInputStream in = new DataInputStream(classFile);
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("not a class file");
+        }
+        // minor and major version
+        in.readInt();
+
+        // the constant pool, of which only class and UTF-8 entries are needed
+        final int constantCount = in.readUnsignedShort();
+        final String[] utf8 = new String[constantCount];
+        final int[] classNameIndex = new int[constantCount];
+        for (int i = 1; i < constantCount; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // UTF-8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // class
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8: // string
+                case 16: // method type
+                case 19: // module
+                case 20: // package
+                    in.skipBytes(2);
+                    break;
+                case 15: // method handle
+                    in.skipBytes(3);
+                    break;
+                case 3: // integer
+                case 4: // float
+                case 9: // field reference
+                case 10: // method reference
+                case 11: // interface method reference
+                case 12: // name and type
+                case 17: // dynamic
+                case 18: // invoke dynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // long
+                case 6: // double
+                    in.skipBytes(8);
+                    // takes two entries
+                    i++;
+                    break;
+                default:
+                    throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+
+        final int modifiers = in.readUnsignedShort();
+        if ((modifiers & ACC_MODULE) != 0) {
+            return null;
+        }
+        final String name = className(utf8, classNameIndex, in.readUnsignedShort());
+        final int superIndex = in.readUnsignedShort();
+        final String superName = superIndex == 0 ? null : className(utf8, classNameIndex, superIndex);
+        final String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = className(utf8, classNameIndex, in.readUnsignedShort());
+        }
+        return new Entry(name, modifiers, superName, interfaces);
+    }
+
+    private static String className(final String[] utf8, final int[] classNameIndex, final int index) {
+        return utf8[classNameIndex[index]].replace('/', '.');
+    }
+
+    /*
+     * Type tests that only load classes that are not in the index, such as classes of the Java runtime
+     */
+
+    /**
+     * Same test as PackageManager.find(Class, String) used to perform on loaded classes:
+     * for an interface, className should be a concrete class directly implementing it (or
+     * have a superclass that does), and for a class, className should be a class derived from it.
+     */
+    boolean isImplementation(final Class<?> cls, final String className) {
+        final Entry entry = entries.get(className);
+        if (entry == null) {
+            return false;
+        }
+        if (cls.isInterface()) {
+            return !entry.isAbstract() && hasInterface(cls, className);
+        }
+        return !entry.isInterface() && isSubclass(cls, className);
+    }
+
+    private boolean isSubclass(final Class<?> superclass, String className) {
+        while (className != null) {
+            if (className.equals(superclass.getName())) {
+                return true;
+            }
+            final Entry entry = entries.get(className);
+            if (entry == null) {
+                final Class<?> cls = load(className);
+                return cls != null && PackageManager.isSubclass(superclass, cls);
+            }
+            className = entry.superName;
+        }
+        return false;
+    }
+
+    private boolean hasInterface(final Class<?> intf, String className) {
+        while (className != null && !className.equals("java.lang.Object")) {
+            final Entry entry = entries.get(className);
+            if (entry == null) {
+                final Class<?> cls = load(className);
+                return cls != null && PackageManager.hasInterface(intf, cls);
+            }
+            for (final String name : entry.interfaces) {
+                if (name.equals(intf.getName())) {
+                    return true;
+                }
+            }
+            className = entry.superName;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether an object of class className can be assigned to a variable of type parent,
+     * like parent.isAssignableFrom(className)
+     */
+    boolean isAssignable(final Class<?> parent, final String className) {
+        if (className.equals(parent.getName())) {
+            return true;
+        }
+        final Entry entry = entries.get(className);
+        if (entry == null) {
+            final Class<?> cls = load(className);
+            return cls != null && parent.isAssignableFrom(cls);
+        }
+        if (entry.superName != null && isAssignable(parent, entry.superName)) {
+            return true;
+        }
+        for (final String name : entry.interfaces) {
+            if (isAssignable(parent, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Class<?> load(final String className) {
+        try {
+            return BEASTClassLoader.forName(className);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+}
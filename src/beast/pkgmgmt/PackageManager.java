@@ -49,13 +49,10 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -151,6 +148,8 @@ public class PackageManager {
      * list of all classes found in the class path *
      */
     private static List<String> all_classes;
+    /** superclasses and interfaces of all_classes, so that find() does not need to load every class **/
+    private static ClassIndex classIndex;
 
     /**
      * @return URLs containing list of downloadable packages.
@@ -1594,7 +1593,7 @@ public class PackageManager {
             }
         }
 
-        all_classes = new ArrayList<String>();
+        ClassIndex index = new ClassIndex(getBeastDirectories());
         String pathSep = System.getProperty("path.separator");
         String classpath = System.getProperty("java.class.path");
 
@@ -1604,71 +1603,22 @@ public class PackageManager {
             File filepath = new File(path);
 
             if (filepath.isDirectory()) {
-                addDirContent(filepath, filepath.getAbsolutePath().length());
+                index.addDirectory(filepath);
             } else if (path.endsWith(".jar")) {
-
-                JarFile jar = null;
                 try {
-                    jar = new JarFile(filepath);
+                    index.addJar(filepath);
                 } catch (IOException e) {
                     System.err.println("WARNING: " + filepath + " could not be opened!");
-                    continue;
-                }
-
-                for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
-                    JarEntry entry = entries.nextElement();
-                    if (entry.getName().endsWith(".class")) {
-                        all_classes.add(entry.getName());
-                    }
                 }
-                try {
-					jar.close();
-				} catch (IOException e) {
-                    System.err.println("WARNING: " + filepath + " could not be closed!");
-				}
             } else if (path.endsWith(".class")) {
-                all_classes.add(path);
+                index.addClassFile(filepath);
             } else {
                 System.err.println("Warning: corrupt classpath entry: " + path);
             }
 
         }
-
-        String fileSep = System.getProperty("file.separator");
-        if (fileSep.equals("\\")) {
-            fileSep = "\\\\";
-        }
-        for (int i = 0; i < all_classes.size(); i++) {
-            String str = all_classes.get(i);
-            str = str.substring(0, str.length() - 6);
-            str = str.replaceAll(fileSep, ".");
-            if (str.startsWith(".")) {
-                str = str.substring(1);
-            }
-            all_classes.set(i, str);
-        }
-
-    }
-
-    private static void addDirContent(File dir, int len) {
-    	try {
-    	// No point in checking directories that cannot be read.
-    	// Need check here since these potentially can cause exceptions
-	    	if (dir.canRead()) {
-		        for (File file : dir.listFiles()) {
-		            if (file.isDirectory()) {
-		                addDirContent(file, len);
-		            } else {
-		                if (file.getName().endsWith(".class")) {
-		                    all_classes.add(file.getAbsolutePath().substring(len));
-		                }
-		            }
-		        }
-	    	}
-    	} catch (Exception e) {
-    		// ignore
-    		// windows appears to throw exceptions on unaccessible directories
-    	}
+        classIndex = index;
+        all_classes = new ArrayList<String>(index.getClassNames());
     }
 
 
@@ -1846,20 +1796,9 @@ public class PackageManager {
             // must match package
             if (className.startsWith(pkgname)) {
                 //System.err.println(className);
-                try {
-                    Class<?> clsNew = BEASTClassLoader.forName(className);
-
-                    // no abstract classes
-                    if (!Modifier.isAbstract(clsNew.getModifiers()) &&
-                            // must implement interface
-                            (cls.isInterface() && hasInterface(cls, clsNew)) ||
-                            // must be derived from class
-                            (!clsNew.isInterface() && isSubclass(cls, clsNew))) {
-                        result.add(className);
-                    }
-                } catch (Throwable e) {
-                    System.err.println("Checking class: " + className);
-                    e.printStackTrace();
+                // the class index tells whether the class is a match, without loading it
+                if (classIndex.isImplementation(cls, className)) {
+                    result.add(className);
                 }
 
             }
@@ -1902,6 +1841,10 @@ public class PackageManager {
                 className = className.replaceAll("/", ".");
             }
             //System.err.println(className);
+            if (!classIndex.isAssignable(parent, className)) {
+                // only classes that are returned are loaded
+                continue;
+            }
             try {
                 Class<?> cls = BEASTClassLoader.forName(className);
 
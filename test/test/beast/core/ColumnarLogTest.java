@@ -0,0 +1,123 @@
+package test.beast.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.ColumnarLogReader;
+import beast.base.inference.ColumnarLogWriter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ColumnarLogTest {
+
+    static final String NL = System.lineSeparator();
+
+    /** text log with integer, double, non-canonical double, string and mixed columns **/
+    private String textLog(int rows) {
+        StringBuilder b = new StringBuilder();
+        b.append("#" + NL + "#model:" + NL + "#<beast/>" + NL + "#" + NL);
+        b.append("Sample\tposterior\trounded\tlabel\tmixed" + NL);
+        for (int i = 0; i < rows; i++) {
+            b.append(i * 1000).append('\t')
+             .append(-1234.5 + i / 3.0).append('\t')
+             .append(String.format("%.2f", i / 4.0)).append('\t')
+             .append(i % 2 == 0 ? "even" : "éven").append('\t')
+             .append(i == 5 ? "NaN" : i == 6 ? "Infinity" : i == 7 ? "x" : Integer.toString(i))
+             .append(NL);
+        }
+        return b.toString();
+    }
+
+    private File toColumnar(String text, int blockSize) throws IOException {
+        File textFile = File.createTempFile("ColumnarLogTest", ".log");
+        textFile.deleteOnExit();
+        Files.write(textFile.toPath(), text.getBytes("UTF-8"));
+        File file = File.createTempFile("ColumnarLogTest", ".blog");
+        file.deleteOnExit();
+        ColumnarLogWriter.fromText(textFile, file, blockSize);
+        return file;
+    }
+
+    private String toText(ColumnarLogReader reader) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        reader.toText(new PrintStream(bytes, true, "UTF-8"));
+        return bytes.toString("UTF-8");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        String text = textLog(20);
+        File file = toColumnar(text, 3);
+        assertTrue(ColumnarLogReader.isColumnarLog(file));
+        try (ColumnarLogReader reader = new ColumnarLogReader(file)) {
+            assertEquals(20, reader.getRowCount());
+            assertEquals(7, reader.getBlockCount());
+            assertEquals(5, reader.getColumnCount());
+            assertEquals(1, reader.getColumnIndex("posterior"));
+            assertEquals("#" + NL + "#model:" + NL + "#<beast/>" + NL + "#" + NL, reader.getPreamble());
+            assertEquals(text, toText(reader));
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i * 1000L, reader.getLong(i, 0));
+                assertEquals(-1234.5 + i / 3.0, reader.getDouble(i, 1), 0.0);
+                assertEquals(String.format("%.2f", i / 4.0), reader.getString(i, 2));
+                assertEquals(i / 4.0, reader.getDouble(i, 2), 1e-10);
+            }
+            assertEquals("éven", reader.getString(19, 3));
+            assertEquals("x", reader.getString(7, 4));
+            assertTrue(Double.isNaN(reader.getDouble(5, 4)));
+            assertEquals(Double.POSITIVE_INFINITY, reader.getDouble(6, 4), 0.0);
+
+            double[] values = reader.getDoubles(1);
+            assertArrayEquals(values, reader.doubles(1).toArray(), 0.0);
+            assertEquals(20, reader.strings(3).filter(s -> s.endsWith("ven")).count());
+            assertEquals(19000, reader.longs(0).max().getAsLong());
+        }
+    }
+
+    @Test
+    public void testTruncatedAndAppend() throws IOException {
+        String text = textLog(10);
+        File file = toColumnar(text, 4);
+        long length = file.length();
+
+        // without index (of 3 blocks), and without the end of the last block
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(length - (1 + 4 + 3 * 12 + 8 + 8) - 10);
+        }
+        try (ColumnarLogReader reader = new ColumnarLogReader(file)) {
+            assertEquals(8, reader.getRowCount());
+            assertEquals(7000, reader.getLong(7, 0));
+        }
+
+        ColumnarLogWriter writer = ColumnarLogWriter.append(file, 4);
+        assertEquals("7000", writer.getLastRow()[0]);
+        String[] lines = text.split(NL);
+        // 4 lines of preamble, then the column names
+        writer.addLine(lines[5 + 8]);
+        writer.addLine(lines[5 + 9]);
+        writer.close();
+
+        try (ColumnarLogReader reader = new ColumnarLogReader(file)) {
+            assertEquals(10, reader.getRowCount());
+            assertEquals(text, toText(reader));
+        }
+    }
+
+    @Test
+    public void testNotColumnar() throws IOException {
+        File textFile = File.createTempFile("ColumnarLogTest", ".log");
+        textFile.deleteOnExit();
+        Files.write(textFile.toPath(), textLog(2).getBytes("UTF-8"));
+        assertFalse(ColumnarLogReader.isColumnarLog(textFile));
+    }
+}
@@ -3,10 +3,13 @@ package test.beast.core;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import beast.base.inference.ColumnarLogReader;
 import beast.base.inference.Logger;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -90,4 +93,90 @@ public class LoggerTest {
         assertTrue(logger.getM_out() == System.out, "m_out is still System.out after close");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testFlush() throws Exception {
+        // long lines are split over several buffers of the background writer
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            b.append(i % 7).append(' ');
+        }
+        RealParameter param = new RealParameter(b.toString());
+        param.setID("p");
+        logger = new Logger();
+        logger.initByName("fileName", "beast.log", "log", param);
+        File f_log = new File(logger.fileNameInput.get());
+        f_log.delete();
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        try {
+            logger.init();
+            for (int i = 0; i < 10; i++) {
+                logger.log(i);
+            }
+            // after flush all lines are in the file, without closing it
+            logger.flush();
+            BufferedReader in = new BufferedReader(new FileReader(f_log));
+            String header = in.readLine();
+            assertEquals(20001, header.split("\t").length);
+            for (int i = 0; i < 10; i++) {
+                String[] sp = in.readLine().split("\t", -1);
+                assertEquals(20001, sp.length);
+                assertEquals(Integer.toString(i), sp[0]);
+                assertEquals("6.0", sp[19999]);
+            }
+            assertEquals(null, in.readLine());
+            in.close();
+            logger.close();
+        } finally {
+            Logger.FILE_MODE = Logger.LogFileMode.only_new;
+            f_log.delete();
+        }
+    }
+
+    @Test
+    public void testBinaryLog() throws Exception {
+        RealParameter real = new RealParameter();
+        real.initByName("value", "0.3 0.7");
+        real.setID("real");
+        IntegerParameter integer = new IntegerParameter();
+        integer.initByName("value", "3");
+        integer.setID("int");
+
+        Logger textLogger = new Logger();
+        textLogger.initByName("fileName", "beast.log", "log", real, "log", integer);
+        Logger binaryLogger = new Logger();
+        binaryLogger.initByName("fileName", "beast.blog", "log", real, "log", integer, "format", "binary");
+        File textLog = new File("beast.log");
+        File binaryLog = new File("beast.blog");
+        File convertedLog = new File("beast.converted.log");
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        try {
+            textLogger.init();
+            binaryLogger.init();
+            for (int i = 0; i < 5000; i++) {
+                real.setValue(0, i / 7.0);
+                integer.setValue(0, i % 11);
+                textLogger.log(i);
+                binaryLogger.log(i);
+            }
+            // after flush all rows can be read, without closing the log
+            binaryLogger.flush();
+            try (ColumnarLogReader reader = new ColumnarLogReader(binaryLog)) {
+                assertEquals(5000, reader.getRowCount());
+                assertEquals(4998 / 7.0, reader.getDouble(4998, 1), 0.0);
+                assertEquals(4998 % 11, reader.getLong(4998, 3));
+            }
+            textLogger.close();
+            binaryLogger.close();
+
+            ColumnarLogReader.toText(binaryLog, convertedLog);
+            assertEquals(new String(Files.readAllBytes(textLog.toPath())),
+                    new String(Files.readAllBytes(convertedLog.toPath())));
+        } finally {
+            Logger.FILE_MODE = Logger.LogFileMode.only_new;
+            textLog.delete();
+            binaryLog.delete();
+            convertedLog.delete();
+        }
+    }
+
+}
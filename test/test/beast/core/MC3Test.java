@@ -0,0 +1,133 @@
+package test.beast.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.Logger;
+import beast.base.inference.MC3;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.operator.RealRandomWalkOperator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+
+public class MC3Test {
+
+    /** keeps the logged values of the cold chain in memory **/
+    public static class SampleLogger extends Logger {
+        List<Double> values = new ArrayList<>();
+        RealParameter param;
+
+        @Override
+        public void initAndValidate() {
+            param = (RealParameter) loggersInput.get().get(0);
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void log(long sample) {
+            if (sample > 0 && sample % everyInput.get() == 0) {
+                values.add(param.getValue());
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testNormal() throws Exception {
+        Randomizer.setSeed(127);
+
+        RealParameter param = new RealParameter();
+        param.initByName("value", "0.0");
+        param.setID("x");
+        Normal normal = new Normal();
+        normal.initByName("mean", "1.0", "sigma", "1.0");
+        Prior prior = new Prior();
+        prior.initByName("x", param, "distr", normal);
+
+        RealRandomWalkOperator operator = new RealRandomWalkOperator();
+        operator.initByName("weight", 1.0, "parameter", param, "windowSize", 1.0);
+
+        SampleLogger logger = new SampleLogger();
+        logger.initByName("log", param, "logEvery", 10);
+
+        MC3 mc3 = new MC3();
+        mc3.initByName("chainLength", 200000L, "distribution", prior, "operator", operator, "logger", logger,
+                "chains", 3, "swapEvery", 10);
+        File stateFile = File.createTempFile("MC3Test", ".state");
+        mc3.setStateFile(stateFile.getPath(), false);
+        try {
+            mc3.run();
+        } finally {
+            stateFile.delete();
+            new File(stateFile.getPath() + ".new").delete();
+            for (int i = 1; i < 3; i++) {
+                new File(stateFile.getPath() + ".chain" + i).delete();
+                new File(stateFile.getPath() + ".chain" + i + ".new").delete();
+            }
+        }
+
+        // the cold chain samples from the posterior
+        double[] v = logger.values.stream().mapToDouble(Double::doubleValue).toArray();
+        assertEquals(1.0, StatUtils.mean(v), 5e-2);
+        assertEquals(1.0, StatUtils.variance(v), 5e-2);
+
+        // chains are heated, and adapted towards the target swap rate
+        assertEquals(1.0, mc3.getBeta(0), 0.0);
+        assertTrue(mc3.getBeta(1) < 1.0);
+        assertTrue(mc3.getBeta(2) < mc3.getBeta(1));
+        assertEquals(0.234, mc3.getSwapRate(0), 0.1);
+        assertEquals(0.234, mc3.getSwapRate(1), 0.1);
+    }
+
+    @Test
+    public void testTreeLikelihood() throws Exception {
+        runTreeModel("TreeLikelihood");
+    }
+
+    @Test
+    public void testThreadedTreeLikelihood() throws Exception {
+        runTreeModel("ThreadedTreeLikelihood");
+    }
+
+    /** runs examples/testHKY.xml with MC3, so that trees are swapped between chains **/
+    private void runTreeModel(String likelihood) throws Exception {
+        Randomizer.setSeed(127);
+        String xml = new String(Files.readAllBytes(new File(System.getProperty("user.dir") + "/examples/testHKY.xml").toPath()));
+        xml = xml.replace("spec='TreeLikelihood'", "spec='" + likelihood + "'");
+        xml = xml.replaceAll("<run spec=\"MCMC\"[^>]*>", "<run spec=\"MC3\" id=\"mcmc\" chainLength=\"2000\" chains=\"3\" swapEvery=\"10\">");
+        // keep only the screen logger
+        xml = xml.replaceAll("(?s)<logger [^>]*fileName=.*?</logger>", "");
+        MC3 mc3 = (MC3) new XMLParser().parseFragment(xml, true);
+
+        File stateFile = File.createTempFile("MC3Test", ".state");
+        mc3.setStateFile(stateFile.getPath(), false);
+        try {
+            mc3.run();
+        } finally {
+            stateFile.delete();
+            new File(stateFile.getPath() + ".new").delete();
+            for (int i = 1; i < 3; i++) {
+                new File(stateFile.getPath() + ".chain" + i).delete();
+                new File(stateFile.getPath() + ".chain" + i + ".new").delete();
+            }
+        }
+        assertTrue(mc3.getSwapRate(0) > 0);
+        assertTrue(mc3.getSwapRate(1) > 0);
+    }
+}
@@ -0,0 +1,157 @@
+package test.beast.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Profiler;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.operator.RealRandomWalkOperator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+
+public class ProfilerTest {
+
+    @Test
+    public void testProfile() throws Exception {
+        Randomizer.setSeed(127);
+
+        RealParameter x = new RealParameter();
+        x.initByName("value", "0.0");
+        x.setID("x");
+        RealParameter y = new RealParameter();
+        y.initByName("value", "0.0");
+        y.setID("y");
+        Normal normal = new Normal();
+        normal.initByName("mean", "1.0", "sigma", "1.0");
+        normal.setID("normal");
+        Prior xPrior = new Prior();
+        xPrior.initByName("x", x, "distr", normal);
+        xPrior.setID("xPrior");
+        Prior yPrior = new Prior();
+        yPrior.initByName("x", y, "distr", normal);
+        yPrior.setID("yPrior");
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", xPrior, "distribution", yPrior);
+        posterior.setID("posterior");
+
+        RealRandomWalkOperator xOperator = new RealRandomWalkOperator();
+        xOperator.initByName("weight", 1.0, "parameter", x, "windowSize", 1.0);
+        xOperator.setID("xOperator");
+        RealRandomWalkOperator yOperator = new RealRandomWalkOperator();
+        yOperator.initByName("weight", 3.0, "parameter", y, "windowSize", 1.0);
+        yOperator.setID("yOperator");
+
+        Profiler profiler = new Profiler();
+        profiler.setID("profiler");
+        File logFile = File.createTempFile("ProfilerTest", ".log");
+        logFile.delete();
+        Logger logger = new Logger();
+        logger.initByName("fileName", logFile.getPath(), "log", profiler, "logEvery", 1000);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName("chainLength", 10000L, "distribution", posterior, "operator", xOperator, "operator", yOperator,
+                "logger", logger, "profiler", profiler);
+        File stateFile = File.createTempFile("ProfilerTest", ".state");
+        mcmc.setStateFile(stateFile.getPath(), false);
+        String logged;
+        try {
+            mcmc.run();
+            logged = new String(Files.readAllBytes(logFile.toPath()));
+        } finally {
+            stateFile.delete();
+            logFile.delete();
+        }
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        profiler.report(new PrintStream(report));
+        String[] sections = report.toString().split("\n\n");
+        assertEquals(2, sections.length);
+
+        // operators: both proposed, in proportion to their weights
+        List<String[]> operators = rows(sections[0]);
+        assertEquals(2, operators.size());
+        assertEquals("yOperator", operators.get(0)[0]);
+        assertEquals("xOperator", operators.get(1)[0]);
+        long proposals = Long.parseLong(operators.get(0)[1]) + Long.parseLong(operators.get(1)[1]);
+        assertEquals(10001, proposals);
+        assertTrue(Long.parseLong(operators.get(0)[1]) > Long.parseLong(operators.get(1)[1]));
+
+        // calculation nodes: each prior is recalculated when its parameter changes
+        List<String[]> nodes = rows(sections[1]);
+        List<String> names = new ArrayList<>();
+        for (String[] row : nodes) {
+            names.add(row[0]);
+            assertTrue(Double.parseDouble(row[2]) >= 0);
+        }
+        assertTrue(names.contains("posterior"));
+        assertTrue(names.contains("xPrior"));
+        assertTrue(names.contains("yPrior"));
+        assertTrue(profiler.getPosteriorTime() > 0);
+        for (String[] row : nodes) {
+            if (row[0].equals("posterior")) {
+                assertEquals(10001, Long.parseLong(row[1]));
+            }
+        }
+
+        // live snapshot through the logger
+        String[] lines = logged.split("\n");
+        assertTrue(lines[0].contains("xOperator.ms") && lines[0].contains("yPrior.ms"));
+        assertEquals(lines[0].split("\t").length, lines[lines.length - 1].split("\t").length);
+    }
+
+    @Test
+    public void testProfilerFromXML() throws Exception {
+        Randomizer.setSeed(127);
+        File logFile = File.createTempFile("ProfilerTest", ".log");
+        logFile.delete();
+        String xml = "<beast namespace='beast.base.inference:beast.base.inference.parameter:beast.base.inference.distribution'>" +
+                "<run id='mcmc' spec='MCMC' chainLength='1000'>" +
+                "  <state><stateNode id='x' spec='RealParameter' value='0.0'/></state>" +
+                "  <distribution id='posterior' spec='CompoundDistribution'>" +
+                "    <distribution id='xPrior' spec='Prior' x='@x'><distr spec='Normal' mean='1.0' sigma='1.0'/></distribution>" +
+                "  </distribution>" +
+                "  <operator id='xOperator' spec='beast.base.inference.operator.RealRandomWalkOperator' weight='1' parameter='@x' windowSize='1.0'/>" +
+                "  <profiler id='profiler' spec='beast.base.inference.Profiler'/>" +
+                "  <logger spec='Logger' fileName='" + logFile.getPath() + "' logEvery='100'><log idref='profiler'/></logger>" +
+                "</run>" +
+                "</beast>";
+        MCMC mcmc = (MCMC) new XMLParser().parseFragment(xml, true);
+        Profiler profiler = mcmc.profilerInput.get();
+        File stateFile = File.createTempFile("ProfilerTest", ".state");
+        mcmc.setStateFile(stateFile.getPath(), false);
+        String logged;
+        try {
+            mcmc.run();
+            logged = new String(Files.readAllBytes(logFile.toPath()));
+        } finally {
+            stateFile.delete();
+            logFile.delete();
+        }
+        assertTrue(profiler.getPosteriorTime() > 0);
+        assertTrue(logged.split("\n")[0].contains("xOperator.ms"));
+    }
+
+    /** rows of a tab delimited table, without the header **/
+    private List<String[]> rows(String table) {
+        List<String[]> rows = new ArrayList<>();
+        String[] lines = table.trim().split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            rows.add(lines[i].split("\t"));
+        }
+        return rows;
+    }
+}
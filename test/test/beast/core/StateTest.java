@@ -0,0 +1,309 @@
+package test.beast.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.OperatorSchedule;
+import beast.base.inference.State;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.parameter.RealParameterList;
+import beast.base.util.Randomizer;
+import test.beast.BEASTTestCase;
+
+/**
+ * Storing the state to file and restoring it, in XML and binary format.
+ */
+public class StateTest {
+
+    private File stateFile;
+
+    private RealParameter real;
+    private IntegerParameter integer;
+    private BooleanParameter bool;
+    private RealParameterList list;
+    private Tree tree;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        stateFile = File.createTempFile("StateTest", ".state");
+        stateFile.delete();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        stateFile.delete();
+        new File(stateFile.getPath() + ".new").delete();
+        new File(stateFile.getPath() + ".operators").delete();
+    }
+
+    /** creates a state with fresh state nodes **/
+    private State newState(boolean binary) throws Exception {
+        real = new RealParameter();
+        real.setID("real");
+        real.initByName("value", "1.0 2.0 3.0", "lower", "0.0");
+        integer = new IntegerParameter();
+        integer.setID("integer");
+        integer.initByName("value", "1 2", "upper", "10");
+        bool = new BooleanParameter();
+        bool.setID("bool");
+        bool.initByName("value", "true false true");
+        RealParameter p = new RealParameter();
+        p.initByName("value", "5.0");
+        list = new RealParameterList();
+        list.setID("list");
+        list.initByName("initialParam", p);
+        Alignment data = BEASTTestCase.getAlignment();
+        tree = BEASTTestCase.getTree(data);
+        tree.setID("tree");
+
+        State state = new State();
+        state.initByName("stateNode", real, "stateNode", integer, "stateNode", bool,
+                "stateNode", list, "stateNode", tree, "binary", binary, "fullSnapshotEvery", 3);
+        state.initialise();
+        state.setStateFileName(stateFile.getPath());
+        return state;
+    }
+
+    /** change all state nodes but the tree **/
+    private void changeParameters(State state) {
+        state.store(1);
+        real.setValue(1, 4.5);
+        integer.setValue(0, 7);
+        bool.setValue(2, false);
+        list.get(0).setValue(6.0);
+    }
+
+    private void assertRestored(boolean binary, String treeAsString, double rootHeight) throws Exception {
+        State state = newState(binary);
+        state.restoreFromFile();
+        assertArrayEquals(new Double[]{1.0, 4.5, 3.0}, real.getValues());
+        assertEquals(0.0, real.getLower(), 0.0);
+        assertArrayEquals(new Integer[]{7, 2}, integer.getValues());
+        assertEquals(10, (int) integer.getUpper());
+        assertArrayEquals(new Boolean[]{true, false, false}, bool.getValues());
+        assertEquals(6.0, list.get(0).getValue(), 0.0);
+        assertEquals(rootHeight, tree.getRoot().getHeight(), 0.0);
+        assertEquals(treeAsString, tree.getRoot().toNewick());
+    }
+
+    @Test
+    public void testXML() throws Exception {
+        State state = newState(false);
+        changeParameters(state);
+        state.storeToFile(1);
+        assertTrue(state.toXML(1).length() > 0);
+        assertRestored(false, tree.getRoot().toNewick(), tree.getRoot().getHeight());
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        State state = newState(true);
+        state.storeToFile(0);
+        final long snapshotLength = stateFile.length();
+
+        // only the changed parameters are appended
+        changeParameters(state);
+        state.storeToFile(1);
+        final long deltaLength = stateFile.length() - snapshotLength;
+        assertTrue(deltaLength > 0 && deltaLength < snapshotLength);
+
+        // change the tree
+        state.store(2);
+        tree.getRoot().setHeight(tree.getRoot().getHeight() * 2);
+        state.storeToFile(2);
+        final String newick = tree.getRoot().toNewick();
+        final double rootHeight = tree.getRoot().getHeight();
+        assertRestored(true, newick, rootHeight);
+
+        // every third store is a full snapshot again, so the file gets smaller
+        state = newState(true);
+        state.restoreFromFile();
+        state.storeToFile(0);
+        state.storeToFile(3);
+        state.storeToFile(4);
+        final long length = stateFile.length();
+        state.storeToFile(5);
+        assertTrue(stateFile.length() < length);
+        assertRestored(true, newick, rootHeight);
+    }
+
+    @Test
+    public void testRandomizerState() throws Exception {
+        for (boolean binary : new boolean[]{false, true}) {
+            Randomizer.setSeed(127);
+            State state = newState(binary);
+            Randomizer.nextDouble();
+            state.storeToFile(1);
+            double[] expected = {Randomizer.nextDouble(), Randomizer.nextGaussian()};
+
+            // a resumed chain continues with the same random numbers
+            Randomizer.setSeed(42);
+            state = newState(binary);
+            state.restoreFromFile();
+            assertArrayEquals(expected, new double[]{Randomizer.nextDouble(), Randomizer.nextGaussian()}, 0.0);
+            stateFile.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedBinary() throws Exception {
+        State state = newState(true);
+        changeParameters(state);
+        state.storeToFile(0);
+        final String newick = tree.getRoot().toNewick();
+        final double rootHeight = tree.getRoot().getHeight();
+
+        // a store that was not completely written is ignored
+        try (FileOutputStream out = new FileOutputStream(stateFile, true)) {
+            out.write(new byte[]{0, 0, 0, 20, 1, 2, 3});
+        }
+        assertRestored(true, newick, rootHeight);
+
+        // a store with wrong checksum is ignored
+        state = newState(true);
+        state.restoreFromFile();
+        state.storeToFile(1);
+        try (FileOutputStream out = new FileOutputStream(stateFile, true)) {
+            out.write(new byte[]{0, 0, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0});
+        }
+        assertRestored(true, newick, rootHeight);
+    }
+
+    @Test
+    public void testBinaryOperatorSchedule() throws Exception {
+        State state = newState(true);
+        state.storeToFile(0);
+        ScaleOperator operator = new ScaleOperator();
+        operator.setID("scaleOperator");
+        operator.initByName("parameter", real, "weight", 1.0);
+        OperatorSchedule schedule = new OperatorSchedule();
+        schedule.initByName("operator", operator);
+        schedule.setStateFileName(stateFile.getPath());
+        operator.accept();
+        operator.accept();
+        schedule.storeToFile();
+        operator.accept();
+        schedule.storeToFile();
+
+        // the operator file is replaced as a whole, and only holds the operator state
+        final File operatorFile = new File(stateFile.getPath() + ".operators");
+        assertFalse(new File(operatorFile.getPath() + ".new").exists());
+        final String json = new String(Files.readAllBytes(operatorFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.startsWith("{\"operators\""));
+
+        operator = new ScaleOperator();
+        operator.setID("scaleOperator");
+        operator.initByName("parameter", real, "weight", 1.0);
+        schedule = new OperatorSchedule();
+        schedule.initByName("operator", operator);
+        schedule.setStateFileName(stateFile.getPath());
+        schedule.restoreFromFile();
+        assertEquals(3, operator.get_m_nNrAccepted());
+    }
+
+    @Test
+    public void testCalculationNodes() throws Exception {
+        // p1 -> prior1, p2 -> prior2, p3 -> normal -> prior1 & prior2
+        RealParameter p1 = new RealParameter("1.0");
+        RealParameter p2 = new RealParameter("2.0");
+        RealParameter p3 = new RealParameter("0.0");
+        Normal normal = new Normal();
+        normal.initByName("mean", p3, "sigma", "1.0");
+        Prior prior1 = new Prior();
+        prior1.initByName("x", p1, "distr", normal);
+        Prior prior2 = new Prior();
+        prior2.initByName("x", p2, "distr", normal);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", prior1, "distribution", prior2);
+
+        State state = new State();
+        state.initByName("stateNode", p1, "stateNode", p2, "stateNode", p3);
+        state.initialise();
+        state.setPosterior(posterior);
+
+        state.store(0);
+        assertEquals(0, state.getCurrentCalculationNodes().size());
+
+        p1.setValue(1.5);
+        assertEquals(Arrays.asList(prior1, posterior), state.getCurrentCalculationNodes());
+
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+        state.store(1);
+        p3.setValue(0.5);
+        List<CalculationNode> nodes = state.getCurrentCalculationNodes();
+        assertEquals(4, nodes.size());
+        assertEquals(normal, nodes.get(0));
+        assertTrue(nodes.containsAll(Arrays.asList(prior1, prior2)));
+        assertEquals(posterior, nodes.get(3));
+
+        // a combination seen before gives the same answer
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+        state.store(2);
+        p1.setValue(2.0);
+        assertEquals(Arrays.asList(prior1, posterior), state.getCurrentCalculationNodes());
+    }
+
+    /** many combinations of changed state nodes are all resolved correctly **/
+    @Test
+    public void testManyCalculationNodePaths() throws Exception {
+        final int n = 1200;
+        List<RealParameter> parameters = new ArrayList<>();
+        List<Distribution> priors = new ArrayList<>();
+        State state = new State();
+        for (int i = 0; i < n; i++) {
+            RealParameter p = new RealParameter("1.0");
+            Prior prior = new Prior();
+            Normal normal = new Normal();
+            normal.initByName("sigma", "1.0");
+            prior.initByName("x", p, "distr", normal);
+            parameters.add(p);
+            priors.add(prior);
+            state.stateNodeInput.setValue(p, state);
+        }
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", priors);
+        state.initialise();
+        state.setPosterior(posterior);
+
+        for (int i = 0; i < n; i++) {
+            int j = (i * 7 + 3) % n;
+            state.store(i);
+            parameters.get(i).setValue(2.0);
+            parameters.get(j).setValue(2.0);
+            List<CalculationNode> nodes = state.getCurrentCalculationNodes();
+            assertEquals(i == j ? 2 : 3, nodes.size());
+            assertTrue(nodes.contains(priors.get(i)));
+            assertTrue(nodes.contains(priors.get(j)));
+            assertEquals(posterior, nodes.get(nodes.size() - 1));
+            state.acceptCalculationNodes();
+            state.setEverythingDirty(false);
+        }
+    }
+}
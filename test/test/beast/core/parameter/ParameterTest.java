@@ -3,11 +3,17 @@ package test.beast.core.parameter;
 
 import org.junit.jupiter.api.Test;
 
+import beast.base.inference.State;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Arrays;
 import java.util.List;
@@ -36,6 +42,118 @@ public class ParameterTest  {
         assertEquals(parameter.getDimension(), 6);
     }
 
+    @Test
+    public void testStoreRestore() {
+        RealParameter real = new RealParameter();
+        real.initByName("value", "1.0 2.0 3.0");
+        IntegerParameter integer = new IntegerParameter();
+        integer.initByName("value", "1 2 3");
+        BooleanParameter bool = new BooleanParameter();
+        bool.initByName("value", "true false");
+        State state = new State();
+        state.initByName("stateNode", real, "stateNode", integer, "stateNode", bool);
+        state.initialise();
+
+        state.store(0);
+        real.setValue(1, 5.0);
+        integer.setValue(2, 7);
+        bool.setValue(1, true);
+        assertArrayEquals(new double[]{1.0, 5.0, 3.0}, real.getDoubleValues(), 0.0);
+        assertEquals(7, integer.getNativeValue(2));
+        assertTrue(bool.getNativeValue(1));
+        assertEquals(2.0, real.getStoredValue(1), 0.0);
+        assertEquals(3, (int) integer.getStoredValue(2));
+
+        state.restore();
+        assertArrayEquals(new double[]{1.0, 2.0, 3.0}, real.getDoubleValues(), 0.0);
+        assertArrayEquals(new Integer[]{1, 2, 3}, integer.getValues());
+        assertArrayEquals(new Boolean[]{true, false}, bool.getValues());
+
+        // the next proposal starts from the restored values
+        state.store(1);
+        real.setValue(0, 4.0);
+        state.restore();
+        assertArrayEquals(new double[]{1.0, 2.0, 3.0}, real.getDoubleValues(), 0.0);
+    }
+
+    @Test
+    public void testDirtyElements() {
+        RealParameter real = new RealParameter();
+        real.initByName("value", "1.0 2.0 3.0 4.0");
+        State state = new State();
+        state.initByName("stateNode", real);
+        state.initialise();
+        state.setEverythingDirty(false);
+        assertEquals(0, real.getDirtyElementCount());
+
+        state.store(0);
+        real.setValue(2, 5.0);
+        real.setValue(0, 6.0);
+        real.setValue(2, 7.0);
+        real.swap(0, 3);
+        assertEquals(3, real.getDirtyElementCount());
+        assertEquals(2, real.getDirtyElement(0));
+        assertEquals(0, real.getDirtyElement(1));
+        assertEquals(3, real.getDirtyElement(2));
+        assertEquals(2, real.getLastDirty());
+        assertTrue(real.isDirty(3));
+        assertFalse(real.isDirty(1));
+        state.restore();
+        state.setEverythingDirty(false);
+        assertEquals(0, real.getDirtyElementCount());
+        assertFalse(real.isDirty(2));
+
+        // scale() changes elements without marking them dirty
+        state.store(1);
+        real.startEditing(null);
+        real.scale(2.0);
+        assertEquals(-1, real.getDirtyElementCount());
+        real.setValue(1, 1.0);
+        assertEquals(-1, real.getDirtyElementCount());
+        state.setEverythingDirty(false);
+        assertEquals(0, real.getDirtyElementCount());
+
+        state.setEverythingDirty(true);
+        assertEquals(-1, real.getDirtyElementCount());
+    }
+
+    @Test
+    public void testCopyAndArrayValues() {
+        RealParameter parameter = new RealParameter();
+        parameter.initByName("value", "1.0 2.0 3.0", "lower", 0.0, "upper", 10.0);
+        RealParameter copy = (RealParameter) parameter.copy();
+        assertArrayEquals(parameter.getValues(), copy.getValues());
+        assertEquals(10.0, copy.getUpper(), 0.0);
+
+        RealParameter other = new RealParameter();
+        other.initByName("value", "6.0");
+        copy.assignFromFragile(other);
+        assertEquals(1, copy.getDimension());
+        assertEquals(6.0, copy.getArrayValue(), 0.0);
+        assertEquals(3, parameter.getDimension());
+
+        double[] target = new double[3];
+        parameter.getArrayValues(target);
+        assertArrayEquals(new double[]{1.0, 2.0, 3.0}, target, 0.0);
+
+        IntegerParameter integer = new IntegerParameter();
+        integer.initByName("value", "1 2");
+        integer.setDimension(5);
+        assertArrayEquals(new int[]{1, 2, 1, 2, 1}, integer.getNativeValues());
+        target = new double[5];
+        integer.getArrayValues(target);
+        assertArrayEquals(new double[]{1, 2, 1, 2, 1}, target, 0.0);
+    }
+
+    @Test
+    public void testSetDimensionWithoutValues() {
+        RealParameter parameter = new RealParameter(new Double[0]);
+        parameter.setDimension(0);
+        assertEquals(0, parameter.getDimension());
+        assertThrows(IllegalArgumentException.class, () -> parameter.setDimension(3));
+        assertEquals(0, parameter.getDimension());
+    }
+
     //*** test keys ***//
 
     @Test
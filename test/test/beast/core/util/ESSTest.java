@@ -0,0 +1,130 @@
+package test.beast.core.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.ESS;
+import beast.base.inference.util.OnlineESS;
+import beast.base.util.Randomizer;
+
+
+public class ESSTest {
+
+	/** AR(1) process with auto correlation time (1 + phi) / (1 - phi) **/
+	private double[] ar1(double phi, double mean, int n) {
+		double[] trace = new double[n];
+		double x = 0;
+		for (int i = 0; i < n; i++) {
+			x = phi * x + Randomizer.nextGaussian();
+			trace[i] = mean + x;
+		}
+		return trace;
+	}
+
+	@Test
+	public void testOnlineESS() {
+		Randomizer.setSeed(127);
+		final int n = 1000000;
+		final double[] phi = {0.0, 0.5, 0.9};
+		final double[][] traces = new double[phi.length][];
+		for (int i = 0; i < phi.length; i++) {
+			// a large mean should not affect precision
+			traces[i] = ar1(phi[i], 1e6 * i, n);
+		}
+
+		OnlineESS ess = new OnlineESS(phi.length, 200);
+		double[] sample = new double[phi.length];
+		for (int j = 0; j < n; j++) {
+			for (int i = 0; i < phi.length; i++) {
+				sample[i] = traces[i][j];
+			}
+			ess.add(sample);
+			assertTrue(ess.getBatchCount() <= 200);
+		}
+		assertEquals(n, ess.getSampleCount());
+
+		double[] estimates = new double[phi.length];
+		ess.getESS(estimates);
+		for (int i = 0; i < phi.length; i++) {
+			double act = (1 + phi[i]) / (1 - phi[i]);
+			double expected = 0.9 * n / act;
+			assertEquals(expected, estimates[i], 0.25 * expected, "phi = " + phi[i]);
+		}
+	}
+
+	@Test
+	public void testOnlineESSBeforeBatching() {
+		Randomizer.setSeed(127);
+		final int n = 2000;
+		OnlineESS ess = new OnlineESS(1, 10000);
+		double[] sample = new double[1];
+		assertTrue(Double.isNaN(ess.getESS(0)));
+		sample[0] = 1.0;
+		ess.add(sample);
+		assertTrue(Double.isNaN(ess.getESS(0)));
+
+		ess = new OnlineESS(1, 10000);
+		for (double x : ar1(0.9, 0, n)) {
+			sample[0] = x;
+			ess.add(sample);
+		}
+		// batches still hold single samples, but the estimate accounts for auto correlation
+		double expected = 0.9 * n / 19.0;
+		assertEquals(expected, ess.getESS(0), 0.5 * expected);
+	}
+
+	@Test
+	public void testOnlineESSCorrelated() {
+		// batch means are correlated when batches are short compared to the auto correlation time
+		Randomizer.setSeed(127);
+		final int n = 20000;
+		for (double phi : new double[] {0.9, 0.99}) {
+			final double[] trace = ar1(phi, 0, n);
+			OnlineESS ess = new OnlineESS(1, 200);
+			for (int j = 0; j < n; j++) {
+				ess.add(trace[j]);
+				final int samples = j + 1;
+				if (samples == 200 || samples == 1600 || samples == 5000 || samples == 20000) {
+					List<Double> burnedIn = new ArrayList<>();
+					for (int k = samples / 10; k < samples; k++) {
+						burnedIn.add(trace[k]);
+					}
+					double expected = ESS.calcESS(burnedIn);
+					double ratio = ess.getESS(0) / expected;
+					assertTrue(ratio > 0.5 && ratio < 2, "phi = " + phi + " samples = " + samples + " ESS = " + ess.getESS(0) + " expected " + expected);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLoggable() {
+		Randomizer.setSeed(127);
+		RealParameter p = new RealParameter();
+		p.initByName("value", "0.0");
+		p.setID("p");
+		ESS ess = new ESS();
+		ess.initByName("arg", p, "maxBatches", 20);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		ess.init(out);
+		for (double x : ar1(0.9, 0, 10000)) {
+			bytes.reset();
+			p.setValue(x);
+			ess.log(0, out);
+		}
+		out.flush();
+		double value = Double.parseDouble(bytes.toString().trim());
+		assertEquals(9000 / 19.0, value, 0.5 * 9000 / 19.0);
+	}
+
+}
@@ -0,0 +1,85 @@
+package test.beast.evolution.alignment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.datatype.DataType;
+import beast.base.util.Randomizer;
+import test.beast.BEASTTestCase;
+
+/** test pattern compression of Alignment **/
+public class AlignmentTest {
+
+    @Test
+    public void testPatterns() throws Exception {
+        Alignment data = BEASTTestCase.getAlignment();
+        assertPatterns(data);
+
+        Randomizer.setSeed(127);
+        List<Sequence> sequences = new ArrayList<>();
+        String [] characters = {"A", "C", "G", "T", "-", "?", "R"};
+        for (int i = 0; i < 20; i++) {
+            StringBuilder b = new StringBuilder();
+            for (int j = 0; j < 5000; j++) {
+                // mostly constant sites, so there are many duplicate patterns
+                b.append(Randomizer.nextDouble() < 0.95 ? characters[j % 3] : characters[Randomizer.nextInt(characters.length)]);
+            }
+            sequences.add(new Sequence("taxon" + i, b.toString()));
+        }
+        data = new Alignment(sequences, "nucleotide");
+        assertPatterns(data);
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        Alignment data = BEASTTestCase.getAlignment();
+        DataType dataType = data.getDataType();
+        List<List<Integer>> counts = data.getCounts();
+        for (int i = 0; i < data.getTaxonCount(); i++) {
+            List<Integer> expected = data.sequenceInput.get().get(i).getSequence(dataType);
+            assertEquals(expected, counts.get(i));
+            assertEquals(expected.hashCode(), counts.get(i).hashCode());
+        }
+    }
+
+    /** compare patterns with those obtained by sorting all sites **/
+    private void assertPatterns(Alignment data) {
+        int taxonCount = data.getTaxonCount();
+        int siteCount = data.getSiteCount();
+        List<List<Integer>> counts = data.getCounts();
+        int [][] sites = new int[siteCount][taxonCount];
+        for (int i = 0; i < siteCount; i++) {
+            for (int j = 0; j < taxonCount; j++) {
+                sites[i][j] = counts.get(j).get(i);
+            }
+        }
+        int [][] sorted = sites.clone();
+        Arrays.sort(sorted, Arrays::compare);
+        List<int[]> patterns = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (int [] site : sorted) {
+            if (patterns.isEmpty() || !Arrays.equals(patterns.get(patterns.size() - 1), site)) {
+                patterns.add(site);
+                weights.add(0);
+            }
+            weights.set(weights.size() - 1, weights.get(weights.size() - 1) + 1);
+        }
+
+        assertEquals(patterns.size(), data.getPatternCount());
+        for (int i = 0; i < patterns.size(); i++) {
+            assertArrayEquals(patterns.get(i), data.getPattern(i));
+            assertEquals((int) weights.get(i), data.getPatternWeight(i));
+        }
+        for (int i = 0; i < siteCount; i++) {
+            assertArrayEquals(sites[i], data.getPattern(data.getPatternIndex(i)));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package test.beast.evolution.branchratemodel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math.MathException;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.branchratemodel.UCRelaxedClockModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.distribution.Gamma;
+import beast.base.inference.distribution.LogNormalDistributionModel;
+import beast.base.inference.distribution.ParametricDistribution;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+public class UCRelaxedClockModelTest {
+
+	/** sums log rates over all branches, so that the clock model is part of the posterior **/
+	public static class LogRateSum extends Distribution {
+		final public Input<UCRelaxedClockModel> clockInput = new Input<>("clock", "clock model", Validate.REQUIRED);
+		final public Input<Tree> treeInput = new Input<>("tree", "tree", Validate.REQUIRED);
+
+		@Override
+		public double calculateLogP() {
+			logP = 0;
+			for (Node node : treeInput.get().getNodesAsArray()) {
+				logP += Math.log(clockInput.get().getRateForBranch(node));
+			}
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return null;
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return null;
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+	interface ExpectedRate {
+		double get(int branch) throws Exception;
+	}
+
+	private Tree caterpillarTree(int taxa) {
+		String newick = "t0:1.0";
+		for (int i = 1; i < taxa; i++) {
+			newick = "(" + newick + ",t" + i + ":" + i + ".0):1.0";
+		}
+		TreeParser tree = new TreeParser();
+		tree.initByName("newick", newick + ";", "IsLabelledNewick", true, "adjustTipHeights", false);
+		return tree;
+	}
+
+	private void checkRates(Tree tree, UCRelaxedClockModel clock, ExpectedRate expected, String message) throws Exception {
+		int branchCount = tree.getNodeCount() - 1;
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isRoot()) {
+				int nr = node.getNr() == branchCount ? tree.getRoot().getNr() : node.getNr();
+				assertEquals(expected.get(nr), clock.getRateForBranch(node), 0.0, message);
+			}
+		}
+	}
+
+	/**
+	 * Runs random proposals on the rate distribution parameter and on elements of the
+	 * branch parameter, accepting or rejecting at random, and checks all rates after
+	 * each evaluation and after each accept or restore.
+	 */
+	private void runProposals(Tree tree, UCRelaxedClockModel clock, RealParameter distributionParameter,
+			StateNode branchParameter, ExpectedRate expected) throws Exception {
+		LogRateSum posterior = new LogRateSum();
+		posterior.initByName("clock", clock, "tree", tree);
+		State state = new State();
+		state.initByName("stateNode", distributionParameter, "stateNode", branchParameter);
+		state.initialise();
+		state.setPosterior(posterior);
+		state.robustlyCalcPosterior(posterior);
+		checkRates(tree, clock, expected, "initial");
+
+		int branchCount = tree.getNodeCount() - 1;
+		for (int step = 0; step < 500; step++) {
+			state.store(step);
+			int move = Randomizer.nextInt(10);
+			if (move < 2) {
+				distributionParameter.setValue(0.1 + Randomizer.nextDouble());
+			}
+			if (move >= 1) {
+				for (int k = 0; k < 1 + Randomizer.nextInt(3); k++) {
+					int i = Randomizer.nextInt(branchCount);
+					if (branchParameter instanceof RealParameter) {
+						((RealParameter) branchParameter).setValue(i, Randomizer.nextDouble());
+					} else {
+						IntegerParameter categories = (IntegerParameter) branchParameter;
+						categories.setValue(i, Randomizer.nextInt(categories.getUpper() + 1));
+					}
+				}
+			}
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			posterior.calculateLogP();
+			checkRates(tree, clock, expected, "step " + step);
+
+			if (Randomizer.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+			checkRates(tree, clock, expected, "step " + step + " after accept/restore");
+		}
+	}
+
+	private LogNormalDistributionModel logNormal(RealParameter s) {
+		LogNormalDistributionModel distr = new LogNormalDistributionModel();
+		distr.initByName("M", "1.0", "S", s, "meanInRealSpace", true);
+		return distr;
+	}
+
+	@Test
+	public void testQuantiles() throws Exception {
+		Randomizer.setSeed(127);
+		Tree tree = caterpillarTree(40);
+		RealParameter s = new RealParameter();
+		s.initByName("value", "0.5", "lower", 0.0, "upper", 5.0);
+		ParametricDistribution distr = logNormal(s);
+		RealParameter quantiles = new RealParameter();
+		quantiles.initByName("value", "0.5");
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("distr", distr, "rateQuantiles", quantiles, "tree", tree);
+
+		runProposals(tree, clock, s, quantiles, i -> distr.inverseCumulativeProbability(quantiles.getValue(i)));
+	}
+
+	/** log normal distribution that counts calls to inverseCumulativeProbability(double) **/
+	public static class CountingLogNormal extends LogNormalDistributionModel {
+		int calls = 0;
+
+		@Override
+		public double inverseCumulativeProbability(double p) throws MathException {
+			calls++;
+			return super.inverseCumulativeProbability(p);
+		}
+	}
+
+	@Test
+	public void testOnlyDirtyQuantilesUpdated() throws Exception {
+		Tree tree = caterpillarTree(40);
+		RealParameter s = new RealParameter();
+		s.initByName("value", "0.5", "lower", 0.0, "upper", 5.0);
+		CountingLogNormal distr = new CountingLogNormal();
+		distr.initByName("M", "1.0", "S", s, "meanInRealSpace", true);
+		RealParameter quantiles = new RealParameter();
+		quantiles.initByName("value", "0.5");
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("distr", distr, "rateQuantiles", quantiles, "tree", tree);
+
+		LogRateSum posterior = new LogRateSum();
+		posterior.initByName("clock", clock, "tree", tree);
+		State state = new State();
+		state.initByName("stateNode", s, "stateNode", quantiles);
+		state.initialise();
+		state.setPosterior(posterior);
+		state.robustlyCalcPosterior(posterior);
+
+		for (int step = 0; step < 4; step++) {
+			distr.calls = 0;
+			state.store(step);
+			quantiles.setValue(step, 0.25);
+			quantiles.setValue(step + 10, 0.75);
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			posterior.calculateLogP();
+			assertEquals(2, distr.calls, "step " + step);
+
+			distr.calls = 0;
+			if (step % 2 == 0) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+			posterior.calculateLogP();
+			// restoring rates does not require recalculation
+			assertEquals(0, distr.calls, "step " + step + " after accept/restore");
+		}
+	}
+
+	@Test
+	public void testGammaQuantiles() throws Exception {
+		Randomizer.setSeed(127);
+		Tree tree = caterpillarTree(40);
+		RealParameter alpha = new RealParameter();
+		alpha.initByName("value", "0.5", "lower", 0.0, "upper", 5.0);
+		Gamma distr = new Gamma();
+		distr.initByName("alpha", alpha, "mode", Gamma.mode.OneParameter);
+		RealParameter quantiles = new RealParameter();
+		quantiles.initByName("value", "0.5");
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("distr", distr, "rateQuantiles", quantiles, "tree", tree);
+
+		runProposals(tree, clock, alpha, quantiles, i -> distr.inverseCumulativeProbability(quantiles.getValue(i)));
+	}
+
+	@Test
+	public void testCategories() throws Exception {
+		Randomizer.setSeed(127);
+		Tree tree = caterpillarTree(40);
+		RealParameter s = new RealParameter();
+		s.initByName("value", "0.5", "lower", 0.0, "upper", 5.0);
+		ParametricDistribution distr = logNormal(s);
+		IntegerParameter categories = new IntegerParameter();
+		categories.initByName("value", "0");
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("distr", distr, "rateCategories", categories, "tree", tree);
+		int categoryCount = tree.getNodeCount() - 1;
+
+		runProposals(tree, clock, s, categories,
+				i -> distr.inverseCumulativeProbability((categories.getValue(i) + 0.5) / categoryCount));
+	}
+
+	@Test
+	public void testDiscretisedQuantiles() throws Exception {
+		Randomizer.setSeed(127);
+		Tree tree = caterpillarTree(40);
+		RealParameter s = new RealParameter();
+		s.initByName("value", "0.5", "lower", 0.0, "upper", 5.0);
+		ParametricDistribution distr = logNormal(s);
+		RealParameter quantiles = new RealParameter();
+		quantiles.initByName("value", "0.5");
+		UCRelaxedClockModel clock = new UCRelaxedClockModel();
+		clock.initByName("distr", distr, "rateQuantiles", quantiles, "tree", tree, "numberOfDiscreteRates", 10);
+
+		// piecewise linear between rates at lattice points, with the end points moved inwards
+		List<Double> lattice = new ArrayList<>();
+		runProposals(tree, clock, s, quantiles, i -> {
+			lattice.clear();
+			for (int k = 0; k < 10; k++) {
+				double p = k == 0 ? 0.1 / 9 : (k == 9 ? 8.9 / 9 : k / 9.0);
+				lattice.add(distr.inverseCumulativeProbability(p));
+			}
+			double v = quantiles.getValue(i) * 9;
+			int k = (int) v;
+			double r = lattice.get(k);
+			if (k < 9) {
+				r += (lattice.get(k + 1) - lattice.get(k)) * (v - k);
+			}
+			return r;
+		});
+	}
+}
@@ -0,0 +1,167 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.BlockedLikelihoodCore;
+import beast.base.evolution.likelihood.BlockedLikelihoodCore4;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.WAG;
+import beast.base.evolution.tree.Tree;
+import beast.base.util.Randomizer;
+import test.beast.BEASTTestCase;
+
+/**
+ * Runs all TreeLikelihoodTest tests with the BlockedLikelihoodCore,
+ * and compares pattern log likelihoods with those of the BeerLikelihoodCore.
+ */
+public class BlockedLikelihoodCoreTest extends TreeLikelihoodTest {
+
+	@Override
+	protected TreeLikelihood newTreeLikelihood() {
+		System.setProperty("java.only", "true");
+		return new TreeLikelihood() {
+			@Override
+			protected LikelihoodCore createLikelihoodCore(int stateCount) {
+				if (stateCount == 4) {
+					return new BlockedLikelihoodCore4();
+				}
+				return new BlockedLikelihoodCore(stateCount);
+			}
+		};
+	}
+
+	@Test
+	public void testPatternLogLikelihoodsNucleotide() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "29.739445", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+
+		for (boolean useAmbiguities : new boolean[] {false, true}) {
+			TreeLikelihood beer = super.newTreeLikelihood();
+			beer.initByName("data", data, "tree", tree, "siteModel", siteModel, "useAmbiguities", useAmbiguities);
+			TreeLikelihood blocked = newTreeLikelihood();
+			blocked.initByName("data", data, "tree", tree, "siteModel", siteModel, "useAmbiguities", useAmbiguities);
+
+			beer.calculateLogP();
+			blocked.calculateLogP();
+			assertArrayEquals(beer.getPatternLogLikelihoods(), blocked.getPatternLogLikelihoods(), 1e-12);
+			assertArrayEquals(beer.getRootPartials(), blocked.getRootPartials(), 1e-12);
+		}
+	}
+
+	@Test
+	public void testPatternLogLikelihoodsAminoAcid() throws Exception {
+		Alignment data = BEASTTestCase.getAminoAcidAlignment();
+		Tree tree = BEASTTestCase.getAminoAcidTree(data);
+
+		WAG wag = new WAG();
+		wag.initAndValidate();
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "proportionInvariant", "0.2", "substModel", wag);
+
+		TreeLikelihood beer = super.newTreeLikelihood();
+		beer.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		TreeLikelihood blocked = newTreeLikelihood();
+		blocked.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+		beer.calculateLogP();
+		blocked.calculateLogP();
+		assertArrayEquals(beer.getPatternLogLikelihoods(), blocked.getPatternLogLikelihoods(), 1e-12);
+	}
+
+	@Test
+	public void testScaling() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "29.739445", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+
+		TreeLikelihood beer = super.newTreeLikelihood();
+		beer.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		beer.getLikelihoodCore().setUseScaling(1.01);
+		TreeLikelihood blocked = newTreeLikelihood();
+		blocked.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		blocked.getLikelihoodCore().setUseScaling(1.01);
+
+		beer.calculateLogP();
+		blocked.calculateLogP();
+		assertArrayEquals(beer.getPatternLogLikelihoods(), blocked.getPatternLogLikelihoods(), 1e-12);
+	}
+
+	@Test
+	public void testMatrixMap() {
+		Randomizer.setSeed(127);
+		for (int stateCount : new int[] {4, 5}) {
+			// the number of patterns does not fill the last block
+			int patternCount = 21, matrixCount = 3;
+			int[] matrixMap = new int[patternCount];
+			int[][] states = new int[2][patternCount];
+			double[] tipPartials = new double[patternCount * stateCount];
+			for (int k = 0; k < patternCount; k++) {
+				matrixMap[k] = Randomizer.nextInt(matrixCount);
+				// include unknown states
+				states[0][k] = Randomizer.nextInt(stateCount + 1);
+				states[1][k] = Randomizer.nextInt(stateCount + 1);
+			}
+			for (int i = 0; i < tipPartials.length; i++) {
+				tipPartials[i] = Randomizer.nextDouble();
+			}
+
+			LikelihoodCore beer = new BeerLikelihoodCore(stateCount);
+			LikelihoodCore blocked = stateCount == 4 ? new BlockedLikelihoodCore4() : new BlockedLikelihoodCore(stateCount);
+			for (LikelihoodCore core : new LikelihoodCore[] {beer, blocked}) {
+				core.initialize(6, patternCount, matrixCount, false, false);
+				core.setNodeStates(0, states[0]);
+				core.setNodeStates(1, states[1]);
+				core.setNodePartials(2, tipPartials);
+				for (int node = 3; node < 6; node++) {
+					core.createNodePartials(node);
+				}
+				Randomizer.setSeed(128);
+				for (int node = 0; node < 5; node++) {
+					for (int l = 0; l < matrixCount; l++) {
+						double[] matrix = new double[stateCount * stateCount];
+						for (int i = 0; i < matrix.length; i++) {
+							matrix[i] = Randomizer.nextDouble();
+						}
+						core.setNodeMatrix(node, l, matrix);
+					}
+				}
+			}
+			// states-states, states-partials and partials-partials
+			((BeerLikelihoodCore) beer).calculatePartials(0, 1, 3, matrixMap);
+			((BeerLikelihoodCore) blocked).calculatePartials(0, 1, 3, matrixMap);
+			((BeerLikelihoodCore) beer).calculatePartials(0, 3, 4, matrixMap);
+			((BeerLikelihoodCore) blocked).calculatePartials(0, 3, 4, matrixMap);
+			((BeerLikelihoodCore) beer).calculatePartials(2, 4, 5, matrixMap);
+			((BeerLikelihoodCore) blocked).calculatePartials(2, 4, 5, matrixMap);
+
+			for (int node = 3; node < 6; node++) {
+				double[] expected = new double[patternCount * stateCount];
+				double[] actual = new double[patternCount * stateCount];
+				beer.getNodePartials(node, expected);
+				blocked.getNodePartials(node, actual);
+				assertArrayEquals(expected, actual, 0.0);
+			}
+		}
+	}
+}
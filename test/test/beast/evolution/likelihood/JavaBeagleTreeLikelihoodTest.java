@@ -0,0 +1,249 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import beagle.BeagleFlag;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.BeagleTreeLikelihood;
+import beast.base.evolution.likelihood.JavaBeagleImpl;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.util.ForkJoinScheduler;
+import beast.base.util.Randomizer;
+import test.beast.BEASTTestCase;
+
+/**
+ * Runs the TreeLikelihood tests through BeagleTreeLikelihood with the pure Java
+ * implementation of BEAGLE, and compares it with the Java likelihood cores
+ * for threaded pattern slices and rescaling.
+ */
+public class JavaBeagleTreeLikelihoodTest extends TreeLikelihoodTest {
+
+	@Override
+	protected TreeLikelihood newTreeLikelihood() {
+		System.setProperty("java.only", "false");
+		System.setProperty("beagle.java", "true");
+		return new TreeLikelihood();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		System.clearProperty("beagle.java");
+	}
+
+	/** random sequences, so there are about as many patterns as sites **/
+	private Alignment randomAlignment(int taxa, int sites, long seed) {
+		Random random = new Random(seed);
+		List<Sequence> sequences = new ArrayList<>();
+		for (int i = 0; i < taxa; i++) {
+			char[] seq = new char[sites];
+			for (int k = 0; k < sites; k++) {
+				seq[k] = "ACGTACGTACGTN-R".charAt(random.nextInt(15));
+			}
+			sequences.add(new Sequence("t" + i, new String(seq)));
+		}
+		return new Alignment(sequences, "nucleotide");
+	}
+
+	/** random ultrametric tree over the taxa of the alignment **/
+	private Tree randomTree(Alignment data, long seed) throws Exception {
+		Random random = new Random(seed);
+		List<String> newicks = new ArrayList<>(data.getTaxaNames());
+		List<Double> heights = new ArrayList<>();
+		for (int i = 0; i < newicks.size(); i++) {
+			heights.add(0.0);
+		}
+		double time = 0;
+		while (newicks.size() > 1) {
+			time += 0.01 + random.nextDouble() * 0.02;
+			int i = random.nextInt(newicks.size());
+			String a = newicks.remove(i);
+			double ha = heights.remove(i);
+			int j = random.nextInt(newicks.size());
+			String b = newicks.remove(j);
+			double hb = heights.remove(j);
+			newicks.add("(" + a + ":" + (time - ha) + "," + b + ":" + (time - hb) + ")");
+			heights.add(time);
+		}
+		return BEASTTestCase.getTree(data, newicks.get(0) + ";");
+	}
+
+	private SiteModel getSiteModel(Alignment data) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "3.0", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+		return siteModel;
+	}
+
+	private TreeLikelihood javaLikelihood(Alignment data, Tree tree, SiteModel siteModel) {
+		System.setProperty("java.only", "true");
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+
+	@Test
+	public void testUsesJavaBeagle() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		System.setProperty("beagle.java", "true");
+		BeagleTreeLikelihood likelihood = new BeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", getSiteModel(data));
+		assertTrue(likelihood.getBeagle() instanceof JavaBeagleImpl);
+	}
+
+	@Test
+	public void testJavaBeagleIsOptIn() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		System.setProperty("java.only", "false");
+		System.clearProperty("beagle.java");
+		BeagleTreeLikelihood likelihood = new BeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", getSiteModel(data));
+		// the native library if it can be loaded, the cores of TreeLikelihood otherwise
+		assertFalse(likelihood.getBeagle() instanceof JavaBeagleImpl);
+	}
+
+	/** set one of the orders BeagleTreeLikelihood reads once from system properties, or null to read them again **/
+	private void setOrder(String field, List<?> order) throws Exception {
+		Field f = BeagleTreeLikelihood.class.getDeclaredField(field);
+		f.setAccessible(true);
+		f.set(null, order);
+	}
+
+	@Test
+	public void testAutoScalingFallsBackToDynamic() throws Exception {
+		Alignment data = randomAlignment(800, 40, 127);
+		Tree tree = randomTree(data, 127);
+		SiteModel siteModel = getSiteModel(data);
+		double expected = javaLikelihood(data, tree, siteModel).calculateLogP();
+		try {
+			setOrder("scalingOrder", Arrays.asList("auto"));
+			System.setProperty("java.only", "false");
+			System.setProperty("beagle.java", "true");
+			BeagleTreeLikelihood likelihood = new BeagleTreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			assertTrue(likelihood.getBeagle() instanceof JavaBeagleImpl);
+			assertEquals(expected, likelihood.calculateLogP(), 1e-8 * Math.abs(expected));
+		} finally {
+			setOrder("scalingOrder", null);
+		}
+	}
+
+	@Test
+	public void testUnsupportedFlagsAvoidJavaBeagle() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		try {
+			setOrder("requiredOrder", Arrays.asList((int) BeagleFlag.PRECISION_SINGLE.getMask()));
+			System.setProperty("java.only", "false");
+			System.setProperty("beagle.java", "true");
+			BeagleTreeLikelihood likelihood = new BeagleTreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", getSiteModel(data));
+			assertFalse(likelihood.getBeagle() instanceof JavaBeagleImpl);
+		} finally {
+			setOrder("requiredOrder", null);
+		}
+	}
+
+	@Test
+	public void testThreadedPatternSlices() throws Exception {
+		int threads = ProgramStatus.m_nThreads;
+		ProgramStatus.m_nThreads = 3;
+		ForkJoinScheduler.shutdown();
+		try {
+			Alignment data = randomAlignment(16, 2000, 127);
+			Tree tree = randomTree(data, 127);
+			SiteModel siteModel = getSiteModel(data);
+			TreeLikelihood reference = javaLikelihood(data, tree, siteModel);
+			double expectedLogP = reference.calculateLogP();
+			double[] expected = reference.getPatternLogLikelihoods();
+
+			for (String scaling : new String[] {"none", "always"}) {
+				TreeLikelihood likelihood = newTreeLikelihood();
+				likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", scaling);
+				assertEquals(expectedLogP, likelihood.calculateLogP(), 1e-8 * Math.abs(expectedLogP));
+				double[] patternLogLikelihoods = likelihood.getPatternLogLikelihoods();
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(expected[i], patternLogLikelihoods[i], 1e-8);
+				}
+			}
+		} finally {
+			ProgramStatus.m_nThreads = threads;
+			ForkJoinScheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void testRescalingWithStoreRestore() throws Exception {
+		// large enough for the partials to underflow without rescaling
+		Randomizer.setSeed(127);
+		Alignment data = randomAlignment(800, 40, 127);
+		Tree tree = randomTree(data, 127);
+		SiteModel siteModel = getSiteModel(data);
+
+		TreeLikelihood reference = javaLikelihood(data, tree, siteModel);
+		TreeLikelihood likelihood = newTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+		CompoundDistribution posterior = new CompoundDistribution();
+		posterior.initByName("distribution", reference, "distribution", likelihood);
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		state.setPosterior(posterior);
+
+		double expected = reference.calculateLogP();
+		double min = Arrays.stream(reference.getPatternLogLikelihoods()).min().getAsDouble();
+		assertTrue(min < Math.log(Double.MIN_VALUE));
+		assertEquals(expected, likelihood.calculateLogP(), 1e-8 * Math.abs(expected));
+
+		Exchange exchange = new Exchange();
+		exchange.initByName("tree", tree, "weight", 1.0);
+		Uniform uniform = new Uniform();
+		uniform.initByName("tree", tree, "weight", 1.0);
+		ScaleOperator scale = new ScaleOperator();
+		scale.initByName("tree", tree, "scaleFactor", 0.9, "weight", 1.0);
+		Operator[] operators = {exchange, uniform, scale};
+
+		for (int i = 0; i < 60; i++) {
+			state.store(i);
+			operators[i % operators.length].proposal();
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			expected = reference.calculateLogP();
+			assertEquals(expected, likelihood.calculateLogP(), 1e-8 * Math.abs(expected), "proposal " + i);
+			if (Randomizer.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+		}
+	}
+}
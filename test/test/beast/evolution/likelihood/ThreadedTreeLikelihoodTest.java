@@ -0,0 +1,165 @@
+package test.beast.evolution.likelihood;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.ThreadedTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.ForkJoinScheduler;
+import test.beast.BEASTTestCase;
+
+public class ThreadedTreeLikelihoodTest {
+
+	private int threads;
+
+	@BeforeEach
+	public void setUp() {
+		System.setProperty("java.only", "true");
+		threads = ProgramStatus.m_nThreads;
+		ProgramStatus.m_nThreads = 3;
+		ForkJoinScheduler.shutdown();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		ProgramStatus.m_nThreads = threads;
+		ForkJoinScheduler.shutdown();
+	}
+
+	private SiteModel getSiteModel(Alignment data) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "29.739445", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+		return siteModel;
+	}
+
+	@Test
+	public void testThreadedLikelihood() throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		SiteModel siteModel = getSiteModel(data);
+
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		double expected = likelihood.calculateLogP();
+
+		ThreadedTreeLikelihood threaded = new ThreadedTreeLikelihood();
+		threaded.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		assertEquals(expected, threaded.calculateLogP(), BEASTTestCase.PRECISION);
+
+		// uneven slices
+		threaded = new ThreadedTreeLikelihood();
+		threaded.initByName("data", data, "tree", tree, "siteModel", siteModel, "proportions", "1 3");
+		assertEquals(expected, threaded.calculateLogP(), BEASTTestCase.PRECISION);
+	}
+
+	@Test
+	public void testNestedThreads() throws Exception {
+		// threaded likelihoods inside a threaded compound distribution share one pool
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+
+		CompoundDistribution compound = new CompoundDistribution();
+		double expected = 0;
+		for (int i = 0; i < 4; i++) {
+			SiteModel siteModel = getSiteModel(data);
+			TreeLikelihood likelihood = new TreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			expected += likelihood.calculateLogP();
+
+			ThreadedTreeLikelihood threaded = new ThreadedTreeLikelihood();
+			threaded.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			compound.setInputValue("distribution", threaded);
+		}
+		compound.setInputValue("useThreads", true);
+		compound.initAndValidate();
+
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		state.setPosterior(compound);
+
+		// robustlyCalcPosterior marks all distributions dirty, so they are calculated in threads
+		for (int i = 0; i < 2; i++) {
+			assertEquals(expected, state.robustlyCalcPosterior(compound), BEASTTestCase.PRECISION);
+		}
+	}
+
+	/** distribution that records how many distributions are calculated at the same time **/
+	public static class ConcurrencyCounter extends Distribution {
+		final public Input<RealParameter> xInput = new Input<>("x", "parameter the distribution depends on");
+		final AtomicInteger running;
+		final AtomicInteger maxRunning;
+
+		ConcurrencyCounter(AtomicInteger running, AtomicInteger maxRunning) {
+			this.running = running;
+			this.maxRunning = maxRunning;
+		}
+
+		@Override
+		public double calculateLogP() {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			logP = -1;
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {return null;}
+		@Override
+		public List<String> getConditions() {return null;}
+		@Override
+		public void sample(State state, Random random) {}
+	}
+
+	@Test
+	public void testThreadLimit() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		RealParameter x = new RealParameter("1.0");
+		CompoundDistribution compound = new CompoundDistribution();
+		for (int i = 0; i < 6; i++) {
+			ConcurrencyCounter counter = new ConcurrencyCounter(running, maxRunning);
+			counter.setInputValue("x", x);
+			compound.setInputValue("distribution", counter);
+		}
+		compound.setInputValue("useThreads", true);
+		compound.setInputValue("threads", 2);
+		compound.initAndValidate();
+
+		State state = new State();
+		state.initByName("stateNode", x);
+		state.initialise();
+		state.setPosterior(compound);
+
+		assertEquals(-6, state.robustlyCalcPosterior(compound), 0.0);
+		assertTrue(maxRunning.get() <= 2, "ran " + maxRunning.get() + " distributions at the same time");
+	}
+}
@@ -0,0 +1,212 @@
+package test.beast.evolution.operator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.operator.kernel.AdaptableVarianceMultivariateNormalOperator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.inference.operator.kernel.Transform;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.math.matrixalgebra.CholeskyDecomposition;
+import beast.base.math.matrixalgebra.IllegalDimension;
+import beast.base.util.Randomizer;
+
+public class AdaptableVarianceMultivariateNormalOperatorTest {
+
+	@Test
+	public void testCholeskyUpdate() throws IllegalDimension {
+		Randomizer.setSeed(123);
+		int n = 6;
+		double[][] A = new double[n][n];
+		double[][] B = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				B[i][j] = Randomizer.nextGaussian();
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				for (int k = 0; k < n; k++) {
+					A[i][j] += B[i][k] * B[j][k];
+				}
+			}
+			A[i][i] += 1.0;
+		}
+		double[] v = new double[n];
+		double[][] Av = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			v[i] = Randomizer.nextGaussian();
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				Av[i][j] = A[i][j] + v[i] * v[j];
+			}
+		}
+
+		double[][] L = new CholeskyDecomposition(A).getL();
+		assertTrue(CholeskyDecomposition.update(L, v.clone()));
+		assertMatrixEquals(new CholeskyDecomposition(Av).getL(), L, 1e-10);
+
+		assertTrue(CholeskyDecomposition.downdate(L, v.clone()));
+		assertMatrixEquals(new CholeskyDecomposition(A).getL(), L, 1e-10);
+
+		// removing more than there is leaves a matrix that is not positive definite
+		for (int i = 0; i < n; i++) {
+			v[i] *= 100;
+		}
+		assertFalse(CholeskyDecomposition.downdate(L, v));
+	}
+
+	private void assertMatrixEquals(double[][] expected, double[][] actual, double tolerance) {
+		for (int i = 0; i < expected.length; i++) {
+			for (int j = 0; j < expected.length; j++) {
+				assertEquals(expected[i][j], actual[i][j], tolerance, "[" + i + "][" + j + "]");
+			}
+		}
+	}
+
+	@Test
+	public void testEmpiricalCovariance() {
+		Randomizer.setSeed(127);
+		RealParameter p = new RealParameter();
+		p.initByName("value", "0.5 1.0 2.0");
+		AdaptableVarianceMultivariateNormalOperator operator = newOperator(p, "rankOneUpdate", true, "every", 1);
+		int burnin = 50;
+
+		// the operator counts the state at the end of the burn-in as a zero vector
+		List<double[]> samples = new ArrayList<>();
+		samples.add(new double[3]);
+		for (int iteration = 0; iteration < 500; iteration++) {
+			if (iteration > burnin + 1) {
+				samples.add(p.getDoubleValues());
+			}
+			operator.proposal();
+			operator.accept();
+		}
+
+		double[][] covariance = operator.getCovariance();
+		int n = samples.size();
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				double mi = 0, mj = 0;
+				for (double[] s : samples) {
+					mi += s[i] / n;
+					mj += s[j] / n;
+				}
+				double expected = 0;
+				for (double[] s : samples) {
+					expected += (s[i] - mi) * (s[j] - mj) / (n - 1);
+				}
+				assertEquals(expected, covariance[i][j], 1e-10 * Math.abs(expected) + 1e-12, "[" + i + "][" + j + "]");
+			}
+		}
+	}
+
+	@Test
+	public void testRankOneUpdateProposal() {
+		testProposalCovariance("rankOneUpdate", true);
+	}
+
+	@Test
+	public void testLowRankProposal() {
+		// with full rank, the approximation is exact
+		testProposalCovariance("rank", 5);
+	}
+
+	/**
+	 * run the operator so that the covariance matrix is adapted, then check
+	 * proposals from a fixed state have the expected covariance
+	 */
+	private void testProposalCovariance(Object... mode) {
+		Randomizer.setSeed(127);
+		RealParameter p1 = new RealParameter();
+		p1.initByName("value", "0.5 1.0 2.0");
+		RealParameter p2 = new RealParameter();
+		p2.initByName("value", "-1.0 3.0");
+		// the covariance matrix is only updated at even iterations
+		AdaptableVarianceMultivariateNormalOperator operator = newOperator(p1, p2, mode[0], mode[1], "every", 2);
+		for (int iteration = 0; iteration < 2001; iteration++) {
+			operator.proposal();
+			operator.accept();
+		}
+
+		int dim = 5;
+		double[] start = new double[dim];
+		System.arraycopy(p1.getDoubleValues(), 0, start, 0, 3);
+		System.arraycopy(p2.getDoubleValues(), 0, start, 3, 2);
+		double[][] sum = new double[dim][dim];
+		int n = 200000;
+		double[] jump = new double[dim];
+		for (int k = 0; k < n; k++) {
+			operator.proposal();
+			for (int i = 0; i < dim; i++) {
+				jump[i] = (i < 3 ? p1.getValue(i) : p2.getValue(i - 3)) - start[i];
+			}
+			for (int i = 0; i < dim; i++) {
+				for (int j = 0; j < dim; j++) {
+					sum[i][j] += jump[i] * jump[j] / n;
+				}
+			}
+			for (int i = 0; i < 3; i++) {
+				p1.setValue(i, start[i]);
+			}
+			for (int i = 0; i < 2; i++) {
+				p2.setValue(i, start[3 + i]);
+			}
+		}
+
+		// Bactrian kernel has unit variance
+		double scale = 0.5 * 0.5;
+		double beta = 0.1;
+		double[][] empirical = operator.getCovariance();
+		double[][] expected = new double[dim][dim];
+		for (int i = 0; i < dim; i++) {
+			for (int j = 0; j < dim; j++) {
+				expected[i][j] = scale * ((1 - beta) * empirical[i][j] + (i == j ? beta / dim : 0.0));
+			}
+		}
+		for (int i = 0; i < dim; i++) {
+			for (int j = 0; j < dim; j++) {
+				assertEquals(expected[i][j], sum[i][j], 0.03 * Math.sqrt(expected[i][i] * expected[j][j]), "[" + i + "][" + j + "]");
+			}
+		}
+	}
+
+	private AdaptableVarianceMultivariateNormalOperator newOperator(Object... args) {
+		List<RealParameter> parameters = new ArrayList<>();
+		List<Object> inputs = new ArrayList<>();
+		for (Object arg : args) {
+			if (arg instanceof RealParameter) {
+				parameters.add((RealParameter) arg);
+			} else {
+				inputs.add(arg);
+			}
+		}
+		Transform.NoTransform transform = new Transform.NoTransform();
+		transform.initByName("f", parameters);
+		AdaptableVarianceMultivariateNormalOperator operator = new AdaptableVarianceMultivariateNormalOperator();
+		inputs.add("transformations");
+		inputs.add(transform);
+		inputs.add("scaleFactor");
+		inputs.add(0.5);
+		inputs.add("beta");
+		inputs.add(0.1);
+		inputs.add("burnin");
+		inputs.add(50);
+		inputs.add("initial");
+		inputs.add(100);
+		inputs.add("optimise");
+		inputs.add(false);
+		inputs.add("weight");
+		inputs.add(1.0);
+		operator.initByName(inputs.toArray());
+		operator.setOperatorSchedule(new OperatorSchedule());
+		return operator;
+	}
+}
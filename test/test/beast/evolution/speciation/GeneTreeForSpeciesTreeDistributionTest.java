@@ -0,0 +1,180 @@
+package test.beast.evolution.speciation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import beast.base.evolution.speciation.SpeciesTreePopFunction;
+import beast.base.evolution.speciation.TreeTopFinder;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+public class GeneTreeForSpeciesTreeDistributionTest {
+
+	static final String SPECIES_TREE = "((A:1.0,B:1.0):0.5,(C:0.7,D:0.7):0.8);";
+	static final String[] GENE_TREES = {
+			"(((a1:0.3,a2:0.3):1.0,(b1:0.5,b2:0.5):0.8):0.6,((c1:0.2,c2:0.2):0.9,(d1:0.4,d2:0.4):0.7):0.8);",
+			"((((a1:0.1,a2:0.1):1.1,b1:1.2):0.5,b2:1.7):0.4,(((c1:0.9,d1:0.9):0.4,c2:1.3):0.3,d2:1.6):0.5);"
+	};
+
+	Tree speciesTree;
+	List<Tree> geneTrees;
+	TaxonSet taxonSuperset;
+	RealParameter popSizesBottom;
+	RealParameter popSizesTop;
+	SpeciesTreePopFunction popFunction;
+	TreeTopFinder treeTopFinder;
+
+	private Tree parse(String newick) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("newick", newick, "IsLabelledNewick", true);
+		return tree;
+	}
+
+	private void setUp(String function) {
+		speciesTree = parse(SPECIES_TREE);
+		geneTrees = new ArrayList<>();
+		for (String newick : GENE_TREES) {
+			geneTrees.add(parse(newick));
+		}
+		List<Taxon> species = new ArrayList<>();
+		for (String name : new String[] {"A", "B", "C", "D"}) {
+			String lower = name.toLowerCase();
+			TaxonSet set = new TaxonSet();
+			set.initByName("taxon", new Taxon(lower + "1"), "taxon", new Taxon(lower + "2"));
+			set.setID(name);
+			species.add(set);
+		}
+		taxonSuperset = new TaxonSet(species);
+
+		popSizesBottom = new RealParameter();
+		popSizesBottom.initByName("value", "0.5 0.8 1.1 0.6 0.9 1.3 0.7", "lower", 0.0);
+		popSizesTop = new RealParameter();
+		popSizesTop.initByName("value", "0.4 0.9 1.2 0.5 1.0 1.1 0.6", "lower", 0.0);
+		popFunction = new SpeciesTreePopFunction();
+		popFunction.initByName("tree", speciesTree, "popFunction", function, "taxonset", taxonSuperset,
+				"bottomPopSize", popSizesBottom, "topPopSize", popSizesTop);
+		treeTopFinder = new TreeTopFinder();
+		treeTopFinder.initByName("tree", geneTrees.get(0), "tree", geneTrees.get(1));
+	}
+
+	private GeneTreeForSpeciesTreeDistribution newDistribution(Tree geneTree) {
+		GeneTreeForSpeciesTreeDistribution distr = new GeneTreeForSpeciesTreeDistribution();
+		distr.initByName("tree", geneTree, "speciesTree", speciesTree, "speciesTreePrior", popFunction,
+				"treetop", treeTopFinder);
+		return distr;
+	}
+
+	private void checkAgainstFreshDistributions(List<GeneTreeForSpeciesTreeDistribution> distrs, String message) {
+		for (int i = 0; i < distrs.size(); i++) {
+			// a new distribution is not part of the state, so it calculates everything from scratch
+			double expected = newDistribution(geneTrees.get(i)).calculateLogP();
+			assertEquals(expected, distrs.get(i).getCurrentLogP(), 0.0, message + " gene tree " + i);
+		}
+	}
+
+	@Test
+	public void testLogP() {
+		// values calculated with the PriorityQueue based implementation
+		double[][] expected = {
+				{-4.96352242342426, -7.563312844907212},
+				{-5.425143211652495, -8.872919578860461},
+				{-6.0376830388306315, -10.398514674726405}
+		};
+		String[] functions = {"constant", "linear", "linear_with_constant_root"};
+		for (int f = 0; f < functions.length; f++) {
+			setUp(functions[f]);
+			for (int i = 0; i < geneTrees.size(); i++) {
+				assertEquals(expected[f][i], newDistribution(geneTrees.get(i)).calculateLogP(), 1e-12, functions[f] + " " + i);
+			}
+		}
+	}
+
+	@Test
+	public void testIncrementalConstant() {
+		runProposals("constant");
+	}
+
+	@Test
+	public void testIncrementalLinear() {
+		runProposals("linear");
+	}
+
+	@Test
+	public void testIncrementalLinearWithConstantRoot() {
+		runProposals("linear_with_constant_root");
+	}
+
+	/**
+	 * Runs random proposals on the species tree, gene trees and population sizes,
+	 * accepting or rejecting at random (but always rejecting proposals where a gene
+	 * tree does not fit the species tree), and compares with a calculation from scratch.
+	 */
+	private void runProposals(String function) {
+		Randomizer.setSeed(127);
+		setUp(function);
+		List<GeneTreeForSpeciesTreeDistribution> distrs = new ArrayList<>();
+		CompoundDistribution posterior = new CompoundDistribution();
+		for (Tree geneTree : geneTrees) {
+			GeneTreeForSpeciesTreeDistribution distr = newDistribution(geneTree);
+			distrs.add(distr);
+			posterior.pDistributions.get().add(distr);
+		}
+		posterior.initAndValidate();
+
+		State state = new State();
+		state.initByName("stateNode", speciesTree, "stateNode", geneTrees.get(0), "stateNode", geneTrees.get(1),
+				"stateNode", popSizesBottom, "stateNode", popSizesTop);
+		state.initialise();
+		state.setPosterior(posterior);
+		state.robustlyCalcPosterior(posterior);
+		checkAgainstFreshDistributions(distrs, "initial");
+
+		List<Operator> treeOperators = new ArrayList<>();
+		for (Tree tree : new Tree[] {speciesTree, geneTrees.get(0), geneTrees.get(1)}) {
+			Uniform uniform = new Uniform();
+			uniform.initByName("tree", tree, "weight", 1.0);
+			treeOperators.add(uniform);
+		}
+
+		for (int step = 0; step < 1000; step++) {
+			state.store(step);
+			int move = Randomizer.nextInt(6);
+			if (move < 3) {
+				treeOperators.get(move).proposal();
+			} else {
+				RealParameter popSizes = move == 3 ? popSizesBottom : popSizesTop;
+				int i = Randomizer.nextInt(popSizes.getDimension());
+				popSizes.setValue(i, popSizes.getValue(i) * Math.exp(Randomizer.nextGaussian() * 0.3));
+			}
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			// the compound distribution stops at the first gene tree that does not fit the species tree
+			boolean fits = posterior.calculateLogP() > Double.NEGATIVE_INFINITY;
+			if (fits) {
+				checkAgainstFreshDistributions(distrs, "step " + step);
+			}
+
+			if (fits && Randomizer.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+			checkAgainstFreshDistributions(distrs, "step " + step + " after accept/restore");
+		}
+	}
+}
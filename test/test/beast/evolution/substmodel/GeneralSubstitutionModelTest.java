@@ -10,7 +10,12 @@ import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.parameter.RealParameter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.DoubleStream;
 
 
@@ -75,4 +80,41 @@ public class GeneralSubstitutionModelTest {
                 0.2292779795321076, 0.415400931299253, 0.35532108916863914,
                 0.10323486989557647, 0.3553210891686388, 0.5414440409357847}, prob, 0.0);
     }
+
+    /**
+     * threads sharing the model get the same matrices as a single thread,
+     * also when the model is updated between calculations
+     */
+    @Test
+    public void getTransitionProbabilitiesConcurrently() throws Exception {
+        int len = geneSubstModel.getStateCount();
+        RealParameter rates = (RealParameter) geneSubstModel.ratesInput.get();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int update = 0; update < 5; update++) {
+                rates.setValue(0, 0.1 + update * 0.05);
+                geneSubstModel.doUpdate();
+                double[] expected = new double[len * len];
+                List<Future<double[]>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    results.add(executor.submit(() -> {
+                        double[] prob = new double[len * len];
+                        for (int k = 0; k < 1000; k++) {
+                            geneSubstModel.getTransitionProbabilities(null, 0.5, 0.0, 1.0, prob, true);
+                        }
+                        return prob;
+                    }));
+                }
+                for (Future<double[]> result : results) {
+                    double[] prob = result.get();
+                    if (expected[0] == 0) {
+                        geneSubstModel.getTransitionProbabilities(null, 0.5, 0.0, 1.0, expected, true);
+                    }
+                    assertArrayEquals(expected, prob, 0.0);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
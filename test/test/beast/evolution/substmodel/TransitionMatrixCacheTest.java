@@ -0,0 +1,229 @@
+package test.beast.evolution.substmodel;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.GTR;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.substitutionmodel.TransitionMatrixCache;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import test.beast.BEASTTestCase;
+
+public class TransitionMatrixCacheTest {
+
+    @Test
+    public void testLookup() {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.2 0.3 0.25 0.25", "estimate", false);
+        GTR gtr = new GTR();
+        gtr.initByName("rateAC", "1.2", "rateAG", "3.0", "rateAT", "0.8", "rateCG", "1.1", "rateGT", "0.9", "frequencies", freqs);
+
+        TransitionMatrixCache cache = gtr.getTransitionMatrixCache();
+        double[] expected = new double[16];
+        double[] matrix = new double[16];
+        gtr.getTransitionProbabilities(null, 0.3, 0.1, 1.5, expected);
+
+        cache.getTransitionProbabilities(null, 0.3, 0.1, 1.5, matrix);
+        assertArrayEquals(expected, matrix, 0.0);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        matrix = new double[16];
+        cache.getTransitionProbabilities(null, 0.3, 0.1, 1.5, matrix);
+        assertArrayEquals(expected, matrix, 0.0);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+
+        // different rate is a different matrix
+        cache.getTransitionProbabilities(null, 0.3, 0.1, 1.0, matrix);
+        assertEquals(2, cache.getMissCount());
+
+        // models that do not declare support have no cache
+        assertNull(new JukesCantor().getTransitionMatrixCache());
+
+        // nor do classes derived from a model that does, since they may change
+        // the matrices without starting a new version
+        GTR derived = new GTR() {
+            @Override
+            protected boolean requiresRecalculation() {
+                updateMatrix = true;
+                return true;
+            }
+        };
+        derived.initByName("rateAC", "1.2", "frequencies", freqs);
+        assertNull(derived.getTransitionMatrixCache());
+        assertNull(new HKY() {}.getTransitionMatrixCache());
+    }
+
+    @Test
+    public void testMissDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("frequencies", "0.2 0.3 0.25 0.25", "estimate", false);
+        GTR gtr = new GTR();
+        gtr.initByName("rateAC", "1.2", "rateAG", "3.0", "rateAT", "0.8", "rateCG", "1.1", "rateGT", "0.9", "frequencies", freqs);
+        TransitionMatrixCache cache = gtr.getTransitionMatrixCache();
+        double[] matrix = new double[16];
+        for (int i = 0; i < 1000; i++) {
+            cache.getTransitionProbabilities(null, 1.0 + i * 1e-3, 0.0, 1.0, matrix);
+        }
+
+        // branch lengths are continuous, so nearly all requests miss
+        final int requests = 100000;
+        long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < requests; i++) {
+            cache.getTransitionProbabilities(null, 2.0 + i * 1e-3, 0.0, 1.0, matrix);
+        }
+        allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        assertEquals(requests + 1000, cache.getMissCount());
+        // a copy of each matrix alone would take 16 * 8 bytes per miss
+        assertTrue(allocated < requests * 8L, "allocated " + allocated + " bytes for " + requests + " misses");
+    }
+
+    @Test
+    public void testSharedBetweenLikelihoods() throws Exception {
+        Alignment data = BEASTTestCase.getAlignment();
+        Tree tree = BEASTTestCase.getTree(data);
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("data", data);
+        HKY hky = new HKY();
+        hky.initByName("kappa", "38.82974", "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("gammaCategoryCount", 4, "shape", "0.137064", "substModel", hky);
+
+        TreeLikelihood likelihood1 = new TreeLikelihood();
+        likelihood1.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        TreeLikelihood likelihood2 = new TreeLikelihood();
+        likelihood2.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+        double logP1 = likelihood1.calculateLogP();
+        TransitionMatrixCache cache = hky.getTransitionMatrixCache();
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        final int requests = (tree.getNodeCount() - 1) * 4;
+        assertEquals(requests, misses + hits);
+
+        // second likelihood takes matrices from the cache, apart from
+        // the odd one that was replaced by another in the same slot
+        double logP2 = likelihood2.calculateLogP();
+        assertEquals(logP1, logP2, 0.0);
+        assertEquals(2 * requests, cache.getMissCount() + cache.getHitCount());
+        assertTrue(cache.getHitCount() - hits > requests / 2);
+        assertEquals(-1789.7593576610134, logP1, BEASTTestCase.PRECISION);
+    }
+
+    @Test
+    public void testStoreRestore() throws Exception {
+        Alignment data = BEASTTestCase.getAlignment();
+        Tree tree = BEASTTestCase.getTree(data);
+
+        RealParameter kappa = new RealParameter("2.0");
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("data", data);
+        HKY hky = new HKY();
+        hky.initByName("kappa", kappa, "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", hky);
+        TreeLikelihood likelihood = new TreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", likelihood);
+
+        State state = new State();
+        state.initByName("stateNode", kappa);
+        state.initialise();
+        state.setPosterior(posterior);
+        state.robustlyCalcPosterior(posterior);
+
+        TransitionMatrixCache cache = hky.getTransitionMatrixCache();
+        double[] before = new double[16];
+        cache.getTransitionProbabilities(null, 0.2, 0.0, 1.0, before);
+        long version = hky.getVersion();
+
+        // propose new kappa: the cache must not return the old matrix
+        state.store(1);
+        kappa.setValue(5.0);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        posterior.calculateLogP();
+        assertNotEquals(version, hky.getVersion());
+        double[] after = new double[16];
+        cache.getTransitionProbabilities(null, 0.2, 0.0, 1.0, after);
+        double[] expected = new double[16];
+        hky.getTransitionProbabilities(null, 0.2, 0.0, 1.0, expected);
+        assertArrayEquals(expected, after, 0.0);
+        assertNotEquals(before[0], after[0]);
+
+        // reject: the old matrices are valid again
+        state.restore();
+        state.restoreCalculationNodes();
+        assertEquals(version, hky.getVersion());
+        long hits = cache.getHitCount();
+        double[] restored = new double[16];
+        cache.getTransitionProbabilities(null, 0.2, 0.0, 1.0, restored);
+        assertArrayEquals(before, restored, 0.0);
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void testChangeOutsideStoreRestore() throws Exception {
+        Alignment data = BEASTTestCase.getAlignment();
+        Tree tree = BEASTTestCase.getTree(data);
+
+        RealParameter kappa = new RealParameter("2.0");
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("data", data);
+        HKY hky = new HKY();
+        hky.initByName("kappa", kappa, "frequencies", freqs);
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", hky);
+        TreeLikelihood likelihood = new TreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", likelihood);
+
+        State state = new State();
+        state.initByName("stateNode", kappa);
+        state.initialise();
+        state.setPosterior(posterior);
+        state.robustlyCalcPosterior(posterior);
+
+        // robustlyCalcPosterior recalculates without storing calculation nodes first,
+        // so the version must change when the model finds it needs recalculating
+        kappa.setValue(5.0);
+        double logP = state.robustlyCalcPosterior(posterior);
+        double[] matrix = new double[16];
+        hky.getTransitionMatrixCache().getTransitionProbabilities(null, 0.2, 0.0, 1.0, matrix);
+        double[] expected = new double[16];
+        hky.getTransitionProbabilities(null, 0.2, 0.0, 1.0, expected);
+        assertArrayEquals(expected, matrix, 0.0);
+
+        HKY hky5 = new HKY();
+        hky5.initByName("kappa", "5.0", "frequencies", freqs);
+        SiteModel siteModel5 = new SiteModel();
+        siteModel5.initByName("substModel", hky5);
+        TreeLikelihood fresh = new TreeLikelihood();
+        fresh.initByName("data", data, "tree", tree, "siteModel", siteModel5);
+        assertEquals(fresh.calculateLogP(), logP, 1e-10);
+    }
+}
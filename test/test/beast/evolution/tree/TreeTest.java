@@ -2,9 +2,20 @@ package test.beast.evolution.tree;
 
 import org.junit.jupiter.api.Test;
 
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.operator.SubtreeSlide;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.operator.WilsonBalding;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class TreeTest  {
 	final static double EPSILON = 1e-10;
@@ -41,4 +52,165 @@ public class TreeTest  {
         assertEquals(4.0, node[6].getHeight(), EPSILON);
 		
 	}
+
+	@Test
+	public void testStoreRestore() {
+		Randomizer.setSeed(127);
+		TreeParser tree = new TreeParser(randomNewick(32), false, false, true, 0);
+
+		Exchange narrow = new Exchange();
+		narrow.initByName("tree", tree, "weight", 1.0);
+		Exchange wide = new Exchange();
+		wide.initByName("tree", tree, "isNarrow", false, "weight", 1.0);
+		WilsonBalding wilsonBalding = new WilsonBalding();
+		wilsonBalding.initByName("tree", tree, "weight", 1.0);
+		SubtreeSlide subtreeSlide = new SubtreeSlide();
+		subtreeSlide.initByName("tree", tree, "weight", 1.0);
+		Uniform uniform = new Uniform();
+		uniform.initByName("tree", tree, "weight", 1.0);
+		ScaleOperator scale = new ScaleOperator();
+		scale.initByName("tree", tree, "scaleFactor", 0.9, "weight", 1.0);
+		Operator [] operators = {narrow, wide, wilsonBalding, subtreeSlide, uniform, scale};
+
+		Tree expected = new Tree(tree.getRoot().copy());
+		for (int i = 0; i < 3000; i++) {
+			Operator operator = operators[i % operators.length];
+			operator.proposal();
+			if (!tree.somethingIsDirty()) {
+				continue;
+			}
+			if (Randomizer.nextBoolean()) {
+				// accept
+				tree.setEverythingDirty(false);
+				expected = new Tree(tree.getRoot().copy());
+			} else {
+				tree.restore();
+			}
+			assertSameTree(expected, tree);
+		}
+	}
+
+	@Test
+	public void testRestoreAfterRenumbering() {
+		Randomizer.setSeed(127);
+		TreeParser tree = new TreeParser(randomNewick(8), false, false, true, 0);
+		Tree expected = new Tree(tree.getRoot().copy());
+
+		tree.startEditing(null);
+		Node node = tree.getNode(tree.getLeafNodeCount());
+		node.setHeight(node.getHeight() * 0.99);
+		// swap the numbers of two leaves, after which nodes cannot be restored by number
+		Node leaf0 = tree.getNode(0);
+		Node leaf1 = tree.getNode(1);
+		leaf0.setNr(1);
+		leaf1.setNr(0);
+		tree.restore();
+		assertSameTree(expected, tree);
+		assertFalse(tree.somethingIsDirty());
+	}
+
+	/** node type that changes its height without the setter, which partial store cannot track **/
+	public static class DirectNode extends Node {
+		public void setHeightDirectly(double height) {
+			this.height = height;
+		}
+	}
+
+	public static class UntrackedNode extends DirectNode {
+		@Override
+		protected boolean canStorePartially() {
+			return false;
+		}
+	}
+
+	private TreeParser directNodeTree(Class<?> nodeType, boolean storePartially) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("newick", randomNewick(8), "IsLabelledNewick", true, "adjustTipHeights", false,
+				"nodetype", nodeType.getName(), "storePartially", storePartially);
+		return tree;
+	}
+
+	@Test
+	public void testRestoreUntrackedChanges() {
+		Randomizer.setSeed(127);
+		// the node type opts out of partial store
+		TreeParser tree = directNodeTree(UntrackedNode.class, true);
+		Tree expected = new Tree(tree.getRoot().copy());
+		tree.startEditing(null);
+		((DirectNode) tree.getNode(tree.getLeafNodeCount())).setHeightDirectly(100.0);
+		tree.restore();
+		assertSameTree(expected, tree);
+
+		// the tree opts out of partial store
+		tree = directNodeTree(DirectNode.class, false);
+		expected = new Tree(tree.getRoot().copy());
+		tree.startEditing(null);
+		((DirectNode) tree.getNode(tree.getLeafNodeCount())).setHeightDirectly(100.0);
+		tree.restore();
+		assertSameTree(expected, tree);
+	}
+
+	@Test
+	public void testCheckRestoreInDebugMode() {
+		Randomizer.setSeed(127);
+		String debug = System.getProperty("beast.debug");
+		System.setProperty("beast.debug", "true");
+		try {
+			TreeParser tree = directNodeTree(DirectNode.class, true);
+			tree.startEditing(null);
+			((DirectNode) tree.getNode(tree.getLeafNodeCount())).setHeightDirectly(100.0);
+			assertThrows(RuntimeException.class, () -> tree.restore());
+		} finally {
+			if (debug == null) {
+				System.clearProperty("beast.debug");
+			} else {
+				System.setProperty("beast.debug", debug);
+			}
+		}
+	}
+
+	/** random binary tree with distinct node heights and leaves at height zero **/
+	private String randomNewick(int taxa) {
+		StringBuilder b = new StringBuilder();
+		randomNewick(b, 0, taxa);
+		return b.toString() + ":0.0;";
+	}
+
+	private double randomNewick(StringBuilder b, int from, int to) {
+		if (to - from == 1) {
+			b.append("t").append(from);
+			return 0.0;
+		}
+		int split = from + 1 + Randomizer.nextInt(to - from - 1);
+		StringBuilder left = new StringBuilder();
+		StringBuilder right = new StringBuilder();
+		double leftHeight = randomNewick(left, from, split);
+		double rightHeight = randomNewick(right, split, to);
+		double height = Math.max(leftHeight, rightHeight) + 0.1 + Randomizer.nextDouble();
+		b.append("(").append(left).append(":").append(height - leftHeight)
+			.append(",").append(right).append(":").append(height - rightHeight).append(")");
+		return height;
+	}
+
+	private void assertSameTree(Tree expected, Tree tree) {
+		assertEquals(expected.getNodeCount(), tree.getNodeCount());
+		assertEquals(expected.getLeafNodeCount(), tree.getLeafNodeCount());
+		assertEquals(expected.getRoot().getNr(), tree.getRoot().getNr());
+		assertSame(tree.getRoot(), tree.getNode(tree.getRoot().getNr()));
+		for (int i = 0; i < expected.getNodeCount(); i++) {
+			Node e = expected.getNode(i);
+			Node n = tree.getNode(i);
+			assertEquals(i, n.getNr());
+			assertEquals(e.getHeight(), n.getHeight(), 0.0);
+			if (e.isRoot()) {
+				assertEquals(null, n.getParent());
+			} else {
+				assertSame(tree.getNode(e.getParent().getNr()), n.getParent());
+			}
+			assertEquals(e.getChildCount(), n.getChildCount());
+			for (int k = 0; k < e.getChildCount(); k++) {
+				assertSame(tree.getNode(e.getChild(k).getNr()), n.getChild(k));
+			}
+		}
+	}
 }
@@ -0,0 +1,144 @@
+package test.beast.evolution.tree.coalescent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeIntervals;
+import beast.base.evolution.tree.coalescent.BayesianSkyline;
+import beast.base.evolution.tree.coalescent.Coalescent;
+import beast.base.evolution.tree.coalescent.ConstantPopulation;
+import beast.base.evolution.tree.coalescent.ExponentialGrowth;
+import beast.base.evolution.tree.coalescent.PopulationFunction;
+import beast.base.inference.parameter.RealParameter;
+
+public class IncrementalIntervalsTest {
+
+	/** random serially sampled tree, with many tips at time zero **/
+	private Tree randomTree(Random random, int tipCount) {
+		List<String> newicks = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		double[] tipHeights = new double[tipCount];
+		for (int i = 0; i < tipCount; i++) {
+			tipHeights[i] = random.nextDouble() < 0.6 ? 0.0 : 2.0 * random.nextDouble();
+		}
+		Arrays.sort(tipHeights);
+		int tip = 0;
+		double time = 0;
+		while (tip < tipCount || newicks.size() > 1) {
+			while (tip < tipCount && tipHeights[tip] <= time) {
+				newicks.add("t" + tip);
+				heights.add(tipHeights[tip]);
+				tip++;
+			}
+			if (newicks.size() > 1) {
+				int i = random.nextInt(newicks.size());
+				String a = newicks.remove(i);
+				double ha = heights.remove(i);
+				int j = random.nextInt(newicks.size());
+				String b = newicks.remove(j);
+				double hb = heights.remove(j);
+				newicks.add("(" + a + ":" + (time - ha) + "," + b + ":" + (time - hb) + ")");
+				heights.add(time);
+			}
+			time += 0.2 * random.nextDouble() / Math.max(1, newicks.size());
+		}
+		return new Tree(newicks.get(0) + ";");
+	}
+
+	/** move a random internal node between its children and its parent **/
+	private void moveNode(Random random, Tree tree, double tieProbability) {
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		double upper = node.isRoot() ? node.getHeight() + 1.0 : node.getParent().getHeight();
+		if (random.nextDouble() < tieProbability) {
+			// zero length branch, so the node has the same height as a child
+			node.setHeight(lower);
+		} else {
+			node.setHeight(lower + random.nextDouble() * (upper - lower));
+		}
+	}
+
+	private void testCoalescent(PopulationFunction popFunction, RealParameter popSize) {
+		Random random = new Random(123);
+		Tree tree = randomTree(random, 200);
+		TreeIntervals intervals = new TreeIntervals();
+		intervals.initByName("tree", tree);
+		Coalescent coalescent = new Coalescent();
+		coalescent.initByName("treeIntervals", intervals, "populationModel", popFunction);
+
+		for (int step = 0; step < 1000; step++) {
+			int moves = step % 100 == 0 ? 50 : 1 + random.nextInt(3);
+			for (int i = 0; i < moves; i++) {
+				moveNode(random, tree, 0.1);
+			}
+			if (step % 10 == 0) {
+				popSize.setValue(popSize.getValue() * (0.5 + random.nextDouble()));
+			}
+			double expected = coalescent.calculateLogLikelihood(new TreeIntervals(tree), popFunction);
+			double logP = coalescent.calculateLogP();
+			assertEquals(expected, logP, 1e-10 * Math.abs(expected), "step " + step);
+		}
+	}
+
+	@Test
+	public void testConstantPopulation() {
+		RealParameter popSize = new RealParameter();
+		popSize.initByName("value", "1.0", "lower", 0.0);
+		ConstantPopulation popFunction = new ConstantPopulation();
+		popFunction.initByName("popSize", popSize);
+		testCoalescent(popFunction, popSize);
+	}
+
+	@Test
+	public void testExponentialGrowth() {
+		RealParameter popSize = new RealParameter();
+		popSize.initByName("value", "1.0", "lower", 0.0);
+		ExponentialGrowth popFunction = new ExponentialGrowth();
+		popFunction.initByName("popSize", popSize, "growthRate", "0.5");
+		testCoalescent(popFunction, popSize);
+	}
+
+	@Test
+	public void testBayesianSkyline() {
+		Random random = new Random(127);
+		Tree tree = randomTree(random, 200);
+
+		RealParameter popSizes = new RealParameter();
+		popSizes.initByName("value", "1.0 2.0 0.5 3.0 1.5");
+		BayesianSkyline skyline = new BayesianSkyline();
+		TreeIntervals intervals = new TreeIntervals();
+		intervals.initByName("tree", tree);
+		skyline.initByName("popSizes", popSizes, "groupSizes", "0 0 0 0 0", "treeIntervals", intervals);
+
+		// a subclass of TreeIntervals is used as it is, without incremental updates
+		BayesianSkyline expectedSkyline = new BayesianSkyline();
+		TreeIntervals plainIntervals = new TreeIntervals() {};
+		plainIntervals.initByName("tree", tree);
+		expectedSkyline.initByName("popSizes", popSizes, "groupSizes", "0 0 0 0 0", "treeIntervals", plainIntervals);
+
+		for (int step = 0; step < 1000; step++) {
+			int moves = step % 100 == 0 ? 50 : 1 + random.nextInt(3);
+			for (int i = 0; i < moves; i++) {
+				// no ties, since the old calculation assigns tied coalescent events to groups arbitrarily
+				moveNode(random, tree, 0.0);
+			}
+			if (step % 10 == 0) {
+				int i = random.nextInt(popSizes.getDimension());
+				popSizes.setValue(i, popSizes.getValue(i) * (0.5 + random.nextDouble()));
+			}
+			plainIntervals.setIntervalsUnknown();
+			expectedSkyline.prepare();
+			double expected = expectedSkyline.calculateLogP();
+			double logP = skyline.calculateLogP();
+			assertEquals(expected, logP, 1e-10 * Math.abs(expected), "step " + step);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package test.beast.math.distributions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.State;
+import beast.base.inference.distribution.Dirichlet;
+import beast.base.inference.distribution.Normal;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+
+public class PriorTest {
+
+	private double expectedLogP(RealParameter x, Normal normal) {
+		for (int i = 0; i < x.getDimension(); i++) {
+			if (x.getValue(i) < x.getLower() || x.getValue(i) > x.getUpper()) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+		return normal.calcLogP(x);
+	}
+
+	@Test
+	public void testIndependentElements() {
+		assertTrue(new Normal().hasIndependentElements());
+		assertFalse(new Dirichlet().hasIndependentElements());
+	}
+
+	@Test
+	public void testIncrementalStoreRestore() {
+		Randomizer.setSeed(127);
+		int dimension = 500;
+		RealParameter x = new RealParameter();
+		x.initByName("value", "0.5", "dimension", dimension, "lower", -4.0, "upper", 4.0);
+		RealParameter mean = new RealParameter();
+		mean.initByName("value", "0.0");
+		Normal normal = new Normal();
+		normal.initByName("mean", mean, "sigma", "1.0");
+		Prior prior = new Prior();
+		prior.initByName("x", x, "distr", normal);
+
+		State state = new State();
+		state.initByName("stateNode", x, "stateNode", mean);
+		state.initialise();
+		state.setPosterior(prior);
+		assertEquals(expectedLogP(x, normal), state.robustlyCalcPosterior(prior), 1e-9);
+
+		for (int step = 0; step < 5000; step++) {
+			state.store(step);
+			int move = Randomizer.nextInt(10);
+			if (move == 0) {
+				// changes the density of every element
+				mean.setValue(Randomizer.nextGaussian() * 0.1);
+			} else if (move == 1 && expectedLogP(x, normal) > Double.NEGATIVE_INFINITY) {
+				// changes every element without marking them dirty individually
+				x.startEditing(null);
+				x.scale(0.9);
+			} else {
+				int changes = move < 7 ? 1 : move;
+				for (int k = 0; k < changes; k++) {
+					int i = Randomizer.nextInt(dimension);
+					// occasionally out of bounds
+					x.setValue(i, x.getValue(i) + Randomizer.nextGaussian());
+				}
+			}
+			state.storeCalculationNodes();
+			state.checkCalculationNodesDirtiness();
+			assertEquals(expectedLogP(x, normal), prior.calculateLogP(), 1e-9, "step " + step);
+
+			if (Randomizer.nextBoolean()) {
+				state.acceptCalculationNodes();
+			} else {
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+			assertEquals(expectedLogP(x, normal), prior.getCurrentLogP(), 1e-9, "step " + step);
+		}
+	}
+}
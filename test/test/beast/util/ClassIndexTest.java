@@ -0,0 +1,125 @@
+package test.beast.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Loggable;
+import beast.base.inference.Distribution;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+import beast.pkgmgmt.BEASTClassLoader;
+import beast.pkgmgmt.ClassIndex;
+import beast.pkgmgmt.PackageManager;
+
+public class ClassIndexTest {
+
+	/** the test find() performed by loading every class **/
+	private List<String> findByLoading(Class<?> cls, List<String> classNames) throws ClassNotFoundException {
+		List<String> result = new ArrayList<>();
+		for (String className : classNames) {
+			Class<?> clsNew = BEASTClassLoader.forName(className);
+			if (!Modifier.isAbstract(clsNew.getModifiers()) &&
+					(cls.isInterface() && PackageManager.hasInterface(cls, clsNew)) ||
+					(!clsNew.isInterface() && PackageManager.isSubclass(cls, clsNew))) {
+				result.add(className);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testFind() throws Exception {
+		String pkg = "beast.base.inference";
+		// all classes in the package, which are derived from Object
+		List<String> classNames = PackageManager.find(Object.class, pkg);
+		assertTrue(classNames.contains(RealParameter.class.getName()));
+
+		for (Class<?> cls : new Class<?>[]{Loggable.class, Distribution.class, StateNode.class}) {
+			List<String> found = PackageManager.find(cls, pkg);
+			assertFalse(found.isEmpty());
+			assertEquals(findByLoading(cls, classNames), found, cls.getName());
+		}
+		assertTrue(PackageManager.find(Distribution.class, pkg).contains("beast.base.inference.distribution.Prior"));
+
+		List<Class<?>> distributions = PackageManager.find(Distribution.class, false);
+		assertFalse(distributions.contains(Distribution.class));
+		assertTrue(distributions.contains(beast.base.inference.distribution.Prior.class));
+	}
+
+	@Test
+	public void testIndexFile() throws IOException {
+		File dir = Files.createTempDirectory("ClassIndexTest").toFile();
+		File lib = new File(dir, "lib");
+		lib.mkdir();
+		File versionFile = new File(dir, "version.xml");
+		Files.write(versionFile.toPath(), "<package name='test' version='1.0'/>".getBytes());
+		File jarFile = new File(lib, "test.jar");
+		try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile))) {
+			for (Class<?> cls : new Class<?>[]{RealParameter.class, Loggable.class}) {
+				String path = cls.getName().replace('.', '/') + ".class";
+				out.putNextEntry(new JarEntry(path));
+				try (InputStream in = cls.getClassLoader().getResourceAsStream(path)) {
+					in.transferTo(out);
+				}
+				out.closeEntry();
+			}
+		}
+		File indexFile = new File(dir, ClassIndex.INDEX_FILE);
+		List<String> packageDirs = List.of(dir.getParent());
+		try {
+			// no index file for packages outside the package directories, such as a source checkout
+			ClassIndex index = new ClassIndex();
+			index.addJar(jarFile);
+			assertEquals(List.of(RealParameter.class.getName(), Loggable.class.getName()), index.getClassNames());
+			assertFalse(indexFile.exists());
+
+			index = new ClassIndex(packageDirs);
+			index.addJar(jarFile);
+			assertEquals(List.of(RealParameter.class.getName(), Loggable.class.getName()), index.getClassNames());
+			assertTrue(indexFile.exists());
+			String content = new String(Files.readAllBytes(indexFile.toPath()));
+			assertTrue(content.matches("(?s).*\\Q" + RealParameter.class.getName() + "\\E \\d+ \\Qbeast.base.inference.parameter.Parameter$Base\\E.*"));
+
+			// the second time, the index file is used
+			Files.write(indexFile.toPath(), content.replace(Loggable.class.getName(), "x.Y").getBytes());
+			index = new ClassIndex(packageDirs);
+			index.addJar(jarFile);
+			assertEquals(List.of(RealParameter.class.getName(), "x.Y"), index.getClassNames());
+
+			// unless the jar changed
+			jarFile.setLastModified(jarFile.lastModified() - 10000);
+			index = new ClassIndex(packageDirs);
+			index.addJar(jarFile);
+			assertEquals(List.of(RealParameter.class.getName(), Loggable.class.getName()), index.getClassNames());
+
+			// or the section of the jar is damaged
+			content = new String(Files.readAllBytes(indexFile.toPath()));
+			Files.write(indexFile.toPath(), content.replace(Loggable.class.getName() + " ", "x.Y x").getBytes());
+			index = new ClassIndex(packageDirs);
+			index.addJar(jarFile);
+			assertEquals(List.of(RealParameter.class.getName(), Loggable.class.getName()), index.getClassNames());
+			assertEquals(content, new String(Files.readAllBytes(indexFile.toPath())));
+			assertEquals(List.of(ClassIndex.INDEX_FILE, "lib", "version.xml"), List.of(dir.list()).stream().sorted().toList());
+		} finally {
+			indexFile.delete();
+			jarFile.delete();
+			versionFile.delete();
+			lib.delete();
+			dir.delete();
+		}
+	}
+}
@@ -3,13 +3,24 @@ package test.beast.util;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.distance.JukesCantorDistance;
 import beast.base.evolution.sitemodel.SiteModel;
 import beast.base.evolution.substitutionmodel.JukesCantor;
 import beast.base.evolution.tree.ClusterTree;
+import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import test.beast.BEASTTestCase;
 
 
@@ -74,4 +85,129 @@ public class ClusterTreeTest  {
         expectedNewick = "(human:0.01903085702575253,(chimp:0.008560512208575313,bonobo:0.008560512208575313):0.010470344817177218):0.0";
         assertEquals(expectedNewick, actualNewick);
     }
+
+    /** alignment of taxa that evolve from copies of earlier taxa, with some identical sequences **/
+    private Alignment randomAlignment(int taxonCount, int siteCount) throws Exception {
+        Randomizer.setSeed(127);
+        List<char[]> sequences = new ArrayList<>();
+        char[] root = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            root[i] = "ACGT".charAt(Randomizer.nextInt(4));
+        }
+        sequences.add(root);
+        List<Sequence> seqs = new ArrayList<>();
+        for (int i = 0; i < taxonCount; i++) {
+            char[] seq = sequences.get(Randomizer.nextInt(sequences.size())).clone();
+            int mutations = i % 10 == 0 ? 0 : Randomizer.nextInt(siteCount / 5);
+            for (int k = 0; k < mutations; k++) {
+                seq[Randomizer.nextInt(siteCount)] = "ACGT".charAt(Randomizer.nextInt(4));
+            }
+            sequences.add(seq);
+            seqs.add(new Sequence("t" + i, new String(seq)));
+        }
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", seqs, "dataType", "nucleotide");
+        return alignment;
+    }
+
+    private List<Node> leafNodes(Node node) {
+        if (node.isLeaf()) {
+            List<Node> leafs = new ArrayList<>();
+            leafs.add(node);
+            return leafs;
+        }
+        return node.getAllLeafNodes();
+    }
+
+    private ClusterTree clusterTree(String type, Alignment alignment) {
+        ClusterTree tree = new ClusterTree();
+        tree.initByName("clusterType", type, "taxa", alignment);
+        return tree;
+    }
+
+    @Test
+    public void testNeighborJoining() throws Exception {
+        Alignment alignment = BEASTTestCase.getAlignment();
+        // as found by exhaustive search of the pair to join
+        String expectedNewick = "(((human:0.023118028934916858,(chimp:0.009628655750226756,bonobo:0.009628655750226756):0.013489373184690102):0.005984236065236705,gorilla:0.029102265000153563):0.02804742065380725,(orangutan:0.05714968555396081,siamang:0.05714968555396081):1.000000013351432E-10):0.0";
+        assertEquals(expectedNewick, clusterTree("neighborjoining", alignment).getRoot().toNewick());
+    }
+
+    @Test
+    public void testUPGMAHeights() throws Exception {
+        Alignment alignment = randomAlignment(200, 300);
+        ClusterTree tree = clusterTree("upgma", alignment);
+        JukesCantorDistance distance = new JukesCantorDistance();
+        distance.setPatterns(alignment);
+        for (Node node : tree.getInternalNodes()) {
+            // heights are half the average distance between taxa in the two clades
+            double sum = 0;
+            List<Node> left = leafNodes(node.getLeft());
+            List<Node> right = leafNodes(node.getRight());
+            for (Node leaf1 : left) {
+                for (Node leaf2 : right) {
+                    sum += distance.pairwiseDistance(leaf1.getNr(), leaf2.getNr());
+                }
+            }
+            // up to the minimum branch length that is enforced for identical sequences,
+            // so this fails if clusters are not joined in order of increasing distance
+            assertEquals(sum / (left.size() * right.size()) / 2.0, node.getHeight(), 1e-8);
+        }
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        Alignment alignment = randomAlignment(1000, 50);
+        int threads = ProgramStatus.m_nThreads;
+        for (String type : new String[] {"upgma", "neighborjoining"}) {
+            ProgramStatus.m_nThreads = 1;
+            String expectedNewick = clusterTree(type, alignment).getRoot().toNewick();
+            try {
+                ProgramStatus.m_nThreads = 4;
+                assertEquals(expectedNewick, clusterTree(type, alignment).getRoot().toNewick(), type);
+            } finally {
+                ProgramStatus.m_nThreads = threads;
+            }
+        }
+    }
+
+    @Test
+    public void testIdenticalSequencesJoinedInTaxonOrder() throws Exception {
+        List<Sequence> seqs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            seqs.add(new Sequence("t" + i, "ACGTACGTAC"));
+        }
+        Alignment alignment = new Alignment();
+        alignment.initByName("sequence", seqs, "dataType", "nucleotide");
+        String newick = clusterTree("upgma", alignment).getRoot().toNewick().replaceAll(":[^,)]*", "");
+        assertEquals("(((((t0,t1),t2),t3),t4),t5)", newick);
+    }
+
+    /** Distance that records the threads it is called from, and does not claim to be thread safe **/
+    public static class ThreadRecordingDistance extends JukesCantorDistance {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public double pairwiseDistance(int taxon1, int taxon2) {
+            threads.add(Thread.currentThread());
+            return super.pairwiseDistance(taxon1, taxon2);
+        }
+    }
+
+    @Test
+    public void testDistanceNotThreadSafe() throws Exception {
+        Alignment alignment = randomAlignment(1000, 50);
+        ThreadRecordingDistance distance = new ThreadRecordingDistance();
+        assertFalse(distance.isThreadSafe());
+        assertTrue(new JukesCantorDistance().isThreadSafe());
+        int threads = ProgramStatus.m_nThreads;
+        try {
+            ProgramStatus.m_nThreads = 4;
+            ClusterTree tree = new ClusterTree();
+            tree.initByName("clusterType", "upgma", "taxa", alignment, "distance", distance);
+            assertEquals(1, distance.threads.size());
+        } finally {
+            ProgramStatus.m_nThreads = threads;
+        }
+    }
 }
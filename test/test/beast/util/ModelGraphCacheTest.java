@@ -0,0 +1,108 @@
+package test.beast.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.BEASTInterface;
+import beast.base.inference.MCMC;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+
+public class ModelGraphCacheTest {
+
+	private final static String[] FILES = {"testRelaxedClock.xml", "testPlates.xml"};
+
+	private MCMC parse(File file, File cacheDir, Map<String, BEASTInterface> idMap) throws Exception {
+		Randomizer.setSeed(127);
+		XMLParser parser = new XMLParser();
+		parser.setModelCacheDir(cacheDir);
+		MCMC mcmc = (MCMC) parser.parseFile(file);
+		if (idMap != null) {
+			idMap.putAll(parser.getIDMap());
+		}
+		return mcmc;
+	}
+
+	@Test
+	public void testCachedGraph() throws Exception {
+		File cacheDir = Files.createTempDirectory("ModelGraphCacheTest").toFile();
+		try {
+			for (String fileName : FILES) {
+				File file = new File(System.getProperty("user.dir") + "/examples/" + fileName);
+				Map<String, BEASTInterface> parsedIDs = new HashMap<>();
+				double logP = parse(file, null, parsedIDs).posteriorInput.get().calculateLogP();
+
+				// the first time, the XML is parsed and the graph is cached
+				int cached = cacheDir.list().length;
+				assertEquals(logP, parse(file, cacheDir, null).posteriorInput.get().calculateLogP(), 0.0, fileName);
+				assertEquals(cached + 1, cacheDir.list().length, fileName);
+
+				// the second time, the graph is rebuilt from the cache
+				Map<String, BEASTInterface> cachedIDs = new HashMap<>();
+				MCMC mcmc = parse(file, cacheDir, cachedIDs);
+				assertEquals(logP, mcmc.posteriorInput.get().calculateLogP(), 0.0, fileName);
+				assertEquals(parsedIDs.keySet(), cachedIDs.keySet(), fileName);
+				for (String id : parsedIDs.keySet()) {
+					assertEquals(parsedIDs.get(id).getClass(), cachedIDs.get(id).getClass(), id);
+				}
+				assertEquals(cached + 1, cacheDir.list().length, fileName);
+			}
+		} finally {
+			delete(cacheDir);
+		}
+	}
+
+	@Test
+	public void testChangedXML() throws Exception {
+		File cacheDir = Files.createTempDirectory("ModelGraphCacheTest").toFile();
+		File file = File.createTempFile("ModelGraphCacheTest", ".xml");
+		try {
+			String xml = new String(Files.readAllBytes(new File(System.getProperty("user.dir") + "/examples/testHKY.xml").toPath()));
+			Files.write(file.toPath(), xml.getBytes());
+			assertEquals(1.0, kappa(file, cacheDir), 0.0);
+			assertEquals(1, cacheDir.list().length);
+			assertEquals(1.0, kappa(file, cacheDir), 0.0);
+
+			// a different model gets a different cache entry
+			String changed = xml.replaceFirst("id=\"hky.kappa\" value=\"1.0\"", "id=\"hky.kappa\" value=\"2.0\"");
+			assertNotEquals(xml, changed);
+			Files.write(file.toPath(), changed.getBytes());
+			assertEquals(2.0, kappa(file, cacheDir), 0.0);
+			assertEquals(2, cacheDir.list().length);
+			assertEquals(2.0, kappa(file, cacheDir), 0.0);
+
+			// a corrupt cache entry is ignored, and replaced
+			for (File f : cacheDir.listFiles()) {
+				Files.write(f.toPath(), new byte[]{1, 2, 3});
+			}
+			assertEquals(2.0, kappa(file, cacheDir), 0.0);
+			assertEquals(2.0, kappa(file, cacheDir), 0.0);
+			assertEquals(2, cacheDir.list().length);
+		} finally {
+			file.delete();
+			delete(cacheDir);
+		}
+	}
+
+	private double kappa(File file, File cacheDir) throws Exception {
+		Map<String, BEASTInterface> idMap = new HashMap<>();
+		parse(file, cacheDir, idMap);
+		return ((RealParameter) idMap.get("hky.kappa")).getValue();
+	}
+
+	private void delete(File dir) throws IOException {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+}
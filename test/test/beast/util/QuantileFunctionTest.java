@@ -0,0 +1,112 @@
+package test.beast.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.GammaDistributionImpl;
+import org.apache.commons.math.distribution.NormalDistributionImpl;
+import org.apache.commons.math.special.Gamma;
+import org.junit.jupiter.api.Test;
+
+import beast.base.util.QuantileFunction;
+
+/**
+ * Checks quantiles by mapping them back to probabilities with the commons-math
+ * cumulative distribution functions.
+ */
+public class QuantileFunctionTest {
+
+    /** probabilities below 0.5, down into the far tail **/
+    final static double[] LOWER = {Double.MIN_NORMAL, 1e-300, 1e-100, 1e-20, 1e-12, 1e-8, 1e-4, 0.01, 0.02425, 0.1, 0.3, 0.5};
+    /** probabilities above 0.5, up to the largest double below 1 **/
+    final static double[] UPPER = {0.7, 0.9, 0.97575, 0.99, 0.9999, 1 - 1e-8, 1 - 1e-12, Math.nextDown(1.0)};
+    final static double[] SHAPES = {0.01, 0.05, 0.1, 0.5, 1, 2, 10, 100, 1000};
+
+    final static double TOLERANCE = 1e-10;
+    /** NormalDistributionImpl calculates (1 + erf(x)) / 2, which is only accurate in absolute terms **/
+    final static double NORMAL_TOLERANCE = 1e-15;
+
+    @Test
+    public void testNormalRoundTrip() throws MathException {
+        NormalDistributionImpl normal = new NormalDistributionImpl(0, 1);
+        for (double p : LOWER) {
+            double x = QuantileFunction.normal(p);
+            // P(X < x) = Q(1/2, x^2/2) / 2 for x <= 0, which is accurate where 1 + erf(x) is not
+            assertEquals(p, 0.5 * Gamma.regularizedGammaQ(0.5, x * x / 2), TOLERANCE * p, "p = " + p);
+            assertEquals(p, normal.cumulativeProbability(x), NORMAL_TOLERANCE, "p = " + p);
+        }
+        for (double p : UPPER) {
+            double x = QuantileFunction.normal(p);
+            assertEquals(p, normal.cumulativeProbability(x), NORMAL_TOLERANCE, "p = " + p);
+            // upper tail by symmetry, 1 - p is exact for p >= 0.5
+            assertEquals(1 - p, 0.5 * Gamma.regularizedGammaQ(0.5, x * x / 2), TOLERANCE * (1 - p), "p = " + p);
+        }
+    }
+
+    @Test
+    public void testNormalMeanAndStdDev() throws MathException {
+        NormalDistributionImpl normal = new NormalDistributionImpl(3, 0.25);
+        for (double p : new double[]{1e-8, 0.01, 0.3, 0.5, 0.7, 0.99, 1 - 1e-8}) {
+            double x = QuantileFunction.normal(p, 3, 0.25);
+            assertEquals(p, normal.cumulativeProbability(x), NORMAL_TOLERANCE, "p = " + p);
+        }
+    }
+
+    @Test
+    public void testNormalBounds() {
+        assertEquals(Double.NEGATIVE_INFINITY, QuantileFunction.normal(0), 0);
+        assertEquals(Double.POSITIVE_INFINITY, QuantileFunction.normal(1), 0);
+        assertEquals(0, QuantileFunction.normal(0.5), 0);
+        assertThrows(IllegalArgumentException.class, () -> QuantileFunction.normal(-1e-10));
+        assertThrows(IllegalArgumentException.class, () -> QuantileFunction.normal(1 + 1e-10));
+        assertThrows(IllegalArgumentException.class, () -> QuantileFunction.normal(Double.NaN));
+    }
+
+    @Test
+    public void testGammaRoundTrip() throws MathException {
+        for (double shape : SHAPES) {
+            for (double scale : new double[]{1, 2.5}) {
+                GammaDistributionImpl gamma = new GammaDistributionImpl(shape, scale);
+                for (double p : LOWER) {
+                    double x = QuantileFunction.gamma(p, shape, scale);
+                    if (x == 0) {
+                        // for small shapes, quantiles of small p are below the smallest normal double
+                        assertTrue(gamma.cumulativeProbability(Double.MIN_NORMAL * scale) >= p, "shape = " + shape + " p = " + p);
+                    } else {
+                        assertEquals(p, gamma.cumulativeProbability(x), TOLERANCE * p, "shape = " + shape + " p = " + p);
+                    }
+                }
+                for (double p : UPPER) {
+                    double x = QuantileFunction.gamma(p, shape, scale);
+                    assertTrue(x > 0 && x < Double.POSITIVE_INFINITY, "shape = " + shape + " p = " + p);
+                    assertEquals(p, gamma.cumulativeProbability(x), TOLERANCE * (1 - p), "shape = " + shape + " p = " + p);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGammaIsIncreasing() throws MathException {
+        for (double shape : SHAPES) {
+            double prev = 0;
+            for (int i = 1; i < 1000; i++) {
+                double x = QuantileFunction.gamma(i / 1000.0, shape, 1);
+                assertTrue(x >= prev, "shape = " + shape + " p = " + i / 1000.0);
+                prev = x;
+            }
+        }
+    }
+
+    @Test
+    public void testGammaBounds() throws MathException {
+        for (double shape : SHAPES) {
+            assertEquals(0, QuantileFunction.gamma(0, shape, 2), 0);
+            assertEquals(Double.POSITIVE_INFINITY, QuantileFunction.gamma(1, shape, 2), 0);
+        }
+        assertThrows(IllegalArgumentException.class, () -> QuantileFunction.gamma(-1e-10, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> QuantileFunction.gamma(1 + 1e-10, 1, 1));
+    }
+
+}
@@ -1,11 +1,20 @@
 package test.beast.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
 import org.junit.jupiter.api.Test;
 
 import beast.base.util.DiscreteStatistics;
 import beast.base.util.Randomizer;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class RandomizerTest {
 
@@ -32,4 +41,87 @@ public class RandomizerTest {
         assertEquals(1.133148, DiscreteStatistics.mean(vals2), 1e-3);
         assertEquals( 0.3646959, DiscreteStatistics.variance(vals2), 1e-3);
     }
+
+    /** draws n numbers in a new thread with the given name **/
+    private double[] drawInThread(String name, int n) throws InterruptedException {
+        double[] values = new double[n];
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < n; i++) {
+                values[i] = Randomizer.nextDouble();
+            }
+        }, name);
+        thread.start();
+        thread.join();
+        return values;
+    }
+
+    @Test
+    public void testThreadStreams() throws Exception {
+        Randomizer.setSeed(127);
+        double[] main = new double[]{Randomizer.nextDouble(), Randomizer.nextDouble()};
+        double[] worker1 = drawInThread("worker 1", 100);
+        double[] worker2 = drawInThread("worker 2", 100);
+        assertFalse(Arrays.equals(worker1, worker2));
+
+        // streams depend on seed and thread name only, not on the order threads start in
+        Randomizer.setSeed(127);
+        assertArrayEquals(worker2, drawInThread("worker 2", 100), 0.0);
+        assertArrayEquals(worker1, drawInThread("worker 1", 100), 0.0);
+        assertArrayEquals(main, new double[]{Randomizer.nextDouble(), Randomizer.nextDouble()}, 0.0);
+
+        // a second thread with the same name gets a stream of its own, in every run
+        Randomizer.setSeed(127);
+        assertArrayEquals(worker1, drawInThread("worker 1", 100), 0.0);
+        double[] second = drawInThread("worker 1", 100);
+        assertFalse(Arrays.equals(worker1, second));
+        Randomizer.setSeed(127);
+        drawInThread("worker 1", 100);
+        assertArrayEquals(second, drawInThread("worker 1", 100), 0.0);
+    }
+
+    @Test
+    public void testThreadsWithSameName() throws Exception {
+        Randomizer.setSeed(127);
+        int n = 1000000;
+        double[][] values = new double[4][n];
+        Throwable[] errors = new Throwable[4];
+        Thread[] threads = new Thread[4];
+        for (int k = 0; k < threads.length; k++) {
+            final int t = k;
+            threads[k] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < n; i++) {
+                        values[t][i] = Randomizer.nextGaussian();
+                    }
+                } catch (Throwable e) {
+                    errors[t] = e;
+                }
+            }, "worker");
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int k = 0; k < threads.length; k++) {
+            assertNull(errors[k]);
+            for (int j = 0; j < k; j++) {
+                assertFalse(Arrays.equals(values[j], values[k]));
+            }
+        }
+    }
+
+    @Test
+    public void testState() throws Exception {
+        Randomizer.setSeed(127);
+        Randomizer.nextGaussian();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Randomizer.writeState(new DataOutputStream(bytes));
+        double[] expected = {Randomizer.nextGaussian(), Randomizer.nextDouble(), Randomizer.nextInt(1000)};
+
+        Randomizer.setSeed(1);
+        Randomizer.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertArrayEquals(expected, new double[]{Randomizer.nextGaussian(), Randomizer.nextDouble(), Randomizer.nextInt(1000)}, 0.0);
+    }
 }